@@ -42,6 +42,7 @@ import spiralcraft.net.mime.ContentTypeHeader;
 import spiralcraft.time.Clock;
 
 
+import spiralcraft.pioneer.servlet.MultipartForm;
 import spiralcraft.pioneer.servlet.VariableManager;
 
 import spiralcraft.util.IteratorEnumeration;
@@ -102,6 +103,7 @@ public abstract class AbstractHttpServletRequest
 	protected String _requestURI;
   protected VariableManager _query;
   protected VariableManager _post;
+  protected MultipartForm _multipart;
 	protected String _servletPath;
 	protected String _contextPath;
   protected final HashMap<String,Object> _attributes
@@ -140,6 +142,7 @@ public abstract class AbstractHttpServletRequest
     _requestURI=null;
     _query=null;
     _post=null;
+    deleteMultipart();
     _servletPath="";
     _contextPath="";
     _contentType=null;
@@ -154,7 +157,9 @@ public abstract class AbstractHttpServletRequest
   }
   
   public void cleanup()
-  { _attributes.clear();
+  { 
+    _attributes.clear();
+    deleteMultipart();
   }
   
   public abstract byte[] getRawRemoteAddress();
@@ -605,23 +610,41 @@ public abstract class AbstractHttpServletRequest
     }
   }
 
+  /**
+   * Whether the final transfer-coding in a Transfer-Encoding header value
+   *   is "chunked"
+   */
+  protected static boolean isChunked(String transferEncoding)
+  {
+    if (transferEncoding==null)
+    { return false;
+    }
+    int comma=transferEncoding.lastIndexOf(',');
+    return transferEncoding.substring(comma+1).trim()
+      .equalsIgnoreCase("chunked");
+  }
+
   private synchronized void ensurePost()
   {
     
     if (_post==null)
     {
+      boolean chunked=isChunked(getHeader("Transfer-Encoding"));
       if (getContentType()!=null
           && _contentType.getFullType()
             .equalsIgnoreCase("application/x-www-form-urlencoded")
-          && getContentLength()>0            
+          && (getContentLength()>0 || chunked)
          )
       { 
         try
         {
           _post=VariableManager.fromStream
-                (getContentLength()
+                (chunked?-1:getContentLength()
                 ,getInputStream()
                 ,_characterEncoding!=null?Charset.forName(_characterEncoding):UTF_8
+                ,_context!=null
+                  ?_context.getMaxFormSize()
+                  :VariableManager.DEFAULT_MAX_FORM_SIZE
                 );
           if (getDebugSettings().getDebugService())
           { _log.log(Level.DEBUG,"Read post: ["+_post.toString()+"]");
@@ -636,11 +659,78 @@ public abstract class AbstractHttpServletRequest
           _post=NULL_FORM;
         }
       }
-      else
+      else if (isMultipartForm()
+              && _context!=null
+              && _context.getMultipartConfig().getParseParameters()
+              )
       { 
-        // XXX Deal with multipart
-        _post=NULL_FORM;
+        try
+        { _post=getMultipartForm().getParameters();
+        }
+        catch (IOException x)
+        { 
+          _log.log
+            (Level.INFO,"IOException reading multipart form: "+x.toString());
+          _post=NULL_FORM;
+        }
+      }
+      else
+      { _post=NULL_FORM;
+      }
+    }
+  }
+
+  private boolean isMultipartForm()
+  {
+    return getContentType()!=null
+      && _contentType.getFullType().equalsIgnoreCase("multipart/form-data");
+  }
+
+  /**
+   * <p>Read a multipart/form-data request body. The body is parsed on the
+   *   first call, and any temporary files are deleted when the request
+   *   completes.
+   * </p>
+   *
+   * @return The parts of the form, or null if the request body is not
+   *   multipart/form-data
+   */
+  public synchronized MultipartForm getMultipartForm()
+    throws IOException
+  {
+    if (_multipart==null)
+    {
+      if (!isMultipartForm())
+      { return null;
+      }
+      String boundary=_contentType.getParameter("boundary");
+      if (boundary==null)
+      { throw new IOException("Multipart request has no boundary");
       }
+
+      MultipartConfig config
+        =_context!=null?_context.getMultipartConfig():new MultipartConfig();
+      _multipart
+        =new MultipartForm
+          (getInputStream()
+          ,boundary
+          ,_characterEncoding!=null?Charset.forName(_characterEncoding):UTF_8
+          ,config.getMemoryThreshold()
+          ,config.getMaxMemorySize()
+          ,config.getMaxParts()
+          ,config.getTempDirectory()
+          ,config.getMaxRequestSize()
+          );
+    }
+    return _multipart;
+  }
+
+  private void deleteMultipart()
+  {
+    if (_multipart!=null)
+    { 
+      _multipart.delete();
+      _multipart=null;
     }
   }
 
@@ -0,0 +1,126 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+/**
+ * <p>Reads the content codings accepted by a request's Accept-Encoding
+ *   header.
+ * </p>
+ *
+ * <p>A coding listed with a quality of 0 is not acceptable, even if "*"
+ *   is also listed. Other quality values are not compared: when more than
+ *   one coding is acceptable, the server's preference is used.
+ * </p>
+ */
+final class AcceptEncoding
+{
+  private static final String GZIP="gzip";
+  private static final String DEFLATE="deflate";
+
+  /**
+   * <p>The preferred content coding that is acceptable according to an
+   *   Accept-Encoding header: gzip, then deflate.
+   * </p>
+   *
+   * @return "gzip", "deflate", or null if neither is acceptable
+   */
+  static String acceptedCoding(String acceptEncoding)
+  {
+    if (acceptEncoding==null)
+    { return null;
+    }
+    if (isAcceptedCoding(acceptEncoding,GZIP))
+    { return GZIP;
+    }
+    if (isAcceptedCoding(acceptEncoding,DEFLATE))
+    { return DEFLATE;
+    }
+    return null;
+  }
+
+  /**
+   * <p>Whether a specific content coding is acceptable according to an
+   *   Accept-Encoding header, either by name or by "*". "x-gzip" is
+   *   treated as "gzip".
+   * </p>
+   */
+  static boolean isAcceptedCoding(String acceptEncoding,String coding)
+  {
+    if (acceptEncoding==null)
+    { return false;
+    }
+
+    boolean any=false;
+    int len=acceptEncoding.length();
+    int start=0;
+    while (start<len)
+    {
+      int end=acceptEncoding.indexOf(',',start);
+      if (end<0)
+      { end=len;
+      }
+      String item=acceptEncoding.substring(start,end);
+      start=end+1;
+
+      int semi=item.indexOf(';');
+      String name=(semi>=0?item.substring(0,semi):item).trim();
+      boolean accepted=semi<0 || !isZeroQuality(item.substring(semi+1));
+      if (name.equalsIgnoreCase(coding)
+          || (coding.equals(GZIP) && name.equalsIgnoreCase("x-gzip"))
+          )
+      { return accepted;
+      }
+      else if (name.equals("*"))
+      { any=accepted;
+      }
+    }
+    return any;
+  }
+
+  /**
+   * Whether the parameters of an Accept-Encoding item include a q value
+   *   of 0
+   */
+  private static boolean isZeroQuality(String params)
+  {
+    int len=params.length();
+    int start=0;
+    while (start<len)
+    {
+      int end=params.indexOf(';',start);
+      if (end<0)
+      { end=len;
+      }
+      int eq=params.indexOf('=',start);
+      if (eq>=0 && eq<end
+          && params.substring(start,eq).trim().equalsIgnoreCase("q")
+          )
+      {
+        try
+        { return Float.parseFloat(params.substring(eq+1,end).trim())==0;
+        }
+        catch (NumberFormatException x)
+        { return false;
+        }
+      }
+      start=end+1;
+    }
+    return false;
+  }
+
+  private AcceptEncoding()
+  {
+  }
+}
@@ -0,0 +1,146 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * <p>Serves a small static file from a StaticFileCache. The content is
+ *   written with a Content-Length in a single buffer, so the headers and
+ *   content go to the client in one write.
+ * </p>
+ *
+ * <p>When the content type is compressible according to the
+ *   CompressionConfig and the client accepts gzip, the cache's gzip
+ *   compressed copy is sent with its own ETag, so cached content is only
+ *   compressed once. Otherwise the content is sent as it is, without
+ *   being compressed for each response.
+ * </p>
+ *
+ * <p>Files that are not cached, Range requests and methods other than
+ *   GET and HEAD are passed to the file servlet.
+ * </p>
+ */
+class CachedFileChain
+  implements FilterChain
+{
+  private final FilterChain fileChain;
+  private final StaticFileCache cache;
+  private final File file;
+  private final String contentType;
+  private final CompressionConfig compressionConfig;
+
+  CachedFileChain
+    (FilterChain fileChain
+    ,StaticFileCache cache
+    ,String realPath
+    ,String contentType
+    ,CompressionConfig compressionConfig
+    )
+  {
+    this.fileChain=fileChain;
+    this.cache=cache;
+    this.file=new File(realPath);
+    this.contentType=contentType;
+    this.compressionConfig=compressionConfig;
+  }
+
+  @Override
+  public void doFilter
+    (ServletRequest servletRequest
+    ,ServletResponse servletResponse
+    )
+    throws IOException,ServletException
+  {
+    HttpServletRequest request=(HttpServletRequest) servletRequest;
+    HttpServletResponse response=(HttpServletResponse) servletResponse;
+
+    String method=request.getMethod();
+    boolean head="HEAD".equals(method);
+    StaticFileCache.Entry entry=null;
+    if ((head || "GET".equals(method))
+        && request.getHeader(HttpServerResponse.HDR_RANGE)==null
+        )
+    { entry=cache.get(file,contentType);
+    }
+
+    if (entry==null)
+    {
+      fileChain.doFilter(request,response);
+      return;
+    }
+
+    if (response instanceof HttpServerResponse)
+    { ((HttpServerResponse) response).disableCompression();
+    }
+
+    byte[] content=entry.content;
+    String etag=entry.etag;
+    String contentLengthHeader=entry.contentLengthHeader;
+    if (compressionConfig.isCompressible(entry.contentType)
+        && content.length>=compressionConfig.getMinSize()
+        )
+    {
+      // The response depends on Accept-Encoding, whatever the client sent
+      response.setHeader
+        (HttpServerResponse.HDR_VARY,HttpServerResponse.HDR_ACCEPT_ENCODING);
+
+      StaticFileCache.Compressed gzip
+        =AcceptEncoding.isAcceptedCoding
+            (request.getHeader(HttpServerResponse.HDR_ACCEPT_ENCODING)
+            ,HttpServerResponse.CODING_GZIP
+            )
+        ?cache.gzip(entry,compressionConfig.getLevel())
+        :null;
+      if (gzip!=null)
+      {
+        response.setHeader
+          (HttpServerResponse.HDR_CONTENT_ENCODING
+          ,HttpServerResponse.CODING_GZIP
+          );
+        content=gzip.content;
+        etag=gzip.etag;
+        contentLengthHeader=gzip.contentLengthHeader;
+      }
+    }
+
+    response.setHeader("ETag",etag);
+    response.setHeader
+      (HttpServerResponse.HDR_LAST_MODIFIED,entry.lastModifiedHeader);
+    if (entry.contentType!=null)
+    { response.setContentType(entry.contentType);
+    }
+
+    if (StaticContent.isNotModified(request,etag,entry.lastModified))
+    {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    response.setHeader
+      (HttpServerResponse.HDR_CONTENT_LENGTH,contentLengthHeader);
+    if (!head)
+    { response.getOutputStream().write(content);
+    }
+  }
+}
@@ -17,34 +17,74 @@ package spiralcraft.pioneer.httpd;
 import java.io.IOException;
 import java.io.InputStream;
 
-import spiralcraft.io.CappedInputStream;
 import javax.servlet.ServletInputStream;
 
+/**
+ * <p>Limits reads from the underlying stream to the content length of a
+ *   request body.
+ * </p>
+ */
 public class CappedServletInputStream
     extends ServletInputStream
 {
 
-  private final CappedInputStream delegate;
+  private final InputStream source;
+  private long remaining;
   
   public CappedServletInputStream(
       InputStream source,
       long cap)
   {
-    delegate=new CappedInputStream(source,cap);
+    this.source=source;
+    this.remaining=cap;
   }
 
   @Override
   public int read() throws IOException
-  { return delegate.read();
+  { 
+    if (remaining<=0)
+    { return -1;
+    }
+    int val=source.read();
+    if (val>-1)
+    { remaining--;
+    }
+    return val;
   }
 
   @Override
   public int read(byte[] bytes) throws IOException
-  { return delegate.read(bytes);
+  { return read(bytes,0,bytes.length);
   }
 
   @Override
   public int read(byte[] bytes,int start,int len) throws IOException
-  { return delegate.read(bytes,start,len);
+  { 
+    if (remaining<=0)
+    { return -1;
+    }
+    int count=source.read(bytes,start,(int) Math.min(len,remaining));
+    if (count>0)
+    { remaining-=count;
+    }
+    return count;
+  }
+
+  @Override
+  public long skip(long n) throws IOException
+  {
+    if (remaining<=0 || n<=0)
+    { return 0;
+    }
+    long count=source.skip(Math.min(n,remaining));
+    if (count>0)
+    { remaining-=count;
+    }
+    return count;
+  }
+
+  @Override
+  public int available() throws IOException
+  { return (int) Math.min(source.available(),remaining);
   }
 }
@@ -0,0 +1,373 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ServletInputStream;
+
+/**
+ * <p>Decodes a request body sent with "Transfer-Encoding: chunked".
+ * </p>
+ *
+ * <p>Chunk framing is decoded incrementally as the body is read, so the
+ *   body is never buffered as a whole. Chunk extensions are ignored.
+ *   Trailer fields that follow the last chunk are added to the request
+ *   headers, within the header size and count limits. Fields that affect
+ *   framing, routing, authentication or the client address can't be
+ *   sent as trailers and are dropped.
+ * </p>
+ *
+ * <p>A framing error is reported by every later read, since the position
+ *   of the rest of the body is unknown.
+ * </p>
+ *
+ * <p>Once the last chunk and trailers have been read, the underlying
+ *   stream is positioned at the start of the next request.
+ * </p>
+ */
+final class ChunkedServletInputStream
+  extends ServletInputStream
+{
+  private static final int MAX_LINE=4096;
+
+  private static final boolean[] FORBIDDEN_TRAILERS
+    =new boolean[HeaderTable.X_FORWARDED_FOR+1];
+  static
+  {
+    for (int slot
+          :new int[]
+            {HeaderTable.HOST
+            ,HeaderTable.CONNECTION
+            ,HeaderTable.CONTENT_LENGTH
+            ,HeaderTable.TRANSFER_ENCODING
+            ,HeaderTable.COOKIE
+            ,HeaderTable.CONTENT_TYPE
+            ,HeaderTable.CONTENT_ENCODING
+            ,HeaderTable.IF_MODIFIED_SINCE
+            ,HeaderTable.IF_NONE_MATCH
+            ,HeaderTable.EXPECT
+            ,HeaderTable.AUTHORIZATION
+            ,HeaderTable.RANGE
+            ,HeaderTable.KEEP_ALIVE
+            ,HeaderTable.CACHE_CONTROL
+            ,HeaderTable.CONTENT_RANGE
+            ,HeaderTable.UPGRADE
+            ,HeaderTable.X_FORWARDED_FOR
+            }
+        )
+    { FORBIDDEN_TRAILERS[slot]=true;
+    }
+  }
+
+  private static final String[] FORBIDDEN_TRAILER_NAMES
+    ={"Trailer"
+     ,"TE"
+     ,"Max-Forwards"
+     ,"Proxy-Authorization"
+     ,"If-Match"
+     ,"If-Unmodified-Since"
+     ,"If-Range"
+     };
+
+  private final byte[] _line=new byte[MAX_LINE];
+  private ServerInputStream _in;
+  private RequestHead _head;
+  private String _remoteAddressHeaderName;
+  private long _chunkRemaining;
+  private boolean _started;
+  private boolean _eof;
+  private IOException _error;
+
+  /**
+   * Start decoding a new request body
+   *
+   * @param in The connection input
+   * @param head The request head, which receives any trailer fields
+   * @param remoteAddressHeaderName The header, if any, that the server
+   *   trusts for the client address, which is not accepted as a trailer
+   */
+  void start
+    (ServerInputStream in
+    ,RequestHead head
+    ,String remoteAddressHeaderName
+    )
+  {
+    _in=in;
+    _head=head;
+    _remoteAddressHeaderName=remoteAddressHeaderName;
+    _chunkRemaining=0;
+    _started=false;
+    _eof=false;
+    _error=null;
+  }
+
+  /**
+   * Read and discard the remainder of the body, leaving the connection
+   *   positioned at the start of the next request
+   */
+  void drain()
+    throws IOException
+  {
+    while (!_eof)
+    {
+      if (_chunkRemaining==0)
+      { nextChunk();
+      }
+      else
+      { _chunkRemaining-=skip(_chunkRemaining);
+      }
+    }
+  }
+
+  boolean isFinished()
+  { return _eof;
+  }
+
+  @Override
+  public int read()
+    throws IOException
+  {
+    if (_chunkRemaining==0 || _error!=null)
+    { nextChunk();
+    }
+    if (_eof)
+    { return -1;
+    }
+
+    int val=_in.read();
+    if (val<0)
+    { throw fail("Connection closed in middle of chunk");
+    }
+    _chunkRemaining--;
+    return val;
+  }
+
+  @Override
+  public int read(byte[] bytes,int start,int len)
+    throws IOException
+  {
+    if (len==0)
+    { return 0;
+    }
+    if (_chunkRemaining==0 || _error!=null)
+    { nextChunk();
+    }
+    if (_eof)
+    { return -1;
+    }
+
+    int count=_in.read(bytes,start,(int) Math.min(len,_chunkRemaining));
+    if (count<0)
+    { throw fail("Connection closed in middle of chunk");
+    }
+    _chunkRemaining-=count;
+    return count;
+  }
+
+  @Override
+  public long skip(long n)
+    throws IOException
+  {
+    if (n<=0)
+    { return 0;
+    }
+    if (_chunkRemaining==0 || _error!=null)
+    { nextChunk();
+    }
+    if (_eof)
+    { return 0;
+    }
+
+    long count=_in.skip(Math.min(n,_chunkRemaining));
+    if (count<=0)
+    { throw fail("Connection closed in middle of chunk");
+    }
+    _chunkRemaining-=count;
+    return count;
+  }
+
+  @Override
+  public int available()
+    throws IOException
+  {
+    return _eof
+      ?0
+      :(int) Math.min(_in.getBuffered(),_chunkRemaining);
+  }
+
+  @Override
+  public void close()
+  {
+    // The connection stays open
+  }
+
+  /**
+   * Consume the end of the previous chunk and read the size of the next
+   *   one. Reads the trailer when the last chunk is reached.
+   */
+  private void nextChunk()
+    throws IOException
+  {
+    if (_eof)
+    { return;
+    }
+    if (_error!=null)
+    { throw _error;
+    }
+
+    try
+    { readChunkSize();
+    }
+    catch (IOException x)
+    { 
+      _error=x;
+      throw x;
+    }
+  }
+
+  private IOException fail(String message)
+  {
+    _error=new IOException(message);
+    return _error;
+  }
+
+  private void readChunkSize()
+    throws IOException
+  {
+    if (_started)
+    {
+      // CRLF after the previous chunk data
+      if (readLine()!=0)
+      { throw new IOException("Missing CRLF after chunk data");
+      }
+    }
+    _started=true;
+
+    int end=readLine();
+    if (end<0)
+    { throw new IOException("Connection closed before chunk size");
+    }
+
+    long size=0;
+    int digits=0;
+    for (int i=0;i<end;i++)
+    {
+      int digit=Character.digit(_line[i],16);
+      if (digit<0)
+      {
+        if (_line[i]==';' || _line[i]==' ' || _line[i]=='\t')
+        { break;
+        }
+        throw new IOException("Invalid chunk size");
+      }
+      if (++digits>15)
+      { throw new IOException("Chunk size too large");
+      }
+      size=(size<<4)+digit;
+    }
+    if (digits==0)
+    { throw new IOException("Invalid chunk size");
+    }
+
+    if (size==0)
+    {
+      readTrailer();
+      _eof=true;
+    }
+    _chunkRemaining=size;
+  }
+
+  private void readTrailer()
+    throws IOException
+  {
+    while (true)
+    {
+      int end=readLine();
+      if (end<=0)
+      {
+        // Blank line ends the trailer. Tolerate a connection closed
+        //   after the last chunk.
+        return;
+      }
+
+      int colon=-1;
+      for (int i=0;i<end;i++)
+      {
+        if (_line[i]==':')
+        {
+          colon=i;
+          break;
+        }
+      }
+      if (colon<=0)
+      { throw new IOException("Malformed trailer field");
+      }
+      String name
+        =new String(_line,0,colon,StandardCharsets.ISO_8859_1).trim();
+      String value
+        =new String(_line,colon+1,end-colon-1,StandardCharsets.ISO_8859_1)
+          .trim();
+      if (isForbiddenTrailer(name))
+      { continue;
+      }
+      _head.addTrailer(name,value);
+    }
+  }
+
+  private boolean isForbiddenTrailer(String name)
+  {
+    int slot=HeaderTable.knownSlot(name);
+    if (slot>=0 && slot<FORBIDDEN_TRAILERS.length && FORBIDDEN_TRAILERS[slot])
+    { return true;
+    }
+    if (name.equalsIgnoreCase(_remoteAddressHeaderName))
+    { return true;
+    }
+    for (String forbidden: FORBIDDEN_TRAILER_NAMES)
+    {
+      if (name.equalsIgnoreCase(forbidden))
+      { return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Read a line into the line buffer
+   *
+   * @return The end of the line content, excluding the CRLF, or -1 if the
+   *   stream ended before any data was read
+   */
+  private int readLine()
+    throws IOException
+  {
+    int count=_in.readLine(_line,0,MAX_LINE);
+    if (count<0)
+    { return -1;
+    }
+    if (_line[count-1]!='\n')
+    {
+      throw new IOException
+        (count==MAX_LINE?"Chunk line too long":"Connection closed in chunk line");
+    }
+    int end=count-1;
+    if (end>0 && _line[end-1]=='\r')
+    { end--;
+    }
+    return end;
+  }
+}
@@ -0,0 +1,125 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.util.HashSet;
+import java.util.zip.Deflater;
+
+/**
+ * <p>Controls the compression of responses with the gzip or deflate
+ *   content codings, as negotiated with the client's Accept-Encoding
+ *   header.
+ * </p>
+ *
+ * <p>Compression is off until the MIME types to compress are specified.
+ * </p>
+ */
+public class CompressionConfig
+{
+  private String[] mimeTypes;
+  private HashSet<String> types=new HashSet<>();
+  private String[] typePrefixes=new String[0];
+  private int minSize=1024;
+  private int level=Deflater.DEFAULT_COMPRESSION;
+  private boolean servePrecompressed;
+
+  /**
+   * The MIME types to compress, eg. "text/html" or "application/json". A
+   *   type of the form "text/*" matches all subtypes.
+   */
+  public void setMimeTypes(String[] mimeTypes)
+  {
+    HashSet<String> types=new HashSet<>();
+    HashSet<String> prefixes=new HashSet<>();
+    for (String type: mimeTypes)
+    {
+      type=type.trim().toLowerCase();
+      if (type.endsWith("/*"))
+      { prefixes.add(type.substring(0,type.length()-1));
+      }
+      else
+      { types.add(type);
+      }
+    }
+    this.mimeTypes=mimeTypes;
+    this.types=types;
+    this.typePrefixes=prefixes.toArray(new String[prefixes.size()]);
+  }
+
+  public String[] getMimeTypes()
+  { return mimeTypes;
+  }
+
+  /**
+   * The minimum size of a response body that will be compressed
+   */
+  public void setMinSize(int minSize)
+  { this.minSize=minSize;
+  }
+
+  public int getMinSize()
+  { return minSize;
+  }
+
+  /**
+   * The compression level, from 1 (fastest) to 9 (smallest). Defaults to
+   *   the Deflater default (6).
+   */
+  public void setLevel(int level)
+  { this.level=level;
+  }
+
+  public int getLevel()
+  { return level;
+  }
+
+  /**
+   * Whether a static file is served from a precompressed sibling in the
+   *   document root (eg. app.js.br or app.js.gz) when the client accepts
+   *   its coding. Off by default, as it costs a file lookup for each
+   *   static request.
+   */
+  public void setServePrecompressed(boolean servePrecompressed)
+  { this.servePrecompressed=servePrecompressed;
+  }
+
+  public boolean getServePrecompressed()
+  { return servePrecompressed;
+  }
+
+  /**
+   * Whether content of the specified Content-Type should be compressed
+   */
+  public boolean isCompressible(String contentType)
+  {
+    if (contentType==null || mimeTypes==null)
+    { return false;
+    }
+
+    int semi=contentType.indexOf(';');
+    String type
+      =(semi>=0?contentType.substring(0,semi):contentType).trim().toLowerCase();
+    if (types.contains(type))
+    { return true;
+    }
+    for (String prefix: typePrefixes)
+    {
+      if (type.startsWith(prefix))
+      { return true;
+      }
+    }
+    return false;
+  }
+}
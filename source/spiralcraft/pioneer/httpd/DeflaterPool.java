@@ -0,0 +1,68 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * <p>Re-uses Deflaters across responses, avoiding the cost of allocating
+ *   and releasing the native compression state for each response.
+ * </p>
+ */
+final class DeflaterPool
+{
+  private static final int MAX_IDLE=64;
+
+  // Raw deflate (for gzip) and zlib wrapped (for deflate)
+  private static final ConcurrentLinkedQueue<Deflater> _raw
+    =new ConcurrentLinkedQueue<>();
+  private static final ConcurrentLinkedQueue<Deflater> _wrapped
+    =new ConcurrentLinkedQueue<>();
+  private static final AtomicInteger _idle=new AtomicInteger();
+
+  /**
+   * Obtain a Deflater
+   *
+   * @param level The compression level
+   * @param nowrap Whether to omit the zlib header and checksum, as for gzip
+   */
+  static Deflater acquire(int level,boolean nowrap)
+  {
+    Deflater deflater=(nowrap?_raw:_wrapped).poll();
+    if (deflater==null)
+    { return new Deflater(level,nowrap);
+    }
+    _idle.decrementAndGet();
+    deflater.setLevel(level);
+    return deflater;
+  }
+
+  /**
+   * Return a Deflater obtained from acquire()
+   */
+  static void release(Deflater deflater,boolean nowrap)
+  {
+    if (_idle.incrementAndGet()>MAX_IDLE)
+    { 
+      _idle.decrementAndGet();
+      deflater.end();
+      return;
+    }
+    deflater.reset();
+    (nowrap?_raw:_wrapped).offer(deflater);
+  }
+}
@@ -0,0 +1,284 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * <p>Serves a large static file on a plaintext connection with
+ *   FileChannel.transferTo, so the content goes from the file to the
+ *   socket without being copied through the servlet output stream.
+ * </p>
+ *
+ * <p>GET and HEAD requests are answered with ETag, Last-Modified and
+ *   Accept-Ranges headers, and a single byte range is served as a 206
+ *   response in the same way. Requests on TLS or governed connections,
+ *   other methods, and files smaller than the minimum size are passed to
+ *   the file servlet.
+ * </p>
+ *
+ * <p>The file is only examined when a request reaches this chain, so
+ *   requests answered by a chain in front of it (eg. a CachedFileChain)
+ *   don't stat the file.
+ * </p>
+ */
+class FileTransferChain
+  implements FilterChain
+{
+  static final long[] UNSATISFIABLE=new long[0];
+
+  private final FilterChain fileChain;
+  private final File file;
+  private final String contentType;
+  private final long minSize;
+
+  /**
+   * @param minSize The minimum size of a file that is sent with
+   *   transferTo
+   */
+  FileTransferChain
+    (FilterChain fileChain,String realPath,String contentType,long minSize)
+  {
+    this.fileChain=fileChain;
+    this.file=new File(realPath);
+    this.contentType=contentType;
+    this.minSize=minSize;
+  }
+
+  @Override
+  public void doFilter
+    (ServletRequest servletRequest
+    ,ServletResponse servletResponse
+    )
+    throws IOException,ServletException
+  {
+    HttpServletRequest request=(HttpServletRequest) servletRequest;
+    HttpServletResponse response=(HttpServletResponse) servletResponse;
+
+    String method=request.getMethod();
+    boolean head="HEAD".equals(method);
+    if ((!head && !"GET".equals(method))
+        || !(response instanceof HttpServerResponse)
+        || !((HttpServerResponse) response).canTransferFile()
+        )
+    {
+      fileChain.doFilter(request,response);
+      return;
+    }
+
+    BasicFileAttributes attributes;
+    try
+    { 
+      attributes
+        =Files.readAttributes(file.toPath(),BasicFileAttributes.class);
+    }
+    catch (IOException x)
+    { attributes=null;
+    }
+    if (attributes==null
+        || !attributes.isRegularFile()
+        || attributes.size()<minSize
+        )
+    {
+      fileChain.doFilter(request,response);
+      return;
+    }
+
+    FileChannel channel;
+    try
+    { channel=FileChannel.open(file.toPath());
+    }
+    catch (NoSuchFileException x)
+    {
+      fileChain.doFilter(request,response);
+      return;
+    }
+
+    try
+    { serve(request,response,channel,head);
+    }
+    finally
+    { channel.close();
+    }
+  }
+
+  private void serve
+    (HttpServletRequest request
+    ,HttpServletResponse response
+    ,FileChannel channel
+    ,boolean head
+    )
+    throws IOException
+  {
+    long length=channel.size();
+    long lastModified=file.lastModified();
+    String etag=StaticContent.etag(lastModified,length,null);
+
+    response.setHeader("ETag",etag);
+    response.setDateHeader(HttpServerResponse.HDR_LAST_MODIFIED,lastModified);
+    response.setHeader("Accept-Ranges","bytes");
+    if (contentType!=null)
+    { response.setContentType(contentType);
+    }
+
+    if (StaticContent.isNotModified(request,etag,lastModified))
+    {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    long start=0;
+    long count=length;
+    String range=request.getHeader(HttpServerResponse.HDR_RANGE);
+    if (range!=null && isRangeCurrent(request,etag,lastModified))
+    {
+      long[] bounds=parseRange(range,length);
+      if (bounds==UNSATISFIABLE)
+      {
+        response.setStatus
+          (HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        response.setHeader("Content-Range","bytes */"+length);
+        response.setHeader(HttpServerResponse.HDR_CONTENT_LENGTH,"0");
+        return;
+      }
+      else if (bounds!=null)
+      {
+        start=bounds[0];
+        count=bounds[1]-bounds[0]+1;
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader
+          ("Content-Range","bytes "+bounds[0]+"-"+bounds[1]+"/"+length);
+      }
+    }
+
+    response.setHeader
+      (HttpServerResponse.HDR_CONTENT_LENGTH,Long.toString(count));
+    if (!head)
+    { StaticContent.send(response,channel,start,count);
+    }
+  }
+
+  /**
+   * Whether a Range applies according to the If-Range header, if any
+   */
+  private boolean isRangeCurrent
+    (HttpServletRequest request,String etag,long lastModified)
+  {
+    String ifRange=request.getHeader("If-Range");
+    if (ifRange==null)
+    { return true;
+    }
+
+    ifRange=ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+    { return ifRange.equals(etag);
+    }
+
+    try
+    { return request.getDateHeader("If-Range")==(lastModified/1000)*1000;
+    }
+    catch (IllegalArgumentException x)
+    { return false;
+    }
+  }
+
+  /**
+   * <p>Parse a Range header with a single byte range.
+   * </p>
+   *
+   * @return The first and last positions of the range, UNSATISFIABLE, or
+   *   null if the header is invalid or has multiple ranges, in which case
+   *   the whole file is sent
+   */
+  static long[] parseRange(String range,long length)
+  {
+    range=range.trim();
+    if (!range.regionMatches(true,0,"bytes=",0,6) || range.indexOf(',')>=0)
+    { return null;
+    }
+
+    String spec=range.substring(6).trim();
+    int dash=spec.indexOf('-');
+    if (dash<0)
+    { return null;
+    }
+
+    long first;
+    long last;
+    String firstPart=spec.substring(0,dash).trim();
+    String lastPart=spec.substring(dash+1).trim();
+    if (firstPart.isEmpty())
+    {
+      // Suffix range: the last n bytes
+      long suffix=parsePosition(lastPart);
+      if (suffix<0)
+      { return null;
+      }
+      if (suffix==0)
+      { return UNSATISFIABLE;
+      }
+      first=Math.max(0,length-suffix);
+      last=length-1;
+    }
+    else
+    {
+      first=parsePosition(firstPart);
+      last=lastPart.isEmpty()?Long.MAX_VALUE:parsePosition(lastPart);
+      if (first<0 || last<first)
+      { return null;
+      }
+      last=Math.min(last,length-1);
+    }
+
+    if (first>=length || length==0)
+    { return UNSATISFIABLE;
+    }
+    return new long[] {first,last};
+  }
+
+  /**
+   * A byte position or suffix length, or -1 if it is not a string of
+   *   digits or is too large
+   */
+  private static long parsePosition(String digits)
+  {
+    if (digits.isEmpty() || digits.length()>18)
+    { return -1;
+    }
+    long value=0;
+    for (int i=0;i<digits.length();i++)
+    {
+      char chr=digits.charAt(i);
+      if (chr<'0' || chr>'9')
+      { return -1;
+      }
+      value=value*10+(chr-'0');
+    }
+    return value;
+  }
+}
@@ -0,0 +1,169 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.nio.charset.StandardCharsets;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+import java.util.Locale;
+import java.util.Map;
+
+import spiralcraft.time.Clock;
+
+/**
+ * <p>Pre-encoded fragments of a response head, so the common parts of
+ *   the head can be copied into the output buffer without being encoded
+ *   for each response.
+ * </p>
+ *
+ * <p>Status lines are kept for each status code with its standard
+ *   reason, for HTTP/1.0 and HTTP/1.1. Header names are kept for the
+ *   well-known headers of HeaderTable. The Date header line is shared by
+ *   all responses and re-formatted when the clock advances to the next
+ *   second.
+ * </p>
+ */
+final class HeaderSerializer
+{
+  private static final DateTimeFormatter DATE_FORMAT
+    =DateTimeFormatter
+      .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'",Locale.US)
+      .withZone(ZoneOffset.UTC);
+
+  private static final int MIN_STATUS=100;
+  private static final int MAX_STATUS=599;
+
+  private static final String[] REASONS
+    =new String[MAX_STATUS-MIN_STATUS+1];
+  private static final byte[][] STATUS_LINES_1_0
+    =new byte[MAX_STATUS-MIN_STATUS+1][];
+  private static final byte[][] STATUS_LINES_1_1
+    =new byte[MAX_STATUS-MIN_STATUS+1][];
+
+  // "Name: " for each well-known header
+  private static final byte[][] NAMES
+    =new byte[HeaderTable.KNOWN_NAMES.length][];
+
+  static
+  {
+    for (int slot=0;slot<NAMES.length;slot++)
+    { NAMES[slot]=ascii(HeaderTable.KNOWN_NAMES[slot]+": ");
+    }
+  }
+
+  private static volatile DateLine dateLine=new DateLine(-1,null);
+
+  /**
+   * <p>Pre-encode the status lines for the standard reasons
+   * </p>
+   */
+  static synchronized void setReasons(Map<Integer,String> reasons)
+  {
+    for (Map.Entry<Integer,String> entry: reasons.entrySet())
+    {
+      int status=entry.getKey();
+      if (status>=MIN_STATUS && status<=MAX_STATUS)
+      {
+        String line=" "+status+" "+entry.getValue()+"\r\n";
+        STATUS_LINES_1_0[status-MIN_STATUS]=ascii("HTTP/1.0"+line);
+        STATUS_LINES_1_1[status-MIN_STATUS]=ascii("HTTP/1.1"+line);
+        REASONS[status-MIN_STATUS]=entry.getValue();
+      }
+    }
+  }
+
+  /**
+   * The encoded status line, including the CRLF, or null if the status
+   *   line is not a standard one
+   */
+  static byte[] statusLine(String version,int status,String reason)
+  {
+    if (status<MIN_STATUS || status>MAX_STATUS)
+    { return null;
+    }
+
+    int index=status-MIN_STATUS;
+    String standardReason=REASONS[index];
+    if (standardReason==null
+        || (reason!=standardReason && !standardReason.equals(reason))
+        )
+    { return null;
+    }
+
+    if ("HTTP/1.1".equals(version))
+    { return STATUS_LINES_1_1[index];
+    }
+    else if ("HTTP/1.0".equals(version))
+    { return STATUS_LINES_1_0[index];
+    }
+    return null;
+  }
+
+  /**
+   * The encoded name of a well-known header (see HeaderTable), followed
+   *   by a colon and a space
+   */
+  static byte[] name(int slot)
+  { return NAMES[slot];
+  }
+
+  /**
+   * The encoded Date header for the current second, including the CRLF
+   */
+  static byte[] dateHeader()
+  {
+    long second=Clock.instance().approxTimeMillis()/1000;
+    DateLine line=dateLine;
+    if (line.second!=second)
+    {
+      line=new DateLine
+        (second
+        ,ascii
+          ("Date: "
+          +DATE_FORMAT.format(Instant.ofEpochSecond(second))
+          +"\r\n"
+          )
+        );
+      dateLine=line;
+    }
+    return line.bytes;
+  }
+
+  /**
+   * A time formatted as an HTTP date, eg. for a Last-Modified header
+   */
+  static String httpDate(long millis)
+  { return DATE_FORMAT.format(Instant.ofEpochMilli(millis));
+  }
+
+  private static byte[] ascii(String string)
+  { return string.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  private static final class DateLine
+  {
+    final long second;
+    final byte[] bytes;
+
+    DateLine(long second,byte[] bytes)
+    {
+      this.second=second;
+      this.bytes=bytes;
+    }
+  }
+}
@@ -0,0 +1,407 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.util.Arrays;
+
+/**
+ * <p>Indexes a list of header entries by name, ignoring case.
+ * </p>
+ *
+ * <p>Well known headers have pre-assigned slots that can be accessed
+ *   directly by slot number. Other headers are indexed in an
+ *   open-addressing table. Entries with the same name are chained in the
+ *   order they were added.
+ * </p>
+ *
+ * <p>The index is cleared in constant time by advancing a generation
+ *   counter, so the table can be re-used for each request on a
+ *   connection.
+ * </p>
+ *
+ * <p>Subclasses store the header names and values, and provide name
+ *   comparison for their own storage format.
+ * </p>
+ */
+abstract class HeaderTable
+{
+  static final int HOST=0;
+  static final int CONNECTION=1;
+  static final int CONTENT_LENGTH=2;
+  static final int TRANSFER_ENCODING=3;
+  static final int COOKIE=4;
+  static final int USER_AGENT=5;
+  static final int ACCEPT=6;
+  static final int ACCEPT_ENCODING=7;
+  static final int ACCEPT_LANGUAGE=8;
+  static final int CONTENT_TYPE=9;
+  static final int CONTENT_ENCODING=10;
+  static final int IF_MODIFIED_SINCE=11;
+  static final int IF_NONE_MATCH=12;
+  static final int EXPECT=13;
+  static final int AUTHORIZATION=14;
+  static final int REFERER=15;
+  static final int RANGE=16;
+  static final int DATE=17;
+  static final int KEEP_ALIVE=18;
+  static final int CACHE_CONTROL=19;
+  static final int EXPIRES=20;
+  static final int LAST_MODIFIED=21;
+  static final int LOCATION=22;
+  static final int SERVER=23;
+  static final int SET_COOKIE=24;
+  static final int ETAG=25;
+  static final int VARY=26;
+  static final int CONTENT_RANGE=27;
+  static final int WWW_AUTHENTICATE=28;
+  static final int UPGRADE=29;
+  static final int X_FORWARDED_FOR=30;
+
+  static final String[] KNOWN_NAMES
+    ={"Host"
+    ,"Connection"
+    ,"Content-Length"
+    ,"Transfer-Encoding"
+    ,"Cookie"
+    ,"User-Agent"
+    ,"Accept"
+    ,"Accept-Encoding"
+    ,"Accept-Language"
+    ,"Content-Type"
+    ,"Content-Encoding"
+    ,"If-Modified-Since"
+    ,"If-None-Match"
+    ,"Expect"
+    ,"Authorization"
+    ,"Referer"
+    ,"Range"
+    ,"Date"
+    ,"Keep-Alive"
+    ,"Cache-Control"
+    ,"Expires"
+    ,"Last-Modified"
+    ,"Location"
+    ,"Server"
+    ,"Set-Cookie"
+    ,"ETag"
+    ,"Vary"
+    ,"Content-Range"
+    ,"WWW-Authenticate"
+    ,"Upgrade"
+    ,"X-Forwarded-For"
+    };
+
+  private static final int KNOWN_MASK=127;
+
+  // Slot+1 for each known name, by hash
+  private static final int[] KNOWN_TABLE=new int[KNOWN_MASK+1];
+  private static final int[] KNOWN_HASHES=new int[KNOWN_NAMES.length];
+
+  static
+  {
+    for (int slot=0;slot<KNOWN_NAMES.length;slot++)
+    {
+      int hash=hash(KNOWN_NAMES[slot]);
+      KNOWN_HASHES[slot]=hash;
+      int i=hash & KNOWN_MASK;
+      while (KNOWN_TABLE[i]!=0)
+      { i=(i+1) & KNOWN_MASK;
+      }
+      KNOWN_TABLE[i]=slot+1;
+    }
+  }
+
+  /**
+   * The case-insensitive hash of an ASCII header name
+   */
+  static int hash(String name)
+  {
+    int hash=0;
+    int len=name.length();
+    for (int i=0;i<len;i++)
+    { hash=hash(hash,name.charAt(i));
+    }
+    return hash;
+  }
+
+  /**
+   * Accumulate a character into a case-insensitive hash
+   */
+  static int hash(int hash,int chr)
+  {
+    if (chr>='A' && chr<='Z')
+    { chr+=32;
+    }
+    return 31*hash+chr;
+  }
+
+  /**
+   * The well-known slot for a header name, or -1
+   */
+  static int knownSlot(String name)
+  {
+    int hash=hash(name);
+    for (int i=hash & KNOWN_MASK;KNOWN_TABLE[i]!=0;i=(i+1) & KNOWN_MASK)
+    {
+      int slot=KNOWN_TABLE[i]-1;
+      if (KNOWN_HASHES[slot]==hash && KNOWN_NAMES[slot].equalsIgnoreCase(name))
+      { return slot;
+      }
+    }
+    return -1;
+  }
+
+  private int _generation=1;
+  private int[] _next=new int[32];
+
+  private final int[] _knownFirst=new int[KNOWN_NAMES.length];
+  private final int[] _knownLast=new int[KNOWN_NAMES.length];
+  private final int[] _knownGeneration=new int[KNOWN_NAMES.length];
+
+  private int[] _overflowHash=new int[32];
+  private int[] _overflowKey=new int[32];
+  private int[] _overflowFirst=new int[32];
+  private int[] _overflowLast=new int[32];
+  private int[] _overflowGeneration=new int[32];
+  private int _overflowCount;
+
+  /**
+   * The case-insensitive hash of the name of the specified entry
+   */
+  protected abstract int nameHash(int entry);
+
+  /**
+   * Whether the entry has the specified name, ignoring case
+   */
+  protected abstract boolean nameEquals(int entry,String name);
+
+  /**
+   * Whether two entries have the same name, ignoring case
+   */
+  protected abstract boolean nameEquals(int entry,int otherEntry);
+
+  /**
+   * A number that changes each time the table is cleared, for use by
+   *   subclasses that cache per-entry data
+   */
+  protected final int generation()
+  { return _generation;
+  }
+
+  /**
+   * Remove all entries from the index
+   */
+  protected final void clearIndex()
+  {
+    _overflowCount=0;
+    _generation++;
+    if (_generation==Integer.MAX_VALUE)
+    {
+      _generation=1;
+      Arrays.fill(_knownGeneration,0);
+      Arrays.fill(_overflowGeneration,0);
+    }
+  }
+
+  /**
+   * Index the specified entry, which must be the entry added after all
+   *   previously indexed entries
+   *
+   * @return The well-known slot of the entry's name, or -1
+   */
+  protected final int index(int entry)
+  {
+    if (entry>=_next.length)
+    { _next=grow(_next,entry+1);
+    }
+    _next[entry]=-1;
+
+    int hash=nameHash(entry);
+    int slot=knownSlot(hash,entry);
+    if (slot>=0)
+    {
+      if (_knownGeneration[slot]!=_generation || _knownFirst[slot]<0)
+      {
+        _knownGeneration[slot]=_generation;
+        _knownFirst[slot]=entry;
+      }
+      else
+      { _next[_knownLast[slot]]=entry;
+      }
+      _knownLast[slot]=entry;
+      return slot;
+    }
+
+    if ((_overflowCount+1)*2>_overflowHash.length)
+    { growOverflow();
+    }
+
+    int mask=_overflowHash.length-1;
+    int i=hash & mask;
+    while (_overflowGeneration[i]==_generation)
+    {
+      if (_overflowHash[i]==hash && nameEquals(entry,_overflowKey[i]))
+      {
+        if (_overflowFirst[i]<0)
+        { _overflowFirst[i]=entry;
+        }
+        else
+        { _next[_overflowLast[i]]=entry;
+        }
+        _overflowLast[i]=entry;
+        return -1;
+      }
+      i=(i+1) & mask;
+    }
+
+    _overflowGeneration[i]=_generation;
+    _overflowHash[i]=hash;
+    _overflowKey[i]=entry;
+    _overflowFirst[i]=entry;
+    _overflowLast[i]=entry;
+    _overflowCount++;
+    return -1;
+  }
+
+  /**
+   * The first entry in the well-known slot, or -1
+   */
+  protected final int first(int slot)
+  {
+    return _knownGeneration[slot]==_generation
+      ?_knownFirst[slot]
+      :-1;
+  }
+
+  /**
+   * The first entry with the specified name, or -1
+   */
+  protected final int first(String name)
+  {
+    int slot=knownSlot(name);
+    if (slot>=0)
+    { return first(slot);
+    }
+
+    int i=findOverflow(name);
+    return i>=0?_overflowFirst[i]:-1;
+  }
+
+  /**
+   * The next entry with the same name as the specified entry, or -1
+   */
+  protected final int next(int entry)
+  { return _next[entry];
+  }
+
+  /**
+   * <p>Remove all entries with the specified name from the index
+   * </p>
+   *
+   * @return The first entry that was removed, from which the removed
+   *   entries can be traversed with next(), or -1 if there were none
+   */
+  protected final int detach(String name)
+  {
+    int slot=knownSlot(name);
+    if (slot>=0)
+    {
+      int first=first(slot);
+      _knownFirst[slot]=-1;
+      return first;
+    }
+
+    int i=findOverflow(name);
+    if (i>=0)
+    {
+      int first=_overflowFirst[i];
+      _overflowFirst[i]=-1;
+      return first;
+    }
+    return -1;
+  }
+
+  private int knownSlot(int hash,int entry)
+  {
+    for (int i=hash & KNOWN_MASK;KNOWN_TABLE[i]!=0;i=(i+1) & KNOWN_MASK)
+    {
+      int slot=KNOWN_TABLE[i]-1;
+      if (KNOWN_HASHES[slot]==hash && nameEquals(entry,KNOWN_NAMES[slot]))
+      { return slot;
+      }
+    }
+    return -1;
+  }
+
+  private int findOverflow(String name)
+  {
+    if (_overflowCount==0)
+    { return -1;
+    }
+
+    int hash=hash(name);
+    int mask=_overflowHash.length-1;
+    for (int i=hash & mask
+        ;_overflowGeneration[i]==_generation
+        ;i=(i+1) & mask
+        )
+    {
+      if (_overflowHash[i]==hash && nameEquals(_overflowKey[i],name))
+      { return i;
+      }
+    }
+    return -1;
+  }
+
+  private void growOverflow()
+  {
+    int[] hashes=_overflowHash;
+    int[] keys=_overflowKey;
+    int[] firsts=_overflowFirst;
+    int[] lasts=_overflowLast;
+    int[] generations=_overflowGeneration;
+
+    int size=hashes.length*2;
+    _overflowHash=new int[size];
+    _overflowKey=new int[size];
+    _overflowFirst=new int[size];
+    _overflowLast=new int[size];
+    _overflowGeneration=new int[size];
+
+    int mask=size-1;
+    for (int j=0;j<hashes.length;j++)
+    {
+      if (generations[j]==_generation)
+      {
+        int i=hashes[j] & mask;
+        while (_overflowGeneration[i]==_generation)
+        { i=(i+1) & mask;
+        }
+        _overflowGeneration[i]=_generation;
+        _overflowHash[i]=hashes[j];
+        _overflowKey[i]=keys[j];
+        _overflowFirst[i]=firsts[j];
+        _overflowLast[i]=lasts[j];
+      }
+    }
+  }
+
+  static int[] grow(int[] array,int minLength)
+  {
+    int[] grown=new int[Math.max(minLength,array.length*2)];
+    System.arraycopy(array,0,grown,0,array.length);
+    return grown;
+  }
+}
@@ -16,6 +16,7 @@ package spiralcraft.pioneer.httpd;
 
 import spiralcraft.net.ip.AddressSet;
 import spiralcraft.pioneer.net.ConnectionHandlerFactory;
+import spiralcraft.pioneer.net.ConnectionParker;
 import spiralcraft.pioneer.net.ServerSocketFactory;
 import spiralcraft.pioneer.net.ConnectionHandler;
 
@@ -32,6 +33,7 @@ import spiralcraft.pioneer.util.ThrowableUtil;
 
 import java.net.Socket;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.io.IOException;
 import java.io.InterruptedIOException;
@@ -65,6 +67,9 @@ public class HttpServer
   private HttpServiceContext _serviceContext;
   private HttpServerContext[] serverContexts;
   private int _socketTimeout=30000;
+  private int _headerTimeout=20000;
+  private int _maxHeaderSize=64*1024;
+  private int _maxHeaderCount=100;
   private String _serverInfo;
   private int _initialBufferCapacity=8192;
   private Meter _meter;
@@ -75,8 +80,12 @@ public class HttpServer
   private Register _activeConnectionsRegister;
   private Register _activeRequestsRegister;
   private Register _uncaughtIoExceptionsRegister;
+  private Register _pipelinedRequestsRegister;
   private Register _uncaughtRuntimeExceptionsRegister;
   private Register _uncaughtServletExceptionsRegister;
+  private Register _headerTimeoutsRegister;
+  private Register _headersTooLargeRegister;
+  private Register _tooManyHeadersRegister;
   private volatile int _connectionCount=0;  
   private boolean started;
   private boolean stopping;
@@ -84,6 +93,7 @@ public class HttpServer
   private String _remoteAddressHeaderName;
   private AddressSet _serverProxyAddresses;
   private HashMap<String,HttpServerContext> hostMap=new HashMap<>();
+  private ConnectionParker _connectionParker;
   
   private DebugSettings debugSettings
     =new DebugSettings();
@@ -121,6 +131,62 @@ public class HttpServer
   { debugSettings.debugAPI=val;
   }
 
+  /**
+   * <p>The number of milliseconds a client has to send the request line
+   *   and headers, measured from the first byte of the request. A client
+   *   that misses the deadline receives a 408 response. Defaults to 20000.
+   *   0 disables the deadline.
+   * </p>
+   */
+  public void setHeaderTimeout(int millis)
+  { _headerTimeout=millis;
+  }
+
+  public int getHeaderTimeout()
+  { return _headerTimeout;
+  }
+
+  /**
+   * <p>The maximum number of bytes in the request line and headers. A
+   *   larger request receives a 414 or 431 response. Defaults to 64K.
+   *   0 removes the limit.
+   * </p>
+   */
+  public void setMaxHeaderSize(int maxHeaderSize)
+  { _maxHeaderSize=maxHeaderSize;
+  }
+
+  public int getMaxHeaderSize()
+  { return _maxHeaderSize;
+  }
+
+  /**
+   * <p>The maximum number of request headers. A request with more headers
+   *   receives a 431 response. Defaults to 100. 0 removes the limit.
+   * </p>
+   */
+  public void setMaxHeaderCount(int maxHeaderCount)
+  { _maxHeaderCount=maxHeaderCount;
+  }
+
+  public int getMaxHeaderCount()
+  { return _maxHeaderCount;
+  }
+
+  /**
+   * <p>Park idle keep-alive connections on the specified ConnectionParker
+   *   between requests instead of blocking a handler thread while waiting
+   *   for the next request.
+   * </p>
+   */
+  public void setConnectionParker(ConnectionParker parker)
+  { _connectionParker=parker;
+  }
+
+  public ConnectionParker getConnectionParker()
+  { return _connectionParker;
+  }
+
   public void setRemoteAddressHeaderName(String headerName)
   { this._remoteAddressHeaderName=headerName;
   }
@@ -153,6 +219,29 @@ public class HttpServer
     }
   }
   
+  /**
+   * Count a request rejected because its request line or headers violated
+   *   a limit
+   */
+  void requestHeadRejected(RequestHeadException x)
+  {
+    if (_meter!=null)
+    {
+      switch (x.getViolation())
+      {
+        case RequestHeadException.TIMEOUT:
+          _headerTimeoutsRegister.incrementValue();
+          break;
+        case RequestHeadException.SIZE:
+          _headersTooLargeRegister.incrementValue();
+          break;
+        default:
+          _tooManyHeadersRegister.incrementValue();
+          break;
+      }
+    }
+  }
+
   public void requestStarted()
   { 
     if (_meter!=null)
@@ -173,8 +262,12 @@ public class HttpServer
     _activeRequestsRegister=meter.register("activeRequests");
     _activeConnectionsRegister=meter.register("activeConnections");
     _uncaughtIoExceptionsRegister=meter.register("uncaughtIoExceptions");
+    _pipelinedRequestsRegister=meter.register("pipelinedRequests");
     _uncaughtRuntimeExceptionsRegister=meter.register("uncaughtRuntimeExceptions");
     _uncaughtServletExceptionsRegister=meter.register("uncaughtServletExceptions");
+    _headerTimeoutsRegister=meter.register("headerTimeouts");
+    _headersTooLargeRegister=meter.register("headersTooLarge");
+    _tooManyHeadersRegister=meter.register("tooManyHeaders");
     
   }
 
@@ -336,7 +429,7 @@ public class HttpServer
    */
   private HttpServerContext mapHost(HttpServerRequest request)
   { 
-    String host=request.getHeader("Host");
+    String host=request.getHeader(HeaderTable.HOST);
     if (host==null)
     { host="*";
     }
@@ -476,6 +569,43 @@ public class HttpServer
       return traceStream;
     }
     
+    /**
+     * <p>Answer a request whose request line or headers violated a limit
+     *   with a minimal response, bypassing the service contexts, before the
+     *   connection is closed.
+     * </p>
+     */
+    private void rejectRequestHead(Socket socket,RequestHeadException x)
+    {
+      requestHeadRejected(x);
+      if (debugSettings.debugProtocol)
+      { 
+        _log.log(Level.DEBUG
+                ,"Rejected request from "
+                +socket.getInetAddress().getHostAddress()+": "+x.getMessage()
+                );
+      }
+      
+      try
+      {
+        // Preserve the order of any responses to pipelined requests
+        _response.flushPending();
+        OutputStream out=socket.getOutputStream();
+        out.write
+          (("HTTP/1.1 "+x.getStatus()+" "+x.getReason()+"\r\n"
+           +"Connection: close\r\n"
+           +"Content-Length: 0\r\n"
+           +"\r\n"
+           ).getBytes(StandardCharsets.ISO_8859_1)
+          );
+        out.flush();
+      }
+      catch (IOException y)
+      { 
+        // The client may already be gone
+      }
+    }
+
     @Override
     public void handleConnection(Socket socket,ServerSocketFactory factory)
     {
@@ -485,15 +615,20 @@ public class HttpServer
         return;
       }
 
-      int connectionNum=_connectionCount++;
+      boolean resumed
+        =_connectionParker!=null && _connectionParker.claimResumed(socket);
+      int connectionNum=resumed?-1:_connectionCount++;
       
       if (_meter!=null)
       {
-        _connectionsRegister.incrementValue();
+        if (!resumed)
+        { _connectionsRegister.incrementValue();
+        }
         _activeConnectionsRegister.incrementValue();
       }
 
       OutputStream traceStream=null;
+      boolean parked=false;
 
       try
       {
@@ -505,11 +640,13 @@ public class HttpServer
 
         
         socket.setSoTimeout(_socketTimeout);
-        factory.configureConnectedSocket(socket);
+        if (!resumed)
+        { factory.configureConnectedSocket(socket);
+        }
 
         if (debugSettings.debugProtocol)
         { 
-          _log.log(Level.DEBUG,"Got HTTP connection from "
+          _log.log(Level.DEBUG,(resumed?"Resumed":"Got")+" HTTP connection from "
             +socket.getInetAddress().getHostAddress()+": timeout="+_socketTimeout);
         }
 
@@ -532,6 +669,11 @@ public class HttpServer
               }
               done=true;
             }
+            catch (RequestHeadException x)
+            { 
+              rejectRequestHead(socket,x);
+              done=true;
+            }
           
             if (!done)
             {
@@ -540,7 +682,15 @@ public class HttpServer
             
               try
               { 
-                _request.readHeaders();
+                try
+                { _request.readHeaders();
+                }
+                catch (RequestHeadException x)
+                { 
+                  // The connection is closed without servicing the request
+                  rejectRequestHead(socket,x);
+                  break;
+                }
 
                 HttpServerContext context=mapHost(_request);
                 if (context!=null)
@@ -567,16 +717,47 @@ public class HttpServer
                 _response.sendError(500,"Internal Server Error");
               }
               _request.finish();
+              
+              // If the next request has already arrived, hold this response
+              //   so it is written along with the next one
+              boolean pipelined
+                =!_request.mustClose() && _request.isInputBuffered();
+              _response.setDeferFlush(pipelined);
               _response.finish();
-              if (_response.shouldClose())
+              if (_response.shouldClose() || !pipelined)
+              { _response.flushPending();
+              }
+              
+              if (_response.shouldClose() || _request.mustClose())
               { done=true;
               }
+              else if (pipelined)
+              { 
+                if (_meter!=null)
+                { _pipelinedRequestsRegister.incrementValue();
+                }
+              }
               else
               { 
                 if (debugSettings.debugProtocol)
                 { log.fine("Timeout for next request is "+_response.getKeepaliveSeconds()+"s");
                 }
-                socket.setSoTimeout(_response.getKeepaliveSeconds()*1000);
+                
+                if (_connectionParker!=null 
+                    && traceStream==null
+                    && !_request.isInputAvailable()
+                    && _connectionParker.park
+                      (socket,factory,_response.getKeepaliveSeconds()*1000)
+                   )
+                { 
+                  // Release this handler until the client sends the next
+                  //   request
+                  parked=true;
+                  done=true;
+                }
+                else
+                { socket.setSoTimeout(_response.getKeepaliveSeconds()*1000);
+                }
               }
             }
           }
@@ -615,6 +796,11 @@ public class HttpServer
         { _activeConnectionsRegister.decrementValue();
         }
 
+        try
+        { _response.flushPending();
+        }
+        catch (IOException x)
+        { }
         _request.cleanup();
         _response.cleanup();
         try
@@ -626,11 +812,17 @@ public class HttpServer
         catch (Exception x)
         { }
 
-        factory.closeSocket(socket);
+        if (!parked)
+        { factory.closeSocket(socket);
+        }
         
         
         if (debugSettings.debugProtocol)
-        { _log.log(Level.DEBUG,"Finished HTTP connection from "+socket.getInetAddress().getHostAddress());
+        { 
+          _log.log(Level.DEBUG
+                  ,(parked?"Parked":"Finished")+" HTTP connection from "
+                    +socket.getInetAddress().getHostAddress()
+                  );
         }
 
       }
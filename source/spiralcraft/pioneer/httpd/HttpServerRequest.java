@@ -16,15 +16,9 @@ package spiralcraft.pioneer.httpd;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.HashMap;
-import java.util.Set;
 
 import spiralcraft.net.ip.AddressV4;
-import spiralcraft.pioneer.util.MappedList;
-import spiralcraft.pioneer.util.ListMap;
-import spiralcraft.pioneer.util.Translator;
 
 import spiralcraft.log.ClassLog;
 import spiralcraft.log.Level;
@@ -40,7 +34,6 @@ import javax.servlet.ServletInputStream;
 import java.security.Principal;
 
 import java.util.Enumeration;
-import java.util.StringTokenizer;
 import java.util.Locale;
 
 import java.io.InputStreamReader;
@@ -59,8 +52,6 @@ import javax.net.ssl.SSLSocket;
 
 import java.text.ParseException;
 
-import spiralcraft.text.CaseInsensitiveString;
-import spiralcraft.util.EmptyIterator;
 import spiralcraft.util.IteratorEnumeration;
 
 
@@ -80,13 +71,13 @@ public class HttpServerRequest
   private HttpServerResponse _response;
   private HttpSession _session;
   private Cookie[] _cookies;
-  private LinkedList<Cookie> _cookieList=new LinkedList<Cookie>();
   
-  private String _requestLine;
   private String _method;
   private String _remoteUser;
   private String _requestedSessionId;
   private String _secureSessionTag;
+  private String _cookieSessionId;
+  private boolean _sessionCookiesScanned;
   private String _requestURL;
   private boolean _sessionFromCookie;
   private boolean _sessionFromUrl;
@@ -112,23 +103,15 @@ public class HttpServerRequest
 
   private Principal _userPrincipal;
   
-  private MappedList _headers=new MappedList(new LinkedList<Variable>());
-  private ListMap _headerMap
-    =_headers.addMapView
-      ("name"
-      ,new HashMap<String,Variable>()
-      ,new Translator()
-        {
-          @Override
-          public Object translate(Object value)
-          { return new CaseInsensitiveString(((Variable) value).name);
-          }
-        }
-      );
-      
+  private final RequestHead _head=new RequestHead();
   
   private boolean _started;
   private boolean _headersRead;
+  private final ChunkedServletInputStream _chunkedInputStream
+    =new ChunkedServletInputStream();
+  private boolean _chunked;
+  private boolean _bodyRejected;
+  private boolean _mustClose;
   
   private boolean debugProtocol;
   private boolean debugAPI;
@@ -169,14 +152,15 @@ public class HttpServerRequest
     _socket=sock;
     _secure=_socket instanceof SSLSocket;    
     _remoteInetAddress=sock.getInetAddress();
-    _inputStream.start(sock.getInputStream());
+    _inputStream.start(sock);
     
 
     _session=null;
     _cookies=null;
-    _cookieList.clear();
+    _sessionCookiesScanned=false;
+    _cookieSessionId=null;
+    _secureSessionTag=null;
   
-    _requestLine=null;
     _method=null;
     _remoteUser=null;
     _requestedSessionId=null;
@@ -195,15 +179,17 @@ public class HttpServerRequest
   
 
     _headersRead=false;
-    _headers.clear();
-    
-    
+    _chunked=false;
+    _bodyRejected=false;
+    _mustClose=false;
+    _head.clear();
+    _head.setLimits(server.getMaxHeaderSize(),server.getMaxHeaderCount());
     
-    _requestLine=_inputStream.readAsciiLine();
-    
-    if (_requestLine!=null)
+    // Bounds the time to receive the request line and headers, which
+    //   ends in readHeaders()
+    _inputStream.startDeadline(sock,server.getHeaderTimeout());
+    if (_head.readRequestLine(_inputStream))
     {
-      _requestLine=sanitizeAscii(_requestLine);
       _started=true;
       _startTime=Clock.instance().approxTimeMillis();
       server.requestStarted();
@@ -211,7 +197,7 @@ public class HttpServerRequest
       { parseRequest();
       }
       catch (Exception x)
-      { throw new IOException("Invalid request: "+_requestLine+": "+x);
+      { throw new IOException("Invalid request: "+_head.getRequestLine()+": "+x);
       }
 
       if (debugProtocol)
@@ -229,20 +215,40 @@ public class HttpServerRequest
   { return _started;
   }
 
-  private String sanitizeAscii(final String input)
+  /**
+   * Indicate whether data for a subsequent request has already arrived
+   */
+  boolean isInputAvailable()
     throws IOException
+  { return _inputStream.isInputAvailable();
+  }
+
+  /**
+   * <p>If the client is still waiting for "100 Continue" before sending
+   *   the body, give up on the body. Called when the response is committed
+   *   or the request finishes.
+   * </p>
+   *
+   * @return true if the body was, or has previously been, rejected
+   */
+  boolean rejectUnreadBody()
   {
-    int len=input.length();
-    for (int i=0;i<len;i++)
+    if (_inputStream.isContinuePending())
     {
-      char chr=input.charAt(i);
-      if (chr<0x20 || chr>0x7e)
-      { throw new IOException("Illegal character "+((int) chr)+" in request");
-      }
+      _inputStream.cancelContinue();
+      _bodyRejected=true;
     }
-    return input;
+    return _bodyRejected;
   }
-  
+
+  /**
+   * Indicate whether data for a subsequent (pipelined) request has
+   *   already been read into the input buffer
+   */
+  boolean isInputBuffered()
+  { return _inputStream.getBuffered()>0;
+  }
+
   /**
    * Ensure that any stray input data is discarded, after each request
    */
@@ -251,7 +257,21 @@ public class HttpServerRequest
     _apiInputStream=null;
     try
     {
-      if (_inputStream.getCount()<getContentLength())
+      if (rejectUnreadBody())
+      { 
+        // The client has not been told to send the body, and the
+        //   connection will be closed
+      }
+      else if (_chunked)
+      { 
+        if (!_chunkedInputStream.isFinished() 
+            && debugSettings.getDebugProtocol()
+            )
+        { log.fine("Discarding unread chunked input");
+        }
+        _chunkedInputStream.drain();
+      }
+      else if (_inputStream.getCount()<getContentLength())
       { 
         if (debugSettings.getDebugProtocol())
         { 
@@ -266,10 +286,22 @@ public class HttpServerRequest
       }
     }
     catch (IOException x)
-    { _log.log(Level.DEBUG,">>> IOException draining input stream "+x);
+    { 
+      // The end of the body, and so the start of the next request, is
+      //   unknown
+      _log.log(Level.DEBUG,">>> IOException draining input stream "+x);
+      _mustClose=true;
     }
   }
 
+  /**
+   * Indicates that the connection can't be reused after this request,
+   *   because the request body's framing is ambiguous or was broken.
+   */
+  boolean mustClose()
+  { return _mustClose;
+  }
+
   /**
    * Release any important references after a connection is closed (after
    *   multiple requests)
@@ -279,8 +311,8 @@ public class HttpServerRequest
   { 
     super.cleanup();
     _session=null;
-    _cookieList.clear();
-    _headers.clear();
+    _head.clear();
+    _inputStream.release();
   }
 
   @Override
@@ -299,9 +331,8 @@ public class HttpServerRequest
 
 
 
-  @SuppressWarnings("unchecked")
   public Enumeration<String> getHeaders()
-  { return new IteratorEnumeration<String>(_headerMap.keySet().iterator());
+  { return new IteratorEnumeration<String>(headerNames().iterator());
   }
 
   @Override
@@ -336,16 +367,16 @@ public class HttpServerRequest
   }
 
   @Override
-  @SuppressWarnings({ "unchecked", "rawtypes" })
   public Enumeration<?> getHeaders(String name)
   {
-    List<?> list=(List<?>) _headerMap.get(name);
-    if (list!=null)
-    { return new IteratorEnumeration(list.iterator());
-    }
-    else
-    { return new IteratorEnumeration(new EmptyIterator());
+    ArrayList<String> values=new ArrayList<String>(1);
+    for (int index=_head.firstHeader(name)
+        ;index>=0
+        ;index=_head.nextHeader(index)
+        )
+    { values.add(_head.getHeaderValue(index));
     }
+    return new IteratorEnumeration<String>(values.iterator());
   }
 
   @Override
@@ -360,28 +391,35 @@ public class HttpServerRequest
   
   @Override
   public String getHeader(String name)
-  {
-    Variable var=(Variable) _headerMap.getFirst(new CaseInsensitiveString(name));
-    if (var!=null)
-    { return var.value;
-    }
-    else
-    { return null;
-    }
+  { return _head.getHeader(name);
+  }
+
+  /**
+   * The value of the first header in a well-known slot (see HeaderTable)
+   */
+  String getHeader(int slot)
+  { return _head.getHeader(slot);
   }
   
   @Override
-  @SuppressWarnings("unchecked")
   public Enumeration<?> getHeaderNames()
-  { 
-    ArrayList<String> names=new ArrayList<String>(_headerMap.size());
-    for (CaseInsensitiveString name 
-          : (Set<CaseInsensitiveString>) _headerMap.keySet()
-        )
-    { names.add(name.toString());
+  { return new IteratorEnumeration<String>(headerNames().iterator());
+  }
+
+  /**
+   * The distinct header names, in the order they were first received
+   */
+  private List<String> headerNames()
+  {
+    int count=_head.getHeaderCount();
+    ArrayList<String> names=new ArrayList<String>(count);
+    for (int i=0;i<count;i++)
+    { 
+      if (_head.firstHeader(_head.getHeaderName(i))==i)
+      { names.add(_head.getHeaderName(i));
+      }
     }
-    
-    return new IteratorEnumeration<String>(names.iterator());
+    return names;
   }
 
   
@@ -495,12 +533,18 @@ public class HttpServerRequest
       _requestedSessionId=urlSessionId;
       _sessionFromCookie=false;
       _sessionFromUrl=true;
+      scanSessionCookies();
       validateSecureSession();
       return _session;
     }
     else    
     {
-      parseCookies();
+      scanSessionCookies();
+      if (_cookieSessionId!=null)
+      {
+        _sessionFromCookie=true;
+        _requestedSessionId=_cookieSessionId;
+      }
       // Use session cookie, or create a new session
       _session
         =_context.getSessionManager().getSession(_requestedSessionId,create);
@@ -695,7 +739,7 @@ public class HttpServerRequest
    
   private void parseHost()
   { 
-    String fullHost=getHeader("Host");
+    String fullHost=getHeader(HeaderTable.HOST);
 
     if (fullHost==null)
     { fullHost=_socket.getLocalAddress().getHostAddress();
@@ -728,7 +772,7 @@ public class HttpServerRequest
    * Return the request line as sent by the client
    */
   public String getRequestLine()
-  { return _requestLine;
+  { return _head.getRequestLine();
   }
 
 
@@ -749,20 +793,37 @@ public class HttpServerRequest
     { return;
     }
     _headersRead=true;
-     String line=null;
-     while(true)
-     {
-       line=_inputStream.readAsciiLine();
-       if (line==null || line.length()==0)
-       { break;
-       }
-       else
-       { parseHeader(line);
-       }
-     }
+    int first=_head.getHeaderCount();
+    _head.readHeaders(_inputStream);
+    _inputStream.endDeadline();
+    if (debugProtocol)
+    { 
+      for (int i=first;i<_head.getHeaderCount();i++)
+      { 
+        _log.log
+          (Level.DEBUG,">>> "+_head.getHeaderName(i)+": "+_head.getHeaderValue(i)); 
+      }
+    }
     _inputStream.resetCount();
     int contentLength=getContentLength();
-    if (contentLength>0)
+    if (isChunked(_head.getHeader(HeaderTable.TRANSFER_ENCODING)))
+    {
+      // Transfer-Encoding overrides any Content-Length. A request that
+      //   sends both may be framed differently by an intermediary, so
+      //   the connection is not reused (RFC 7230 3.3.3)
+      _chunked=true;
+      if (_head.getHeader(HeaderTable.CONTENT_LENGTH)!=null)
+      { 
+        if (debugSettings.getDebugProtocol())
+        { log.fine("Both Transfer-Encoding and Content-Length sent");
+        }
+        _mustClose=true;
+      }
+      _chunkedInputStream.start
+        (_inputStream,_head,server.getRemoteAddressHeaderName());
+      _apiInputStream=_chunkedInputStream;
+    }
+    else if (contentLength>0)
     { 
       _apiInputStream
         =new CappedServletInputStream(_inputStream,contentLength);
@@ -771,6 +832,15 @@ public class HttpServerRequest
     { _apiInputStream=_inputStream;
     }
     
+    if ((_chunked || contentLength>0)
+        && "HTTP/1.1".equals(_head.getProtocol())
+        && "100-continue".equalsIgnoreCase(_head.getHeader(HeaderTable.EXPECT))
+        )
+    { 
+      // Wait for the servlet to read the body before asking for it
+      _inputStream.expectContinue(_response);
+    }
+    
     determineRemoteAddress();
    }
 
@@ -807,23 +877,17 @@ public class HttpServerRequest
    
   private void parseRequest()
   {
-    StringTokenizer tk=new StringTokenizer(_requestLine," ");
-    _method=tk.nextToken();
-    _requestURL=tk.nextToken();
-    if (_requestURL.length()>8 && _requestURL.substring(0,7).equalsIgnoreCase("http://"))
+    _method=_head.getMethod();
+    _requestURL=_head.getURI();
+    if (_requestURL.length()>8 && _head.uriStartsWith("http://"))
     { 
       int slashPos=_requestURL.indexOf('/',7);
-      Variable var=new Variable();
-      var.name="Host";
-      var.value=_requestURL.substring(7,slashPos);
-      _headers.add(var);
+      _head.addHeader("Host",_requestURL.substring(7,slashPos));
       _requestURL=_requestURL.substring(slashPos);
     }
     _scheme=_secure?"https":"http";
-    if (tk.hasMoreTokens())
-    { _protocol=tk.nextToken();
-    }
-    else
+    _protocol=_head.getProtocol();
+    if (_protocol==null)
     { _protocol="HTTP/0.9";
     }
     int queryPos=_requestURL.indexOf("?");
@@ -840,21 +904,28 @@ public class HttpServerRequest
     
   }
 
-  
-  private void parseHeader(String header)
+
+  /**
+   * Find the session and secure session cookies without parsing the
+   *   other cookies
+   */
+  private void scanSessionCookies()
   {
-   
-    Variable var=new Variable();
-    int colonPos=header.indexOf(":");
-    var.name=header.substring(0,colonPos);
-    var.value=header.substring(colonPos+1).trim();
-    if (debugProtocol)
-    { _log.log(Level.DEBUG,">>> "+var.name+": "+var.value); 
+    if (_sessionCookiesScanned)
+    { return;
+    }
+    _sessionCookiesScanned=true;
+    _cookieSessionId=_head.getCookieValue(_context.getSessionCookieName());
+    if (_secure)
+    { 
+      _secureSessionTag
+        =_head.getCookieValue(_context.getSecureSessionCookieName());
     }
-    _headers.add(var);
   }
 
-  @SuppressWarnings("rawtypes")
+  /**
+   * Build the full Cookie[], which is only needed by getCookies()
+   */
   private void parseCookies()
   {
     if (_cookies!=null)
@@ -864,52 +935,33 @@ public class HttpServerRequest
     
     // Parse each cookie header, which can contain
     //   multiple cookies.
-    List cookies=(List) _headerMap.get(new CaseInsensitiveString("Cookie"));
-    if (cookies!=null)
+    int index=_head.firstHeader(HeaderTable.COOKIE);
+    if (index>=0)
     {
-      String sessionCookieName=_context.getSessionCookieName();
-      String secureSessionCookieName=_context.getSecureSessionCookieName();
-
-      Iterator it=cookies.iterator();
-      while (it.hasNext())
+      ArrayList<Cookie> cookieList=new ArrayList<Cookie>();
+      for (;index>=0;index=_head.nextHeader(index))
       { 
-        final Variable var=(Variable) it.next();
+        final String value=_head.getHeaderValue(index);
         try
         { 
           if (debugProtocol)
-          { _log.log(Level.DEBUG,"Reading cookie: ["+var.value+"]");
+          { _log.log(Level.DEBUG,"Reading cookie: ["+value+"]");
           }
-          for (Cookie cookie : new CookieParser(var.value).parse())
+          for (Cookie cookie : new CookieParser(value).parse())
           { 
             if (debugProtocol)
             { _log.log(Level.DEBUG,"Got cookie: ["+cookie.getName()+","+cookie.getValue()+"]");
             }
-            _cookieList.add(cookie);
-            if (cookie.getName().equalsIgnoreCase(sessionCookieName))
-            {
-              _sessionFromCookie=true;
-              _requestedSessionId=cookie.getValue();
-            }              
-            else if (cookie.getName().equalsIgnoreCase(secureSessionCookieName))
-            { _secureSessionTag=cookie.getValue();
-            }              
+            cookieList.add(cookie);
           }
         }
         catch (ParseException x)
         { _log.log(Level.WARNING,"Parsing cookie: "+x.toString());
         }
-        // parseCookie(var);
       }
 
       // Gather the cookies together.
-      _cookies=new Cookie[_cookieList.size()];
-      it=_cookieList.iterator();
-      int i=0;
-      while (it.hasNext())
-      {  
-        Cookie cookie=(Cookie) it.next();
-        _cookies[i++]=cookie;
-      }
+      _cookies=cookieList.toArray(new Cookie[cookieList.size()]);
     }
   }
 
@@ -20,6 +20,7 @@ import javax.servlet.http.Cookie;
 import javax.servlet.ServletOutputStream;
 
 import java.net.Socket;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 
 import java.io.IOException;
@@ -31,13 +32,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 
 import spiralcraft.net.mime.ContentTypeHeader;
-import spiralcraft.pioneer.util.MappedList;
-import spiralcraft.pioneer.util.ListMap;
-import spiralcraft.pioneer.util.Translator;
 import spiralcraft.pioneer.net.ServerSocketFactory;
 
 import spiralcraft.time.Clock;
-import spiralcraft.time.ClockFormat;
 import spiralcraft.util.string.StringUtil;
 
 
@@ -71,6 +68,11 @@ public class HttpServerResponse
   public final static String HDR_CONTENT_LENGTH = "Content-Length";
   public final static String HDR_CONTENT_TYPE = "Content-Type";
   public final static String HDR_CONTENT_ENCODING = "Content-Encoding";
+  public final static String HDR_VARY = "Vary";
+  public final static String HDR_ACCEPT_ENCODING = "Accept-Encoding";
+  public final static String CODING_GZIP = "gzip";
+  public final static String CODING_DEFLATE = "deflate";
+  public final static String CODING_BROTLI = "br";
   public final static String HDR_COOKIE = "Cookie";
   public final static String HDR_DATE = "Date"; 
   public final static String HDR_HOST = "Host";
@@ -88,6 +90,7 @@ public class HttpServerResponse
   public final static String HDR_EXPIRES="Expires";
   public final static String HDR_RANGE="Range";
   public final static String HDR_CONTENT_RANGE="Content-Range";
+  public final static String HDR_ETAG="ETag";
 
   public final static String TYPE_WWW_FORM_URL_ENCODED = "application/x-www-form-urlencoded";
   public final static String ENCODING_CHUNKED = "chunked"; 
@@ -98,6 +101,7 @@ public class HttpServerResponse
   public final static byte[] COLON=":".getBytes();
   public final static byte[] SPACE=" ".getBytes();
   public final static byte[] EOL="\r\n".getBytes();
+  private final static String EXPIRES_PAST="Thu, 01 Jan 1970 00:00:00 GMT";
   public final static byte[] EQUALS="=".getBytes();
   public final static byte[] SEMICOLON=";".getBytes();
 
@@ -119,6 +123,7 @@ public class HttpServerResponse
   private int _status;
   private String _reason;
   private boolean _sentHeaders=false;
+  private boolean _compressionDecided;
   private ServerOutputStream _outputStream;
   private boolean _shouldClose=false;
   private boolean _chunkStream=false;
@@ -131,21 +136,7 @@ public class HttpServerResponse
   private String characterEncoding="UTF-8";
   private DebugSettings debugSettings;
 
-  private final MappedList _headers=new MappedList(new ArrayList<Variable>());
-  private final ListMap _headerMap
-    =_headers.addMapView
-      ("name"
-      ,new HashMap<String,Variable>()
-      ,new Translator()
-        {
-          @Override
-          public Object translate(Object value)
-          { return ((Variable) value).name;
-          }
-        }
-      );
-  { _headerMap.setUnique(true);
-  }
+  private final ResponseHeaders _headers=new ResponseHeaders();
   
   public HttpServerResponse(HttpServerRequest request,int bufferCapacity)
   {
@@ -180,6 +171,7 @@ public class HttpServerResponse
     _status=0;
     _reason=null;
     _sentHeaders=false;
+    _compressionDecided=false;
     _shouldClose=false;
     _chunkStream=false;
     _keepaliveSeconds=30;
@@ -202,6 +194,7 @@ public class HttpServerResponse
     _status=200;
     _reason=null;
     _sentHeaders=false;
+    _compressionDecided=false;
     contentType=null;
     characterEncoding="UTF-8";
     _headers.clear();
@@ -302,9 +295,9 @@ public class HttpServerResponse
   public boolean containsHeader(String name)
   {     
     if (debugAPI)
-    { _log.fine(name+" "+_headerMap.get(name));
+    { _log.fine(name+" "+_headers.get(name));
     }
-    return _headerMap.get(name)!=null;
+    return _headers.contains(name);
   }
 
   @Override
@@ -452,16 +445,12 @@ public class HttpServerResponse
 
   @Override
   public void setIntHeader(String name, int value)
-  {
-    _headerMap.remove(name);
-    addIntHeader(name,value);
+  { setHeader(name,Integer.toString(value));
   }
 
   @Override
   public void setDateHeader(String name, long date)
-  {
-    _headerMap.remove(name);
-    addDateHeader(name,date);
+  { setHeader(name,_headerDateFormat.format(new Date(date)));
   }
   
   @Override
@@ -480,24 +469,33 @@ public class HttpServerResponse
     if (debugAPI)
     { _log.fine(name+" = "+value);
     }
-    _headers.add(new Variable(name,value));
+    _headers.add(name,value);
   }
 
   @Override
   public void setHeader(String name, String value)
   {
-    _headerMap.remove(name);
-    addHeader(name,value);
+    if (debugAPI)
+    { _log.fine(name+" = "+value);
+    }
+    _headers.set(name,value);
   }
 
   public String getHeader(String name)
   { 
-    Variable var=(Variable) _headerMap.getFirst(name);
+    String value=_headers.get(name);
     if (debugAPI)
-    { _log.fine(name+" = "+(var!=null?var.value:"null"));
+    { _log.fine(name+" = "+value);
     }
     
-    return var!=null?var.value:null;
+    return value;
+  }
+
+  /**
+   * The value of the first header in a well-known slot (see HeaderTable)
+   */
+  String getHeader(int slot)
+  { return _headers.get(slot);
   }
 
   @Override
@@ -622,7 +620,6 @@ public class HttpServerResponse
   { return _keepaliveSeconds;
   }
 
-  @SuppressWarnings("unchecked")
   public void sendHeaders()
     throws IOException
   { 
@@ -634,15 +631,31 @@ public class HttpServerResponse
 
       defaultHeaders();
 
+      if (!_compressionDecided)
+      {
+        // Committed before the response finished, so the length of the
+        //   compressed content is unknown
+        String coding=negotiateCompression(-1);
+        if (coding!=null)
+        {
+          setHeader(HDR_CONTENT_ENCODING,coding);
+          _headers.remove(HDR_CONTENT_LENGTH);
+          weakenETag();
+          _outputStream.startCompression
+            (CODING_GZIP.equals(coding)
+            ,_request._context.getCompressionConfig().getLevel()
+            );
+        }
+      }
       
       // Determine chunking and keepalive status
 	    if (PROTOCOL_HTTP_1_1.equals(_version))
 	    {
 
-        String encoding=getHeader(HDR_TRANSFER_ENCODING);
-        String connection=getHeader(HDR_CONNECTION);
-        String length=getHeader(HDR_CONTENT_LENGTH);
-        String requestConnection=_request.getHeader(HDR_CONNECTION);
+        String encoding=getHeader(HeaderTable.TRANSFER_ENCODING);
+        String connection=getHeader(HeaderTable.CONNECTION);
+        String length=getHeader(HeaderTable.CONTENT_LENGTH);
+        String requestConnection=_request.getHeader(HeaderTable.CONNECTION);
 
         if (debugProtocol)
         { 
@@ -657,7 +670,7 @@ public class HttpServerResponse
         boolean keepAliveOverride=false;
         if (_request.isSecure())
         {
-          String userAgent=_request.getHeader(HDR_USER_AGENT);
+          String userAgent=_request.getHeader(HeaderTable.USER_AGENT);
           if (userAgent!=null)
           {
             if (userAgent.indexOf("MSIE")>-1)
@@ -675,6 +688,27 @@ public class HttpServerResponse
           _shouldClose=true;
           setHeader(HDR_CONNECTION,CONNECTION_CLOSE);
         }
+        else if (_request.rejectUnreadBody())
+        {
+          // The client is waiting for "100 Continue" before sending the
+          //   body, which will not be read. Close rather than wait for a
+          //   body that may never arrive.
+          if (debugProtocol)
+          { _log.debug("Request body not read, setting Connection: close");
+          }
+          _shouldClose=true;
+          setHeader(HDR_CONNECTION,CONNECTION_CLOSE);
+        }
+        else if (_request.mustClose())
+        {
+          // The request body's framing can't be trusted to find the start
+          //   of the next request
+          if (debugProtocol)
+          { _log.debug("Request framing is unreliable, setting Connection: close");
+          }
+          _shouldClose=true;
+          setHeader(HDR_CONNECTION,CONNECTION_CLOSE);
+        }
         else if (CONNECTION_CLOSE.equals(connection))
         {
           // Close if asked by Servlet, no need to set header.
@@ -730,12 +764,13 @@ public class HttpServerResponse
 	    }
 	    else
 	    { 
-        String connection=getHeader(HDR_CONNECTION);
-        String requestConnection=_request.getHeader(HDR_CONNECTION);
-        String length=getHeader(HDR_CONTENT_LENGTH);
-        if ((requestConnection==null || CONNECTION_KEEP_ALIVE.equals(requestConnection))
+        String connection=getHeader(HeaderTable.CONNECTION);
+        String requestConnection=_request.getHeader(HeaderTable.CONNECTION);
+        String length=getHeader(HeaderTable.CONTENT_LENGTH);
+        if ((requestConnection==null || CONNECTION_KEEP_ALIVE.equalsIgnoreCase(requestConnection))
             && (length!=null || _status==304)
             &&!CONNECTION_CLOSE.equals(connection)
+            && !_request.mustClose()
            )
         {
           _shouldClose=false;
@@ -759,28 +794,56 @@ public class HttpServerResponse
       { _log.log(Level.DEBUG,"<<< "+_version+" "+_status+" "+_reason);
       }
 
-	    _outputStream.write(_version);
-      _outputStream.write(SPACE);
-      _outputStream.write(Integer.toString(_status));
-      _outputStream.write(SPACE);
-      _outputStream.write(_reason!=null?_reason:"");
-      _outputStream.write(EOL);
+      // The head is written directly into the output stream's head
+      //   buffer, using pre-encoded bytes where possible
+      byte[] statusLine
+        =HeaderSerializer.statusLine(_version,_status,_reason);
+      if (statusLine!=null)
+      { _outputStream.writeHead(statusLine);
+      }
+      else
+      {
+        _outputStream.writeHeadAscii(_version);
+        _outputStream.writeHead(SPACE);
+        _outputStream.writeHeadAscii(Integer.toString(_status));
+        _outputStream.writeHead(SPACE);
+        _outputStream.writeHeadAscii(_reason!=null?_reason:"");
+        _outputStream.writeHead(EOL);
+      }
+
+      if (getHeader(HeaderTable.DATE)==null
+          && (_status<100 || _status>199)
+          )
+      { _outputStream.writeHead(HeaderSerializer.dateHeader());
+      }
 
       if (_status>=400)
       { 
         setHeader(HDR_CACHE_CONTROL,"max-age=0");
-        setDateHeader(HDR_EXPIRES,0);
+        setHeader(HDR_EXPIRES,EXPIRES_PAST);
       }
-      for (Variable var : (Iterable<Variable>) _headers)
+      int headerCount=_headers.getCount();
+      for (int i=0;i<headerCount;i++)
       {
+        if (_headers.isRemoved(i))
+        { continue;
+        }
+        String value=_headers.getValue(i);
         if (debugProtocol)
-        { _log.log(Level.DEBUG,"<<< "+var.name+": "+var.value);
+        { _log.log(Level.DEBUG,"<<< "+_headers.getName(i)+": "+value);
         }
-        _outputStream.write(var.name);
-        _outputStream.write(COLON);
-        _outputStream.write(SPACE);
-        _outputStream.write(var.value);
-        _outputStream.write(EOL);
+        int slot=_headers.getSlot(i);
+        if (slot>=0)
+        { _outputStream.writeHead(HeaderSerializer.name(slot));
+        }
+        else
+        {
+          _outputStream.writeHeadAscii(_headers.getName(i));
+          _outputStream.writeHead(COLON);
+          _outputStream.writeHead(SPACE);
+        }
+        _outputStream.writeHeadAscii(value);
+        _outputStream.writeHead(EOL);
       }
       if (_cookies!=null)
       {
@@ -790,44 +853,42 @@ public class HttpServerResponse
           if (debugProtocol)
           { _log.log(Level.DEBUG,"<<< Set-Cookie: "+cookie.getName()+"="+cookie.getValue());
           }
-          _outputStream.write(HDR_SET_COOKIE);
-          _outputStream.write(COLON);
-          _outputStream.write(SPACE);
-          _outputStream.write(cookie.getName());
-          _outputStream.write(EQUALS);
-          _outputStream.write(cookie.getValue());
+          _outputStream.writeHead(HeaderSerializer.name(HeaderTable.SET_COOKIE));
+          _outputStream.writeHeadAscii(cookie.getName());
+          _outputStream.writeHead(EQUALS);
+          _outputStream.writeHeadAscii(cookie.getValue());
           if (cookie.getComment()!=null)
           { 
-            _outputStream.write(SEMICOLON);
-            _outputStream.write(SPACE);
-            _outputStream.write(COOKIE_COMMENT);
-            _outputStream.write(EQUALS);
-            _outputStream.write(cookie.getComment());
+            _outputStream.writeHead(SEMICOLON);
+            _outputStream.writeHead(SPACE);
+            _outputStream.writeHead(COOKIE_COMMENT);
+            _outputStream.writeHead(EQUALS);
+            _outputStream.writeHeadAscii(cookie.getComment());
           }
           if (cookie.getDomain()!=null)
           { 
-            _outputStream.write(SEMICOLON);
-            _outputStream.write(SPACE);
-            _outputStream.write(COOKIE_DOMAIN);
-            _outputStream.write(EQUALS);
-            _outputStream.write(cookie.getDomain());
+            _outputStream.writeHead(SEMICOLON);
+            _outputStream.writeHead(SPACE);
+            _outputStream.writeHead(COOKIE_DOMAIN);
+            _outputStream.writeHead(EQUALS);
+            _outputStream.writeHeadAscii(cookie.getDomain());
           }
 
           if (cookie.getMaxAge()>=0)
           { 
             
-            _outputStream.write(SEMICOLON);
-            _outputStream.write(SPACE);
-            _outputStream.write(COOKIE_MAXAGE);
-            _outputStream.write(EQUALS);
-            _outputStream.write(Integer.toString(cookie.getMaxAge()));
-
-            _outputStream.write(SEMICOLON);
-            _outputStream.write(SPACE);
-            _outputStream.write(COOKIE_EXPIRES);
-            _outputStream.write(EQUALS);
+            _outputStream.writeHead(SEMICOLON);
+            _outputStream.writeHead(SPACE);
+            _outputStream.writeHead(COOKIE_MAXAGE);
+            _outputStream.writeHead(EQUALS);
+            _outputStream.writeHeadAscii(Integer.toString(cookie.getMaxAge()));
+
+            _outputStream.writeHead(SEMICOLON);
+            _outputStream.writeHead(SPACE);
+            _outputStream.writeHead(COOKIE_EXPIRES);
+            _outputStream.writeHead(EQUALS);
           
-            _outputStream.write
+            _outputStream.writeHeadAscii
               (_headerDateFormat.format
                 (new Date
                   (Clock.instance().approxTimeMillis()
@@ -839,37 +900,34 @@ public class HttpServerResponse
 
           if (cookie.getPath()!=null)
           { 
-            _outputStream.write(SEMICOLON);
-            _outputStream.write(SPACE);
-            _outputStream.write(COOKIE_PATH);
-            _outputStream.write(EQUALS);
-            _outputStream.write(cookie.getPath());
+            _outputStream.writeHead(SEMICOLON);
+            _outputStream.writeHead(SPACE);
+            _outputStream.writeHead(COOKIE_PATH);
+            _outputStream.writeHead(EQUALS);
+            _outputStream.writeHeadAscii(cookie.getPath());
           }
           if (cookie.getSecure())
           { 
-            _outputStream.write(SEMICOLON);
-            _outputStream.write(SPACE);
-            _outputStream.write(COOKIE_SECURE);
+            _outputStream.writeHead(SEMICOLON);
+            _outputStream.writeHead(SPACE);
+            _outputStream.writeHead(COOKIE_SECURE);
           }
           if (cookie.getVersion()!=0)
           { 
-            _outputStream.write(SEMICOLON);
-            _outputStream.write(SPACE);
-            _outputStream.write(COOKIE_VERSION);
-            _outputStream.write(EQUALS);
-            _outputStream.write(Integer.toString(cookie.getVersion()));
+            _outputStream.writeHead(SEMICOLON);
+            _outputStream.writeHead(SPACE);
+            _outputStream.writeHead(COOKIE_VERSION);
+            _outputStream.writeHead(EQUALS);
+            _outputStream.writeHeadAscii(Integer.toString(cookie.getVersion()));
           }
            
-          _outputStream.write(EOL);
+          _outputStream.writeHead(EOL);
         }
       }
-      _outputStream.write(EOL);
+      _outputStream.writeHead(EOL);
       if (_chunkStream)
-      { 
-        _outputStream.flush();
-        _outputStream.setChunking(true);
+      { _outputStream.setChunking(true);
       }
-      _outputStream.resetCount();
       
     }
 	    
@@ -889,15 +947,28 @@ public class HttpServerResponse
 //     Flushing the -writer- doesn't seem to work very well, so leaving it 
 //      out.
     
-    if (_writer!=null)
-    { _writer.flush();
-    }
-    
-    // XXX We always need to call _outputStream.flush() because
-    //   the writer doesn't always call it
-    
     try
-    { _outputStream.flush();
+    { 
+      if (_writer!=null)
+      { 
+        // Move the writer's output into the buffer without committing
+        _outputStream.setDeferCommit(true);
+        _writer.flush();
+        _outputStream.setDeferCommit(false);
+      }
+      
+      if (!_outputStream.isPrepared())
+      { 
+        compressBuffered();
+        setBufferedContentLength();
+      }
+      
+      // XXX We always need to call _outputStream.flush() because
+      //   the writer doesn't always call it. Compressed output is
+      //   flushed when the compressed stream is finished, below.
+      if (!_outputStream.isCompressing())
+      { _outputStream.flush();
+      }
     }
     catch (IOException x)
     { 
@@ -910,7 +981,7 @@ public class HttpServerResponse
 
     if (_shouldClose)
     {
-      if (_chunkStream)
+      if (_chunkStream || _outputStream.isCompressing())
       {
         if (debugProtocol)
         {
@@ -950,7 +1021,7 @@ public class HttpServerResponse
       catch (IOException x)
       { }
     }
-    else if (_chunkStream)
+    else if (_chunkStream || _outputStream.isCompressing())
     { 
       if (debugProtocol)
       {
@@ -976,10 +1047,217 @@ public class HttpServerResponse
 
   }
 
-  public int getByteCount()
+  /**
+   * <p>Compress a response that is entirely buffered, if compression is
+   *   negotiated and makes the content smaller.
+   * </p>
+   */
+  private void compressBuffered()
+  {
+    if (_compressionDecided)
+    { return;
+    }
+
+    int length=_outputStream.getBufferedLength();
+    String contentLength=getHeader(HeaderTable.CONTENT_LENGTH);
+    if (contentLength!=null && !contentLength.equals(Integer.toString(length)))
+    { 
+      // Content is incomplete
+      _compressionDecided=true;
+      return;
+    }
+    
+    String coding=negotiateCompression(length);
+    if (coding!=null
+        && _outputStream.compressBuffer
+          (CODING_GZIP.equals(coding)
+          ,_request._context.getCompressionConfig().getLevel()
+          )
+       )
+    { 
+      if (debugProtocol)
+      { 
+        _log.log(Level.DEBUG
+                ,"Compressed "+length+" bytes to "
+                +_outputStream.getBufferedLength()+" ("+coding+")"
+                );
+      }
+      setHeader(HDR_CONTENT_ENCODING,coding);
+      _headers.remove(HDR_CONTENT_LENGTH);
+      weakenETag();
+    }
+  }
+
+  /**
+   * <p>Send the content as it is written, without negotiating compression,
+   *   when the content coding has already been chosen, eg. by a cache that
+   *   holds a compressed copy of the content.
+   * </p>
+   */
+  void disableCompression()
+  { _compressionDecided=true;
+  }
+
+  /**
+   * <p>Mark the entity tag of content that is being compressed as weak.
+   *   The compressed bytes differ from those the tag was computed for, so
+   *   it can't be used as a strong validator (eg. for If-Range), but it
+   *   still matches the uncompressed tag in If-None-Match.
+   * </p>
+   */
+  private void weakenETag()
+  {
+    String etag=getHeader(HeaderTable.ETAG);
+    if (etag!=null && !etag.startsWith("W/"))
+    { setHeader(HDR_ETAG,"W/"+etag);
+    }
+  }
+
+  /**
+   * <p>Whether the content of this response may be sent straight from a
+   *   file with transferFile(), ie. the connection is not TLS or governed
+   *   and nothing has been committed.
+   * </p>
+   */
+  boolean canTransferFile()
+  { return !_outputStream.isPrepared() && _outputStream.canTransfer();
+  }
+
+  /**
+   * <p>Send a region of a file as the content of this response, straight
+   *   from the file to the socket with FileChannel.transferTo. The headers,
+   *   including the Content-Length, must already be set.
+   * </p>
+   *
+   * @return false, without writing anything, if the content must be
+   *   written through the output stream because the connection is TLS or
+   *   governed, the response is already committed, or the content will
+   *   be compressed
+   */
+  boolean transferFile(FileChannel file,long position,long count)
+    throws IOException
+  {
+    if (!canTransferFile())
+    { return false;
+    }
+    
+    if (!_compressionDecided && negotiateCompression(count)!=null)
+    { 
+      // Leave the content to be compressed as it is written
+      _compressionDecided=false;
+      return false;
+    }
+    _compressionDecided=true;
+    _outputStream.transferFrom(file,position,count);
+    return true;
+  }
+
+  /**
+   * <p>Determine whether this response should be compressed, according to
+   *   the CompressionConfig of the service context and the request's
+   *   Accept-Encoding header.
+   * </p>
+   *
+   * @param length The length of the content, or -1 if it is not known
+   * @return The content coding to use, or null
+   */
+  private String negotiateCompression(long length)
+  {
+    _compressionDecided=true;
+    if (_request._context==null
+        || _status==304
+        || _status==204
+        || _status==206
+        || (_status>=100 && _status<=199)
+        || "HEAD".equals(_request.getMethod())
+        || getHeader(HeaderTable.CONTENT_ENCODING)!=null
+        || getHeader(HeaderTable.CONTENT_RANGE)!=null
+        || getHeader(HeaderTable.TRANSFER_ENCODING)!=null
+        )
+    { return null;
+    }
+    
+    CompressionConfig config=_request._context.getCompressionConfig();
+    if (!config.isCompressible(getHeader(HeaderTable.CONTENT_TYPE)))
+    { return null;
+    }
+    
+    String contentLength=getHeader(HeaderTable.CONTENT_LENGTH);
+    if (length<0 && contentLength!=null)
+    {
+      try
+      { length=Long.parseLong(contentLength.trim());
+      }
+      catch (NumberFormatException x)
+      { return null;
+      }
+    }
+    if (length>=0 && length<config.getMinSize())
+    { return null;
+    }
+    
+    // The response depends on Accept-Encoding, whatever the client sent
+    String vary=getHeader(HeaderTable.VARY);
+    if (vary==null)
+    { setHeader(HDR_VARY,HDR_ACCEPT_ENCODING);
+    }
+    else if (vary.toLowerCase().indexOf("accept-encoding")<0)
+    { setHeader(HDR_VARY,vary+", "+HDR_ACCEPT_ENCODING);
+    }
+    
+    return AcceptEncoding.acceptedCoding
+      (_request.getHeader(HeaderTable.ACCEPT_ENCODING));
+  }
+
+  /**
+   * <p>Send the length of a response that is entirely buffered, so it
+   *   does not need to be chunked and can be kept alive for an HTTP/1.0
+   *   client.
+   * </p>
+   */
+  private void setBufferedContentLength()
+  {
+    if (getHeader(HeaderTable.CONTENT_LENGTH)!=null
+        || getHeader(HeaderTable.TRANSFER_ENCODING)!=null
+        || _status==304
+        || _status==204
+        || (_status>=100 && _status<=199)
+        || "HEAD".equals(_request.getMethod())
+        )
+    { return;
+    }
+    setContentLength(_outputStream.getBufferedLength());
+  }
+
+  public long getByteCount()
   { return _outputStream.getCount();
   }
 
+  /**
+   * Hold this response's output so it can be written together with the
+   *   responses to subsequent pipelined requests
+   */
+  void setDeferFlush(boolean deferFlush)
+  { _outputStream.setDeferFlush(deferFlush);
+  }
+
+  /**
+   * Send a "100 Continue" interim response, when the request body is
+   *   first read
+   */
+  void sendContinue()
+    throws IOException
+  { _outputStream.sendContinue();
+  }
+
+  /**
+   * Write any output held back for pipelined requests
+   */
+  void flushPending()
+    throws IOException
+  { _outputStream.flushPending();
+  }
+
   @Override
   public void resetBuffer()
   { 
@@ -1001,9 +1279,6 @@ public class HttpServerResponse
   { _headerDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
   }
 
-  private final ClockFormat _formatTimeWatcher
-    =new ClockFormat(_headerDateFormat,1000);
-
   private final static HashMap<Integer,String> _statusMap 
     = new HashMap<Integer,String>();
   static
@@ -1035,21 +1310,9 @@ public class HttpServerResponse
     { 
       _log.log(Level.WARNING,"Exception creating error map",x);
     }
+    HeaderSerializer.setReasons(_statusMap);
   }
 
-  static class Variable
-  {
-    public String name;
-    public String value;
-
-    public Variable(String name,String value)
-    {
-      this.name=name;
-      this.value=value;
-    }
-    
-   
-  }
 
 
 
@@ -1064,22 +1327,14 @@ public class HttpServerResponse
     { _reason="OK";
     }
 
-	  if (getHeader(HDR_DATE)==null
-        && (_status<100
-            || _status>199
-           )
-        )
-	  { setHeader(HDR_DATE,_formatTimeWatcher.approxTimeFormatted());
-    }
-    
     if (_version==null)
     { _version=_request.getProtocol();
     }
 
-    if (getHeader(HDR_CONNECTION)==null)
+    if (getHeader(HeaderTable.CONNECTION)==null)
     {
       
-      String connection=_request.getHeader(HDR_CONNECTION);
+      String connection=_request.getHeader(HeaderTable.CONNECTION);
       if (connection!=null && connection.length()>0)
       { setHeader(HDR_CONNECTION,connection);
       }
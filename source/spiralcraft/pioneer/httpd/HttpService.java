@@ -15,14 +15,22 @@
 package spiralcraft.pioneer.httpd;
 
 
+import spiralcraft.pioneer.net.ConnectionHandler;
+import spiralcraft.pioneer.net.ConnectionParker;
 import spiralcraft.pioneer.net.QueueConnectionHandler;
 import spiralcraft.pioneer.net.Listener;
+import spiralcraft.pioneer.net.VirtualThreadConnectionHandler;
+
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
 
 
 import spiralcraft.service.Service;
 import spiralcraft.common.ContextualException;
 import spiralcraft.common.LifecycleException;
 import spiralcraft.lang.Focus;
+import spiralcraft.meter.MeterContext;
 
 
 /**
@@ -38,14 +46,81 @@ public class HttpService
   
   private QueueConnectionHandler handlerQueue=new QueueConnectionHandler();
   
+  private QueueConnectionHandler[] handlerQueueShards;
+  
+  private VirtualThreadConnectionHandler virtualThreadHandler
+    =new VirtualThreadConnectionHandler();
+  
+  private boolean useVirtualThreads;
+  
+  private boolean parkIdleConnections;
+  
+  private int shedRetryAfterSeconds=5;
+  
   public void setListeners(Listener[] listeners)
   { this.listeners=listeners;
   }
   
+  /**
+   * <p>Park idle keep-alive connections on a Selector between requests,
+   *   so handler threads are only occupied by connections with active
+   *   requests.
+   * </p>
+   * 
+   * <p>Only applies to connections accepted from channel based server
+   *   sockets (StandardServerSocketFactory.useChannels). Other connections
+   *   block a handler thread while idle.
+   * </p>
+   */
+  public void setParkIdleConnections(boolean parkIdleConnections)
+  { this.parkIdleConnections=parkIdleConnections;
+  }
+  
+  /**
+   * <p>The Retry-After value of the 503 response written to connections
+   *   shed by the handlerQueue when its targetQueueDelayMs is exceeded.
+   * </p>
+   */
+  public void setShedRetryAfterSeconds(int shedRetryAfterSeconds)
+  { this.shedRetryAfterSeconds=shedRetryAfterSeconds;
+  }
+  
   public QueueConnectionHandler getHandlerQueue()
   { return handlerQueue;
   }
   
+  /**
+   * <p>Use a separate QueueConnectionHandler for each acceptor of
+   *   multi-acceptor Listeners (see Listener.acceptorCount), instead of the
+   *   single handlerQueue, so acceptors don't share a queue.
+   * </p>
+   * 
+   * <p>Idle connections resumed by the ConnectionParker are handled by
+   *   the first shard.
+   * </p>
+   */
+  public void setHandlerQueueShards(QueueConnectionHandler[] handlerQueueShards)
+  { this.handlerQueueShards=handlerQueueShards;
+  }
+  
+  public QueueConnectionHandler[] getHandlerQueueShards()
+  { return handlerQueueShards;
+  }
+  
+  public VirtualThreadConnectionHandler getVirtualThreadHandler()
+  { return virtualThreadHandler;
+  }
+  
+  /**
+   * <p>Handle each connection in its own virtual thread via the
+   *   virtualThreadHandler, instead of dispatching connections to the pooled
+   *   threads of the handlerQueue.
+   * </p>
+   */
+  public void setUseVirtualThreads(boolean useVirtualThreads)
+  { this.useVirtualThreads=useVirtualThreads;
+  }
+  
   @Override
   public Focus<?> bindExports(Focus<?> focus)
     throws ContextualException
@@ -60,22 +135,77 @@ public class HttpService
   public void start()
     throws LifecycleException
   {
-    if (handlerQueue==null)
-    { handlerQueue=new QueueConnectionHandler();
+    ConnectionHandler connectionHandler;
+    if (useVirtualThreads)
+    {
+      if (virtualThreadHandler==null)
+      { virtualThreadHandler=new VirtualThreadConnectionHandler();
+      }
+      
+      if (meterContext!=null)
+      { virtualThreadHandler.installMeter(meterContext);
+      }
+      
+      virtualThreadHandler.setConnectionHandlerFactory(this);
+      connectionHandler=virtualThreadHandler;
     }
-    
-    if (meterContext!=null)
-    { handlerQueue.installMeter(meterContext);
+    else if (handlerQueueShards!=null && handlerQueueShards.length>0)
+    {
+      for (int i=0;i<handlerQueueShards.length;i++)
+      { 
+        setupHandlerQueue
+          (handlerQueueShards[i]
+          ,meterContext!=null?meterContext.subcontext("shard"+i):null
+          );
+      }
+      connectionHandler=handlerQueueShards[0];
+    }
+    else
+    {
+      if (handlerQueue==null)
+      { handlerQueue=new QueueConnectionHandler();
+      }
+      setupHandlerQueue(handlerQueue,meterContext);
+      connectionHandler=handlerQueue;
     }
-    
-    handlerQueue.setConnectionHandlerFactory(this);
     
     for (Listener listener: listeners)
-    { listener.setConnectionHandler(handlerQueue);
+    { 
+      listener.setConnectionHandler(connectionHandler);
+      if (!useVirtualThreads && handlerQueueShards!=null)
+      { listener.setConnectionHandlers(handlerQueueShards);
+      }
+    }
+    
+    if (parkIdleConnections)
+    {
+      ConnectionParker parker=new ConnectionParker();
+      if (meterContext!=null)
+      { parker.installMeter(meterContext);
+      }
+      parker.setConnectionHandler(connectionHandler);
+      try
+      { parker.start();
+      }
+      catch (IOException x)
+      { throw new LifecycleException("Error starting ConnectionParker",x);
+      }
+      setConnectionParker(parker);
     }
     
     super.start();
-    handlerQueue.init();
+    if (useVirtualThreads)
+    { virtualThreadHandler.init();
+    }
+    else if (handlerQueueShards!=null && handlerQueueShards.length>0)
+    {
+      for (QueueConnectionHandler shard: handlerQueueShards)
+      { shard.init();
+      }
+    }
+    else
+    { handlerQueue.init();
+    }
     for (Listener listener: listeners)
     { listener.start();
     }
@@ -91,10 +221,47 @@ public class HttpService
     for (Listener listener: listeners)
     { listener.stop();
     }
-    handlerQueue.stop();
+    if (getConnectionParker()!=null)
+    { 
+      getConnectionParker().stop();
+      setConnectionParker(null);
+    }
+    if (useVirtualThreads)
+    { virtualThreadHandler.stop();
+    }
+    else if (handlerQueueShards!=null && handlerQueueShards.length>0)
+    {
+      for (QueueConnectionHandler shard: handlerQueueShards)
+      { shard.stop();
+      }
+    }
+    else
+    { handlerQueue.stop();
+    }
     super.stop();
     
   }
+  
+  private void setupHandlerQueue
+    (QueueConnectionHandler queue,MeterContext queueMeterContext)
+  {
+    if (queueMeterContext!=null)
+    { queue.installMeter(queueMeterContext);
+    }
+    
+    queue.setConnectionHandlerFactory(this);
+    if (queue.getShedResponse()==null)
+    {
+      queue.setShedResponse
+        (("HTTP/1.1 503 Service Unavailable\r\n"
+          +"Retry-After: "+shedRetryAfterSeconds+"\r\n"
+          +"Content-Length: 0\r\n"
+          +"Connection: close\r\n"
+          +"\r\n"
+          ).getBytes(StandardCharsets.US_ASCII)
+        );
+    }
+  }
 
 
 }
@@ -65,6 +65,25 @@ public interface HttpServiceContext
    *   none is supplied via the setAccessLog() method.
    */
   AccessLog getAccessLog();
+
+  /**
+   * Return the MultipartConfig associated with this Service Context, which
+   *   will be inherited from a parent context if none is supplied.
+   */
+  MultipartConfig getMultipartConfig();
+
+  /**
+   * Return the CompressionConfig associated with this Service Context,
+   *   which will be inherited from a parent context if none is supplied.
+   */
+  CompressionConfig getCompressionConfig();
+
+  /**
+   * Return the maximum size of an application/x-www-form-urlencoded
+   *   request body read for the request parameters, or -1 for no limit.
+   *   It will be inherited from a parent context if none is supplied.
+   */
+  int getMaxFormSize();
   
   void fireRequestAttributeAdded
     (HttpServletRequest request,String name,Object value);
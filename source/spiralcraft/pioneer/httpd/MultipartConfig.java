@@ -0,0 +1,106 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.io.File;
+
+/**
+ * <p>Controls how multipart/form-data request bodies are read
+ *   (see AbstractHttpServletRequest.getMultipartForm())
+ * </p>
+ */
+public class MultipartConfig
+{
+  private int memoryThreshold=64*1024;
+  private long maxMemorySize=1024*1024;
+  private int maxParts=1000;
+  private File tempDirectory;
+  private long maxRequestSize=-1;
+  private boolean parseParameters;
+
+  /**
+   * The maximum size of a part that will be held in memory. Larger parts
+   *   are written to a temporary file.
+   */
+  public void setMemoryThreshold(int memoryThreshold)
+  { this.memoryThreshold=memoryThreshold;
+  }
+
+  public int getMemoryThreshold()
+  { return memoryThreshold;
+  }
+
+  /**
+   * The maximum total size of the parts of one request held in memory.
+   *   Once it is used up, later parts are written to temporary files
+   *   regardless of their size. -1 for no limit.
+   */
+  public void setMaxMemorySize(long maxMemorySize)
+  { this.maxMemorySize=maxMemorySize;
+  }
+
+  public long getMaxMemorySize()
+  { return maxMemorySize;
+  }
+
+  /**
+   * The maximum number of parts in a multipart request body, or -1 for
+   *   no limit. A body with more parts is rejected.
+   */
+  public void setMaxParts(int maxParts)
+  { this.maxParts=maxParts;
+  }
+
+  public int getMaxParts()
+  { return maxParts;
+  }
+
+  /**
+   * The directory where temporary files are written. Defaults to the
+   *   system temporary directory.
+   */
+  public void setTempDirectory(File tempDirectory)
+  { this.tempDirectory=tempDirectory;
+  }
+
+  public File getTempDirectory()
+  { return tempDirectory;
+  }
+
+  /**
+   * The maximum size of a multipart request body, or -1 for no limit
+   */
+  public void setMaxRequestSize(long maxRequestSize)
+  { this.maxRequestSize=maxRequestSize;
+  }
+
+  public long getMaxRequestSize()
+  { return maxRequestSize;
+  }
+
+  /**
+   * Whether the fields of a multipart/form-data body are returned by
+   *   getParameter() and related methods. This consumes the request body,
+   *   so it is off by default for compatibility with servlets that read
+   *   multipart bodies themselves.
+   */
+  public void setParseParameters(boolean parseParameters)
+  { this.parseParameters=parseParameters;
+  }
+
+  public boolean getParseParameters()
+  { return parseParameters;
+  }
+}
@@ -0,0 +1,278 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import spiralcraft.time.Clock;
+
+/**
+ * <p>Serves a static file from a precompressed sibling in the document
+ *   root, eg. app.js.br or app.js.gz for app.js, when the client accepts
+ *   the sibling's content coding. The sibling is written as is, so no
+ *   CPU is spent compressing at request time.
+ * </p>
+ *
+ * <p>The Content-Length, ETag and Last-Modified headers describe the
+ *   compressed file, and the Content-Type is that of the original.
+ *   Requests that cannot be served from a sibling (other methods, Range
+ *   requests, or clients that do not accept the coding) are passed to
+ *   the file servlet. All responses for the file carry
+ *   Vary: Accept-Encoding.
+ * </p>
+ *
+ * <p>The siblings found for each file are remembered in a SiblingCache,
+ *   so the document root is not searched for each request.
+ * </p>
+ */
+class PrecompressedFileChain
+  implements FilterChain
+{
+  private static final String[] CODINGS
+    ={HttpServerResponse.CODING_BROTLI,HttpServerResponse.CODING_GZIP};
+  private static final String[] SUFFIXES={".br",".gz"};
+
+  /**
+   * <p>Wrap the file servlet chain for a file if the file has a current
+   *   precompressed sibling.
+   * </p>
+   *
+   * @return A PrecompressedFileChain, or the fileChain if the file has
+   *   no precompressed sibling
+   */
+  static FilterChain forFile
+    (FilterChain fileChain
+    ,String realPath
+    ,String contentType
+    ,SiblingCache siblingCache
+    )
+  {
+    File[] siblings=siblingCache.siblings(realPath);
+    if (siblings==null)
+    { return fileChain;
+    }
+    return new PrecompressedFileChain(fileChain,siblings,contentType);
+  }
+
+  /**
+   * The current precompressed siblings of a file, or null if there are
+   *   none
+   */
+  private static File[] findSiblings(String realPath,long lastModified)
+  {
+    if (lastModified==0)
+    { return null;
+    }
+
+    File[] siblings=null;
+    for (int i=0;i<SUFFIXES.length;i++)
+    {
+      File sibling=new File(realPath+SUFFIXES[i]);
+
+      // A sibling older than the file is left over from a previous build
+      if (sibling.lastModified()>=lastModified && sibling.isFile())
+      {
+        if (siblings==null)
+        { siblings=new File[SUFFIXES.length];
+        }
+        siblings[i]=sibling;
+      }
+    }
+    return siblings;
+  }
+
+  private final FilterChain fileChain;
+  private final File[] siblings;
+  private final String contentType;
+
+  private PrecompressedFileChain
+    (FilterChain fileChain,File[] siblings,String contentType)
+  {
+    this.fileChain=fileChain;
+    this.siblings=siblings;
+    this.contentType=contentType;
+  }
+
+  @Override
+  public void doFilter
+    (ServletRequest servletRequest
+    ,ServletResponse servletResponse
+    )
+    throws IOException,ServletException
+  {
+    HttpServletRequest request=(HttpServletRequest) servletRequest;
+    HttpServletResponse response=(HttpServletResponse) servletResponse;
+
+    // The file servlet's response depends on Accept-Encoding as well
+    response.setHeader
+      (HttpServerResponse.HDR_VARY,HttpServerResponse.HDR_ACCEPT_ENCODING);
+
+    String method=request.getMethod();
+    boolean head="HEAD".equals(method);
+    if ((!head && !"GET".equals(method))
+        || request.getHeader(HttpServerResponse.HDR_RANGE)!=null
+        )
+    {
+      fileChain.doFilter(request,response);
+      return;
+    }
+
+    String acceptEncoding
+      =request.getHeader(HttpServerResponse.HDR_ACCEPT_ENCODING);
+    for (int i=0;i<siblings.length;i++)
+    {
+      if (siblings[i]!=null
+          && AcceptEncoding.isAcceptedCoding(acceptEncoding,CODINGS[i])
+          )
+      {
+        if (serve(request,response,siblings[i],CODINGS[i],head))
+        { return;
+        }
+      }
+    }
+    fileChain.doFilter(request,response);
+  }
+
+  /**
+   * Write the precompressed file, or return false if it has gone away
+   */
+  private boolean serve
+    (HttpServletRequest request
+    ,HttpServletResponse response
+    ,File sibling
+    ,String coding
+    ,boolean head
+    )
+    throws IOException
+  {
+    FileChannel channel;
+    try
+    { channel=FileChannel.open(sibling.toPath());
+    }
+    catch (NoSuchFileException x)
+    { return false;
+    }
+
+    try
+    {
+      long length=channel.size();
+      long lastModified=sibling.lastModified();
+      String etag=StaticContent.etag(lastModified,length,coding);
+
+      response.setHeader(HttpServerResponse.HDR_CONTENT_ENCODING,coding);
+      response.setHeader("ETag",etag);
+      response.setDateHeader
+        (HttpServerResponse.HDR_LAST_MODIFIED,lastModified);
+      if (contentType!=null)
+      { response.setContentType(contentType);
+      }
+
+      if (StaticContent.isNotModified(request,etag,lastModified))
+      {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
+      }
+
+      response.setHeader
+        (HttpServerResponse.HDR_CONTENT_LENGTH,Long.toString(length));
+      if (!head)
+      { StaticContent.send(response,channel,0,length);
+      }
+      return true;
+    }
+    finally
+    { channel.close();
+    }
+  }
+
+  /**
+   * <p>Remembers the precompressed siblings of each file by real path.
+   *   The siblings are looked up again when the file's modification time
+   *   changes, which is checked at most once per check interval, so a
+   *   file is not stat'ed for each request.
+   * </p>
+   */
+  static class SiblingCache
+  {
+    private static final int MAX_ENTRIES=4096;
+
+    private final ConcurrentHashMap<String,Lookup> lookups
+      =new ConcurrentHashMap<>();
+    private volatile long checkInterval=1000;
+
+    /**
+     * The number of milliseconds for which the siblings of a file are
+     *   assumed to be unchanged after they were last checked
+     */
+    void setCheckInterval(long checkInterval)
+    { this.checkInterval=checkInterval;
+    }
+
+    /**
+     * The current precompressed siblings of a file, indexed like
+     *   SUFFIXES, or null if there are none
+     */
+    File[] siblings(String realPath)
+    {
+      long now=Clock.instance().approxTimeMillis();
+      Lookup lookup=lookups.get(realPath);
+      if (lookup!=null && now-lookup.checkedAt<checkInterval)
+      { return lookup.siblings;
+      }
+
+      long lastModified=new File(realPath).lastModified();
+      if (lookup!=null && lookup.lastModified==lastModified)
+      {
+        lookup.checkedAt=now;
+        return lookup.siblings;
+      }
+
+      lookup
+        =new Lookup(lastModified,findSiblings(realPath,lastModified),now);
+      if (lookups.size()>=MAX_ENTRIES)
+      { lookups.clear();
+      }
+      lookups.put(realPath,lookup);
+      return lookup.siblings;
+    }
+  }
+
+  private static class Lookup
+  {
+    final long lastModified;
+    final File[] siblings;
+    volatile long checkedAt;
+
+    Lookup(long lastModified,File[] siblings,long checkedAt)
+    {
+      this.lastModified=lastModified;
+      this.siblings=siblings;
+      this.checkedAt=checkedAt;
+    }
+  }
+}
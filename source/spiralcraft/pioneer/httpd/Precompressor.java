@@ -0,0 +1,163 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import spiralcraft.log.ClassLog;
+import spiralcraft.log.Level;
+
+/**
+ * <p>Generates the missing .gz siblings of the static files in a
+ *   document root, for serving with CompressionConfig.servePrecompressed.
+ * </p>
+ *
+ * <p>Files are selected by the service context's MIME type mapping and
+ *   the CompressionConfig's MIME types and minimum size. A .gz file is
+ *   written when it is missing or older than its file, and only kept if
+ *   it is smaller. Files are compressed in parallel on the common
+ *   ForkJoinPool.
+ * </p>
+ *
+ * <p>Brotli (.br) siblings are served but not generated here, as the
+ *   JDK has no Brotli encoder. They can be produced by the build.
+ * </p>
+ */
+public class Precompressor
+{
+  private static final ClassLog log
+    =ClassLog.getInstance(Precompressor.class);
+
+  private final HttpServiceContext context;
+  private final CompressionConfig config;
+
+  public Precompressor(HttpServiceContext context)
+  {
+    this.context=context;
+    this.config=context.getCompressionConfig();
+  }
+
+  /**
+   * Compress the files under the specified directory
+   *
+   * @return The number of .gz files written
+   */
+  public int compress(File root)
+    throws IOException
+  {
+    List<Path> files;
+    try (Stream<Path> paths=Files.walk(root.toPath()))
+    { files=paths.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+
+    long count
+      =files.parallelStream()
+        .filter(this::isCandidate)
+        .filter(this::compressFile)
+        .count();
+    if (count>0)
+    { log.info("Precompressed "+count+" files in "+root);
+    }
+    return (int) count;
+  }
+
+  private boolean isCandidate(Path path)
+  {
+    String name=path.getFileName().toString();
+    if (name.endsWith(".gz") || name.endsWith(".br"))
+    { return false;
+    }
+    return config.isCompressible(context.getMimeType(name));
+  }
+
+  /**
+   * Write the .gz sibling of a file if it is missing or stale
+   */
+  private boolean compressFile(Path path)
+  {
+    Path target=path.resolveSibling(path.getFileName()+".gz");
+    Path temp=null;
+    try
+    {
+      long size=Files.size(path);
+      if (size<config.getMinSize())
+      { return false;
+      }
+      if (Files.exists(target)
+          && Files.getLastModifiedTime(target)
+              .compareTo(Files.getLastModifiedTime(path))>=0
+          )
+      { return false;
+      }
+
+      temp=Files.createTempFile
+        (path.getParent(),"."+path.getFileName(),".tmp");
+      try (OutputStream out=new LeveledGZIPOutputStream
+            (Files.newOutputStream(temp),config.getLevel())
+          )
+      { Files.copy(path,out);
+      }
+
+      if (Files.size(temp)>=size)
+      { return false;
+      }
+      Files.move(temp,target,StandardCopyOption.REPLACE_EXISTING);
+      temp=null;
+      return true;
+    }
+    catch (IOException x)
+    {
+      log.log(Level.WARNING,"Error precompressing "+path,x);
+      return false;
+    }
+    finally
+    {
+      if (temp!=null)
+      {
+        try
+        { Files.deleteIfExists(temp);
+        }
+        catch (IOException x)
+        { log.log(Level.WARNING,"Error deleting "+temp,x);
+        }
+      }
+    }
+  }
+
+  private static class LeveledGZIPOutputStream
+    extends GZIPOutputStream
+  {
+    LeveledGZIPOutputStream(OutputStream out,int level)
+      throws IOException
+    {
+      super(out,8192);
+      if (level!=Deflater.DEFAULT_COMPRESSION)
+      { def.setLevel(level);
+      }
+    }
+  }
+}
@@ -0,0 +1,643 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>The request line and headers of an HTTP request, kept as the raw
+ *   bytes received from the client.
+ * </p>
+ *
+ * <p>The head is scanned once as it is read, recording the offsets of the
+ *   method, URI, protocol and each header name and value. Strings are only
+ *   created when a component asks for a value, and are cached for the
+ *   remainder of the request. The buffer and offset tables are re-used
+ *   for each request on a connection.
+ * </p>
+ *
+ * <p>Headers are indexed by name as they are read (see HeaderTable).
+ * </p>
+ */
+final class RequestHead
+  extends HeaderTable
+{
+  private static final int INITIAL_BUFFER_SIZE=4096;
+  private static final int INITIAL_HEADERS=32;
+
+  private static final String[] COMMON_METHODS
+    ={"GET","POST","HEAD","PUT","DELETE","OPTIONS","PATCH","TRACE"};
+
+  private static final String[] COMMON_PROTOCOLS
+    ={"HTTP/1.1","HTTP/1.0"};
+
+  private byte[] _buf=new byte[INITIAL_BUFFER_SIZE];
+  private int _length;
+
+  private int _lineEnd;
+  private int _methodStart;
+  private int _methodEnd;
+  private int _uriStart;
+  private int _uriEnd;
+  private int _protocolStart;
+  private int _protocolEnd;
+
+  private String _requestLine;
+  private String _method;
+  private String _uri;
+  private String _protocol;
+
+  // nameStart,nameEnd,valueStart,valueEnd for each header
+  private int[] _offsets=new int[INITIAL_HEADERS*4];
+  private String[] _names=new String[INITIAL_HEADERS];
+  private String[] _values=new String[INITIAL_HEADERS];
+  private int[] _nameGeneration=new int[INITIAL_HEADERS];
+  private int[] _valueGeneration=new int[INITIAL_HEADERS];
+  private int _headerCount;
+
+  private int _maxSize;
+  private int _maxHeaderCount;
+
+  /**
+   * <p>Limit the size of the request line and headers and the number of
+   *   headers. A request that exceeds a limit causes a
+   *   RequestHeadException.
+   * </p>
+   *
+   * @param maxSize The maximum number of bytes in the request line and
+   *   headers, or 0 for no limit
+   * @param maxHeaderCount The maximum number of headers, or 0 for no limit
+   */
+  void setLimits(int maxSize,int maxHeaderCount)
+  {
+    _maxSize=maxSize;
+    _maxHeaderCount=maxHeaderCount;
+  }
+
+  /**
+   * Prepare for a new request
+   */
+  void clear()
+  {
+    _length=0;
+    _lineEnd=0;
+    _methodStart=0;
+    _methodEnd=0;
+    _uriStart=0;
+    _uriEnd=0;
+    _protocolStart=0;
+    _protocolEnd=0;
+    _requestLine=null;
+    _method=null;
+    _uri=null;
+    _protocol=null;
+    _headerCount=0;
+    clearIndex();
+  }
+
+  /**
+   * <p>Read and parse the request line.
+   * </p>
+   *
+   * @return false if the stream ended before any data was read
+   */
+  boolean readRequestLine(ServerInputStream in)
+    throws IOException
+  {
+    int end=readLine(in);
+    while (end==0)
+    { 
+      // Ignore empty lines preceding the request line
+      _length=0;
+      end=readLine(in);
+    }
+    if (end<0)
+    { return false;
+    }
+
+    int start=0;
+    _lineEnd=end;
+    for (int i=start;i<end;i++)
+    {
+      int chr=_buf[i] & 0xFF;
+      if (chr<0x20 || chr>0x7e)
+      { throw new IOException("Illegal character "+chr+" in request");
+      }
+    }
+
+    _methodStart=skipSpaces(start,end);
+    _methodEnd=nextSpace(_methodStart,end);
+    if (_methodEnd==_methodStart)
+    { throw new IOException("Invalid request: no method");
+    }
+    _uriStart=skipSpaces(_methodEnd,end);
+    _uriEnd=nextSpace(_uriStart,end);
+    if (_uriEnd==_uriStart)
+    { throw new IOException("Invalid request: no URI");
+    }
+    _protocolStart=skipSpaces(_uriEnd,end);
+    _protocolEnd=nextSpace(_protocolStart,end);
+    return true;
+  }
+
+  /**
+   * <p>Read and parse header lines up to and including the blank line
+   *   which ends the head
+   * </p>
+   */
+  void readHeaders(ServerInputStream in)
+    throws IOException
+  {
+    while (true)
+    {
+      int start=_length;
+      int end=readLine(in);
+      if (end<=start)
+      { break;
+      }
+
+      int colon=-1;
+      for (int i=start;i<end;i++)
+      {
+        if (_buf[i]==':')
+        {
+          colon=i;
+          break;
+        }
+      }
+      if (colon<=start)
+      {
+        throw new IOException
+          ("Malformed header: "+new String(_buf,start,end-start,StandardCharsets.ISO_8859_1));
+      }
+
+      int valueStart=colon+1;
+      while (valueStart<end && (_buf[valueStart] & 0xFF)<=' ')
+      { valueStart++;
+      }
+      int valueEnd=end;
+      while (valueEnd>valueStart && (_buf[valueEnd-1] & 0xFF)<=' ')
+      { valueEnd--;
+      }
+      int nameEnd=colon;
+      while (nameEnd>start && (_buf[nameEnd-1] & 0xFF)<=' ')
+      { nameEnd--;
+      }
+      if (_maxHeaderCount>0 && _headerCount>=_maxHeaderCount)
+      { 
+        throw new RequestHeadException
+          (RequestHeadException.COUNT,431,"Request Header Fields Too Large");
+      }
+      addOffsets(start,nameEnd,valueStart,valueEnd);
+    }
+  }
+
+  /**
+   * Add a header that was not sent as a header line (eg. the Host from an
+   *   absolute request URI)
+   */
+  void addHeader(String name,String value)
+  {
+    byte[] nameBytes=name.getBytes(StandardCharsets.ISO_8859_1);
+    byte[] valueBytes=value.getBytes(StandardCharsets.ISO_8859_1);
+    ensureCapacity(_length+nameBytes.length+valueBytes.length);
+
+    int nameStart=_length;
+    System.arraycopy(nameBytes,0,_buf,_length,nameBytes.length);
+    _length+=nameBytes.length;
+    int valueStart=_length;
+    System.arraycopy(valueBytes,0,_buf,_length,valueBytes.length);
+    _length+=valueBytes.length;
+
+    addOffsets(nameStart,valueStart,valueStart,_length);
+    int index=_headerCount-1;
+    _names[index]=name;
+    _nameGeneration[index]=generation();
+    _values[index]=value;
+    _valueGeneration[index]=generation();
+  }
+
+  /**
+   * <p>Add a trailer field received after a chunked request body.
+   *   Trailers count towards the same size and header count limits as
+   *   the header block.
+   * </p>
+   */
+  void addTrailer(String name,String value)
+    throws RequestHeadException
+  {
+    if (_maxHeaderCount>0 && _headerCount>=_maxHeaderCount)
+    { 
+      throw new RequestHeadException
+        (RequestHeadException.COUNT,431,"Request Header Fields Too Large");
+    }
+    if (_maxSize>0 && _length+name.length()+value.length()>_maxSize)
+    { 
+      throw new RequestHeadException
+        (RequestHeadException.SIZE,431,"Request Header Fields Too Large");
+    }
+    addHeader(name,value);
+  }
+
+  String getRequestLine()
+  {
+    if (_requestLine==null)
+    { _requestLine=string(0,_lineEnd);
+    }
+    return _requestLine;
+  }
+
+  String getMethod()
+  {
+    if (_method==null)
+    { _method=string(_methodStart,_methodEnd,COMMON_METHODS);
+    }
+    return _method;
+  }
+
+  /**
+   * The request URI, including any query string, as sent by the client
+   */
+  String getURI()
+  {
+    if (_uri==null)
+    { _uri=string(_uriStart,_uriEnd);
+    }
+    return _uri;
+  }
+
+  /**
+   * Whether the request URI starts with the specified prefix, ignoring
+   *   case
+   */
+  boolean uriStartsWith(String prefix)
+  { return regionMatches(_uriStart,_uriEnd,prefix);
+  }
+
+  /**
+   * The protocol, or null if the request line did not specify one
+   */
+  String getProtocol()
+  {
+    if (_protocol==null && _protocolEnd>_protocolStart)
+    { _protocol=string(_protocolStart,_protocolEnd,COMMON_PROTOCOLS);
+    }
+    return _protocol;
+  }
+
+  int getHeaderCount()
+  { return _headerCount;
+  }
+
+  String getHeaderName(int index)
+  {
+    if (_nameGeneration[index]!=generation())
+    { 
+      _names[index]=string(_offsets[index*4],_offsets[index*4+1]);
+      _nameGeneration[index]=generation();
+    }
+    return _names[index];
+  }
+
+  String getHeaderValue(int index)
+  {
+    if (_valueGeneration[index]!=generation())
+    { 
+      _values[index]=string(_offsets[index*4+2],_offsets[index*4+3]);
+      _valueGeneration[index]=generation();
+    }
+    return _values[index];
+  }
+
+  /**
+   * The index of the first header with the specified name (ignoring case),
+   *   or -1 if there is none.
+   */
+  int firstHeader(String name)
+  { return first(name);
+  }
+
+  /**
+   * The index of the first header in a well-known slot (see HeaderTable),
+   *   or -1 if there is none.
+   */
+  int firstHeader(int slot)
+  { return first(slot);
+  }
+
+  /**
+   * The index of the next header with the same name as the specified
+   *   header, or -1 if there is none.
+   */
+  int nextHeader(int index)
+  { return next(index);
+  }
+
+  /**
+   * The value of the first header with the specified name, or null
+   */
+  String getHeader(String name)
+  {
+    int index=first(name);
+    return index>=0?getHeaderValue(index):null;
+  }
+
+  /**
+   * The value of the first header in a well-known slot, or null
+   */
+  String getHeader(int slot)
+  {
+    int index=first(slot);
+    return index>=0?getHeaderValue(index):null;
+  }
+
+  /**
+   * <p>Find the value of a cookie by scanning the Cookie headers directly,
+   *   without parsing the other cookies. Names are compared ignoring case,
+   *   and the last cookie with the name is used, as CookieParser does.
+   * </p>
+   *
+   * @return The cookie value, or null if there is no such cookie
+   */
+  String getCookieValue(String name)
+  {
+    String ret=null;
+    for (int index=first(COOKIE);index>=0;index=next(index))
+    {
+      int pos=_offsets[index*4+2];
+      int end=_offsets[index*4+3];
+      while (pos<end)
+      {
+        while (pos<end && (_buf[pos]==' ' || _buf[pos]=='\t'))
+        { pos++;
+        }
+        int nameStart=pos;
+        int eq=-1;
+        while (pos<end && _buf[pos]!=';')
+        {
+          if (eq<0 && _buf[pos]=='=')
+          { eq=pos;
+          }
+          pos++;
+        }
+
+        if (eq>nameStart)
+        {
+          int nameEnd=eq;
+          while (nameEnd>nameStart && _buf[nameEnd-1]==' ')
+          { nameEnd--;
+          }
+          if (nameEnd-nameStart==name.length()
+              && regionMatches(nameStart,nameEnd,name)
+              )
+          {
+            int valueStart=eq+1;
+            int valueEnd=pos;
+            while (valueStart<valueEnd && _buf[valueStart]==' ')
+            { valueStart++;
+            }
+            while (valueEnd>valueStart && _buf[valueEnd-1]==' ')
+            { valueEnd--;
+            }
+            if (valueEnd-valueStart>=2
+                && _buf[valueStart]=='"'
+                && _buf[valueEnd-1]=='"'
+                )
+            { 
+              valueStart++;
+              valueEnd--;
+            }
+            ret=string(valueStart,valueEnd);
+          }
+        }
+        pos++;
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  protected int nameHash(int entry)
+  {
+    int hash=0;
+    for (int i=_offsets[entry*4];i<_offsets[entry*4+1];i++)
+    { hash=hash(hash,_buf[i] & 0xFF);
+    }
+    return hash;
+  }
+
+  @Override
+  protected boolean nameEquals(int entry,String name)
+  {
+    int start=_offsets[entry*4];
+    int end=_offsets[entry*4+1];
+    return end-start==name.length() && regionMatches(start,end,name);
+  }
+
+  @Override
+  protected boolean nameEquals(int entry,int otherEntry)
+  {
+    int start=_offsets[entry*4];
+    int len=_offsets[entry*4+1]-start;
+    int otherStart=_offsets[otherEntry*4];
+    if (_offsets[otherEntry*4+1]-otherStart!=len)
+    { return false;
+    }
+    for (int i=0;i<len;i++)
+    {
+      int a=_buf[start+i];
+      int b=_buf[otherStart+i];
+      if (a!=b)
+      {
+        if (a>='A' && a<='Z')
+        { a+=32;
+        }
+        if (b>='A' && b<='Z')
+        { b+=32;
+        }
+        if (a!=b)
+        { return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * <p>Read a line into the buffer, growing the buffer as needed.
+   * </p>
+   *
+   * @return The end of the line content, excluding the CRLF (or bare LF),
+   *   or -1 if the stream ended before any data was read.
+   */
+  private int readLine(ServerInputStream in)
+    throws IOException
+  {
+    int start=_length;
+    while (true)
+    {
+      if (_length==_buf.length)
+      { ensureCapacity(_length+1);
+      }
+
+      int len=_buf.length-_length;
+      if (_maxSize>0)
+      { 
+        // Read no more than one byte past the limit
+        len=Math.min(len,_maxSize+1-_length);
+      }
+      int count=in.readLine(_buf,_length,len);
+      if (count==-1)
+      {
+        if (_length==start)
+        { return -1;
+        }
+        throw new IOException("Connection closed in middle of request head");
+      }
+      _length+=count;
+      if (_maxSize>0 && _length>_maxSize)
+      {
+        if (start==0)
+        { 
+          throw new RequestHeadException
+            (RequestHeadException.SIZE,414,"Request-URI Too Long");
+        }
+        throw new RequestHeadException
+          (RequestHeadException.SIZE,431,"Request Header Fields Too Large");
+      }
+
+      if (_buf[_length-1]=='\n')
+      {
+        int end=_length-1;
+        if (end>start && _buf[end-1]=='\r')
+        { end--;
+        }
+        return end;
+      }
+    }
+  }
+
+  private void ensureCapacity(int capacity)
+  {
+    if (capacity>_buf.length)
+    {
+      byte[] buf=new byte[Math.max(capacity,_buf.length*2)];
+      System.arraycopy(_buf,0,buf,0,_length);
+      _buf=buf;
+    }
+  }
+
+  private void addOffsets(int nameStart,int nameEnd,int valueStart,int valueEnd)
+  {
+    if (_headerCount==_names.length)
+    {
+      int[] offsets=new int[_offsets.length*2];
+      System.arraycopy(_offsets,0,offsets,0,_offsets.length);
+      _offsets=offsets;
+      String[] names=new String[_names.length*2];
+      System.arraycopy(_names,0,names,0,_names.length);
+      _names=names;
+      String[] values=new String[_values.length*2];
+      System.arraycopy(_values,0,values,0,_values.length);
+      _values=values;
+      _nameGeneration=grow(_nameGeneration,_names.length);
+      _valueGeneration=grow(_valueGeneration,_names.length);
+    }
+    int base=_headerCount*4;
+    _offsets[base]=nameStart;
+    _offsets[base+1]=nameEnd;
+    _offsets[base+2]=valueStart;
+    _offsets[base+3]=valueEnd;
+    _headerCount++;
+    index(_headerCount-1);
+  }
+
+  private int skipSpaces(int pos,int end)
+  {
+    while (pos<end && _buf[pos]==' ')
+    { pos++;
+    }
+    return pos;
+  }
+
+  private int nextSpace(int pos,int end)
+  {
+    while (pos<end && _buf[pos]!=' ')
+    { pos++;
+    }
+    return pos;
+  }
+
+  /**
+   * Whether the region starts with the ASCII string, ignoring case
+   */
+  private boolean regionMatches(int start,int end,String string)
+  {
+    int len=string.length();
+    if (end-start<len)
+    { return false;
+    }
+    for (int i=0;i<len;i++)
+    {
+      int a=_buf[start+i];
+      int b=string.charAt(i);
+      if (a!=b)
+      {
+        if (a>='A' && a<='Z')
+        { a+=32;
+        }
+        if (b>='A' && b<='Z')
+        { b+=32;
+        }
+        if (a!=b)
+        { return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private String string(int start,int end)
+  { return new String(_buf,start,end-start,StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Return a constant String if the region matches one exactly
+   */
+  private String string(int start,int end,String[] constants)
+  {
+    for (String constant: constants)
+    {
+      if (constant.length()==end-start)
+      {
+        boolean match=true;
+        for (int i=0;i<end-start;i++)
+        {
+          if (_buf[start+i]!=constant.charAt(i))
+          {
+            match=false;
+            break;
+          }
+        }
+        if (match)
+        { return constant;
+        }
+      }
+    }
+    return string(start,end);
+  }
+}
@@ -0,0 +1,67 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.io.IOException;
+
+/**
+ * <p>Thrown when a request line and headers violate the server's limits.
+ *   The connection is answered with the status code and closed.
+ * </p>
+ */
+class RequestHeadException
+  extends IOException
+{
+  private static final long serialVersionUID=1L;
+
+  /**
+   * The request line and headers were not received before the deadline
+   */
+  static final int TIMEOUT=0;
+
+  /**
+   * The request line or header block exceeded the maximum size
+   */
+  static final int SIZE=1;
+
+  /**
+   * The number of headers exceeded the maximum
+   */
+  static final int COUNT=2;
+
+  private final int violation;
+  private final int status;
+  private final String reason;
+
+  RequestHeadException(int violation,int status,String reason)
+  {
+    super(status+" "+reason);
+    this.violation=violation;
+    this.status=status;
+    this.reason=reason;
+  }
+
+  int getViolation()
+  { return violation;
+  }
+
+  int getStatus()
+  { return status;
+  }
+
+  String getReason()
+  { return reason;
+  }
+}
@@ -0,0 +1,157 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+/**
+ * <p>The headers of a response, in the order they were added.
+ * </p>
+ *
+ * <p>Header names are matched ignoring case. Replaced or removed headers
+ *   are marked as removed in place, and are skipped when iterating
+ *   (see getCount(), isRemoved(), getName() and getValue()).
+ * </p>
+ */
+final class ResponseHeaders
+  extends HeaderTable
+{
+  private static final int INITIAL_HEADERS=16;
+
+  private String[] _names=new String[INITIAL_HEADERS];
+  private String[] _values=new String[INITIAL_HEADERS];
+  private int[] _hashes=new int[INITIAL_HEADERS];
+  private int[] _slots=new int[INITIAL_HEADERS];
+  private boolean[] _removed=new boolean[INITIAL_HEADERS];
+  private int _count;
+
+  void clear()
+  {
+    for (int i=0;i<_count;i++)
+    {
+      _names[i]=null;
+      _values[i]=null;
+    }
+    _count=0;
+    clearIndex();
+  }
+
+  /**
+   * The number of entries, including removed entries
+   */
+  int getCount()
+  { return _count;
+  }
+
+  boolean isRemoved(int index)
+  { return _removed[index];
+  }
+
+  String getName(int index)
+  { return _names[index];
+  }
+
+  String getValue(int index)
+  { return _values[index];
+  }
+
+  /**
+   * The well-known slot of the header name (see HeaderTable), or -1
+   */
+  int getSlot(int index)
+  { return _slots[index];
+  }
+
+  void add(String name,String value)
+  {
+    if (_count==_names.length)
+    { grow();
+    }
+    _names[_count]=name;
+    _values[_count]=value;
+    _hashes[_count]=hash(name);
+    _removed[_count]=false;
+    _count++;
+    _slots[_count-1]=index(_count-1);
+  }
+
+  /**
+   * Replace all headers with the specified name
+   */
+  void set(String name,String value)
+  {
+    remove(name);
+    add(name,value);
+  }
+
+  void remove(String name)
+  {
+    for (int i=detach(name);i>=0;i=next(i))
+    { _removed[i]=true;
+    }
+  }
+
+  boolean contains(String name)
+  { return first(name)>=0;
+  }
+
+  /**
+   * The value of the first header with the specified name, or null
+   */
+  String get(String name)
+  {
+    int index=first(name);
+    return index>=0?_values[index]:null;
+  }
+
+  /**
+   * The value of the first header in a well-known slot (see HeaderTable),
+   *   or null
+   */
+  String get(int slot)
+  {
+    int index=first(slot);
+    return index>=0?_values[index]:null;
+  }
+
+  @Override
+  protected int nameHash(int entry)
+  { return _hashes[entry];
+  }
+
+  @Override
+  protected boolean nameEquals(int entry,String name)
+  { return _names[entry].equalsIgnoreCase(name);
+  }
+
+  @Override
+  protected boolean nameEquals(int entry,int otherEntry)
+  { return _names[entry].equalsIgnoreCase(_names[otherEntry]);
+  }
+
+  private void grow()
+  {
+    int size=_names.length*2;
+    String[] names=new String[size];
+    System.arraycopy(_names,0,names,0,_count);
+    _names=names;
+    String[] values=new String[size];
+    System.arraycopy(_values,0,values,0,_count);
+    _values=values;
+    _hashes=grow(_hashes,size);
+    _slots=grow(_slots,size);
+    boolean[] removed=new boolean[size];
+    System.arraycopy(_removed,0,removed,0,_count);
+    _removed=removed;
+  }
+}
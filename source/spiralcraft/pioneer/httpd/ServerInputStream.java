@@ -17,37 +17,73 @@ package spiralcraft.pioneer.httpd;
 
 import java.io.InputStream;
 import java.io.IOException;
-import java.io.BufferedInputStream;
 import java.io.OutputStream;
 
-import spiralcraft.vfs.StreamUtil;
-import spiralcraft.io.NullOutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
 import spiralcraft.log.ClassLog;
 
 import javax.servlet.ServletInputStream;
 
 /**
- * Implementation of the abstract ServerInputStream
+ * <p>Buffered input from a connection.
+ * </p>
+ *
+ * <p>The buffer is owned by this stream and re-used for each request on
+ *   a connection. Bytes which arrive ahead of the current request (eg.
+ *   a pipelined request) remain buffered for the next one. The buffer is
+ *   tied to the connection's Socket rather than to its InputStream, since
+ *   a channel based Socket returns a new InputStream from each call to
+ *   getInputStream(), and is discarded by release() when the connection
+ *   ends.
+ * </p>
+ *
+ * <p>A deadline can be set for reading the request line and headers, so
+ *   a client that sends them slowly cannot hold the connection
+ *   indefinitely. The deadline starts when the first byte of the request
+ *   arrives, so an idle keep-alive connection is still governed by the
+ *   socket timeout alone.
+ * </p>
+ *
+ * <p>When a trace stream is set, each block of data read from the
+ *   connection is copied to it as the buffer is filled.
+ * </p>
  */
 public final class ServerInputStream
   extends ServletInputStream
 {
   private static final ClassLog log
     =ClassLog.getInstance(ServerInputStream.class);
-//  private final HttpServer server;
   
+  private static final byte[] EOS="[EOS]".getBytes();
+  
+  private Socket _socket;
   private InputStream _in;
 
+  private byte[] _buf;
+  private int _pos;
+  private int _limit;
+  
   private byte[] _byteBuffer=new byte[256];
   private char[] _charBuffer=new char[256];
   private int _count=0; 
   private OutputStream _trace;
+  private HttpServerResponse _continueResponse;
+  private Socket _deadlineSocket;
+  private int _deadlineMillis;
+  private int _socketTimeout;
+  private long _deadline;
   private final boolean debugIO;
    
   public ServerInputStream(DebugSettings debugSettings)
+  { this(debugSettings,8192);
+  }
+
+  public ServerInputStream(DebugSettings debugSettings,int bufferSize)
   { 
-//  this.server=server;
     this.debugIO=debugSettings.getDebugIO();
+    _buf=new byte[bufferSize];
   }
 
   public void setTraceStream(OutputStream traceStream)
@@ -63,10 +99,146 @@ public final class ServerInputStream
   { _count=0;
   }
 
+  /**
+   * Start reading a request from the specified connection. Data already
+   *   buffered from the same connection is retained. The connection's
+   *   InputStream is obtained once, when the connection is first started.
+   */
+  public void start(Socket socket)
+    throws IOException
+  {
+    if (socket!=_socket || _in==null)
+    {
+      _in=socket.getInputStream();
+      _socket=socket;
+      _pos=0;
+      _limit=0;
+    }
+    begin();
+  }
+
+  /**
+   * Start reading a request from the specified stream, which is not
+   *   associated with a Socket. Data already buffered from the same stream
+   *   is retained.
+   */
   public void start(InputStream in)
   { 
-    _in=new BufferedInputStream(in,8192);
+    if (in!=_in || _socket!=null)
+    { 
+      _in=in;
+      _socket=null;
+      _pos=0;
+      _limit=0;
+    }
+    begin();
+  }
+
+  private void begin()
+  {
     _count=0;
+    _continueResponse=null;
+    _deadlineSocket=null;
+    _deadline=0;
+  }
+
+  /**
+   * <p>Send a "100 Continue" interim response through the specified
+   *   response before the connection is next read, ie. the first time the
+   *   request body is read beyond what has already been received.
+   * </p>
+   */
+  void expectContinue(HttpServerResponse response)
+  { _continueResponse=response;
+  }
+
+  /**
+   * Whether a "100 Continue" is waiting to be sent
+   */
+  boolean isContinuePending()
+  { return _continueResponse!=null;
+  }
+
+  /**
+   * Don't send a pending "100 Continue"
+   */
+  void cancelContinue()
+  { _continueResponse=null;
+  }
+
+  /**
+   * <p>Start a deadline for reading the request line and headers from
+   *   the specified socket. The deadline is measured from the arrival of
+   *   the first byte, or from now if data is already buffered.
+   * </p>
+   *
+   * <p>When the deadline passes, a read throws a RequestHeadException.
+   * </p>
+   *
+   * @param millis The time allowed, or 0 for no deadline
+   */
+  void startDeadline(Socket socket,int millis)
+    throws IOException
+  {
+    if (millis<=0)
+    { return;
+    }
+    _deadlineSocket=socket;
+    _deadlineMillis=millis;
+    _socketTimeout=socket.getSoTimeout();
+    _deadline=_pos<_limit?System.currentTimeMillis()+millis:0;
+  }
+
+  /**
+   * End the deadline and restore the socket timeout
+   */
+  void endDeadline()
+    throws IOException
+  {
+    if (_deadlineSocket!=null)
+    {
+      Socket socket=_deadlineSocket;
+      _deadlineSocket=null;
+      _deadline=0;
+      if (!socket.isClosed())
+      { socket.setSoTimeout(_socketTimeout);
+      }
+    }
+  }
+
+  /**
+   * Release the connection stream and discard any buffered data. Called
+   *   when the connection ends.
+   */
+  public void release()
+  {
+    _in=null;
+    _socket=null;
+    _deadlineSocket=null;
+    _pos=0;
+    _limit=0;
+  }
+
+  /**
+   * Indicate whether input is available without blocking, either
+   *   already buffered or waiting in the socket
+   */
+  public boolean isInputAvailable()
+    throws IOException
+  { return _pos<_limit || (_in!=null && _in.available()>0);
+  }
+
+  /**
+   * The number of bytes that are buffered
+   */
+  public int getBuffered()
+  { return _limit-_pos;
+  }
+
+  @Override
+  public int available()
+    throws IOException
+  { return (_limit-_pos)+(_in!=null?_in.available():0);
   }
 
   /**
@@ -74,74 +246,223 @@ public final class ServerInputStream
    */
   public void discard(int bytes)
     throws IOException
-  { StreamUtil.copyRaw(_in,new NullOutputStream(),16384,bytes);
+  { 
+    long remaining=bytes;
+    while (remaining>0)
+    {
+      long skipped=skip(remaining);
+      if (skipped<=0)
+      { break;
+      }
+      remaining-=skipped;
+    }
   }
 
   @Override
-  public final int read()
+  public final long skip(long n)
     throws IOException
   {
-    final int val=_in.read();
-    if (val>-1)
-    { 
-      _count++;
-      if (_trace!=null)
-      { 
-        _trace.write(val);
-        _trace.flush();
-      }
+    if (n<=0)
+    { return 0;
+    }
+    if (_pos==_limit && fill()<0)
+    { return 0;
+    }
+    int skipped=(int) Math.min(n,_limit-_pos);
+    _pos+=skipped;
+    _count+=skipped;
+    return skipped;
+  }
 
+  @Override
+  public final int read()
+    throws IOException
+  {
+    if (_pos==_limit && fill()<0)
+    { return -1;
     }
-    return val;
+    _count++;
+    return _buf[_pos++] & 0xFF;
   }
 
   @Override
   public final int read(byte[] b,int start,int len)
     throws IOException
   {
-    final int count=_in.read(b,start,len);
-    if (_count>-1)
-    { _count+=count;
+    if (len==0)
+    { return 0;
     }
     
-    if (_trace!=null)
-    { 
-      if (start>-1 && start<b.length && start+count<=b.length)
+    if (_pos==_limit)
+    {
+      if (len>=_buf.length)
       { 
-        _trace.write(b,start,count);
-      }
-      else if (count==-1)
-      { _trace.write("[EOS]".getBytes());
+        // Large reads bypass the buffer
+        sendContinue();
+        int count=_in.read(b,start,len);
+        trace(b,start,count);
+        if (count>0)
+        { _count+=count;
+        }
+        return count;
       }
-      else 
-      { 
-        _trace.write
-          (("Index? b.length="+b.length+", start="+start+", count="+count)
-            .getBytes()
-          );
+      
+      if (fill()<0)
+      { return -1;
       }
-      _trace.flush();
     }
+    
+    int count=Math.min(len,_limit-_pos);
+    System.arraycopy(_buf,_pos,b,start,count);
+    _pos+=count;
+    _count+=count;
     return count;
   }
 
+  /**
+   * <p>Read up to and including the next LF, or until len bytes have been
+   *   read.
+   * </p>
+   *
+   * <p>The buffer is scanned for the line terminator directly, and the
+   *   line is copied in bulk.
+   * </p>
+   *
+   * @return The number of bytes read, or -1 if the stream ended before
+   *   any bytes were read.
+   */
   @Override
   public final int readLine(final byte[] bytes,final int start,final int len)
     throws IOException
   {
-    for (int i=0;i<len;i++)
-    { 
-      final int b=read();
-      if (b==-1)
-      { return -1;
+    int read=0;
+    while (read<len)
+    {
+      if (_pos==_limit && fill()<0)
+      { return read==0?-1:read;
       }
-      bytes[start+i]=(byte) b;
       
-      if (b=='\n')
-      { return i+1;
+      int max=Math.min(_limit,_pos+len-read);
+      int lf=indexOf('\n',_pos,max);
+      int end=lf>=0?lf+1:max;
+      int count=end-_pos;
+      System.arraycopy(_buf,_pos,bytes,start+read,count);
+      _pos=end;
+      _count+=count;
+      read+=count;
+      if (lf>=0)
+      { break;
+      }
+    }
+    return read;
+  }
+
+  private int indexOf(int b,int from,int to)
+  {
+    final byte[] buf=_buf;
+    for (int i=from;i<to;i++)
+    {
+      if (buf[i]==b)
+      { return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Read the next block of data from the connection into the buffer, which
+   *   must be empty
+   *
+   * @return The number of bytes read, or -1 at the end of the stream
+   */
+  private int fill()
+    throws IOException
+  {
+    _pos=0;
+    _limit=0;
+    sendContinue();
+    if (_deadlineSocket!=null)
+    { return fillBeforeDeadline();
+    }
+    int count=_in.read(_buf,0,_buf.length);
+    trace(_buf,0,count);
+    if (count>0)
+    { _limit=count;
+    }
+    return count;
+  }
+
+  /**
+   * Fill the buffer while a deadline is in effect, limiting the socket
+   *   timeout to the time remaining
+   */
+  private int fillBeforeDeadline()
+    throws IOException
+  {
+    if (_deadline>0)
+    {
+      long remaining=_deadline-System.currentTimeMillis();
+      if (remaining<=0)
+      { throw timeout();
+      }
+      if (_socketTimeout>0 && _socketTimeout<remaining)
+      { remaining=_socketTimeout;
+      }
+      _deadlineSocket.setSoTimeout((int) remaining);
+    }
+
+    int count;
+    try
+    { count=_in.read(_buf,0,_buf.length);
+    }
+    catch (SocketTimeoutException x)
+    {
+      if (_deadline>0 && System.currentTimeMillis()>=_deadline)
+      { throw timeout();
+      }
+      throw x;
+    }
+    trace(_buf,0,count);
+    if (count>0)
+    { 
+      _limit=count;
+      if (_deadline==0)
+      { _deadline=System.currentTimeMillis()+_deadlineMillis;
+      }
+    }
+    return count;
+  }
+
+  private RequestHeadException timeout()
+  { 
+    return new RequestHeadException
+      (RequestHeadException.TIMEOUT,408,"Request Timeout");
+  }
+
+  private void sendContinue()
+    throws IOException
+  {
+    if (_continueResponse!=null)
+    {
+      HttpServerResponse response=_continueResponse;
+      _continueResponse=null;
+      response.sendContinue();
+    }
+  }
+
+  private void trace(byte[] b,int start,int count)
+    throws IOException
+  {
+    if (_trace!=null)
+    {
+      if (count>0)
+      { _trace.write(b,start,count);
+      }
+      else if (count==-1)
+      { _trace.write(EOS);
       }
+      _trace.flush();
     }
-    return len;
   }
 
   /**
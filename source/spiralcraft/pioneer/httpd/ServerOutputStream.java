@@ -19,21 +19,44 @@ package spiralcraft.pioneer.httpd;
 
 import javax.servlet.ServletOutputStream;
 
+import java.io.EOFException;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.io.IOException;
 
-import spiralcraft.util.ByteBuffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 import spiralcraft.log.ClassLog;
 import spiralcraft.log.Level;
 
-import spiralcraft.util.string.StringUtil;
-
 import spiralcraft.pioneer.io.Governer;
 import spiralcraft.pioneer.net.ServerSocketFactory;
 import spiralcraft.pioneer.io.GovernedOutputStream;
 
+/**
+ * <p>Buffered output to a connection.
+ * </p>
+ *
+ * <p>When compression is started for a response (see startCompression()),
+ *   content passes through a Deflater as it leaves the buffer. Compressed
+ *   output is flushed when the servlet flushes, and otherwise as the
+ *   Deflater produces it.
+ * </p>
+ *
+ * <p>Output is assembled as a list of segments (eg. the headers, a chunk
+ *   size line, the content and the chunk terminator) which are written to
+ *   the client together, without copying them into an intermediate
+ *   buffer. Where the socket has a channel, the segments are written with
+ *   a single gathering write. Otherwise they are written to the socket
+ *   stream in sequence and flushed once.
+ * </p>
+ */
 public class ServerOutputStream
   extends ServletOutputStream
 {
@@ -41,16 +64,32 @@ public class ServerOutputStream
     =ClassLog.getInstance(ServerOutputStream.class);
 
   public final static byte[] END_CHUNK="0\r\n\r\n".getBytes();
+  private final static byte[] CONTINUE="HTTP/1.1 100 Continue\r\n\r\n".getBytes();
 
   private OutputStream _out;
+  private SocketChannel _channel;
   private OutputStream _trace;
   private boolean _chunking;
-  private final ByteBuffer _buffer;
-  private final ByteBuffer _chunkBuffer;
+  private byte[] _buffer;
+  private int _bufferLength;
+  private byte[] _head;
+  private int _headLength;
   private boolean _prepared=false;
+  private boolean _writingHead;
+  private boolean _deferCommit;
   private HttpServerResponse _response;
   private static final byte[] CRLF="\r\n".getBytes();
-  private int _count=0;
+  private static final byte[] HEX_DIGITS="0123456789abcdef".getBytes();
+  private static final byte[] GZIP_HEADER
+    ={0x1f,(byte) 0x8b,Deflater.DEFLATED,0,0,0,0,0,0,(byte) 0xff};
+  
+  // Flush mode that finishes the compressed stream
+  private static final int FINISH=-1;
+
+  // The most content compressed between writes to the client
+  private static final int DEFLATE_SLICE=16*1024;
+
+  private long _count=0;
   private boolean _buffering=true;
   private int maxWriteSize=Integer.MAX_VALUE;
                                       
@@ -60,11 +99,38 @@ public class ServerOutputStream
   private boolean _closeRequested;
   private HttpServer server;
   
+  // Output held back while pipelined requests are being served
+  private byte[] _pending;
+  private int _pendingLength;
+  private boolean _deferFlush;
+  private int _maxPendingSize=64*1024;
+
+  // Segments to be written to the client by the next writeSegments()
+  //   (at most the headers and two chunks of 3 segments each)
+  private final byte[][] _segments=new byte[8][];
+  private final int[] _segmentStarts=new int[8];
+  private final int[] _segmentLengths=new int[8];
+  private int _segmentCount;
+  private final ByteBuffer[] _gather=new ByteBuffer[9];
+  
+  // Chunk size lines- up to 8 hex digits and a CRLF
+  private final byte[][] _chunkSizes=new byte[2][10];
+  private int _chunkCount;
+  
+  // Compression stage
+  private Deflater _deflater;
+  private boolean _gzip;
+  private boolean _deflaterDirty;
+  private final CRC32 _crc=new CRC32();
+  private byte[] _deflated;
+  private int _deflatedLength;
+  private int _deflatedQueued;
+  
   public ServerOutputStream(HttpServerResponse resp,int initialBufferCapacity)
   {
     _response=resp;
-    _buffer=new ByteBuffer(initialBufferCapacity);
-    _chunkBuffer=new ByteBuffer(initialBufferCapacity);
+    _buffer=new byte[initialBufferCapacity];
+    _head=new byte[1024];
   }
 
   public void setDebugSettings(DebugSettings debugSettings)
@@ -84,14 +150,24 @@ public class ServerOutputStream
   {
     this.maxWriteSize=factory.getMaxOutputFragmentLength(socket);
     this._out=socket.getOutputStream();
+    // Gathering writes are used only where blocks don't need to be limited
+    //   to a maximum fragment length (ie. not TLS)
+    this._channel
+      =maxWriteSize==Integer.MAX_VALUE?socket.getChannel():null;
     this._chunking=false;
-    this._buffer.clear();
-    this._chunkBuffer.clear();
+    this._bufferLength=0;
+    this._headLength=0;
+    this._segmentCount=0;
+    this._chunkCount=0;
+    endCompression();
     this._prepared=false;
+    this._writingHead=false;
+    this._deferCommit=false;
     this._count=0;
     this._buffering=true;
     this._committed=false;
     this._closeRequested=false;
+    this._deferFlush=false;
   }
 
   public void resetBuffer()
@@ -100,7 +176,8 @@ public class ServerOutputStream
     { throw new IllegalStateException("Response already committed");
     }
     
-    _buffer.clear();
+    _bufferLength=0;
+    _headLength=0;
     _prepared=false;
     _count=0;
     
@@ -115,8 +192,90 @@ public class ServerOutputStream
   } 
   
 
+  /**
+   * <p>When set, flush() does not commit the response if the headers have
+   *   not been sent, so the content flushed from a Writer while the
+   *   response is being finished remains buffered and its length can be
+   *   sent as the Content-Length.
+   * </p>
+   */
+  void setDeferCommit(boolean deferCommit)
+  { _deferCommit=deferCommit;
+  }
+
+  /**
+   * Whether the headers have been generated, which happens when buffered
+   *   content is first written to the client
+   */
+  boolean isPrepared()
+  { return _prepared;
+  }
+
+  /**
+   * The number of bytes of content in the buffer
+   */
+  int getBufferedLength()
+  { return _bufferLength;
+  }
+
+  /**
+   * <p>Hold output in the connection's pending buffer instead of writing it
+   *   to the socket, so the responses to several pipelined requests can be
+   *   sent with a single write. Output is written when flushPending() is
+   *   called, or when the pending buffer is full.
+   * </p>
+   */
+  void setDeferFlush(boolean deferFlush)
+  { _deferFlush=deferFlush;
+  }
+
+  /**
+   * The maximum number of bytes held back for pipelined responses
+   */
+  public void setMaxPendingSize(int bytes)
+  { _maxPendingSize=bytes;
+  }
+
+  /**
+   * Write any output held back for pipelined responses to the socket
+   */
+  void flushPending()
+    throws IOException
+  {
+    if (_pendingLength>0)
+    {
+      if (debugSettings.getDebugProtocol())
+      { log.fine("Writing "+_pendingLength+" pending bytes");
+      }
+      writeSegments();
+    }
+  }
+
+  /**
+   * Write a "100 Continue" interim response, which does not commit the
+   *   response
+   */
+  void sendContinue()
+    throws IOException
+  {
+    if (debugSettings.getDebugProtocol())
+    { log.fine("Sending 100 Continue");
+    }
+    flushPending();
+    writeBlocks(CONTINUE,0,CONTINUE.length);
+    _out.flush();
+    if (_trace!=null)
+    {
+      _trace.write(CONTINUE);
+      _trace.flush();
+    }
+  }
+
   public void setGoverner(Governer governer)
-  { _out=new GovernedOutputStream(_out,governer);
+  { 
+    _out=new GovernedOutputStream(_out,governer);
+    // All output must pass through the governer
+    _channel=null;
   }
 
   /**
@@ -154,46 +313,26 @@ public class ServerOutputStream
   public final void write(final byte[] data,final int start,final int len)
     throws IOException
   { 
+    if (_writingHead)
+    { 
+      // Headers are held separately from the content, which may already
+      //   be buffered
+      ensureHeadCapacity(len);
+      System.arraycopy(data,start,_head,_headLength,len);
+      _headLength+=len;
+      return;
+    }
+    
     if (debugSettings.getDebugProtocol())
     { log.fine("Accepting output: "+len+" bytes");
     }
     
-    if (!_prepared)
-    {
-      if (debugSettings.getDebugProtocol())
-      { log.fine("Inserting headers before appending content");
-      }
-      prepare();
-      if (debugSettings.getDebugProtocol())
-      { log.fine("Finished inserting headers");
-      }
-    }
     if (!_buffering)
     {
-      if (!_chunking)
-      { 
-        if (debugSettings.getDebugProtocol())
-        { log.fine("Not buffered, not chunked");
-        }
-        writeToClient(data,start,len);
-      }
-      else
-      {
-        if (debugSettings.getDebugProtocol())
-        { log.fine("Not buffered, chunked");
-        }
-        
-        _chunkBuffer.clear();
-        final byte[] sizeBytes
-          =StringUtil.asciiBytes
-            (Integer.toString(len,16)
-            );
-        _chunkBuffer.append(sizeBytes);
-        _chunkBuffer.append(CRLF);
-        _chunkBuffer.append(data);
-        _chunkBuffer.append(CRLF);
-        writeToClient(_chunkBuffer.toByteArray());
+      if (debugSettings.getDebugProtocol())
+      { log.fine("Not buffered, chunked="+_chunking);
       }
+      writeThrough(data,start,len);
     }
     else
     { 
@@ -205,23 +344,20 @@ public class ServerOutputStream
           { log.fine("Output exceeds total buffer size");
           }
           
-          if (_buffer.length()>0)
-          { flush();
-          }
-          writeToClient(data,start,len);
+          writeThrough(data,start,len);
         }
-        else if (len+_buffer.length()>_bufferSize)
+        else if (len+_bufferLength>_bufferSize)
         { 
           if (debugSettings.getDebugProtocol())
           { log.fine("Pre-flushing buffer to make room");
           }
           
-          flush();
+          flushBuffer(Deflater.NO_FLUSH);
 
           if (debugSettings.getDebugProtocol())
           { log.fine("Buffering "+len+" bytes");
           }
-          _buffer.append(data,start,len);
+          buffer(data,start,len);
         }
         else
         { 
@@ -229,7 +365,7 @@ public class ServerOutputStream
           { log.fine("Buffering "+len+" bytes");
           }
 
-          _buffer.append(data,start,len);
+          buffer(data,start,len);
         }
       }
       else
@@ -237,23 +373,193 @@ public class ServerOutputStream
         if (debugSettings.getDebugProtocol())
         { log.fine("Infinite buffer");
         }
-        _buffer.append(data,start,len);
+        buffer(data,start,len);
       }
     }
     _count+=len;
   }
 
+  /**
+   * Write any buffered content, and the end chunk if the response is
+   *   chunked, in a single write
+   */
   void finish()
     throws IOException
   { 
-    flush();
+    prepare();
+    queueBuffered(FINISH);
     if (_chunking)
     {
       setChunking(false);
-      writeToClient(END_CHUNK);
+      queue(END_CHUNK,0,END_CHUNK.length);
+    }
+    try
+    { writeQueued();
+    }
+    finally
+    { endCompression();
+    }
+  }
+
+  /**
+   * <p>Whether content can be sent from a file straight to the socket with
+   *   transferFrom(), ie. the connection is not TLS, governed or traced
+   *   and the content is not compressed.
+   * </p>
+   */
+  boolean canTransfer()
+  { return _channel!=null && _deflater==null && _trace==null;
+  }
+
+  /**
+   * <p>Write a region of a file to the client with FileChannel.transferTo,
+   *   following the headers and any buffered content, so the content is
+   *   not copied through the heap.
+   * </p>
+   *
+   * <p>The response must have a Content-Length, and canTransfer() must be
+   *   true.
+   * </p>
+   */
+  void transferFrom(FileChannel file,long position,long count)
+    throws IOException
+  {
+    prepare();
+    if (_chunking)
+    { throw new IllegalStateException("Cannot transfer a chunked response");
+    }
+    queueBuffered(Deflater.NO_FLUSH);
+    
+    // Anything held back for a pipelined response must precede the file
+    _deferFlush=false;
+    writeQueued();
+    flushPending();
+    _committed=true;
+    
+    if (debugSettings.getDebugProtocol())
+    { log.fine("Transferring "+count+" bytes from file at "+position);
+    }
+    long end=position+count;
+    while (position<end)
+    {
+      long sent
+        =file.transferTo
+          (position,Math.min(end-position,Integer.MAX_VALUE),_channel);
+      if (sent==0 && position>=file.size())
+      { throw new EOFException("File truncated at "+position+" of "+end);
+      }
+      position+=sent;
+      _count+=sent;
+      server.wroteBytes((int) sent);
+    }
+  }
+
+  /**
+   * <p>Compress all content that follows the headers with a pooled
+   *   Deflater, until the response is finished.
+   * </p>
+   *
+   * @param gzip Whether to use the gzip format, as opposed to the zlib
+   *   format of the "deflate" content coding
+   * @param level The compression level
+   */
+  void startCompression(boolean gzip,int level)
+  {
+    endCompression();
+    _deflater=DeflaterPool.acquire(level,gzip);
+    _gzip=gzip;
+    _deflaterDirty=false;
+    _crc.reset();
+    if (_deflated==null)
+    { _deflated=new byte[8192];
+    }
+    _deflatedLength=0;
+    _deflatedQueued=0;
+    if (gzip)
+    { 
+      System.arraycopy(GZIP_HEADER,0,_deflated,0,GZIP_HEADER.length);
+      _deflatedLength=GZIP_HEADER.length;
+    }
+  }
+
+  boolean isCompressing()
+  { return _deflater!=null;
+  }
+
+  /**
+   * <p>Compress the buffered content of a response that has not been
+   *   prepared, if that makes it smaller.
+   * </p>
+   *
+   * @return Whether the buffer now contains the compressed content
+   */
+  boolean compressBuffer(boolean gzip,int level)
+  {
+    startCompression(gzip,level);
+    try
+    {
+      deflate(_buffer,0,_bufferLength,FINISH);
+      if (_deflatedLength<_bufferLength)
+      {
+        System.arraycopy(_deflated,0,_buffer,0,_deflatedLength);
+        _bufferLength=_deflatedLength;
+        return true;
+      }
+      return false;
+    }
+    finally
+    { 
+      endCompression();
+      _deflatedLength=0;
+      _deflatedQueued=0;
+    }
+  }
+
+  private void endCompression()
+  {
+    if (_deflater!=null)
+    {
+      DeflaterPool.release(_deflater,_gzip);
+      _deflater=null;
     }
   }
   
+  /**
+   * Append pre-encoded bytes to the response head
+   */
+  void writeHead(byte[] bytes)
+  { 
+    ensureHeadCapacity(bytes.length);
+    System.arraycopy(bytes,0,_head,_headLength,bytes.length);
+    _headLength+=bytes.length;
+  }
+
+  /**
+   * Append the low byte of each character of a String to the response
+   *   head, as write(String) does for content
+   */
+  void writeHeadAscii(String string)
+  {
+    final int len=string.length();
+    ensureHeadCapacity(len);
+    final byte[] head=_head;
+    int pos=_headLength;
+    for (int i=0;i<len;i++)
+    { head[pos++]=(byte) string.charAt(i);
+    }
+    _headLength=pos;
+  }
+
+  private void ensureHeadCapacity(int len)
+  {
+    if (_headLength+len>_head.length)
+    {
+      byte[] head=new byte[Math.max(_headLength+len,_head.length*2)];
+      System.arraycopy(_head,0,head,0,_headLength);
+      _head=head;
+    }
+  }
+
   @Override
   public void write(byte[] data)
     throws IOException
@@ -264,6 +570,12 @@ public class ServerOutputStream
   { _buffering=buffering;
   }
 
+  /**
+   * <p>Generate the headers into the head buffer. This is deferred until
+   *   content must be written to the client, so that a response which
+   *   fits in the buffer can be sent with a Content-Length.
+   * </p>
+   */
   private void prepare()
     throws IOException
   {
@@ -274,13 +586,29 @@ public class ServerOutputStream
       { log.fine("Preparing");
       }
       _prepared=true;
-      _response.sendHeaders();
+      _writingHead=true;
+      try
+      { _response.sendHeaders();
+      }
+      finally
+      { _writingHead=false;
+      }
     }
   }
 
   @Override
   public void flush()
     throws IOException
+  { flushBuffer(Deflater.SYNC_FLUSH);
+  }
+
+  /**
+   * Write the headers and buffered content to the client
+   *
+   * @param flushMode How far compressed output is flushed
+   */
+  private void flushBuffer(int flushMode)
+    throws IOException
   {
     try
     {
@@ -289,45 +617,16 @@ public class ServerOutputStream
       }
       
       if (!_prepared)
-      { prepare();
-      }
-      
-      super.flush();
-  
-  
-  
-      if (!_chunking)
       { 
-        if (_buffer.length()>0)
-        { 
-          if (debugSettings.getDebugProtocol())
-          { log.fine("Writing "+_buffer.length()+" bytes");
-          }  
-          writeToClient(_buffer.toByteArray());
-          _buffer.clear();
-        }
-      }
-      else
-      {
-        if (_buffer.length()>0)
-        {
-          _chunkBuffer.clear();
-          byte[] sizeBytes
-            =StringUtil.asciiBytes
-              (Integer.toString(_buffer.length(),16)
-              );
-          _chunkBuffer.append(sizeBytes);
-          _chunkBuffer.append(CRLF);
-          _chunkBuffer.append(_buffer.toByteArray());
-          _chunkBuffer.append(CRLF);
-          
-          writeToClient(_chunkBuffer.toByteArray());
-          _chunkBuffer.clear();
-          _buffer.clear();
-  
+        if (_deferCommit)
+        { return;
         }
+        prepare();
       }
-
+      
+      super.flush();
+      queueBuffered(flushMode);
+      writeQueued();
     }
     catch (IOException x)
     {
@@ -335,7 +634,10 @@ public class ServerOutputStream
       { 
         log.log(Level.WARNING,"Flush fail: ",x);
         log.log(Level.WARNING,"Out =  "+_out);
-        log.log(Level.WARNING,_buffer.toAsciiString());
+        log.log
+          (Level.WARNING
+          ,new String(_buffer,0,_bufferLength,StandardCharsets.ISO_8859_1)
+          );
       }
       throw x;
     }
@@ -353,10 +655,15 @@ public class ServerOutputStream
 
   void cleanup()
   {
+    _pendingLength=0;
+    _segmentCount=0;
+    _chunkCount=0;
+    _deferFlush=false;
+    endCompression();
     // DO NOT CLOSE OUTPUT STREAMS BECAUSE IT MESSES WITH TLS
   }
   
-  public int getCount()
+  public long getCount()
   { return _count;
   }
 
@@ -390,20 +697,338 @@ public class ServerOutputStream
   }
 
   
-  private void writeToClient(byte[] bytes)
+  /**
+   * Append content to the buffer
+   */
+  private void buffer(byte[] data,int start,int len)
+  {
+    if (_bufferLength+len>_buffer.length)
+    { 
+      byte[] buffer=new byte[Math.max(_bufferLength+len,_buffer.length*2)];
+      System.arraycopy(_buffer,0,buffer,0,_bufferLength);
+      _buffer=buffer;
+    }
+    System.arraycopy(data,start,_buffer,_bufferLength,len);
+    _bufferLength+=len;
+  }
+
+  /**
+   * Write content directly to the client, along with the headers and any
+   *   buffered content that must precede it
+   */
+  private void writeThrough(byte[] data,int start,int len)
     throws IOException
-  { writeToClient(bytes,0,bytes.length);
+  {
+    prepare();
+    queueBuffered(Deflater.NO_FLUSH);
+    if (_deflater!=null)
+    { 
+      // Compress a slice at a time and write the output of each, so the
+      //   compressed output buffer doesn't grow to the size of the write
+      final int end=start+len;
+      for (int pos=start;pos<end;pos+=DEFLATE_SLICE)
+      {
+        deflate(data,pos,Math.min(DEFLATE_SLICE,end-pos),Deflater.NO_FLUSH);
+        queueDeflated();
+        writeQueued();
+      }
+    }
+    else
+    { queueContent(data,start,len);
+    }
+    writeQueued();
   }
-  
-  private void writeToClient(byte[] bytes,int start,int len)
+
+  /**
+   * Queue any unsent headers and buffered content to be written
+   *
+   * @param flushMode How far compressed output is flushed
+   */
+  private void queueBuffered(int flushMode)
+  {
+    if (_headLength>0)
+    {
+      queue(_head,0,_headLength);
+      _headLength=0;
+    }
+    if (_deflater!=null)
+    {
+      deflate(_buffer,0,_bufferLength,flushMode);
+      _bufferLength=0;
+      queueDeflated();
+    }
+    else if (_bufferLength>0)
+    {
+      if (debugSettings.getDebugProtocol())
+      { log.fine("Writing "+_bufferLength+" bytes");
+      }  
+      queueContent(_buffer,0,_bufferLength);
+      _bufferLength=0;
+    }
+  }
+
+  /**
+   * <p>Compress content into the compressed output buffer
+   * </p>
+   *
+   * @param flushMode Deflater.NO_FLUSH, Deflater.SYNC_FLUSH, or FINISH
+   *   to end the compressed stream
+   */
+  private void deflate(byte[] data,int start,int len,int flushMode)
+  {
+    if (len>0)
+    {
+      if (_gzip)
+      { _crc.update(data,start,len);
+      }
+      _deflater.setInput(data,start,len);
+      _deflaterDirty=true;
+    }
+    else if (flushMode==Deflater.NO_FLUSH
+            || (flushMode==Deflater.SYNC_FLUSH && !_deflaterDirty)
+            )
+    { return;
+    }
+
+    int mode=flushMode;
+    if (flushMode==FINISH)
+    { 
+      _deflater.finish();
+      mode=Deflater.NO_FLUSH;
+    }
+
+    while (true)
+    {
+      if (_deflatedLength==_deflated.length)
+      { growDeflated(_deflated.length);
+      }
+      int space=_deflated.length-_deflatedLength;
+      int count=_deflater.deflate(_deflated,_deflatedLength,space,mode);
+      _deflatedLength+=count;
+      if (flushMode==FINISH
+          ?_deflater.finished()
+          :count<space && _deflater.needsInput()
+         )
+      { break;
+      }
+    }
+
+    if (flushMode!=Deflater.NO_FLUSH)
+    { _deflaterDirty=false;
+    }
+
+    if (flushMode==FINISH && _gzip)
+    {
+      growDeflated(8);
+      writeIntLE((int) _crc.getValue());
+      writeIntLE(_deflater.getTotalIn());
+    }
+  }
+
+  private void writeIntLE(int value)
+  {
+    _deflated[_deflatedLength++]=(byte) value;
+    _deflated[_deflatedLength++]=(byte) (value>>8);
+    _deflated[_deflatedLength++]=(byte) (value>>16);
+    _deflated[_deflatedLength++]=(byte) (value>>24);
+  }
+
+  /**
+   * Ensure the compressed output buffer has room for the specified number
+   *   of bytes. Segments already queued keep a reference to the old buffer.
+   */
+  private void growDeflated(int len)
+  {
+    if (_deflatedLength+len>_deflated.length)
+    {
+      byte[] deflated
+        =new byte[Math.max(_deflatedLength+len,_deflated.length*2)];
+      System.arraycopy(_deflated,0,deflated,0,_deflatedLength);
+      _deflated=deflated;
+    }
+  }
+
+  /**
+   * Queue the compressed output produced since the last call
+   */
+  private void queueDeflated()
+  {
+    int len=_deflatedLength-_deflatedQueued;
+    if (len>0)
+    {
+      if (debugSettings.getDebugProtocol())
+      { log.fine("Writing "+len+" compressed bytes");
+      }  
+      queueContent(_deflated,_deflatedQueued,len);
+      _deflatedQueued=_deflatedLength;
+    }
+  }
+
+  /**
+   * Queue content to be written, framed as a chunk if the response is
+   *   chunked
+   */
+  private void queueContent(byte[] data,int start,int len)
+  {
+    if (len==0)
+    { 
+      // An empty chunk would end the response
+      return;
+    }
+    if (!_chunking)
+    { queue(data,start,len);
+    }
+    else
+    {
+      final byte[] chunkSize=_chunkSizes[_chunkCount++];
+      int pos=chunkSize.length-2;
+      chunkSize[pos]='\r';
+      chunkSize[pos+1]='\n';
+      int size=len;
+      do
+      {
+        chunkSize[--pos]=HEX_DIGITS[size & 0xF];
+        size>>>=4;
+      }
+      while (size!=0);
+      queue(chunkSize,pos,chunkSize.length-pos);
+      queue(data,start,len);
+      queue(CRLF,0,CRLF.length);
+    }
+  }
+
+  private void queue(byte[] bytes,int start,int len)
+  {
+    _segments[_segmentCount]=bytes;
+    _segmentStarts[_segmentCount]=start;
+    _segmentLengths[_segmentCount]=len;
+    _segmentCount++;
+  }
+
+  /**
+   * Write the queued segments to the client, or hold them in the pending
+   *   buffer if output is deferred
+   */
+  private void writeQueued()
     throws IOException
   {
+    if (_segmentCount==0)
+    { return;
+    }
+    
     _committed=true;
+    int total=0;
+    for (int i=0;i<_segmentCount;i++)
+    { total+=_segmentLengths[i];
+    }
+    
+    try
+    {
+      if (_deferFlush && _pendingLength+total<=_maxPendingSize)
+      { 
+        if (_pending==null || _pending.length<_maxPendingSize)
+        { 
+          byte[] pending=new byte[_maxPendingSize];
+          if (_pending!=null)
+          { System.arraycopy(_pending,0,pending,0,_pendingLength);
+          }
+          _pending=pending;
+        }
+        for (int i=0;i<_segmentCount;i++)
+        {
+          System.arraycopy
+            (_segments[i],_segmentStarts[i],_pending,_pendingLength,_segmentLengths[i]);
+          _pendingLength+=_segmentLengths[i];
+        }
+      }
+      else
+      { writeSegments();
+      }
+  
+      server.wroteBytes(total);
+      if (_trace!=null)
+      {
+        for (int i=0;i<_segmentCount;i++)
+        { _trace.write(_segments[i],_segmentStarts[i],_segmentLengths[i]);
+        }
+        _trace.flush();
+      }
+    }
+    finally
+    {
+      for (int i=0;i<_segmentCount;i++)
+      { _segments[i]=null;
+      }
+      _segmentCount=0;
+      _chunkCount=0;
+      if (_deflatedQueued>0)
+      {
+        _deflatedLength=0;
+        _deflatedQueued=0;
+      }
+    }
+  }
+
+  /**
+   * Write any pending output followed by the queued segments to the
+   *   socket, with a single flush.
+   */
+  private void writeSegments()
+    throws IOException
+  {
+    int pendingLength=_pendingLength;
+    _pendingLength=0;
+    if (_channel!=null)
+    {
+      int count=0;
+      long remaining=0;
+      if (pendingLength>0)
+      { 
+        _gather[count++]=ByteBuffer.wrap(_pending,0,pendingLength);
+        remaining+=pendingLength;
+      }
+      for (int i=0;i<_segmentCount;i++)
+      { 
+        _gather[count++]
+          =ByteBuffer.wrap
+            (_segments[i],_segmentStarts[i],_segmentLengths[i]);
+        remaining+=_segmentLengths[i];
+      }
+      try
+      {
+        if (debugSettings.getDebugProtocol())
+        { log.fine("Writing "+count+" buffers ("+remaining+" bytes) to client");
+        }
+        while (remaining>0)
+        { remaining-=_channel.write(_gather,0,count);
+        }
+      }
+      finally
+      { 
+        for (int i=0;i<count;i++)
+        { _gather[i]=null;
+        }
+      }
+    }
+    else
+    {
+      if (pendingLength>0)
+      { writeBlocks(_pending,0,pendingLength);
+      }
+      for (int i=0;i<_segmentCount;i++)
+      { writeBlocks(_segments[i],_segmentStarts[i],_segmentLengths[i]);
+      }
+      _out.flush();
+    }
+  }
 
+  private void writeBlocks(byte[] bytes,int start,int len)
+    throws IOException
+  {
     // Write output in [maxWriteSize] blocks
     int pos=0;
     int count=1;
-    while (start+pos<len)
+    while (pos<len)
     {
       int writeLen=Math.min(maxWriteSize, len-pos);
       if (debugSettings.getDebugProtocol())
@@ -412,16 +1037,7 @@ public class ServerOutputStream
       _out.write(bytes,start+pos,writeLen);
       pos+=writeLen;
       count++;
-      _out.flush();
-    }
-
-    server.wroteBytes(len);
-    if (_trace!=null)
-    {
-      _trace.write(bytes,start,len);
-      _trace.flush();
     }
-    
   }
   
 }
@@ -85,6 +85,7 @@ import spiralcraft.text.html.URLEncoder;
 import spiralcraft.time.Clock;
 import spiralcraft.pioneer.util.ThrowableUtil;
 import spiralcraft.pioneer.security.servlet.ServletAuthenticator;
+import spiralcraft.pioneer.servlet.VariableManager;
 import spiralcraft.pioneer.security.SecurityException;
 import spiralcraft.meter.Meter;
 import spiralcraft.meter.MeterContext;
@@ -108,6 +109,14 @@ public class SimpleHttpServiceContext
   private URI _docRootURI;
   
   private HttpSessionManager _sessionManager;
+  private MultipartConfig _multipartConfig;
+  private CompressionConfig _compressionConfig;
+  private boolean _precompressOnStart;
+  private long _transferMinSize=-1;
+  private Integer _maxFormSize;
+  private StaticFileCache _staticFileCache;
+  private final PrecompressedFileChain.SiblingCache _precompressedSiblings
+    =new PrecompressedFileChain.SiblingCache();
   private String _hostName;
   private String _contextPath="";
   private String _defaultServletName=null; // Serves the specified URI (servletPath)
@@ -1559,6 +1568,39 @@ public class SimpleHttpServiceContext
                   +getRealPath(request.getServletPath())
                   );
       }
+      
+      if ((_transferMinSize>=0
+            || _staticFileCache!=null
+            || getCompressionConfig().getServePrecompressed()
+          )
+          && isFileServlet(filterChain)
+          )
+      { 
+        String contentType=getMimeType(realPath);
+        if (_transferMinSize>=0)
+        {
+          filterChain
+            =new FileTransferChain
+              (filterChain,realPath,contentType,_transferMinSize);
+        }
+        if (_staticFileCache!=null)
+        {
+          filterChain
+            =new CachedFileChain
+              (filterChain
+              ,_staticFileCache
+              ,realPath
+              ,contentType
+              ,getCompressionConfig()
+              );
+        }
+        if (getCompressionConfig().getServePrecompressed())
+        {
+          filterChain
+            =PrecompressedFileChain.forFile
+              (filterChain,realPath,contentType,_precompressedSiblings);
+        }
+      }
         
       return filterChain;
        
@@ -1574,6 +1616,18 @@ public class SimpleHttpServiceContext
   }
 
   
+  /**
+   * Whether a servlet chain ends in a static file servlet, whose responses
+   *   can be served from precompressed files
+   */
+  private boolean isFileServlet(FilterChain filterChain)
+    throws ServletException
+  {
+    return filterChain instanceof ServletHolder
+      && ((ServletHolder) filterChain).getServlet()
+        instanceof spiralcraft.servlet.vfs.FileServlet;
+  }
+  
   /**
    * Find the filter/servlet chain when we have no associated filesystem
    *   path
@@ -2458,6 +2512,127 @@ public class SimpleHttpServiceContext
   { return _accessLog;
   }
 
+  /**
+   * Specify how multipart/form-data request bodies are read for this
+   *   context and its children
+   */
+  public void setMultipartConfig(MultipartConfig multipartConfig)
+  { _multipartConfig=multipartConfig;
+  }
+
+  @Override
+  public MultipartConfig getMultipartConfig()
+  {
+    if (_multipartConfig!=null)
+    { return _multipartConfig;
+    }
+    else if (_parentContext!=null)
+    { return _parentContext.getMultipartConfig();
+    }
+    else
+    { 
+      _multipartConfig=new MultipartConfig();
+      return _multipartConfig;
+    }
+  }
+
+  /**
+   * Specify which responses are compressed for this context and its
+   *   children
+   */
+  public void setCompressionConfig(CompressionConfig compressionConfig)
+  { _compressionConfig=compressionConfig;
+  }
+
+  /**
+   * The maximum size of an application/x-www-form-urlencoded request
+   *   body read for the request parameters in this context and its
+   *   children, or -1 for no limit. A larger form is ignored. Defaults to
+   *   2MB.
+   */
+  public void setMaxFormSize(int maxFormSize)
+  { _maxFormSize=maxFormSize;
+  }
+
+  @Override
+  public int getMaxFormSize()
+  {
+    if (_maxFormSize!=null)
+    { return _maxFormSize;
+    }
+    else if (_parentContext!=null)
+    { return _parentContext.getMaxFormSize();
+    }
+    else
+    { return VariableManager.DEFAULT_MAX_FORM_SIZE;
+    }
+  }
+
+  /**
+   * The minimum size of a static file that is sent from the file straight
+   *   to the socket on a plaintext connection, instead of through the file
+   *   servlet (see FileTransferChain), or -1 (the default) to always use
+   *   the file servlet.
+   */
+  public void setTransferMinSize(long transferMinSize)
+  { _transferMinSize=transferMinSize;
+  }
+  
+  public long getTransferMinSize()
+  { return _transferMinSize;
+  }
+  
+  /**
+   * Hold small static files from the document root in memory. Off
+   *   unless a StaticFileCache is specified.
+   */
+  public void setStaticFileCache(StaticFileCache staticFileCache)
+  { _staticFileCache=staticFileCache;
+  }
+  
+  public StaticFileCache getStaticFileCache()
+  { return _staticFileCache;
+  }
+  
+  /**
+   * Generate the missing .gz files for the static files in the document
+   *   root when this context starts (see Precompressor)
+   */
+  public void setPrecompressOnStart(boolean precompressOnStart)
+  { _precompressOnStart=precompressOnStart;
+  }
+  
+  /**
+   * Generate the missing .gz files for the static files in the document
+   *   root, for serving with CompressionConfig.servePrecompressed
+   *
+   * @return The number of files written
+   */
+  public int precompressDocuments()
+    throws IOException
+  {
+    if (_docRootDir==null || !_docRootDir.isDirectory())
+    { return 0;
+    }
+    return new Precompressor(this).compress(_docRootDir);
+  }
+
+  @Override
+  public CompressionConfig getCompressionConfig()
+  {
+    if (_compressionConfig!=null)
+    { return _compressionConfig;
+    }
+    else if (_parentContext!=null)
+    { return _parentContext.getCompressionConfig();
+    }
+    else
+    { 
+      _compressionConfig=new CompressionConfig();
+      return _compressionConfig;
+    }
+  }
+
 	public int getNumRequestsHandled()
 	{ return _requestsHandled;
 	}
@@ -2763,6 +2938,27 @@ public class SimpleHttpServiceContext
     if (_accessLog==null && _parentContext!=null)
     { _accessLog=_parentContext.getAccessLog();
     }
+    
+    if (_staticFileCache!=null)
+    {
+      if (_meterContext!=null)
+      { _staticFileCache.installMeter(_meterContext);
+      }
+
+      // Refresh precompressed sibling lookups as often as cached content
+      _precompressedSiblings.setCheckInterval
+        (_staticFileCache.getCheckInterval());
+    }
+    
+    if (_precompressOnStart)
+    {
+      try
+      { precompressDocuments();
+      }
+      catch (IOException x)
+      { log.log(Level.WARNING,"Error precompressing "+_docRootDir,x);
+      }
+    }
       
     _startTime = Clock.instance().approxTimeMillis();
     _running=true;
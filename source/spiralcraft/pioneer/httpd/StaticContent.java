@@ -0,0 +1,117 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>Validators and content transfer shared by the FilterChains that
+ *   serve static files ahead of the file servlet.
+ * </p>
+ */
+final class StaticContent
+{
+  private static final int COPY_BUFFER_SIZE=8192;
+
+  /**
+   * A strong entity tag for the state of a file
+   *
+   * @param coding The content coding of the file, or null
+   */
+  static String etag(long lastModified,long length,String coding)
+  {
+    return "\""+Long.toHexString(lastModified)
+      +"-"+Long.toHexString(length)
+      +(coding!=null?"-"+coding:"")
+      +"\"";
+  }
+
+  /**
+   * Whether the client's copy is current, according to the If-None-Match
+   *   or If-Modified-Since header
+   */
+  static boolean isNotModified
+    (HttpServletRequest request,String etag,long lastModified)
+  {
+    String ifNoneMatch=request.getHeader("If-None-Match");
+    if (ifNoneMatch!=null)
+    {
+      return ifNoneMatch.trim().equals("*")
+        || ifNoneMatch.indexOf(etag)>=0;
+    }
+
+    long ifModifiedSince;
+    try
+    {
+      ifModifiedSince
+        =request.getDateHeader(HttpServerResponse.HDR_IF_MODIFIED_SINCE);
+    }
+    catch (IllegalArgumentException x)
+    { return false;
+    }
+    return ifModifiedSince>=0 && ifModifiedSince>=(lastModified/1000)*1000;
+  }
+
+  /**
+   * <p>Write a region of a file as the response content. The file is sent
+   *   straight to the socket with FileChannel.transferTo where the
+   *   connection allows it, and otherwise copied through the response
+   *   output stream.
+   * </p>
+   */
+  static void send
+    (HttpServletResponse response
+    ,FileChannel file
+    ,long position
+    ,long count
+    )
+    throws IOException
+  {
+    if (response instanceof HttpServerResponse
+        && ((HttpServerResponse) response).transferFile(file,position,count)
+        )
+    { return;
+    }
+
+    ServletOutputStream out=response.getOutputStream();
+    byte[] bytes=new byte[(int) Math.min(COPY_BUFFER_SIZE,count)];
+    ByteBuffer buffer=ByteBuffer.wrap(bytes);
+    long end=position+count;
+    while (position<end)
+    {
+      buffer.clear();
+      if (end-position<bytes.length)
+      { buffer.limit((int) (end-position));
+      }
+      int read=file.read(buffer,position);
+      if (read<0)
+      { throw new IOException("File truncated at "+position+" of "+end);
+      }
+      out.write(bytes,0,read);
+      position+=read;
+    }
+  }
+
+  private StaticContent()
+  {
+  }
+}
@@ -0,0 +1,371 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.Files;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import java.util.zip.GZIPOutputStream;
+
+import spiralcraft.log.ClassLog;
+import spiralcraft.log.Level;
+import spiralcraft.meter.Meter;
+import spiralcraft.meter.MeterContext;
+import spiralcraft.meter.Register;
+import spiralcraft.time.Clock;
+
+/**
+ * <p>Holds the content and validators of small, frequently requested
+ *   static files in memory, keyed by real path, so they can be served
+ *   without opening the file (see CachedFileChain).
+ * </p>
+ *
+ * <p>A gzip compressed copy of an entry's content is made the first time
+ *   it is requested (see gzip()), and is held with the entry if it is
+ *   smaller than the content.
+ * </p>
+ *
+ * <p>The cache is bounded by a number of entries and a total content
+ *   size, including compressed copies, and the least recently used
+ *   entries are evicted first. An
+ *   entry is reloaded when the file's modification time or length
+ *   changes, which is checked at most once per check interval.
+ * </p>
+ */
+public class StaticFileCache
+{
+  private static final ClassLog log
+    =ClassLog.getInstance(StaticFileCache.class);
+
+  private int maxEntries=512;
+  private long maxSize=32*1024*1024;
+  private int maxFileSize=64*1024;
+  private long checkInterval=1000;
+
+  private final LinkedHashMap<String,Entry> entries
+    =new LinkedHashMap<>(16,0.75f,true);
+  private long size;
+
+  private Register hitsRegister;
+  private Register missesRegister;
+  private Register evictionsRegister;
+
+  /**
+   * The maximum number of files held
+   */
+  public void setMaxEntries(int maxEntries)
+  { this.maxEntries=maxEntries;
+  }
+
+  public int getMaxEntries()
+  { return maxEntries;
+  }
+
+  /**
+   * The maximum total size of the files held
+   */
+  public void setMaxSize(long maxSize)
+  { this.maxSize=maxSize;
+  }
+
+  public long getMaxSize()
+  { return maxSize;
+  }
+
+  /**
+   * The maximum size of a file that will be held. Larger files are left
+   *   to the file servlet.
+   */
+  public void setMaxFileSize(int maxFileSize)
+  { this.maxFileSize=maxFileSize;
+  }
+
+  public int getMaxFileSize()
+  { return maxFileSize;
+  }
+
+  /**
+   * The number of milliseconds for which a file is assumed to be
+   *   unchanged after it was last checked. 0 checks the file for each
+   *   request.
+   */
+  public void setCheckInterval(long checkInterval)
+  { this.checkInterval=checkInterval;
+  }
+
+  public long getCheckInterval()
+  { return checkInterval;
+  }
+
+  public void installMeter(MeterContext meterContext)
+  {
+    Meter meter=meterContext.meter("StaticFileCache");
+    hitsRegister=meter.register("hits");
+    missesRegister=meter.register("misses");
+    evictionsRegister=meter.register("evictions");
+  }
+
+  /**
+   * <p>Return the current entry for a file, loading it if the file is
+   *   not cached or has changed.
+   * </p>
+   *
+   * @return The entry, or null if the file is not a regular file or is
+   *   too large to cache
+   */
+  Entry get(File file,String contentType)
+  {
+    String key=file.getPath();
+    long now=Clock.instance().approxTimeMillis();
+    Entry entry;
+    synchronized (entries)
+    { entry=entries.get(key);
+    }
+
+    if (entry!=null)
+    {
+      if (now-entry.checkedAt<checkInterval
+          || (file.lastModified()==entry.lastModified
+              && file.length()==entry.content.length
+             )
+          )
+      {
+        entry.checkedAt=now;
+        if (hitsRegister!=null)
+        { hitsRegister.incrementValue();
+        }
+        return entry;
+      }
+      remove(key,entry);
+    }
+
+    if (missesRegister!=null)
+    { missesRegister.incrementValue();
+    }
+    entry=load(file,contentType,now);
+    if (entry!=null)
+    { put(key,entry);
+    }
+    return entry;
+  }
+
+  /**
+   * <p>Return the gzip compressed copy of an entry's content, compressing
+   *   it the first time it is requested.
+   * </p>
+   *
+   * @param level The Deflater compression level
+   * @return The compressed copy, or null if compression doesn't make the
+   *   content smaller
+   */
+  Compressed gzip(Entry entry,int level)
+  {
+    Compressed gzip=entry.gzip;
+    if (gzip==null)
+    {
+      gzip=compress(entry,level);
+      synchronized (entries)
+      {
+        if (entry.gzip!=null)
+        { gzip=entry.gzip;
+        }
+        else
+        {
+          entry.gzip=gzip;
+          if (gzip.content!=null && entries.get(entry.key)==entry)
+          {
+            entry.size+=gzip.content.length;
+            size+=gzip.content.length;
+            evict(entry);
+          }
+        }
+      }
+    }
+    return gzip.content!=null?gzip:null;
+  }
+
+  private Compressed compress(Entry entry,int level)
+  {
+    ByteArrayOutputStream out
+      =new ByteArrayOutputStream(entry.content.length/2+32);
+    try (GZIPOutputStream gzip
+          =new GZIPOutputStream(out)
+            {
+              { def.setLevel(level);
+              }
+            }
+        )
+    { gzip.write(entry.content);
+    }
+    catch (IOException x)
+    {
+      // Not thrown by a ByteArrayOutputStream
+      throw new IllegalStateException(x);
+    }
+
+    if (out.size()>=entry.content.length)
+    { return Compressed.NONE;
+    }
+    return new Compressed
+      (out.toByteArray()
+      ,StaticContent.etag
+        (entry.lastModified,entry.content.length
+        ,HttpServerResponse.CODING_GZIP
+        )
+      );
+  }
+
+  private Entry load(File file,String contentType,long now)
+  {
+    long lastModified=file.lastModified();
+    long length=file.length();
+    if (length>maxFileSize || length>maxSize || !file.isFile())
+    { return null;
+    }
+
+    byte[] content;
+    try
+    { content=Files.readAllBytes(file.toPath());
+    }
+    catch (IOException x)
+    {
+      log.log(Level.FINE,"Error caching "+file,x);
+      return null;
+    }
+
+    if (content.length!=length || file.lastModified()!=lastModified)
+    {
+      // Changed while being read
+      return null;
+    }
+    return new Entry(file.getPath(),content,lastModified,contentType,now);
+  }
+
+  private void put(String key,Entry entry)
+  {
+    synchronized (entries)
+    {
+      Entry last=entries.put(key,entry);
+      if (last!=null)
+      { size-=last.size;
+      }
+      size+=entry.size;
+      evict(entry);
+    }
+  }
+
+  /**
+   * Evict the least recently used entries other than the specified one
+   *   until the cache is within its limits. Called while synchronized on
+   *   the entries.
+   */
+  private void evict(Entry keep)
+  {
+    Iterator<Map.Entry<String,Entry>> it=entries.entrySet().iterator();
+    while ((entries.size()>maxEntries || size>maxSize) && it.hasNext())
+    {
+      Entry eldest=it.next().getValue();
+      if (eldest==keep)
+      { continue;
+      }
+      it.remove();
+      size-=eldest.size;
+      if (evictionsRegister!=null)
+      { evictionsRegister.incrementValue();
+      }
+    }
+  }
+
+  private void remove(String key,Entry entry)
+  {
+    synchronized (entries)
+    {
+      if (entries.get(key)==entry)
+      {
+        entries.remove(key);
+        size-=entry.size;
+      }
+    }
+  }
+
+  /**
+   * <p>The content of a file, with its header values formatted in
+   *   advance
+   * </p>
+   */
+  static final class Entry
+  {
+    final String key;
+    final byte[] content;
+    final long lastModified;
+    final String contentType;
+    final String etag;
+    final String lastModifiedHeader;
+    final String contentLengthHeader;
+    volatile long checkedAt;
+    volatile Compressed gzip;
+
+    // The bytes counted against the cache size, guarded by the cache
+    int size;
+
+    Entry
+      (String key
+      ,byte[] content
+      ,long lastModified
+      ,String contentType
+      ,long now
+      )
+    {
+      this.key=key;
+      this.content=content;
+      this.lastModified=lastModified;
+      this.contentType=contentType;
+      this.etag=StaticContent.etag(lastModified,content.length,null);
+      this.lastModifiedHeader=HeaderSerializer.httpDate(lastModified);
+      this.contentLengthHeader=Integer.toString(content.length);
+      this.checkedAt=now;
+      this.size=content.length;
+    }
+  }
+
+  /**
+   * <p>A compressed copy of an entry's content, with its own ETag
+   * </p>
+   */
+  static final class Compressed
+  {
+    // Compression doesn't make the content smaller
+    static final Compressed NONE=new Compressed(null,null);
+
+    final byte[] content;
+    final String etag;
+    final String contentLengthHeader;
+
+    Compressed(byte[] content,String etag)
+    {
+      this.content=content;
+      this.etag=etag;
+      this.contentLengthHeader
+        =content!=null?Integer.toString(content.length):null;
+    }
+  }
+}
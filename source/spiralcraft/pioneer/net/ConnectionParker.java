@@ -0,0 +1,354 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.net;
+
+import java.io.IOException;
+
+import java.net.Socket;
+
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import spiralcraft.log.ClassLog;
+import spiralcraft.log.Level;
+
+import spiralcraft.meter.Meter;
+import spiralcraft.meter.MeterContext;
+import spiralcraft.meter.Register;
+
+import spiralcraft.pioneer.util.ThrowableUtil;
+
+/**
+ * <p>Holds idle keep-alive connections on a Selector between requests, so
+ *   that an idle client does not occupy a worker thread.
+ * </p>
+ *
+ * <p>A parked connection is handed back to the ConnectionHandler as soon
+ *   as data for the next request arrives, or is closed when its keepalive
+ *   period expires. Only sockets that are backed by a SocketChannel can
+ *   be parked (see StandardServerSocketFactory.setUseChannels()).
+ * </p>
+ */
+public class ConnectionParker
+  implements Runnable
+{
+  private static final ClassLog log
+    =ClassLog.getInstance(ConnectionParker.class);
+
+  private ConnectionHandler _handler;
+  private Selector _selector;
+  private Thread _runner;
+  private volatile boolean _finished=false;
+  private final ConcurrentLinkedQueue<Parked> _pending
+    =new ConcurrentLinkedQueue<>();
+  private final Set<Socket> _resumed
+    =ConcurrentHashMap.newKeySet();
+  private long _expireCheckIntervalMs=1000;
+  private long _nextExpireCheck;
+  private boolean _debug;
+
+  private Meter _meter;
+  private Register _parkedRegister;
+  private Register _parksRegister;
+  private Register _resumesRegister;
+  private Register _expirationsRegister;
+
+  public void installMeter(MeterContext meterContext)
+  {
+    _meter=meterContext.meter("connectionParker");
+    _parkedRegister=_meter.register("parked");
+    _parksRegister=_meter.register("parks");
+    _resumesRegister=_meter.register("resumes");
+    _expirationsRegister=_meter.register("expirations");
+  }
+
+  /**
+   * The ConnectionHandler which will receive connections that become
+   *   active again.
+   */
+  public void setConnectionHandler(ConnectionHandler handler)
+  { _handler=handler;
+  }
+
+  /**
+   * How often parked connections are checked for keepalive expiration
+   */
+  public void setExpireCheckIntervalMs(long ms)
+  { _expireCheckIntervalMs=ms;
+  }
+
+  public void setDebug(boolean debug)
+  { _debug=debug;
+  }
+
+  public void start()
+    throws IOException
+  {
+    if (_handler==null)
+    { throw new IllegalStateException("No ConnectionHandler set-up");
+    }
+    _finished=false;
+    _selector=Selector.open();
+    _runner=new Thread(this,"ConnectionParker");
+    _runner.setDaemon(true);
+    _runner.setPriority(Thread.MAX_PRIORITY-1);
+    _runner.start();
+  }
+
+  public void stop()
+  {
+    _finished=true;
+    if (_selector!=null)
+    { _selector.wakeup();
+    }
+  }
+
+  /**
+   * <p>Park an idle connection until more data arrives or the timeout
+   *   expires.
+   * </p>
+   *
+   * @return true if the connection was parked, in which case the caller
+   *   relinquishes the socket. If false, the caller retains responsibility
+   *   for the socket.
+   */
+  public boolean park(Socket socket,ServerSocketFactory factory,int timeoutMs)
+  {
+    SocketChannel channel=socket.getChannel();
+    if (_finished || channel==null)
+    { return false;
+    }
+
+    try
+    { channel.configureBlocking(false);
+    }
+    catch (IOException x)
+    {
+      if (_debug)
+      { log.fine("Unable to park "+socket+": "+x);
+      }
+      return false;
+    }
+
+    Parked parked
+      =new Parked
+        (socket
+        ,factory
+        ,System.currentTimeMillis()+(timeoutMs>0?timeoutMs:Integer.MAX_VALUE)
+        );
+    _pending.add(parked);
+    if (_finished && _pending.remove(parked))
+    {
+      // Stopped after the check above, and the selector thread may have
+      //   already closed the pending connections
+      try
+      { channel.configureBlocking(true);
+      }
+      catch (IOException x)
+      { }
+      return false;
+    }
+
+    if (_meter!=null)
+    {
+      _parksRegister.incrementValue();
+      _parkedRegister.incrementValue();
+    }
+    _selector.wakeup();
+    return true;
+  }
+
+  /**
+   * <p>Indicate whether the specified socket is being resumed from a parked
+   *   state, as opposed to being a newly accepted connection. Clears the
+   *   resumed status of the socket.
+   * </p>
+   */
+  public boolean claimResumed(Socket socket)
+  { return _resumed.remove(socket);
+  }
+
+  @Override
+  public void run()
+  {
+    ArrayList<Parked> ready=new ArrayList<>();
+    try
+    {
+      while (!_finished)
+      {
+        _selector.select(_expireCheckIntervalMs);
+        registerPending();
+
+        Iterator<SelectionKey> it=_selector.selectedKeys().iterator();
+        while (it.hasNext())
+        {
+          SelectionKey key=it.next();
+          it.remove();
+          key.cancel();
+          ready.add((Parked) key.attachment());
+        }
+
+        if (!ready.isEmpty())
+        {
+          // Flush the cancelled keys so the channels can be put back
+          //   into blocking mode
+          _selector.selectNow();
+          for (Parked parked: ready)
+          { resume(parked);
+          }
+          ready.clear();
+        }
+
+        long now=System.currentTimeMillis();
+        if (now>=_nextExpireCheck)
+        {
+          expire(now);
+          _nextExpireCheck=now+_expireCheckIntervalMs;
+        }
+      }
+    }
+    catch (IOException x)
+    { log.log(Level.SEVERE,"ConnectionParker failed: "+x);
+    }
+    finally
+    { closeAll();
+    }
+  }
+
+  private void registerPending()
+  {
+    Parked parked;
+    while ( (parked=_pending.poll())!=null)
+    {
+      try
+      { parked.socket.getChannel().register(_selector,SelectionKey.OP_READ,parked);
+      }
+      catch (ClosedChannelException x)
+      { close(parked);
+      }
+    }
+  }
+
+  private void resume(Parked parked)
+  {
+    if (_meter!=null)
+    {
+      _resumesRegister.incrementValue();
+      _parkedRegister.decrementValue();
+    }
+
+    try
+    { parked.socket.getChannel().configureBlocking(true);
+    }
+    catch (IOException x)
+    {
+      if (_debug)
+      { log.fine("Unable to resume "+parked.socket+": "+x);
+      }
+      parked.factory.closeSocket(parked.socket);
+      return;
+    }
+
+    if (_debug)
+    { log.fine("Resuming "+parked.socket);
+    }
+    _resumed.add(parked.socket);
+    try
+    { _handler.handleConnection(parked.socket,parked.factory);
+    }
+    catch (Throwable x)
+    {
+      _resumed.remove(parked.socket);
+      log.log(Level.SEVERE
+             ,"Uncaught exception resuming connection "+parked.socket
+               +": "+ThrowableUtil.getStackTrace(x)
+             );
+      parked.factory.closeSocket(parked.socket);
+    }
+  }
+
+  private void expire(long now)
+  {
+    for (SelectionKey key: _selector.keys())
+    {
+      Parked parked=(Parked) key.attachment();
+      if (key.isValid() && parked.expiration<=now)
+      {
+        if (_debug)
+        { log.fine("Keepalive expired for "+parked.socket);
+        }
+        if (_meter!=null)
+        { _expirationsRegister.incrementValue();
+        }
+        key.cancel();
+        close(parked);
+      }
+    }
+
+    // Forget resumed connections that were closed before they were
+    //   claimed (eg. shed by the ConnectionHandler)
+    _resumed.removeIf(Socket::isClosed);
+  }
+
+  private void close(Parked parked)
+  {
+    if (_meter!=null)
+    { _parkedRegister.decrementValue();
+    }
+    parked.factory.closeSocket(parked.socket);
+  }
+
+  private void closeAll()
+  {
+    // Connections parked from now on are returned to the caller
+    _finished=true;
+    registerPending();
+    for (SelectionKey key: _selector.keys())
+    {
+      if (key.isValid())
+      {
+        key.cancel();
+        close((Parked) key.attachment());
+      }
+    }
+    try
+    { _selector.close();
+    }
+    catch (IOException x)
+    { }
+  }
+
+  static class Parked
+  {
+    final Socket socket;
+    final ServerSocketFactory factory;
+    final long expiration;
+
+    Parked(Socket socket,ServerSocketFactory factory,long expiration)
+    {
+      this.socket=socket;
+      this.factory=factory;
+      this.expiration=expiration;
+    }
+  }
+}
@@ -23,6 +23,8 @@ import java.net.BindException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import spiralcraft.common.ContextualException;
 import spiralcraft.common.Lifecycle;
 import spiralcraft.common.LifecycleException;
@@ -48,6 +50,13 @@ import spiralcraft.pioneer.util.ThrowableUtil;
  *   responsibility of the ConnectionHandler to provide connection
  *   management functionality such as thread pooling and
  *   request queueing.
+ *
+ * If an acceptorCount greater than 1 is specified, that number
+ *   of server sockets are bound to the same port with SO_REUSEPORT,
+ *   each with its own accept thread, and the OS distributes
+ *   incoming connections among them. Each acceptor can be given
+ *   its own ConnectionHandler via setConnectionHandlers() so that
+ *   no queue is shared between acceptors.
  */
 public class Listener
   implements Runnable,Lifecycle
@@ -99,11 +108,14 @@ public class Listener
   private InetAddress _addr=null;
   private String _interfaceName=null;
   private ServerSocket _serverSocket;
+  private ServerSocket[] _serverSockets;
+  private int _acceptorCount=1;
+  private ConnectionHandler[] _handlers;
   private ShuntServerSocket _shuntServerSocket;
   private ConnectionHandler _handler=null;
   private boolean _shunt=false;
   private Thread _runner;
-  private int _totalConnections = 0;
+  private final AtomicInteger _totalConnections=new AtomicInteger(0);
   private long _startTime;
   private IOException _bindException;
   private ServerSocketFactory _factory=new StandardServerSocketFactory();
@@ -223,9 +235,29 @@ public class Listener
   { _handler=handler;
   }
 
+  /**
+   * Provide a ConnectionHandler for each acceptor. Acceptor n uses
+   *   handler n modulo the number of handlers. Overrides the 
+   *   connectionHandler.
+   */
+  public void setConnectionHandlers(ConnectionHandler[] handlers)
+  { _handlers=handlers;
+  }
+
+  /**
+   * Specify the number of server sockets (and accept threads) that
+   *   will be bound to the port using SO_REUSEPORT. Defaults to 1,
+   *   which does not use SO_REUSEPORT. Ignored in shunt mode.
+   */
+  public void setAcceptorCount(int acceptorCount)
+  { _acceptorCount=acceptorCount;
+  }
 
+  /**
+   * The total number of connections accepted by all acceptors
+   */
   public int getTotalConnections()
-  { return _totalConnections;
+  { return _totalConnections.get();
   }
 
   public long getUptime()
@@ -369,7 +401,7 @@ public class Listener
             while (true)
             {
               try
-              { _serverSocket=_factory.createServerSocket(_boundPort,_listenBacklog,_addr);
+              { _serverSocket=createServerSocket(_addr);
               }
               catch (BindException x)
               { 
@@ -415,7 +447,7 @@ public class Listener
             while (true)
             {
               try
-              { _serverSocket=_factory.createServerSocket(_boundPort,_listenBacklog);
+              { _serverSocket=createServerSocket(null);
               }
               catch (BindException x)
               {
@@ -447,34 +479,115 @@ public class Listener
           log.log(Level.SEVERE,"Binding socket to port "+_boundPort+" "+x.toString());
         }
       }
+
+      if (_serverSocket!=null && !_shunt && _acceptorCount>1)
+      { bindAcceptorSockets();
+      }
   
       notify();
     }
 
     if (_serverSocket!=null && _timeoutMs>0)
     {
-      try
-      { _serverSocket.setSoTimeout(_timeoutMs);
-      }
-      catch (SocketException x)
-      { log.log(Level.SEVERE,"Setting SoTimout for "+_serverSocket+" "+x.toString());
+      ServerSocket[] sockets
+        =_serverSockets!=null?_serverSockets:new ServerSocket[] {_serverSocket};
+      for (ServerSocket socket: sockets)
+      {
+        try
+        { socket.setSoTimeout(_timeoutMs);
+        }
+        catch (SocketException x)
+        { log.log(Level.SEVERE,"Setting SoTimout for "+socket+" "+x.toString());
+        }
       }
     }
 
-    if (_handler==null)
+    if (getConnectionHandler(0)==null)
     { throw new RuntimeException("No ConnectionHandler set-up for "+getSocketDescription());
     }
 
-    while (!_finished && (_serverSocket!=null || _shuntServerSocket!=null))
+    if (_serverSockets!=null)
+    {
+      for (int i=1;i<_serverSockets.length;i++)
+      {
+        Thread acceptor
+          =new Thread
+            (new Acceptor(_serverSockets[i],getConnectionHandler(i))
+            ,_runner.getName()+"#"+i
+            );
+        acceptor.setPriority(Thread.MAX_PRIORITY);
+        acceptor.setDaemon(true);
+        acceptor.start();
+      }
+    }
+
+    acceptConnections(_serverSocket,getConnectionHandler(0));
+  }
+
+  private ServerSocket createServerSocket(InetAddress addr)
+    throws IOException
+  {
+    if (_acceptorCount>1)
+    { return _factory.createServerSocket(_boundPort,_listenBacklog,addr,true);
+    }
+    else if (addr!=null)
+    { return _factory.createServerSocket(_boundPort,_listenBacklog,addr);
+    }
+    else
+    { return _factory.createServerSocket(_boundPort,_listenBacklog);
+    }
+  }
+
+  /**
+   * Bind the additional server sockets to the port that the first socket
+   *   was bound to.
+   */
+  private void bindAcceptorSockets()
+  {
+    int port=_serverSocket.getLocalPort();
+    _serverSockets=new ServerSocket[_acceptorCount];
+    _serverSockets[0]=_serverSocket;
+    try
+    {
+      for (int i=1;i<_acceptorCount;i++)
+      { 
+        _serverSockets[i]
+          =_factory.createServerSocket(port,_listenBacklog,_addr,true);
+      }
+      if (log.canLog(Level.INFO))
+      { log.log(Level.INFO,"Using "+_acceptorCount+" acceptors for port "+port);
+      }
+    }
+    catch (IOException x)
+    {
+      _bindException=x;
+      log.log(Level.SEVERE,"Binding acceptor socket to port "+port+" "+x.toString());
+      stopListening();
+      _serverSocket=null;
+      _serverSockets=null;
+    }
+  }
+
+  private ConnectionHandler getConnectionHandler(int acceptor)
+  {
+    if (_handlers!=null && _handlers.length>0)
+    { return _handlers[acceptor % _handlers.length];
+    }
+    return _handler;
+  }
+
+  private void acceptConnections(ServerSocket serverSocket,ConnectionHandler handler)
+  {
+    while (!_finished && (serverSocket!=null || _shuntServerSocket!=null))
     {
       Socket sock=null;
       try
       {
-        sock=_shunt?_shuntServerSocket.accept():_serverSocket.accept();
+        sock=_shunt?_shuntServerSocket.accept():serverSocket.accept();
 
         if ( sock!=null)
         {
-          _totalConnections++;
+          _totalConnections.incrementAndGet();
 
           if (_debug && log.canLog(Level.DEBUG))
           { log.log(Level.INFO,"Got connection from "+sock.getInetAddress().getHostAddress());
@@ -485,7 +598,7 @@ public class Listener
             if (_connectionTimeout>0)
             { sock.setSoTimeout(_connectionTimeout);
             }
-            _handler.handleConnection(sock,_factory);
+            handler.handleConnection(sock,_factory);
           }
           catch (Throwable e)
           {
@@ -547,9 +660,45 @@ public class Listener
     }
     catch (Exception x)
     { }
+
+    if (_serverSockets!=null)
+    {
+      for (ServerSocket socket: _serverSockets)
+      { 
+        try
+        { 
+          if (socket!=null)
+          { socket.close();
+          }
+        }
+        catch (IOException x)
+        { }
+      }
+    }
   }
 
   private String getSocketDescription()
   { return _shunt?_shuntServerSocket.toString():_serverSocket.toString();
   }
+
+  /**
+   * Accepts connections on an additional server socket
+   */
+  class Acceptor
+    implements Runnable
+  {
+    private final ServerSocket _socket;
+    private final ConnectionHandler _acceptorHandler;
+
+    Acceptor(ServerSocket socket,ConnectionHandler handler)
+    { 
+      _socket=socket;
+      _acceptorHandler=handler;
+    }
+
+    @Override
+    public void run()
+    { acceptConnections(_socket,_acceptorHandler);
+    }
+  }
 }
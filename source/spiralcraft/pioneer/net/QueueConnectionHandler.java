@@ -22,24 +22,61 @@
  *   ConnectionHandlerFactory in order to
  *   create new ConnectionHandlers that are
  *   pooled to process requests.
+ *
+ * Connections are handed directly to an idle worker
+ *   when one is waiting, otherwise they are queued
+ *   and a new worker is started if the high water
+ *   thread count permits. Workers take connections
+ *   directly from the queue, so no lock is held
+ *   between the accepting thread and the worker.
+ *   Workers above the initial thread count that
+ *   stay idle for the idleRetireSeconds exit.
+ *
+ * Admission control is enabled by specifying a
+ *   targetQueueDelayMs. When the minimum time that
+ *   connections spend in the queue stays above the
+ *   target for a whole queueDelayInterval, connections
+ *   that cannot be handed to an idle worker are shed
+ *   by writing the shedResponse (eg. a 503) and closing
+ *   them. Connections that have waited longer than the
+ *   maxQueueDelayMs are closed without being handled.
+ *
+ * With adaptiveSizing enabled, the number of worker
+ *   threads is sized from the observed connection
+ *   arrival rate and the time each connection occupies
+ *   a worker (Little's law), within the initial and
+ *   high water thread counts. Workers are added
+ *   immediately when the queue delay exceeds the
+ *   growQueueDelayMs, which is also checked on a
+ *   timer while connections are queued, so the pool
+ *   grows while connections wait even if no new
+ *   connections arrive. Idle workers
+ *   above the target are retired one at a time.
  *   
  */
 package spiralcraft.pioneer.net;
 
 import java.net.Socket;
 
-import spiralcraft.pioneer.pool.ResourceFactory;
-import spiralcraft.pioneer.pool.Pool;
-
-import java.util.LinkedList;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLSocket;
 
 import spiralcraft.log.Level;
 import spiralcraft.log.ClassLog;
 
+import spiralcraft.pioneer.util.LatencyHistogram;
 import spiralcraft.pioneer.util.ThrowableUtil;
 
+import spiralcraft.time.Scheduler;
+
 import java.io.IOException;
+import java.io.OutputStream;
 
 import spiralcraft.meter.MeterContext;
 import spiralcraft.meter.Meter;
@@ -51,53 +88,141 @@ public class QueueConnectionHandler
 
   private ClassLog _log=ClassLog.getInstance(QueueConnectionHandler.class);
 
+  /**
+   * Placed on the queue once for each worker to shut it down
+   */
+  private static final SocketRef SHUTDOWN=new SocketRef(null,null);
+
 	protected ConnectionHandlerFactory _factory;
-  private Pool _threadPool=new Pool();
-  private final LinkedList<SocketRef> _queue
-    =new LinkedList<>();
-  private final Object _queueMonitor=new Object();
-  private final DispatchThread _dispatchThread=new DispatchThread();
-//  private int _maxQueueLength=500;
-  private boolean _initialized=false;
-  private boolean _finished=false;
+  private final LinkedTransferQueue<SocketRef> _queue
+    =new LinkedTransferQueue<>();
+  private final AtomicInteger _queueSize=new AtomicInteger(0);
+  private final AtomicInteger _threadCount=new AtomicInteger(0);
+  private final AtomicInteger _idleCount=new AtomicInteger(0);
+  private int _initialThreadCount=1;
+  private int _highWaterThreadCount=200;
+  private int _lowWaterThreadCount=1;
+  private volatile boolean _initialized=false;
+  private volatile boolean _finished=false;
+  private boolean _debug;
+
+  private long _targetQueueDelayNanos=0;
+  private long _queueDelayIntervalNanos=TimeUnit.MILLISECONDS.toNanos(100);
+  private long _maxQueueDelayNanos=0;
+  private byte[] _shedResponse;
+  private final AtomicLong _intervalStart=new AtomicLong(System.nanoTime());
+  private final AtomicLong _intervalMinSojourn=new AtomicLong(Long.MAX_VALUE);
+  private volatile boolean _shedding;
+
+  private final LatencyHistogram _sojournHistogram=new LatencyHistogram();
+  private final AtomicLong _statsStart=new AtomicLong(System.nanoTime());
+  private long _statsIntervalNanos=TimeUnit.SECONDS.toNanos(1);
+  private volatile long _lastSojournP50;
+  private volatile long _lastSojournP90;
+  private volatile long _lastSojournP99;
+
+  private static final double SIZING_HEADROOM=1.25;
+  private static final double SIZING_SMOOTHING=0.3;
+
+  private boolean _adaptiveSizing;
+  private long _growQueueDelayNanos=TimeUnit.MILLISECONDS.toNanos(10);
+  private long _idleRetireNanos=TimeUnit.SECONDS.toNanos(30);
+  private long _sizingIntervalNanos=TimeUnit.SECONDS.toNanos(1);
+  private final LongAdder _arrivals=new LongAdder();
+  private final LongAdder _serviceCount=new LongAdder();
+  private final LongAdder _serviceNanos=new LongAdder();
+  private final AtomicLong _sizingStart=new AtomicLong(System.nanoTime());
+  private final AtomicLong _lastRetire=new AtomicLong(System.nanoTime());
+  private volatile double _arrivalRate;
+  private volatile double _serviceTime;
+  private volatile int _targetThreadCount;
+  private volatile long _lastArrivalRate;
+  private volatile long _lastServiceTimeMs;
+  private volatile int _lastTargetThreadCount;
+  private volatile SizingMonitor _sizingMonitor;
+
   private Meter _meter;
   private Register _queueSizeRegister;
   private Register _connectsRegister;
-
-
-  public QueueConnectionHandler()
-  {
-    _threadPool.setConserve(true);
-    setInitialThreadCount(1);
-    setHighWaterThreadCount(200);
-    setLowWaterThreadCount(1);
-  }
+  private Register _shedRegister;
+  private Register _expiredRegister;
+  private Register _sojournP50Register;
+  private Register _sojournP90Register;
+  private Register _sojournP99Register;
+
+  private Meter _threadMeter;
+  private Register _availableRegister;
+  private Register _checkedOutRegister;
+  private Register _checkOutsRegister;
+  private Register _checkInsRegister;
+  private Register _clientDiscardsRegister;
+  private Register _waitsRegister;
+  private Register _addsRegister;
+  private Register _removesRegister;
+  private Register _targetWorkersRegister;
+  private Register _arrivalRateRegister;
+  private Register _serviceTimeRegister;
 
   public void installMeter(MeterContext meterContext)
   { 
     _meter=meterContext.meter("requestQueue");
     _queueSizeRegister=_meter.register("queueSize");
     _connectsRegister=_meter.register("connects");
-
-    _threadPool.installMeter(meterContext);
+    _shedRegister=_meter.register("shed");
+    _expiredRegister=_meter.register("expired");
+    _sojournP50Register=_meter.register("sojournP50Us");
+    _sojournP90Register=_meter.register("sojournP90Us");
+    _sojournP99Register=_meter.register("sojournP99Us");
+
+    _threadMeter=meterContext.meter("connectionPool");
+    _availableRegister=_threadMeter.register("available");
+    _checkedOutRegister=_threadMeter.register("checkedOut");
+    _checkOutsRegister=_threadMeter.register("checkOuts");
+    _checkInsRegister=_threadMeter.register("checkIns");
+    _clientDiscardsRegister=_threadMeter.register("clientDiscards");
+    _waitsRegister=_threadMeter.register("waits");
+    _addsRegister=_threadMeter.register("adds");
+    _removesRegister=_threadMeter.register("removes");
+    _targetWorkersRegister=_threadMeter.register("targetWorkers");
+    _arrivalRateRegister=_threadMeter.register("arrivalRate");
+    _serviceTimeRegister=_threadMeter.register("serviceTimeMs");
   }
 
   public void init()
   {
-    _threadPool.setResourceFactory(new ThreadFactory());
-    _threadPool.init();
-    _dispatchThread.start();
+    if (_factory==null)
+    { throw new IllegalStateException("No ConnectionHandlerFactory set-up");
+    }
+    _finished=false;
+    _targetThreadCount=_initialThreadCount;
+    for (int i=0;i<_initialThreadCount;i++)
+    { startWorker();
+    }
+    if (_adaptiveSizing)
+    { _sizingMonitor=new SizingMonitor();
+    }
     _initialized=true;
   }
 
   public void stop()
   {
     _log.log(Level.INFO,"QueueConnectionHandler stopping");
-    synchronized (_queueMonitor)
-    {
-      _finished=true;
-      _threadPool.stop();
-      _queueMonitor.notify();
+    _finished=true;
+    _sizingMonitor=null;
+
+    // Ignore pending connections by closing sockets
+    SocketRef ref;
+    while ( (ref=_queue.poll())!=null)
+    { 
+      if (ref!=SHUTDOWN)
+      { discard(ref);
+      }
+    }
+
+    // Busy workers will exit when they finish their current connection
+    int count=_threadCount.get();
+    for (int i=0;i<count;i++)
+    { _queue.offer(SHUTDOWN);
     }
   }
 
@@ -110,7 +235,7 @@ public class QueueConnectionHandler
    *   accepting requests.
    */
   public void setInitialThreadCount(int threads)
-  { _threadPool.setInitialSize(threads);
+  { _initialThreadCount=threads;
   }
 
   /**
@@ -118,7 +243,7 @@ public class QueueConnectionHandler
    *   to volume demand.
    */
   public void setHighWaterThreadCount(int threads)
-  { _threadPool.setMaxSize(threads);
+  { _highWaterThreadCount=threads;
   }
 
   /**
@@ -126,23 +251,111 @@ public class QueueConnectionHandler
    *   in response to volume demand.
    */
   public void setLowWaterThreadCount(int threads)
-  { _threadPool.setMinAvailable(threads);
+  { _lowWaterThreadCount=threads;
   }
 
   public void setDebug(boolean debug)
-  { _threadPool.setDebug(debug);
+  { _debug=debug;
+  }
+
+  /**
+   * Specify the queue delay above which new connections will be shed if
+   *   it persists for a whole queueDelayInterval. A value of 0 (the
+   *   default) disables shedding.
+   */
+  public void setTargetQueueDelayMs(int ms)
+  { _targetQueueDelayNanos=TimeUnit.MILLISECONDS.toNanos(ms);
+  }
+
+  /**
+   * Specify the interval over which the minimum queue delay is compared
+   *   to the targetQueueDelay. Defaults to 100ms.
+   */
+  public void setQueueDelayIntervalMs(int ms)
+  { _queueDelayIntervalNanos=TimeUnit.MILLISECONDS.toNanos(ms);
+  }
+
+  /**
+   * Specify the maximum time a connection will wait in the queue before
+   *   it is closed without being handled. A value of 0 (the default)
+   *   waits indefinitely.
+   */
+  public void setMaxQueueDelayMs(int ms)
+  { _maxQueueDelayNanos=TimeUnit.MILLISECONDS.toNanos(ms);
+  }
+
+  /**
+   * Specify the bytes written to a connection before it is closed when
+   *   it is shed. If null, shed connections are just closed. Never written
+   *   to SSL connections.
+   */
+  public void setShedResponse(byte[] shedResponse)
+  { _shedResponse=shedResponse;
+  }
+
+  public byte[] getShedResponse()
+  { return _shedResponse;
+  }
+
+  /**
+   * Size the number of worker threads from the observed arrival rate
+   *   and service time, between the initial and high water thread
+   *   counts, instead of adding a thread whenever a connection is queued.
+   */
+  public void setAdaptiveSizing(boolean adaptiveSizing)
+  { _adaptiveSizing=adaptiveSizing;
+  }
+
+  /**
+   * When adaptiveSizing, the queue delay above which a worker thread
+   *   will be added immediately. Defaults to 10ms.
+   */
+  public void setGrowQueueDelayMs(int ms)
+  { _growQueueDelayNanos=TimeUnit.MILLISECONDS.toNanos(ms);
+  }
+
+  /**
+   * How long a worker thread above the initial thread count (or the
+   *   target count when adaptiveSizing) must be idle before it is
+   *   retired. Defaults to 30 seconds.
+   */
+  public void setIdleRetireSeconds(int seconds)
+  { _idleRetireNanos=TimeUnit.SECONDS.toNanos(seconds);
+  }
+
+  /**
+   * When adaptiveSizing, how often the target thread count is 
+   *   recomputed. Defaults to 1000ms.
+   */
+  public void setSizingIntervalMs(int ms)
+  { _sizingIntervalNanos=TimeUnit.MILLISECONDS.toNanos(ms);
+  }
+
+  /**
+   * The number of worker threads the adaptive sizing is aiming for
+   */
+  public int getTargetThreadCount()
+  { return _targetThreadCount;
+  }
+
+  /**
+   * Whether new connections that would otherwise be queued are currently
+   *   being shed.
+   */
+  public boolean isShedding()
+  { return _shedding;
   }
 
 	public int getQueueSize()
-	{ return _queue.size();
+	{ return _queueSize.get();
 	}
 
 	public int getNumOutstandingThreads()
-	{ return _threadPool.getTotalSize()-_threadPool.getNumAvailable();
+	{ return _threadCount.get()-_idleCount.get();
 	}
 
 	public int getNumAvailableThreads()
-	{ return _threadPool.getNumAvailable();
+	{ return _idleCount.get();
 	}
 
   /**
@@ -166,126 +379,387 @@ public class QueueConnectionHandler
       if (_meter!=null)
       { _connectsRegister.incrementValue();
       }
-      synchronized (_queueMonitor)
+
+      SocketRef ref=new SocketRef(sock,factory);
+      ref.enqueueTime=System.nanoTime();
+      if (_adaptiveSizing)
       { 
-        _queue.add(new SocketRef(sock,factory));
+        _arrivals.increment();
+        checkSizing(ref.enqueueTime);
+      }
+      if (!_queue.tryTransfer(ref))
+      {
+        if (_targetQueueDelayNanos>0)
+        {
+          checkQueueDelay(ref.enqueueTime);
+          if (_shedding)
+          { 
+            shed(ref);
+            return;
+          }
+        }
+
+        // No worker is waiting- queue the connection and add a worker
+        //   if we're allowed to.
+        ref.queued=true;
+        _queueSize.incrementAndGet();
         if (_meter!=null)
-        { _queueSizeRegister.incrementValue();
+        { 
+          _queueSizeRegister.incrementValue();
+          _waitsRegister.incrementValue();
+        }
+        _queue.offer(ref);
+        if (!_adaptiveSizing
+            || _threadCount.get()<_targetThreadCount
+            || queueDelay(System.nanoTime())>_growQueueDelayNanos
+            )
+        { startWorker();
+        }
+
+        SizingMonitor monitor=_sizingMonitor;
+        if (monitor!=null)
+        { monitor.arm();
         }
-        _queueMonitor.notify();
       }
     }
   }
 
-  private static final AtomicInteger _handlerCount
-    =new AtomicInteger(0);
+  /**
+   * The time the oldest queued connection has been waiting
+   */
+  private long queueDelay(long now)
+  {
+    SocketRef head=_queue.peek();
+    return (head!=null && head!=SHUTDOWN)?now-head.enqueueTime:0;
+  }
 
-  class DispatchThread
-    extends Thread
+  /**
+   * At the end of each sizing interval, update the smoothed arrival
+   *   rate and service time, and re-compute the number of worker threads
+   *   needed to serve the load (arrival rate x service time).
+   */
+  private void checkSizing(long now)
   {
-    public DispatchThread()
+    long start=_sizingStart.get();
+    if (now-start<_sizingIntervalNanos
+        || !_sizingStart.compareAndSet(start,now)
+        )
+    { return;
+    }
+
+    double seconds=(now-start)/1000000000.0;
+    long arrivals=_arrivals.sumThenReset();
+    long serviceCount=_serviceCount.sumThenReset();
+    long serviceNanos=_serviceNanos.sumThenReset();
+
+    _arrivalRate
+      =SIZING_SMOOTHING*(arrivals/seconds)
+      +(1-SIZING_SMOOTHING)*_arrivalRate;
+    if (serviceCount>0)
+    {
+      _serviceTime
+        =SIZING_SMOOTHING*(serviceNanos/1000000000.0/serviceCount)
+        +(1-SIZING_SMOOTHING)*_serviceTime;
+    }
+
+    int target
+      =(int) Math.ceil(_arrivalRate*_serviceTime*SIZING_HEADROOM)
+      +_lowWaterThreadCount;
+    target=Math.max(_initialThreadCount,Math.min(_highWaterThreadCount,target));
+    if (_debug && target!=_targetThreadCount)
     { 
-      super("ConnectionHandlerDispatch");
-      setDaemon(true);
-      setPriority(Thread.MAX_PRIORITY-1);
+      _log.fine
+        ("Target thread count "+target+" (arrival rate "+(long) _arrivalRate
+        +"/s, service time "+(long) (_serviceTime*1000)+"ms)"
+        );
     }
+    _targetThreadCount=target;
 
-    @Override
-    public void run()
+    if (_meter!=null)
     {
-      try
-      {
-        while (!_finished)
-        {
-          SocketRef sock=null;
-          synchronized(_queueMonitor)
-          {
-            if (_queue.size()==0 && !_finished)
-            { _queueMonitor.wait();
-            }
-            if (_queue.size()>0 && !_finished)
-            { 
-              sock=_queue.removeFirst();
-              if (_meter!=null)
-              { _queueSizeRegister.decrementValue();
-              }
-            }
-          }
-          if (sock!=null)
-          {
-            if (!_finished)
-            {
-              // Handle the connection
-              ConnectionHandlerThread thread
-                =(ConnectionHandlerThread) _threadPool.checkout();
-        
-              thread.handleConnection(sock);
-            }
-            else
-            {
-              // Ignore the request
-              // Close the socket
-              try
-              { sock.socket.close();
-              }
-              catch (IOException x)
-              { }
-            }
-          }
-        }
+      long arrivalRate=(long) _arrivalRate;
+      long serviceTimeMs=(long) (_serviceTime*1000);
+      _targetWorkersRegister.adjustValue(target-_lastTargetThreadCount);
+      _arrivalRateRegister.adjustValue(arrivalRate-_lastArrivalRate);
+      _serviceTimeRegister.adjustValue(serviceTimeMs-_lastServiceTimeMs);
+      _lastTargetThreadCount=target;
+      _lastArrivalRate=arrivalRate;
+      _lastServiceTimeMs=serviceTimeMs;
+    }
+
+    while (_threadCount.get()<target && startWorker())
+    { }
+  }
+
+  /**
+   * Whether an idle worker should exit because there are more workers
+   *   than the target, which is the initial thread count unless
+   *   adaptiveSizing is enabled. Only one worker is retired per sizing
+   *   interval.
+   */
+  private boolean shouldRetire(long now)
+  {
+    if (_finished || _threadCount.get()<=_targetThreadCount)
+    { return false;
+    }
+    long last=_lastRetire.get();
+    return now-last>=_sizingIntervalNanos
+      && _lastRetire.compareAndSet(last,now);
+  }
+
+  /**
+   * Start a new worker thread if the high water thread count has not
+   *   been reached.
+   */
+  private boolean startWorker()
+  {
+    while (true)
+    {
+      int count=_threadCount.get();
+      if (_finished || count>=_highWaterThreadCount)
+      { return false;
+      }
+      if (_threadCount.compareAndSet(count,count+1))
+      { break;
+      }
+    }
+
+    try
+    {
+      ConnectionHandlerThread thread
+        =new ConnectionHandlerThread(_factory.createConnectionHandler());
+      thread.setDaemon(true);
+      thread.start();
+    }
+    catch (Throwable x)
+    {
+      _threadCount.decrementAndGet();
+      _log.log(Level.SEVERE
+              ,"Unable to start ConnectionHandler thread: "
+              +ThrowableUtil.getStackTrace(x)
+              );
+      return false;
+    }
+
+    if (_meter!=null)
+    { _addsRegister.incrementValue();
+    }
+    if (_debug)
+    { _log.fine("Started ConnectionHandler thread #"+_threadCount.get());
+    }
+    return true;
+  }
+
+  /**
+   * At the end of each interval, start or stop shedding depending on
+   *   whether the minimum queue delay in the interval exceeded the target.
+   */
+  private void checkQueueDelay(long now)
+  {
+    long start=_intervalStart.get();
+    if (now-start>=_queueDelayIntervalNanos
+        && _intervalStart.compareAndSet(start,now)
+        )
+    {
+      long minSojourn=_intervalMinSojourn.getAndSet(Long.MAX_VALUE);
+      if (minSojourn==Long.MAX_VALUE)
+      { 
+        // Nothing left the queue during the interval- use the age of
+        //   whatever is waiting.
+        SocketRef head=_queue.peek();
+        minSojourn=(head!=null && head!=SHUTDOWN)?now-head.enqueueTime:0;
+      }
 
-        // Clean up queue
-        while (_queue.size()>0)
+      boolean shedding=minSojourn>_targetQueueDelayNanos;
+      if (shedding!=_shedding)
+      {
+        _shedding=shedding;
+        if (_debug)
         { 
-          // Ignore pending connections
-          //   by closing sockets
-          SocketRef sock= _queue.removeFirst();
-          if (_meter!=null)
-          { _queueSizeRegister.decrementValue();
-          }
-          try
-          { sock.socket.close();
-          }
-          catch (IOException x)
-          { }
+          _log.fine
+            ((shedding?"Started":"Stopped")+" shedding connections, min queue delay "
+            +TimeUnit.NANOSECONDS.toMillis(minSojourn)+"ms"
+            );
         }
       }
-      catch (InterruptedException x)
+    }
+  }
+
+  /**
+   * Record the time a connection spent in the queue
+   */
+  private void recordSojourn(long now,long sojourn)
+  {
+    if (_targetQueueDelayNanos>0)
+    {
+      if (sojourn<_intervalMinSojourn.get())
+      { _intervalMinSojourn.accumulateAndGet(sojourn,Math::min);
+      }
+      checkQueueDelay(now);
+    }
+
+    if (_meter!=null)
+    {
+      _sojournHistogram.record(TimeUnit.NANOSECONDS.toMicros(sojourn));
+      long start=_statsStart.get();
+      if (now-start>=_statsIntervalNanos && _statsStart.compareAndSet(start,now))
       {
+        long[] counts=_sojournHistogram.drain();
+        long p50=LatencyHistogram.percentile(counts,.5);
+        long p90=LatencyHistogram.percentile(counts,.9);
+        long p99=LatencyHistogram.percentile(counts,.99);
+        _sojournP50Register.adjustValue(p50-_lastSojournP50);
+        _sojournP90Register.adjustValue(p90-_lastSojournP90);
+        _sojournP99Register.adjustValue(p99-_lastSojournP99);
+        _lastSojournP50=p50;
+        _lastSojournP90=p90;
+        _lastSojournP99=p99;
       }
     }
+  }
 
-    
+  /**
+   * Reject a connection, writing the shedResponse if there is one
+   */
+  private void shed(SocketRef ref)
+  {
+    if (_meter!=null)
+    { _shedRegister.incrementValue();
+    }
+
+    byte[] response=_shedResponse;
+    if (response!=null && !(ref.socket instanceof SSLSocket))
+    {
+      try
+      {
+        OutputStream out=ref.socket.getOutputStream();
+        out.write(response);
+        out.flush();
+        ref.socket.shutdownOutput();
+      }
+      catch (IOException x)
+      { }
+    }
+    close(ref.socket);
   }
 
-  class ThreadFactory
-    implements ResourceFactory
+  /**
+   * Keep the low water number of threads available to take new
+   *   connections.
+   */
+  private void ensureAvailable()
   {
-    @Override
-    public Object createResource()
+    if (_idleCount.get()<_lowWaterThreadCount)
+    { startWorker();
+    }
+  }
+
+  private void discard(SocketRef ref)
+  {
+    if (ref.queued)
+    { 
+      _queueSize.decrementAndGet();
+      if (_meter!=null)
+      { _queueSizeRegister.decrementValue();
+      }
+    }
+    close(ref.socket);
+  }
+
+  private void close(Socket socket)
+  {
+    try
+    { socket.close();
+    }
+    catch (IOException x)
+    { }
+  }
+
+  /**
+   * When adaptiveSizing, re-checks the queue delay while connections are
+   *   queued, so workers are added while connections wait even when no
+   *   new connections arrive to trigger the check. The monitor is armed
+   *   when a connection is queued, runs when the oldest queued connection
+   *   will have waited growQueueDelay, and stops once the queue is empty.
+   */
+  class SizingMonitor
+    implements Runnable
+  {
+    private final AtomicBoolean _armed=new AtomicBoolean();
+
+    /**
+     * Schedule a check, unless one is already scheduled
+     */
+    void arm()
     {
-      ConnectionHandlerThread thread
-        =new ConnectionHandlerThread(_factory.createConnectionHandler());
-      thread.setDaemon(true);
-      thread.start();
+      if (_armed.compareAndSet(false,true))
+      { schedule(System.nanoTime());
+      }
+    }
 
-      return thread;
+    private void schedule(long now)
+    {
+      long wait=_growQueueDelayNanos-queueDelay(now);
+      if (wait<=0)
+      {
+        // Already past growQueueDelay- check again after a worker has
+        //   had time to take a connection
+        wait=_growQueueDelayNanos;
+      }
+      Scheduler.instance().scheduleIn
+        (this
+        ,Math.max(1,TimeUnit.NANOSECONDS.toMillis(wait))
+        );
     }
 
     @Override
-    public void discardResource(Object resource)
+    public void run()
     {
-      ((ConnectionHandlerThread) resource).finish();
+      if (_sizingMonitor!=this)
+      { return;
+      }
+
+      long now=System.nanoTime();
+      try
+      {
+        checkSizing(now);
+        if (queueDelay(now)>_growQueueDelayNanos)
+        { startWorker();
+        }
+      }
+      catch (Exception x)
+      { _log.log(Level.SEVERE,"Exception while sizing worker threads. "+x.toString());
+      }
+      finally
+      {
+        if (_sizingMonitor==this)
+        {
+          now=System.nanoTime();
+          if (queueDelay(now)>0)
+          { schedule(now);
+          }
+          else
+          {
+            _armed.set(false);
+
+            // A connection queued before the flag was cleared didn't
+            //   arm the monitor
+            if (queueDelay(System.nanoTime())>0)
+            { arm();
+            }
+          }
+        }
+      }
     }
   }
 
+  private static final AtomicInteger _handlerCount
+    =new AtomicInteger(0);
+
 	class ConnectionHandlerThread
 		extends Thread
 	{
     private final ConnectionHandler _handler;
-    private volatile SocketRef _socket;
-    private boolean _done=false;
-    private final Object _monitor=new Object();
 
 		public ConnectionHandlerThread(ConnectionHandler handler)
 		{ 
@@ -294,60 +768,141 @@ public class QueueConnectionHandler
       
 		}
 
-    public void finish()
-    {
-      synchronized (_monitor)
-      {
-        _done=true;
-        _monitor.notify();
-      }
-    }
-
-    public void handleConnection(SocketRef sock)
-    {
-      synchronized (_monitor) 
-      {
-        _socket=sock;
-        _monitor.notify();
-      }
-    }
-
 		@Override
     public void run()
 		{
+      boolean failed=false;
       try
       {
-        while (!_done)
+        while (true)
         {
-          synchronized (_monitor)
+          SocketRef ref;
+          _idleCount.incrementAndGet();
+          if (_meter!=null)
+          { _availableRegister.incrementValue();
+          }
+          try
+          { ref=_queue.poll(_idleRetireNanos,TimeUnit.NANOSECONDS);
+          }
+          finally
           {
-            if (!_done && _socket==null)
-            { _monitor.wait();
+            _idleCount.decrementAndGet();
+            if (_meter!=null)
+            { _availableRegister.decrementValue();
             }
+          }
 
-            if (_socket!=null)
+          if (ref==null)
+          {
+            long now=System.nanoTime();
+            if (_adaptiveSizing)
+            { checkSizing(now);
+            }
+            if (shouldRetire(now))
             {
-              try
-              {
-                _handler.handleConnection(_socket.socket,_socket.factory);
-                _socket=null;
-                _threadPool.checkin(this);
-              }
-              catch (Throwable x)
-              { 
-                _socket=null;
-                _log.log(Level.SEVERE
-                        ,"Uncaught exception- ConnectionHandler assumed unsalvagable\r\n"
-                        +ThrowableUtil.getStackTrace(x)
-                        );
-                _threadPool.discard(this);
+              if (_debug)
+              { _log.fine("Retiring idle "+getName());
               }
+              break;
+            }
+            continue;
+          }
+
+          if (ref==SHUTDOWN)
+          { break;
+          }
+
+          if (_finished)
+          { 
+            discard(ref);
+            continue;
+          }
+
+          if (ref.queued)
+          {
+            _queueSize.decrementAndGet();
+            if (_meter!=null)
+            { _queueSizeRegister.decrementValue();
+            }
+          }
+
+          long now=System.nanoTime();
+          long sojourn=now-ref.enqueueTime;
+          recordSojourn(now,sojourn);
+          if (_adaptiveSizing && sojourn>_growQueueDelayNanos)
+          { startWorker();
+          }
+          if (_maxQueueDelayNanos>0 && sojourn>_maxQueueDelayNanos)
+          {
+            // The client has most likely given up
+            if (_meter!=null)
+            { _expiredRegister.incrementValue();
+            }
+            close(ref.socket);
+            continue;
+          }
+
+          if (_meter!=null)
+          { 
+            _checkOutsRegister.incrementValue();
+            _checkedOutRegister.incrementValue();
+          }
+          ensureAvailable();
+
+          try
+          {
+            _handler.handleConnection(ref.socket,ref.factory);
+            if (_meter!=null)
+            { _checkInsRegister.incrementValue();
+            }
+            if (_adaptiveSizing)
+            {
+              long end=System.nanoTime();
+              _serviceCount.increment();
+              _serviceNanos.add(end-now);
+              checkSizing(end);
+            }
+          }
+          catch (Throwable x)
+          { 
+            _log.log(Level.SEVERE
+                    ,"Uncaught exception- ConnectionHandler assumed unsalvagable\r\n"
+                    +ThrowableUtil.getStackTrace(x)
+                    );
+            if (_meter!=null)
+            { _clientDiscardsRegister.incrementValue();
+            }
+            failed=true;
+            break;
+          }
+          finally
+          {
+            if (_meter!=null)
+            { _checkedOutRegister.decrementValue();
             }
           }
         }
       }
       catch (InterruptedException x)
       { x.printStackTrace(); 
+      }
+      finally
+      {
+        _threadCount.decrementAndGet();
+        if (_meter!=null)
+        { _removesRegister.incrementValue();
+        }
+      }
+
+      if (failed)
+      { 
+        // Replace this thread if it was needed
+        if (_threadCount.get()<_initialThreadCount)
+        { startWorker();
+        }
+        else
+        { ensureAvailable();
+        }
       }
 		}
 
@@ -369,6 +924,8 @@ class SocketRef
 {
   final Socket socket;
   final ServerSocketFactory factory;
+  boolean queued;
+  long enqueueTime;
   
   SocketRef(Socket socket,ServerSocketFactory factory)
   { 
@@ -18,6 +18,7 @@ package spiralcraft.pioneer.net;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
 import java.io.IOException;
 
@@ -238,6 +239,32 @@ public class SecureServerSocketFactory
   { return configureServerSocket(_delegate.createServerSocket(port,backlog,address));
   }
   
+  @Override
+  public ServerSocket createServerSocket
+    (int port,int backlog,InetAddress address,boolean reusePort)
+    throws IOException
+  {
+    if (!reusePort)
+    {
+      return address!=null
+        ?createServerSocket(port,backlog,address)
+        :createServerSocket(port,backlog);
+    }
+    
+    ServerSocket socket=_delegate.createServerSocket();
+    try
+    { 
+      StandardServerSocketFactory.setReusePort(socket);
+      socket.bind(new InetSocketAddress(address,port),backlog);
+    }
+    catch (IOException x)
+    { 
+      socket.close();
+      throw x;
+    }
+    return configureServerSocket(socket);
+  }
+  
 
   protected ServerSocket configureServerSocket(ServerSocket socket)
   { 
@@ -20,6 +20,28 @@ public interface ServerSocketFactory
 
   public ServerSocket createServerSocket(int port,int backlog,InetAddress address)
     throws IOException;
+
+  /**
+   * <p>Create a ServerSocket, optionally with SO_REUSEPORT enabled so that
+   *   several ServerSockets can be bound to the same port and have
+   *   incoming connections distributed among them by the OS.
+   * </p>
+   * 
+   * @param address The address to bind to, or null for all addresses
+   */
+  public default ServerSocket createServerSocket
+    (int port,int backlog,InetAddress address,boolean reusePort)
+    throws IOException
+  {
+    if (reusePort)
+    { 
+      throw new IOException
+        ("SO_REUSEPORT not supported by "+getClass().getName());
+    }
+    return address!=null
+      ?createServerSocket(port,backlog,address)
+      :createServerSocket(port,backlog);
+  }
     
   public int getMaxOutputFragmentLength(Socket socket);
   
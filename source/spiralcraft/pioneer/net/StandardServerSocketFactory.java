@@ -17,6 +17,9 @@ package spiralcraft.pioneer.net;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
 import java.io.IOException;
 import spiralcraft.log.ClassLog;
 
@@ -26,22 +29,100 @@ public class StandardServerSocketFactory
 
   private static ClassLog log=ClassLog.getInstance(StandardServerSocketFactory.class);
   
+  private boolean useChannels;
+  
+  /**
+   * <p>Create ServerSockets from ServerSocketChannels, so that accepted
+   *   connections are backed by a SocketChannel and can be parked on a
+   *   Selector while idle (see ConnectionParker).
+   * </p>
+   * 
+   * <p>Defaults to false
+   * </p>
+   */
+  public void setUseChannels(boolean useChannels)
+  { this.useChannels=useChannels;
+  }
+  
   @Override
   public ServerSocket createServerSocket(int port)
     throws IOException
-  { return new ServerSocket(port);
+  { 
+    return useChannels
+      ?createChannelServerSocket(port,50,null)
+      :new ServerSocket(port);
   }
 
   @Override
   public ServerSocket createServerSocket(int port,int backlog)
     throws IOException
-  { return new ServerSocket(port,backlog);
+  { 
+    return useChannels
+      ?createChannelServerSocket(port,backlog,null)
+      :new ServerSocket(port,backlog);
   }
 
   @Override
   public ServerSocket createServerSocket(int port,int backlog,InetAddress address)
     throws IOException
-  { return new ServerSocket(port,backlog,address);
+  { 
+    return useChannels
+      ?createChannelServerSocket(port,backlog,address)
+      :new ServerSocket(port,backlog,address);
+  }
+  
+  @Override
+  public ServerSocket createServerSocket
+    (int port,int backlog,InetAddress address,boolean reusePort)
+    throws IOException
+  {
+    if (!reusePort)
+    { 
+      return useChannels
+        ?createChannelServerSocket(port,backlog,address)
+        :new ServerSocket(port,backlog,address);
+    }
+    
+    ServerSocket socket
+      =useChannels?ServerSocketChannel.open().socket():new ServerSocket();
+    try
+    { 
+      setReusePort(socket);
+      socket.bind(new InetSocketAddress(address,port),backlog);
+      return socket;
+    }
+    catch (IOException x)
+    { 
+      socket.close();
+      throw x;
+    }
+  }
+  
+  private ServerSocket createChannelServerSocket
+    (int port,int backlog,InetAddress address)
+    throws IOException
+  {
+    ServerSocketChannel channel=ServerSocketChannel.open();
+    try
+    { 
+      ServerSocket socket=channel.socket();
+      socket.bind(new InetSocketAddress(address,port),backlog);
+      return socket;
+    }
+    catch (IOException x)
+    { 
+      channel.close();
+      throw x;
+    }
+  }
+  
+  static void setReusePort(ServerSocket socket)
+    throws IOException
+  {
+    if (!socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+    { throw new IOException("SO_REUSEPORT not supported on this platform");
+    }
+    socket.setOption(StandardSocketOptions.SO_REUSEPORT,true);
   }
   
   @Override
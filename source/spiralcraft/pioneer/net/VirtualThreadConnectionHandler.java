@@ -0,0 +1,286 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.net;
+
+import java.io.IOException;
+
+import java.net.Socket;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import spiralcraft.log.ClassLog;
+import spiralcraft.log.Level;
+
+import spiralcraft.meter.Meter;
+import spiralcraft.meter.MeterContext;
+import spiralcraft.meter.Register;
+
+import spiralcraft.pioneer.util.ThrowableUtil;
+
+/**
+ * <p>Handles each connection in its own virtual thread, calling a
+ *   ConnectionHandler created by the ConnectionHandlerFactory directly from
+ *   the accepting thread's hand-off.
+ * </p>
+ *
+ * <p>ConnectionHandlers are recycled through a bounded free list, so
+ *   per-handler state (eg. request and response buffers) is re-used by
+ *   subsequent connections instead of being allocated for each one.
+ * </p>
+ *
+ * <p>The number of connections handled concurrently is capped by
+ *   maxConnections. When the cap is reached, new connections are closed
+ *   immediately. handleConnection() never blocks, as it is called from
+ *   the accepting thread and from the ConnectionParker's single thread.
+ * </p>
+ *
+ * <p>Virtual threads require a Java 21 or later runtime. On older runtimes
+ *   platform daemon threads are used instead.
+ * </p>
+ */
+public class VirtualThreadConnectionHandler
+  implements ConnectionHandler
+{
+  private static final ClassLog _log
+    =ClassLog.getInstance(VirtualThreadConnectionHandler.class);
+
+  private ConnectionHandlerFactory _factory;
+  private ThreadFactory _threadFactory;
+  private Semaphore _permits;
+  private int _maxConnections=10000;
+  private int _maxIdleHandlers=256;
+  private final ConcurrentLinkedQueue<ConnectionHandler> _idleHandlers
+    =new ConcurrentLinkedQueue<>();
+  private final AtomicInteger _idleHandlerCount=new AtomicInteger(0);
+  private final AtomicInteger _activeCount=new AtomicInteger(0);
+  private volatile boolean _initialized=false;
+  private volatile boolean _finished=false;
+  private boolean _debug;
+
+  private Meter _meter;
+  private Register _connectsRegister;
+  private Register _activeRegister;
+  private Register _rejectsRegister;
+  private Register _handlersCreatedRegister;
+
+  public void installMeter(MeterContext meterContext)
+  {
+    _meter=meterContext.meter("virtualThreads");
+    _connectsRegister=_meter.register("connects");
+    _activeRegister=_meter.register("active");
+    _rejectsRegister=_meter.register("rejects");
+    _handlersCreatedRegister=_meter.register("handlersCreated");
+  }
+
+  public void setConnectionHandlerFactory(ConnectionHandlerFactory factory)
+  { _factory=factory;
+  }
+
+  /**
+   * Specify the maximum number of connections that will be handled
+   *   concurrently.
+   */
+  public void setMaxConnections(int maxConnections)
+  {
+    if (_initialized)
+    { throw new IllegalStateException("Already initialized");
+    }
+    _maxConnections=maxConnections;
+  }
+
+  /**
+   * Specify the maximum number of idle ConnectionHandlers that will be
+   *   retained for re-use.
+   */
+  public void setMaxIdleHandlers(int maxIdleHandlers)
+  { _maxIdleHandlers=maxIdleHandlers;
+  }
+
+  public void setDebug(boolean debug)
+  { _debug=debug;
+  }
+
+  public int getNumActiveConnections()
+  { return _activeCount.get();
+  }
+
+  public int getNumIdleHandlers()
+  { return _idleHandlerCount.get();
+  }
+
+  public void init()
+  {
+    if (_factory==null)
+    { throw new IllegalStateException("No ConnectionHandlerFactory set-up");
+    }
+    _permits=new Semaphore(_maxConnections);
+    _threadFactory=createThreadFactory();
+    _finished=false;
+    _initialized=true;
+  }
+
+  public void stop()
+  {
+    _log.log(Level.INFO,"VirtualThreadConnectionHandler stopping");
+    _finished=true;
+    _idleHandlers.clear();
+    _idleHandlerCount.set(0);
+  }
+
+  @Override
+  public void handleConnection(Socket sock,ServerSocketFactory factory)
+  {
+    if (!_initialized)
+    { throw new RuntimeException("VirtualThreadConnectionHandler not initialized.");
+    }
+
+    if (_finished)
+    {
+      close(sock);
+      return;
+    }
+
+    if (_meter!=null)
+    { _connectsRegister.incrementValue();
+    }
+
+    if (!_permits.tryAcquire())
+    {
+      // Shed the connection rather than block the caller
+      if (_meter!=null)
+      { _rejectsRegister.incrementValue();
+      }
+      if (_debug)
+      { _log.fine("Connection limit "+_maxConnections+" reached, closing");
+      }
+      close(sock);
+      return;
+    }
+
+    try
+    { _threadFactory.newThread(() -> serve(sock,factory)).start();
+    }
+    catch (Throwable x)
+    {
+      _permits.release();
+      close(sock);
+      _log.log(Level.SEVERE
+              ,"Unable to start connection thread: "+ThrowableUtil.getStackTrace(x)
+              );
+    }
+  }
+
+  private void serve(Socket sock,ServerSocketFactory factory)
+  {
+    _activeCount.incrementAndGet();
+    if (_meter!=null)
+    { _activeRegister.incrementValue();
+    }
+
+    ConnectionHandler handler=checkoutHandler();
+    try
+    {
+      handler.handleConnection(sock,factory);
+      checkinHandler(handler);
+    }
+    catch (Throwable x)
+    {
+      _log.log(Level.SEVERE
+              ,"Uncaught exception- ConnectionHandler assumed unsalvagable\r\n"
+              +ThrowableUtil.getStackTrace(x)
+              );
+    }
+    finally
+    {
+      _activeCount.decrementAndGet();
+      if (_meter!=null)
+      { _activeRegister.decrementValue();
+      }
+      _permits.release();
+    }
+  }
+
+  private ConnectionHandler checkoutHandler()
+  {
+    ConnectionHandler handler=_idleHandlers.poll();
+    if (handler!=null)
+    {
+      _idleHandlerCount.decrementAndGet();
+      return handler;
+    }
+    if (_meter!=null)
+    { _handlersCreatedRegister.incrementValue();
+    }
+    return _factory.createConnectionHandler();
+  }
+
+  private void checkinHandler(ConnectionHandler handler)
+  {
+    if (!_finished && _idleHandlerCount.incrementAndGet()<=_maxIdleHandlers)
+    { _idleHandlers.add(handler);
+    }
+    else
+    { _idleHandlerCount.decrementAndGet();
+    }
+  }
+
+  private void close(Socket sock)
+  {
+    try
+    { sock.close();
+    }
+    catch (IOException x)
+    { }
+  }
+
+  private static final AtomicInteger _fallbackThreadCount
+    =new AtomicInteger(0);
+
+  /**
+   * Obtain a virtual thread factory if the runtime supports it. Resolved
+   *   reflectively so the module continues to target older runtimes.
+   */
+  private ThreadFactory createThreadFactory()
+  {
+    try
+    {
+      Class<?> builderClass=Class.forName("java.lang.Thread$Builder");
+      Object builder=Thread.class.getMethod("ofVirtual").invoke(null);
+      builder=builderClass.getMethod("name",String.class,long.class)
+        .invoke(builder,"ConnectionHandler-v",0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    }
+    catch (ReflectiveOperationException x)
+    {
+      _log.log(Level.WARNING
+              ,"Virtual threads are not supported by this runtime, "
+              +"using platform threads"
+              );
+      return (Runnable runnable) ->
+      {
+        Thread thread
+          =new Thread
+            (runnable
+            ,"ConnectionHandler-p"+_fallbackThreadCount.getAndIncrement()
+            );
+        thread.setDaemon(true);
+        return thread;
+      };
+    }
+  }
+}
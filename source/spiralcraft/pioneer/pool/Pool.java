@@ -1,17 +1,31 @@
 /**
  * Manages a pool of resources using a check-in
  *  check-out system.
+ *
+ * Available resources are kept on a set of lock-free
+ *  stacks (stripes). Each thread prefers its own stripe,
+ *  so concurrent check-outs and check-ins rarely touch the
+ *  same memory. Checked out resources are tracked in a
+ *  registry that is only scanned by the Keeper, which
+ *  discards overdue resources off the check-out path.
+ *
+ * Threads waiting for a resource are served in FIFO
+ *  order- a returned resource is handed directly to
+ *  the longest waiting thread. A check-out can specify
+ *  a timeout, after which it gives up and returns null.
  */
 package spiralcraft.pioneer.pool;
 
-import java.util.Stack;
-
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
+import spiralcraft.pioneer.util.LatencyHistogram;
 import spiralcraft.pioneer.util.ThrowableUtil;
 
 import spiralcraft.time.Clock;
@@ -24,24 +38,38 @@ import spiralcraft.meter.MeterContext;
 import spiralcraft.meter.Meter;
 import spiralcraft.meter.Register;
 
-public class Pool
+public class Pool<T>
 {
   private static final ClassLog _log=ClassLog.getInstance(Pool.class);
 
+  private static final int AVAILABLE=0;
+  private static final int OUT=1;
+  private static final int DISCARDED=2;
+
+  private static final int MAX_STRIPES=16;
+
   private int _overdueSeconds=600;
-  private ResourceFactory _factory;
+  private ResourceFactory<T> _factory;
   private int _idleSeconds=3600;
   private int _maxSize=1;
   private int _initialSize=1;
   private int _minAvailable=0;
-  private long _lastUse=0;
+  private volatile long _lastUse=0;
   private long _maintenanceInterval=500;
   private Keeper _keeper=new Keeper();
-  private Stack<Reference> _available=new Stack<Reference>();
-  private HashMap<Object,Reference> _out=new HashMap<Object,Reference>();
-  private Object _monitor=new Object();
-  private boolean _started=false;
-//  private Object _startLock=new Object();
+  private final Stripe<T>[] _stripes;
+  private final int _stripeMask;
+  private final Map<T,Reference<T>> _registry
+    =new ConcurrentHashMap<>();
+  private final AtomicInteger _availableCount=new AtomicInteger(0);
+  private final AtomicInteger _totalCount=new AtomicInteger(0);
+  private final ConcurrentLinkedQueue<Waiter> _waiters
+    =new ConcurrentLinkedQueue<>();
+  private final LatencyHistogram _waitHistogram=new LatencyHistogram();
+  private long _lastWaitP50;
+  private long _lastWaitP90;
+  private long _lastWaitP99;
+  private volatile boolean _started=false;
   private boolean _conserve=false;
 
   private Meter _meter;
@@ -52,16 +80,35 @@ public class Pool
   private Register _clientDiscardsRegister;
   private Register _waitsRegister;
   private Register _waitingRegister;
+  private Register _waitTimeoutsRegister;
+  private Register _waitP50Register;
+  private Register _waitP90Register;
+  private Register _waitP99Register;
   private Register _overdueDiscardsRegister;
   private Register _addsRegister;
   private Register _removesRegister;
-  
-  private boolean debug;
 
+  private boolean debug;
 
+  public Pool()
+  {
+    int stripes=1;
+    while (stripes<Runtime.getRuntime().availableProcessors()
+           && stripes<MAX_STRIPES
+           )
+    { stripes<<=1;
+    }
+    @SuppressWarnings("unchecked")
+    Stripe<T>[] stripeArray=(Stripe<T>[]) new Stripe<?>[stripes];
+    for (int i=0;i<stripes;i++)
+    { stripeArray[i]=new Stripe<T>();
+    }
+    _stripes=stripeArray;
+    _stripeMask=stripes-1;
+  }
 
   public void installMeter(MeterContext meterContext)
-  { 
+  {
     _meter=meterContext.meter("connectionPool");
     _availableRegister
       =_meter.register("available");
@@ -77,6 +124,14 @@ public class Pool
       =_meter.register("waits");
     _waitingRegister
       =_meter.register("waiting");
+    _waitTimeoutsRegister
+      =_meter.register("waitTimeouts");
+    _waitP50Register
+      =_meter.register("waitP50Us");
+    _waitP90Register
+      =_meter.register("waitP90Us");
+    _waitP99Register
+      =_meter.register("waitP99Us");
     _overdueDiscardsRegister
       =_meter.register("overdueDiscards");
     _addsRegister
@@ -89,7 +144,7 @@ public class Pool
   public void setDebug(boolean debug)
   { this.debug=debug;
   }
-  
+
   /**
    * Conserve resources by not discarding them when demand drops,
    *   in order to promote maximum reuse.
@@ -103,7 +158,7 @@ public class Pool
    *   will be created.
    */
   public void setInitialSize(int size)
-  { 
+  {
     if (size<=0)
     { throw new IllegalArgumentException("Initial size of pool must be at least 1");
     }
@@ -113,13 +168,13 @@ public class Pool
   /**
    * Specify the minimum number of available
    *   objects. When the number of available
-   *   objects crosses this threshold, new 
+   *   objects crosses this threshold, new
    *   objects will be created until either
    *   this threshold is reached or the maxSize
    *   is reached.
    */
   public void setMinAvailable(int size)
-  { 
+  {
     if (size<=0)
     { throw new IllegalArgumentException("Minimum available objects in pool must be at least 1");
     }
@@ -143,13 +198,13 @@ public class Pool
   }
 
   /**
-   * Specify the component that creates and discards 
+   * Specify the component that creates and discards
    *   pooled objects.
    */
-  public void setResourceFactory(ResourceFactory factory)
+  public void setResourceFactory(ResourceFactory<T> factory)
   { _factory=factory;
   }
-  
+
   /**
    * Specify the maximum check-out time, after which
    *   an item will be discarded.
@@ -164,15 +219,10 @@ public class Pool
    */
   public void init()
   {
-    synchronized (_monitor)
-    {
-      restoreInitial();
-      _started=true;
-      _keeper.start();
-      _monitor.notifyAll();
-      
-    }
-    
+    restoreInitial();
+    _started=true;
+    _keeper.start();
+    wakeAllWaiters();
   }
 
   /**
@@ -180,140 +230,103 @@ public class Pool
    */
   public void stop()
   {
-    synchronized (_monitor)
-    {
-      _started=false;
-      _keeper.stop();
-      while (!_available.isEmpty())
-      { 
-        if (_meter!=null)
-        { _availableRegister.decrementValue();
-        }
-        _factory.discardResource(_available.pop().resource );
-      }      
-    }
+    _started=false;
+    _keeper.stop();
+    while (remove())
+    { }
   }
 
   public int getTotalSize()
-  { return _available.size()+_out.size();
+  { return _totalCount.get();
   }
 
   public int getNumAvailable()
-  { return _available.size();
+  { return _availableCount.get();
+  }
+
+  /**
+   * Checkout an object from the pool of
+   *   available object, waiting as long as necessary.
+   */
+  public T checkout()
+  { return checkout(-1);
   }
 
   /**
    * Checkout an object from the pool of
-   *   available object.
+   *   available objects, waiting no longer than the
+   *   specified timeout for one to become available.
+   *
+   * @param timeout The maximum time to wait. If 0 or less, a single
+   *   attempt is made without waiting.
+   * @return The object, or null if none was available within the
+   *   timeout or the thread was interrupted.
+   */
+  public T checkout(long timeout,TimeUnit unit)
+  { return checkout(Math.max(0,unit.toNanos(timeout)));
+  }
+
+  /**
+   * @param timeoutNanos The maximum time to wait, 0 to not wait, or
+   *   less than 0 to wait indefinitely.
    */
-  public Object checkout()
+  private T checkout(long timeoutNanos)
   {
-    _lastUse=Clock.instance().approxTimeMillis();
-    synchronized (_monitor)
+    touch();
+    Reference<T> ref=_started?pop():null;
+    if (ref==null)
     {
-      if (!_started)
-      { 
-        _log.log(Level.INFO,"Waiting for pool to start");
-        try
-        { 
-          _monitor.wait();
-          _log.log(Level.INFO,"Notified that pool started");
-        }
-        catch (InterruptedException x)
-        {  
-          _log.log(Level.WARNING,"Checkout on startup interrupted");
-          return null;
-        }
-      }
-
-      while (_available.isEmpty())
-      { 
+      if (timeoutNanos==0)
+      {
         _keeper.wake();
-        if (_available.isEmpty())
-        {
-          try
-          { 
-            if (_meter!=null)
-            { 
-              _waitsRegister.incrementValue();
-              _waitingRegister.incrementValue();
-            }
-            
-            long time=0;
-            if (debug)
-            { 
-              _log.log(Level.INFO,"Waiting for pool");
-              time=System.currentTimeMillis();
-            }
-            _monitor.wait();
-            if (_meter!=null)
-            { _waitingRegister.decrementValue();
-            }
-            if (debug)
-            { 
-              _log.log
-                (Level.INFO,"Waited "
-                 +(System.currentTimeMillis()-time)+" for pool"
-                );
-            }
-          }
-          catch (InterruptedException x)
-          { 
-            if (_meter!=null)
-            { _waitingRegister.decrementValue();
-            }
-            return null; 
-          }
-        }
+        return null;
       }
-      Reference ref= _available.pop();
-      ref.checkOutTime=Clock.instance().approxTimeMillis();
-      _out.put(ref.resource,ref);
-      if (_meter!=null)
-      { 
-        _checkedOutRegister.incrementValue();
-        _checkOutsRegister.incrementValue();
-        _availableRegister.decrementValue();
+      ref=waitForResource(timeoutNanos);
+      if (ref==null)
+      { return null;
       }
-      return ref.resource;
+    }
 
+    ref.checkOutTime=Clock.instance().approxTimeMillis();
+    ref.state.set(OUT);
+    if (_meter!=null)
+    {
+      _checkedOutRegister.incrementValue();
+      _checkOutsRegister.incrementValue();
     }
+    return ref.resource;
   }
 
   /**
    * Return a checked out object to the pool
    *   of available objects.
    */
-  public void checkin(Object resource)
+  public void checkin(T resource)
   {
-    _lastUse=Clock.instance().approxTimeMillis();
-    synchronized (_monitor)
+    touch();
+    Reference<T> ref=_registry.get(resource);
+    if (ref==null || !ref.state.compareAndSet(OUT,AVAILABLE))
     {
-      Reference ref= _out.remove(resource);
-      if (_meter!=null)
-      { 
-        _checkInsRegister.incrementValue();
-        _checkedOutRegister.decrementValue();
-      }
-      if (ref!=null)
-      {
-        if (_started)
-        { 
-          _available.push(ref);
-          if (_meter!=null)
-          { _availableRegister.incrementValue();
-          }
-        }
-        else
-        { _factory.discardResource(resource);
-        }
-        _monitor.notify();
-      }
-      else
-      { _log.log(Level.WARNING,"Unbalanced checkin: "+resource.toString()); 
-      }
+      _log.log(Level.WARNING,"Unbalanced checkin: "+resource.toString());
+      return;
+    }
+
+    if (_meter!=null)
+    {
+      _checkInsRegister.incrementValue();
+      _checkedOutRegister.decrementValue();
     }
 
+    if (_started)
+    { release(ref);
+    }
+    else
+    {
+      ref.state.set(DISCARDED);
+      _registry.remove(resource);
+      _totalCount.decrementAndGet();
+      _factory.discardResource(resource);
+    }
   }
 
   /**
@@ -321,12 +334,17 @@ public class Pool
    *   fill the void if required. Used when it is known that an
    *   object is corrupt or has expired for some reason.
    */
-  public void discard(Object resource)
+  public void discard(T resource)
   {
-    _lastUse=Clock.instance().approxTimeMillis();
-    synchronized (_monitor)
-    { 
-      _out.remove(resource);
+    touch();
+    Reference<T> ref=_registry.get(resource);
+    if (ref!=null && ref.state.compareAndSet(OUT,DISCARDED))
+    {
+      _registry.remove(resource);
+      _totalCount.decrementAndGet();
+      if (_meter!=null)
+      { _checkedOutRegister.decrementValue();
+      }
     }
     if (_meter!=null)
     { _clientDiscardsRegister.incrementValue();
@@ -340,14 +358,251 @@ public class Pool
   //
   //////////////////////////////////////////////////////////////////
 
+  /**
+   * Record activity without writing the shared timestamp more than once
+   *   per clock tick.
+   */
+  private void touch()
+  {
+    long now=Clock.instance().approxTimeMillis();
+    if (_lastUse!=now)
+    { _lastUse=now;
+    }
+  }
+
+  private Stripe<T> homeStripe()
+  { return _stripes[(int) Thread.currentThread().getId() & _stripeMask];
+  }
+
+  private void push(Reference<T> ref)
+  {
+    homeStripe().push(ref);
+    _availableCount.incrementAndGet();
+    if (_meter!=null)
+    { _availableRegister.incrementValue();
+    }
+  }
+
+  /**
+   * Hand an available resource to the longest waiting thread, or make it
+   *   available if no thread is waiting.
+   */
+  private void release(Reference<T> ref)
+  {
+    while (true)
+    {
+      Waiter waiter;
+      while ( (waiter=_waiters.poll())!=null)
+      {
+        if (waiter.slot.compareAndSet(null,ref))
+        {
+          LockSupport.unpark(waiter.thread);
+          return;
+        }
+      }
+      push(ref);
+
+      // A thread may have queued itself and found nothing available
+      //   between the poll and the push- take a resource back out and
+      //   hand it over.
+      if (_waiters.isEmpty())
+      { return;
+      }
+      ref=pop();
+      if (ref==null)
+      { return;
+      }
+    }
+  }
+
+  /**
+   * Pop an available resource, trying the current thread's stripe first
+   */
+  private Reference<T> pop()
+  {
+    int home=(int) Thread.currentThread().getId() & _stripeMask;
+    for (int i=0;i<_stripes.length;i++)
+    {
+      Reference<T> ref=_stripes[(home+i) & _stripeMask].pop();
+      if (ref!=null)
+      {
+        _availableCount.decrementAndGet();
+        if (_meter!=null)
+        { _availableRegister.decrementValue();
+        }
+        return ref;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Park the current thread until a resource is handed to it or becomes
+   *   available, or the timeout elapses.
+   *
+   * @param timeoutNanos The maximum time to wait, or less than 0 to
+   *   wait indefinitely
+   */
+  @SuppressWarnings("unchecked")
+  private Reference<T> waitForResource(long timeoutNanos)
+  {
+    if (!_started)
+    { _log.log(Level.INFO,"Waiting for pool to start");
+    }
+
+    if (_meter!=null)
+    {
+      _waitsRegister.incrementValue();
+      _waitingRegister.incrementValue();
+    }
+
+    long start=System.nanoTime();
+    long deadline=start+timeoutNanos;
+    Waiter waiter=new Waiter(Thread.currentThread());
+    _waiters.add(waiter);
+    Reference<T> ref=null;
+    try
+    {
+      while (true)
+      {
+        // Wake the Keeper to grow the pool before checking the slot- it
+        //   may block briefly, which would consume the permit from a
+        //   hand-off that arrived after the check and leave this thread
+        //   parked.
+        if (_totalCount.get()<_maxSize)
+        { _keeper.wake();
+        }
+
+        // Check after queueing, so a resource made available
+        //   concurrently can't be missed
+        if (_started && waiter.slot.get()==null)
+        {
+          ref=pop();
+          if (ref!=null)
+          {
+            if (waiter.slot.compareAndSet(null,Waiter.CANCELLED))
+            { return ref;
+            }
+            // Handed another resource in the meantime- pass this one on
+            release(ref);
+            ref=null;
+          }
+        }
+
+        Object handoff=waiter.slot.get();
+        if (handoff!=null && handoff!=Waiter.CANCELLED)
+        {
+          ref=(Reference<T>) handoff;
+          return ref;
+        }
+
+        if (timeoutNanos>=0)
+        {
+          long remaining=deadline-System.nanoTime();
+          if (remaining<=0)
+          { break;
+          }
+          LockSupport.parkNanos(this,remaining);
+        }
+        else
+        { LockSupport.park(this);
+        }
+
+        if (Thread.interrupted())
+        { break;
+        }
+      }
+
+      // Timed out or interrupted- a resource may have been handed over
+      //   at the last moment
+      if (!waiter.slot.compareAndSet(null,Waiter.CANCELLED))
+      {
+        ref=(Reference<T>) waiter.slot.get();
+        return ref;
+      }
+
+      _waiters.remove(waiter);
+      if (_meter!=null)
+      { _waitTimeoutsRegister.incrementValue();
+      }
+      if (debug)
+      { _log.log(Level.INFO,"Gave up waiting for pool");
+      }
+      return null;
+    }
+    finally
+    {
+      if (_meter!=null)
+      {
+        _waitingRegister.decrementValue();
+        _waitHistogram.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime()-start));
+      }
+      if (debug && ref!=null)
+      {
+        _log.log
+          (Level.INFO,"Waited "
+           +TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start)+" for pool"
+          );
+      }
+    }
+  }
+
+  /**
+   * Wake all waiting threads so they can re-check the pool (eg. on start)
+   */
+  private void wakeAllWaiters()
+  {
+    for (Waiter waiter: _waiters)
+    { LockSupport.unpark(waiter.thread);
+    }
+  }
+
+  /**
+   * Publish the wait time percentiles since the last call
+   */
+  private void publishWaitTimes()
+  {
+    long[] counts=_waitHistogram.drain();
+    long p50=LatencyHistogram.percentile(counts,.5);
+    long p90=LatencyHistogram.percentile(counts,.9);
+    long p99=LatencyHistogram.percentile(counts,.99);
+    _waitP50Register.adjustValue(p50-_lastWaitP50);
+    _waitP90Register.adjustValue(p90-_lastWaitP90);
+    _waitP99Register.adjustValue(p99-_lastWaitP99);
+    _lastWaitP50=p50;
+    _lastWaitP90=p90;
+    _lastWaitP99=p99;
+  }
+
+  /**
+   * A thread waiting for a resource. The slot receives the Reference
+   *   handed to the thread, or CANCELLED if the thread stops waiting.
+   */
+  static class Waiter
+  {
+    static final Object CANCELLED=new Object();
+
+    final Thread thread;
+    final AtomicReference<Object> slot=new AtomicReference<>();
+
+    Waiter(Thread thread)
+    { this.thread=thread;
+    }
+  }
+
   class Keeper
     implements Runnable
   {
-    private boolean _done=false;
-    private boolean _running=false;
-//    private int _numTimes=0;
-    private Object _keeperMonitor=new Object();
-    private int _scheduledCount=0;
+    private volatile boolean _done=false;
+    private final AtomicBoolean _running=new AtomicBoolean(false);
+    private final AtomicBoolean _wakePending=new AtomicBoolean(false);
+
+    private final Runnable _wakeTask
+      =() ->
+        {
+          _wakePending.set(false);
+          maintain();
+        };
 
     public void stop()
     { _done=true;
@@ -356,21 +611,23 @@ public class Pool
     @Override
     public void run()
     {
-
       if (_done)
       { return;
       }
 
-      synchronized (_keeperMonitor)
-      { 
-        _scheduledCount--;
-        if (_running)
-        { return;
-        }
-        _running=true;
+      maintain();
+
+      if (!_done)
+      { Scheduler.instance().scheduleIn(this,_maintenanceInterval);
+      }
+    }
+
+    private void maintain()
+    {
+      if (_done || !_running.compareAndSet(false,true))
+      { return;
       }
 
-//      _numTimes++;
       try
       {
         if (_overdueSeconds>0)
@@ -384,60 +641,104 @@ public class Pool
         }
 
         grow();
+
+        if (_meter!=null)
+        { publishWaitTimes();
+        }
       }
       catch (Exception x)
       { _log.log(Level.SEVERE,"Exception while keeping pool. "+x.toString());
       }
-      
-      synchronized (_keeperMonitor)
-      {
-        _running=false;
-        if (_scheduledCount==0)
-        {
-          _scheduledCount++;
-          Scheduler.instance().scheduleIn(this,_maintenanceInterval);
-        }
+      finally
+      { _running.set(false);
       }
     }
 
     public void start()
-    { 
-      synchronized (_keeperMonitor)
+    {
+      _done=false;
+      Scheduler.instance().scheduleNow(this);
+    }
+
+    public void wake()
+    {
+      if (!_running.get() && _wakePending.compareAndSet(false,true))
+      { Scheduler.instance().scheduleNow(_wakeTask);
+      }
+    }
+  }
+
+  static class Reference<T>
+  {
+    final T resource;
+    final AtomicInteger state=new AtomicInteger(AVAILABLE);
+    volatile long checkOutTime;
+
+    Reference(T resource)
+    { this.resource=resource;
+    }
+  }
+
+  /**
+   * A lock-free (Treiber) stack of available resources
+   */
+  static class Stripe<T>
+  {
+    private final AtomicReference<Node<T>> _top=new AtomicReference<>();
+
+    void push(Reference<T> ref)
+    {
+      Node<T> node=new Node<T>(ref);
+      Node<T> top;
+      do
       {
-        _scheduledCount++;
-        Scheduler.instance().scheduleNow(this);
+        top=_top.get();
+        node.next=top;
       }
+      while (!_top.compareAndSet(top,node));
     }
-    
-    public void wake()
-    { 
-      synchronized (_keeperMonitor)
+
+    Reference<T> pop()
+    {
+      Node<T> top;
+      do
       {
-        if (!_running && _scheduledCount<2)
-        { 
-          _scheduledCount++;
-          Scheduler.instance().scheduleNow(this);
+        top=_top.get();
+        if (top==null)
+        { return null;
         }
       }
+      while (!_top.compareAndSet(top,top.next));
+      return top.ref;
     }
   }
 
-  class Reference
+  static class Node<T>
   {
-    public Object resource;
-    public long checkOutTime;
+    final Reference<T> ref;
+    Node<T> next;
+
+    Node(Reference<T> ref)
+    { this.ref=ref;
+    }
   }
 
 
   private void restoreInitial()
   {
     while (getTotalSize()<_initialSize)
-    { add();
+    {
+      if (!add())
+      { break;
+      }
     }
     if (!_conserve)
     {
       while (getTotalSize()>_initialSize && getNumAvailable()>0)
-      { remove();
+      {
+        if (!remove())
+        { break;
+        }
       }
     }
   }
@@ -445,114 +746,87 @@ public class Pool
   private void grow()
   {
     while (getNumAvailable()<_minAvailable && getTotalSize()<_maxSize && _started==true)
-    { add();
+    {
+      if (!add())
+      { break;
+      }
     }
   }
 
   private void discardOverdue()
   {
-
-    
-    Reference[] snapshot;
-    synchronized (_monitor)
-    { 
-      Collection<Reference> collection=_out.values();
-      snapshot=new Reference[collection.size()];
-      collection.toArray(snapshot);
-    }
-
-    List<Object> discardList=null;
     long time=Clock.instance().approxTimeMillis();
+    long overdueMs=_overdueSeconds*1000L;
 
-    for (int i=0;i<snapshot.length;i++)
+    for (Reference<T> ref: _registry.values())
     {
-      if (snapshot[i].checkOutTime-time>_overdueSeconds*1000)
+      if (ref.state.get()==OUT
+          && time-ref.checkOutTime>overdueMs
+          && ref.state.compareAndSet(OUT,DISCARDED)
+          )
       {
-        Reference ref=null;
-        synchronized (_monitor)
-        { ref=_out.remove(snapshot[i].resource);
-        }
-        if (ref!=null)
-        { 
-          if (discardList==null)
-          { discardList=new LinkedList<Object>();
-          }
-          discardList.add(ref.resource);
-        }
-      }
-    }
-
-    if (discardList!=null)
-    {
-      Iterator<Object> it=discardList.iterator();
-      while (it.hasNext())
-      { 
+        _registry.remove(ref.resource);
+        _totalCount.decrementAndGet();
         if (_meter!=null)
-        { _overdueDiscardsRegister.incrementValue();
+        {
+          _overdueDiscardsRegister.incrementValue();
+          _checkedOutRegister.decrementValue();
         }
-        _factory.discardResource(it.next()); 
+        _factory.discardResource(ref.resource);
       }
     }
-    
+
   }
 
-  private void add()
+  private boolean add()
   {
 
-    Reference ref=new Reference();
+    T resource=null;
     try
-    { ref.resource=_factory.createResource();
+    { resource=_factory.createResource();
     }
     catch (Exception x)
     { _log.log(Level.SEVERE,"Exception creating pooled resource. "+ThrowableUtil.getStackTrace(x));
     }
 
-    if (ref.resource!=null)
+    if (resource!=null)
     {
-      synchronized (_monitor)
-      {
-        _available.push(ref);
-        _monitor.notify();
-      }
+      Reference<T> ref=new Reference<T>(resource);
+      _registry.put(resource,ref);
+      _totalCount.incrementAndGet();
       if (_meter!=null)
-      { 
-        _addsRegister.incrementValue();
-        _availableRegister.incrementValue();
+      { _addsRegister.incrementValue();
       }
+      release(ref);
+      return true;
     }
+    return false;
   }
 
-  private void remove()
+  private boolean remove()
   {
-    Object resource=null;
+    Reference<T> ref=pop();
+    if (ref==null)
+    { return false;
+    }
 
-    synchronized (_monitor)
-    {
-      if (!_available.isEmpty())
-      { resource=_available.pop().resource;
-      }
+    ref.state.set(DISCARDED);
+    _registry.remove(ref.resource);
+    _totalCount.decrementAndGet();
+    try
+    { _factory.discardResource(ref.resource);
     }
-    
-    if (resource!=null)
+    catch (Exception x)
     {
-      try
-      { _factory.discardResource(resource);
-      }
-      catch (Exception x)
-      { 
-        _log.log
-          (Level.SEVERE,"Exception discarding pooled resource. "
-          +ThrowableUtil.getStackTrace(x)
-          );
-      }
-      if (_meter!=null)
-      { 
-        _availableRegister.decrementValue();
-        _removesRegister.incrementValue();
-      }
-
+      _log.log
+        (Level.SEVERE,"Exception discarding pooled resource. "
+        +ThrowableUtil.getStackTrace(x)
+        );
+    }
+    if (_meter!=null)
+    { _removesRegister.incrementValue();
     }
+    return true;
   }
 }
 
-
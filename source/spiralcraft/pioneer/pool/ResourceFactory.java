@@ -3,16 +3,16 @@
  */
 package spiralcraft.pioneer.pool;
 
-public interface ResourceFactory
+public interface ResourceFactory<T>
 {
   /**
    * Create a new instance of a resource to be added to the Pool.
    */
-  public Object createResource();
+  public T createResource();
 
   /**
    * Discard a resource when no longer needed by the Pool.
    */
-  public void discardResource(Object resource);
+  public void discardResource(T resource);
 
 }
@@ -0,0 +1,240 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>The parts of a multipart/form-data request body.
+ * </p>
+ *
+ * <p>Parts are read with a MultipartParser. Parts up to the memory
+ *   threshold are held in memory, and larger parts are written from the
+ *   parser's read window to a temporary file through a FileChannel, so
+ *   a large upload uses only a few KB of heap. The total held in memory
+ *   for a request is also bounded, so a body of many small parts can't
+ *   exhaust the heap either.
+ * </p>
+ *
+ * <p>Parts that are not files (ie. have no filename) and are held in
+ *   memory are also available as form parameters via getParameters().
+ * </p>
+ */
+public class MultipartForm
+  implements Iterable<MultipartPart>
+{
+  private static final int BUFFER_SIZE=16*1024;
+
+  private final ArrayList<MultipartPart> _parts=new ArrayList<>();
+  private final VariableManager _parameters;
+  private long _memoryRemaining;
+
+  /**
+   * Read a multipart body
+   *
+   * @param in The request body
+   * @param boundary The boundary parameter of the request Content-Type
+   * @param encoding The encoding of field values
+   * @param memoryThreshold The maximum size of a part held in memory
+   * @param maxMemorySize The maximum total size of the parts held in
+   *   memory, or -1 for no limit
+   * @param maxParts The maximum number of parts, or -1 for no limit
+   * @param tempDirectory The directory for temporary files, or null for
+   *   the system default
+   * @param maxSize The maximum size of the body, or -1 for no limit
+   */
+  public MultipartForm
+    (InputStream in
+    ,String boundary
+    ,Charset encoding
+    ,int memoryThreshold
+    ,long maxMemorySize
+    ,int maxParts
+    ,File tempDirectory
+    ,long maxSize
+    )
+    throws IOException
+  {
+    HashMap<String,ArrayList<String>> values=new HashMap<>();
+    MultipartParser parser=new MultipartParser(in,boundary,BUFFER_SIZE,maxSize);
+    _memoryRemaining=maxMemorySize>=0?maxMemorySize:Long.MAX_VALUE;
+    try
+    {
+      while (parser.nextPart())
+      {
+        if (maxParts>=0 && _parts.size()>=maxParts)
+        { throw new IOException("Multipart body has more than "+maxParts+" parts");
+        }
+        MultipartPart part
+          =readPart
+            (parser
+            ,(int) Math.min(memoryThreshold,_memoryRemaining)
+            ,tempDirectory
+            );
+        if (part.isInMemory())
+        { _memoryRemaining-=part.getSize();
+        }
+        _parts.add(part);
+        if (part.getFileName()==null
+            && part.getName()!=null
+            && part.isInMemory()
+            )
+        {
+          ArrayList<String> list=values.get(part.getName());
+          if (list==null)
+          {
+            list=new ArrayList<String>();
+            values.put(part.getName(),list);
+          }
+          list.add(part.getString(encoding));
+        }
+      }
+    }
+    catch (IOException x)
+    {
+      delete();
+      throw x;
+    }
+
+    HashMap<String,String[]> map=new HashMap<>();
+    for (Map.Entry<String,ArrayList<String>> entry: values.entrySet())
+    { map.put(entry.getKey(),entry.getValue().toArray(new String[0]));
+    }
+    _parameters=new VariableManager(map);
+  }
+
+  /**
+   * The form fields
+   */
+  public VariableManager getParameters()
+  { return _parameters;
+  }
+
+  /**
+   * The first part with the specified name, or null
+   */
+  public MultipartPart getPart(String name)
+  {
+    for (MultipartPart part: _parts)
+    {
+      if (name.equals(part.getName()))
+      { return part;
+      }
+    }
+    return null;
+  }
+
+  public List<MultipartPart> getParts()
+  { return _parts;
+  }
+
+  @Override
+  public Iterator<MultipartPart> iterator()
+  { return _parts.iterator();
+  }
+
+  /**
+   * Delete any temporary files
+   */
+  public void delete()
+  {
+    for (MultipartPart part: _parts)
+    { part.delete();
+    }
+  }
+
+  private MultipartPart readPart
+    (MultipartParser parser
+    ,int memoryThreshold
+    ,File tempDirectory
+    )
+    throws IOException
+  {
+    byte[] data=new byte[Math.min(memoryThreshold,1024)];
+    int size=0;
+    while (true)
+    {
+      if (size==data.length)
+      {
+        if (size>=memoryThreshold)
+        { break;
+        }
+        byte[] grown=new byte[Math.min(memoryThreshold,size*2)];
+        System.arraycopy(data,0,grown,0,size);
+        data=grown;
+      }
+      int count=parser.read(data,size,data.length-size);
+      if (count<0)
+      {
+        return new MultipartPart
+          (parser.getPartName()
+          ,parser.getFileName()
+          ,parser.getContentType()
+          ,new LinkedHashMap<>(parser.getHeaders())
+          ,data
+          ,null
+          ,size
+          );
+      }
+      size+=count;
+    }
+
+    // Over the threshold- spill to disk
+    File file=File.createTempFile("upload",".part",tempDirectory);
+    long total;
+    try (FileChannel channel
+          =FileChannel.open
+            (file.toPath()
+            ,StandardOpenOption.WRITE
+            ,StandardOpenOption.TRUNCATE_EXISTING
+            )
+        )
+    {
+      ByteBuffer buffer=ByteBuffer.wrap(data,0,size);
+      while (buffer.hasRemaining())
+      { channel.write(buffer);
+      }
+      total=size+parser.transferTo(channel);
+    }
+    catch (IOException x)
+    {
+      file.delete();
+      throw x;
+    }
+    return new MultipartPart
+      (parser.getPartName()
+      ,parser.getFileName()
+      ,parser.getContentType()
+      ,new LinkedHashMap<>(parser.getHeaders())
+      ,null
+      ,file
+      ,total
+      );
+  }
+}
@@ -0,0 +1,476 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Reads the parts of a multipart (RFC 2046) body, such as a
+ *   multipart/form-data request, as a stream.
+ * </p>
+ *
+ * <p>The body is read through a fixed size window. Boundaries are located
+ *   with a Boyer-Moore-Horspool search of the window, and part content is
+ *   delivered directly from the window, so memory use does not depend on
+ *   the size of the body or of its parts.
+ * </p>
+ *
+ * <p>Call nextPart() to advance to each part, then read the part content
+ *   with read(), transferTo() or getPartInputStream(). Unread content is
+ *   skipped by the next call to nextPart().
+ * </p>
+ */
+public class MultipartParser
+{
+  private static final int MIN_BUFFER_SIZE=1024;
+
+  private final InputStream _in;
+  private final byte[] _delimiter;
+  private final int[] _skip=new int[256];
+  private final byte[] _buf;
+  private final long _maxSize;
+  private int _pos;
+  private int _limit;
+  private long _total;
+  private boolean _eof;
+
+  // Absolute position of the next delimiter, or -1 if not yet found in
+  //   the window
+  private int _delimiterPos=-1;
+  // Position in the window up to which the delimiter is known not to start
+  private int _searched;
+
+  private boolean _finished;
+  private final Map<String,String> _headers=new LinkedHashMap<>();
+
+  /**
+   * @param in The body
+   * @param boundary The boundary parameter of the Content-Type
+   * @param bufferSize The size of the read window
+   * @param maxSize The maximum number of bytes that will be read from the
+   *   body, or -1 for no limit
+   */
+  public MultipartParser(InputStream in,String boundary,int bufferSize,long maxSize)
+  {
+    _in=in;
+    _maxSize=maxSize;
+    _delimiter=("\r\n--"+boundary).getBytes(StandardCharsets.ISO_8859_1);
+    _buf=new byte[Math.max(bufferSize,Math.max(MIN_BUFFER_SIZE,_delimiter.length*4))];
+
+    int last=_delimiter.length-1;
+    for (int i=0;i<256;i++)
+    { _skip[i]=_delimiter.length;
+    }
+    for (int i=0;i<last;i++)
+    { _skip[_delimiter[i] & 0xFF]=last-i;
+    }
+
+    // The first delimiter is not preceded by a CRLF when there is no
+    //   preamble
+    _buf[0]='\r';
+    _buf[1]='\n';
+    _limit=2;
+  }
+
+  /**
+   * <p>Advance to the next part, skipping any unread content of the
+   *   current part, and read its headers.
+   * </p>
+   *
+   * @return false if there are no more parts
+   */
+  public boolean nextPart()
+    throws IOException
+  {
+    if (_finished)
+    { return false;
+    }
+
+    skipContent();
+
+    // Consume the delimiter
+    ensure(_delimiter.length+2);
+    _pos+=_delimiter.length;
+    _delimiterPos=-1;
+    _searched=_pos;
+
+    if (_buf[_pos]=='-' && _buf[_pos+1]=='-')
+    {
+      _finished=true;
+      return false;
+    }
+
+    // Discard transport padding and the CRLF that ends the delimiter line
+    readLine();
+
+    _headers.clear();
+    String line;
+    while ((line=readLine()).length()>0)
+    {
+      int colon=line.indexOf(':');
+      if (colon<=0)
+      { throw new IOException("Malformed part header: "+line);
+      }
+      _headers.put
+        (line.substring(0,colon).trim().toLowerCase()
+        ,line.substring(colon+1).trim()
+        );
+    }
+    return true;
+  }
+
+  /**
+   * The value of a header of the current part, or null
+   */
+  public String getHeader(String name)
+  { return _headers.get(name.toLowerCase());
+  }
+
+  /**
+   * The headers of the current part, keyed by lower case name
+   */
+  public Map<String,String> getHeaders()
+  { return _headers;
+  }
+
+  /**
+   * The "name" parameter of the current part's Content-Disposition
+   */
+  public String getPartName()
+  { return getDispositionParameter("name");
+  }
+
+  /**
+   * The "filename" parameter of the current part's Content-Disposition
+   */
+  public String getFileName()
+  { return getDispositionParameter("filename");
+  }
+
+  /**
+   * The Content-Type of the current part
+   */
+  public String getContentType()
+  { return getHeader("content-type");
+  }
+
+  /**
+   * Read content from the current part
+   *
+   * @return The number of bytes read, or -1 at the end of the part
+   */
+  public int read(byte[] bytes,int start,int len)
+    throws IOException
+  {
+    int available=available();
+    if (available<0)
+    { return -1;
+    }
+    int count=Math.min(len,available);
+    System.arraycopy(_buf,_pos,bytes,start,count);
+    _pos+=count;
+    return count;
+  }
+
+  /**
+   * Write the remaining content of the current part to a channel, directly
+   *   from the read window
+   *
+   * @return The number of bytes written
+   */
+  public long transferTo(WritableByteChannel channel)
+    throws IOException
+  {
+    long total=0;
+    int available;
+    while ((available=available())>=0)
+    {
+      ByteBuffer buffer=ByteBuffer.wrap(_buf,_pos,available);
+      while (buffer.hasRemaining())
+      { channel.write(buffer);
+      }
+      _pos+=available;
+      total+=available;
+    }
+    return total;
+  }
+
+  /**
+   * Write the remaining content of the current part to a stream, directly
+   *   from the read window
+   *
+   * @return The number of bytes written
+   */
+  public long transferTo(OutputStream out)
+    throws IOException
+  {
+    long total=0;
+    int available;
+    while ((available=available())>=0)
+    {
+      out.write(_buf,_pos,available);
+      _pos+=available;
+      total+=available;
+    }
+    return total;
+  }
+
+  /**
+   * An InputStream which reads the content of the current part
+   */
+  public InputStream getPartInputStream()
+  {
+    return new InputStream()
+    {
+      @Override
+      public int read()
+        throws IOException
+      {
+        if (MultipartParser.this.available()<0)
+        { return -1;
+        }
+        return _buf[_pos++] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] bytes,int start,int len)
+        throws IOException
+      {
+        if (len==0)
+        { return 0;
+        }
+        return MultipartParser.this.read(bytes,start,len);
+      }
+    };
+  }
+
+  private void skipContent()
+    throws IOException
+  {
+    int available;
+    while ((available=available())>=0)
+    { _pos+=available;
+    }
+  }
+
+  /**
+   * The number of content bytes of the current part that can be read from
+   *   the window, filling it if necessary.
+   *
+   * @return A positive count, or -1 at the end of the part
+   */
+  private int available()
+    throws IOException
+  {
+    while (true)
+    {
+      if (_delimiterPos<0)
+      { findDelimiter();
+      }
+
+      if (_delimiterPos>=0)
+      {
+        return _delimiterPos>_pos?_delimiterPos-_pos:-1;
+      }
+
+      // The end of the window may contain the start of a delimiter
+      int safe=_limit-(_delimiter.length-1);
+      if (safe>_pos)
+      { return safe-_pos;
+      }
+
+      if (!fill())
+      { throw new IOException("Multipart body ended without a closing boundary");
+      }
+    }
+  }
+
+  private void findDelimiter()
+  {
+    final byte[] buf=_buf;
+    final byte[] delimiter=_delimiter;
+    final int last=delimiter.length-1;
+    int i=Math.max(_pos,_searched);
+    while (i+last<_limit)
+    {
+      int j=last;
+      while (buf[i+j]==delimiter[j])
+      {
+        if (j==0)
+        {
+          _delimiterPos=i;
+          return;
+        }
+        j--;
+      }
+      i+=_skip[buf[i+last] & 0xFF];
+    }
+    _searched=i;
+  }
+
+  /**
+   * Ensure that the window contains at least the specified number of bytes
+   */
+  private void ensure(int count)
+    throws IOException
+  {
+    while (_limit-_pos<count)
+    {
+      if (!fill())
+      { throw new IOException("Multipart body ended unexpectedly");
+      }
+    }
+  }
+
+  /**
+   * Move unread data to the start of the window and read more
+   *
+   * @return false if no more data can be read
+   */
+  private boolean fill()
+    throws IOException
+  {
+    if (_eof)
+    { return false;
+    }
+
+    if (_pos>0)
+    {
+      System.arraycopy(_buf,_pos,_buf,0,_limit-_pos);
+      _limit-=_pos;
+      _searched=Math.max(0,_searched-_pos);
+      if (_delimiterPos>=0)
+      { _delimiterPos-=_pos;
+      }
+      _pos=0;
+    }
+    if (_limit==_buf.length)
+    { return false;
+    }
+
+    int count=_in.read(_buf,_limit,_buf.length-_limit);
+    if (count<0)
+    {
+      _eof=true;
+      return false;
+    }
+    _limit+=count;
+    _total+=count;
+    if (_maxSize>=0 && _total>_maxSize)
+    { throw new IOException("Multipart body exceeds "+_maxSize+" bytes");
+    }
+    return true;
+  }
+
+  /**
+   * Read a header line from the window
+   */
+  private String readLine()
+    throws IOException
+  {
+    // Offset from _pos already scanned, which is preserved by fill()
+    int scanned=0;
+    while (true)
+    {
+      for (int i=_pos+scanned;i<_limit;i++)
+      {
+        if (_buf[i]=='\n')
+        {
+          int end=i;
+          if (end>_pos && _buf[end-1]=='\r')
+          { end--;
+          }
+          String line=new String(_buf,_pos,end-_pos,StandardCharsets.UTF_8);
+          _pos=i+1;
+          return line;
+        }
+      }
+      scanned=_limit-_pos;
+      if (!fill())
+      { throw new IOException("Multipart part header too long or incomplete");
+      }
+    }
+  }
+
+  private String getDispositionParameter(String name)
+  {
+    String disposition=getHeader("content-disposition");
+    if (disposition==null)
+    { return null;
+    }
+    return headerParameter(disposition,name);
+  }
+
+  /**
+   * Extract a parameter from a header value of the form
+   *   'value; name1=value1; name2="value 2"'
+   */
+  static String headerParameter(String header,String name)
+  {
+    int len=header.length();
+    int i=header.indexOf(';');
+    while (i>=0 && i<len)
+    {
+      i++;
+      while (i<len && header.charAt(i)==' ')
+      { i++;
+      }
+      int eq=header.indexOf('=',i);
+      if (eq<0)
+      { return null;
+      }
+      String paramName=header.substring(i,eq).trim();
+      i=eq+1;
+
+      String value;
+      if (i<len && header.charAt(i)=='"')
+      {
+        StringBuilder buf=new StringBuilder();
+        i++;
+        while (i<len && header.charAt(i)!='"')
+        {
+          char chr=header.charAt(i);
+          if (chr=='\\' && i+1<len)
+          { chr=header.charAt(++i);
+          }
+          buf.append(chr);
+          i++;
+        }
+        value=buf.toString();
+        i=header.indexOf(';',i);
+      }
+      else
+      {
+        int end=header.indexOf(';',i);
+        value=header.substring(i,end<0?len:end).trim();
+        i=end;
+      }
+
+      if (paramName.equalsIgnoreCase(name))
+      { return value;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,141 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import java.util.Map;
+
+/**
+ * <p>A part of a multipart/form-data request body.
+ * </p>
+ *
+ * <p>The content of a small part is held in memory. The content of a part
+ *   larger than the configured threshold is held in a temporary file,
+ *   which is deleted when the request completes.
+ * </p>
+ */
+public class MultipartPart
+{
+  private final String _name;
+  private final String _fileName;
+  private final String _contentType;
+  private final Map<String,String> _headers;
+  private final byte[] _data;
+  private final File _file;
+  private final long _size;
+
+  MultipartPart
+    (String name
+    ,String fileName
+    ,String contentType
+    ,Map<String,String> headers
+    ,byte[] data
+    ,File file
+    ,long size
+    )
+  {
+    _name=name;
+    _fileName=fileName;
+    _contentType=contentType;
+    _headers=headers;
+    _data=data;
+    _file=file;
+    _size=size;
+  }
+
+  /**
+   * The form field name
+   */
+  public String getName()
+  { return _name;
+  }
+
+  /**
+   * The client's name for an uploaded file, or null if this part is not
+   *   a file
+   */
+  public String getFileName()
+  { return _fileName;
+  }
+
+  public String getContentType()
+  { return _contentType;
+  }
+
+  /**
+   * The value of a part header, or null
+   */
+  public String getHeader(String name)
+  { return _headers.get(name.toLowerCase());
+  }
+
+  public long getSize()
+  { return _size;
+  }
+
+  /**
+   * Whether the content is held in memory, as opposed to a temporary file
+   */
+  public boolean isInMemory()
+  { return _file==null;
+  }
+
+  /**
+   * The temporary file that holds the content, or null if the content is
+   *   held in memory
+   */
+  public File getFile()
+  { return _file;
+  }
+
+  public InputStream getInputStream()
+    throws IOException
+  {
+    if (_file!=null)
+    { return new FileInputStream(_file);
+    }
+    return new ByteArrayInputStream(_data,0,(int) _size);
+  }
+
+  /**
+   * The content of this part decoded as a String
+   */
+  public String getString(Charset charset)
+    throws IOException
+  {
+    if (_file!=null)
+    { return new String(Files.readAllBytes(_file.toPath()),charset);
+    }
+    return new String(_data,0,(int) _size,charset);
+  }
+
+  /**
+   * Delete the temporary file, if any
+   */
+  public void delete()
+  {
+    if (_file!=null)
+    { _file.delete();
+    }
+  }
+}
@@ -18,20 +18,17 @@ package spiralcraft.pioneer.servlet;
 
 import spiralcraft.text.html.URLDataEncoder;
 
-import spiralcraft.vfs.StreamUtil;
-
 import javax.servlet.http.HttpServletRequest;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 
 import java.util.Iterator;
 import java.util.HashMap;
-import java.util.ArrayList;
 
-import java.util.Map;
 
 /**
  * Provides a simple, flexible and efficient way to
@@ -40,43 +37,40 @@ import java.util.Map;
 public class VariableManager
 {
   private static final Charset UTF_8=Charset.forName("UTF-8");
+
+  /**
+   * The default maximum size of a form read from a request body
+   */
+  public static final int DEFAULT_MAX_FORM_SIZE=2*1024*1024;
+
+  private static final int INITIAL_FORM_BUFFER=8*1024;
   
 	private HashMap<String,String[]> m_vars=null;
 
+  // Undecoded form data, which is decoded on demand until the
+  //   VariableManager is modified (see materialize())
+  private byte[] _encoded;
+  private Charset _encoding;
+  // nameStart,nameEnd,valueStart,valueEnd for each pair
+  private int[] _pairs;
+  private int _pairCount;
+  private String[] _values;
+  // Index of the next pair with the same name, or -1
+  private int[] _next;
+  // Index of the first pair for each name
+  private HashMap<String,Integer> _index;
+
+  /**
+   * Decode an application/x-www-form-urlencoded String
+   */
 	public static HashMap<String,String[]> decodeURLEncoding
 	  (String encodedForm,Charset encoding)
 	{
-    HashMap<String,ArrayList<String>> buf
-      =new HashMap<String,ArrayList<String>>();
-
-    String[] pairs=encodedForm.split("&");
-    for (String pair: pairs)
-    {
-      int eqpos=pair.indexOf('=');
-      if (eqpos>0 && eqpos<pair.length()-1)
-      {
-        String name=URLDataEncoder.decode(pair.substring(0,eqpos));
-        
-        String rawValue=pair.substring(eqpos+1);
-        ArrayList<String> valueList=buf.get(name);
-        if (valueList==null)
-        { 
-          valueList=new ArrayList<String>();
-          buf.put(name,valueList);
-        }
-        valueList.add
-          (URLDataEncoder.decode(rawValue,encoding!=null?encoding:UTF_8));
-      }
-    }
-    
-    HashMap<String,String[]> ret=new HashMap<String,String[]>();
-    for (Map.Entry<String,ArrayList<String>> entry: buf.entrySet())
-    { 
-      String[] values=new String[entry.getValue().size()];
-      entry.getValue().toArray(values);
-      ret.put(entry.getKey(),values);
-    }
-    return ret;
+    byte[] bytes=encodedForm.getBytes(StandardCharsets.ISO_8859_1);
+    VariableManager vars
+      =new VariableManager(bytes,bytes.length,encoding!=null?encoding:UTF_8);
+    vars.materialize();
+    return vars.m_vars;
 	}
 	
   /**
@@ -109,20 +103,220 @@ public class VariableManager
   { 
     if (request.getQueryString()!=null)
     { 
-      return new VariableManager
-        (decodeURLEncoding(request.getQueryString(),UTF_8));
+      byte[] bytes
+        =request.getQueryString().getBytes(StandardCharsets.ISO_8859_1);
+      return new VariableManager(bytes,bytes.length,UTF_8);
     }
     else
     { return new VariableManager(null);
     }
   }
 
+  /**
+   * Create a new VariableManager from a url-encoded form of up to
+   *   DEFAULT_MAX_FORM_SIZE bytes
+   *
+   * @param len The length of the form, or -1 to read until the end of
+   *   the stream (eg. for a chunked request body)
+   */
   public static VariableManager fromStream(int len,InputStream in,Charset encoding)
     throws IOException
+  { return fromStream(len,in,encoding,DEFAULT_MAX_FORM_SIZE);
+  }
+
+  /**
+   * <p>Create a new VariableManager from a url-encoded form.
+   * </p>
+   *
+   * <p>The buffer grows as data arrives rather than being sized from the
+   *   declared length, so a client can't reserve memory it doesn't send.
+   * </p>
+   *
+   * @param len The length of the form, or -1 to read until the end of
+   *   the stream (eg. for a chunked request body)
+   * @param maxSize The maximum size of the form, or -1 for no limit
+   * @throws IOException if the form is larger than maxSize
+   */
+  public static VariableManager fromStream
+    (int len,InputStream in,Charset encoding,int maxSize)
+    throws IOException
+  {
+    if (maxSize>=0 && len>maxSize)
+    { throw new IOException("Form data exceeds "+maxSize+" bytes");
+    }
+    int limit
+      =len>=0?len
+      :maxSize>=0?maxSize
+      :Integer.MAX_VALUE-8;
+    byte[] bytes=new byte[Math.min(limit,INITIAL_FORM_BUFFER)];
+    int length=0;
+    while (true)
+    {
+      if (length==bytes.length)
+      { 
+        if (length==limit)
+        {
+          if (len>=0 || in.read()<0)
+          { break;
+          }
+          throw new IOException("Form data exceeds "+limit+" bytes");
+        }
+        byte[] grown=new byte[(int) Math.min(limit,bytes.length*2L)];
+        System.arraycopy(bytes,0,grown,0,length);
+        bytes=grown;
+      }
+      int count=in.read(bytes,length,bytes.length-length);
+      if (count<0)
+      { break;
+      }
+      length+=count;
+    }
+    return new VariableManager(bytes,length,encoding!=null?encoding:UTF_8);
+  }
+
+  /**
+   * <p>Create a VariableManager from application/x-www-form-urlencoded
+   *   data.
+   * </p>
+   *
+   * <p>The data is scanned once to record the offsets of each name and
+   *   value. Names are decoded when a variable is first looked up, and
+   *   values are decoded when they are requested.
+   * </p>
+   */
+  private VariableManager(byte[] encoded,int length,Charset encoding)
+  {
+    _encoded=encoded;
+    _encoding=encoding;
+    _pairs=new int[32];
+
+    int pos=0;
+    while (pos<length)
+    {
+      int end=pos;
+      int eq=-1;
+      while (end<length && encoded[end]!='&')
+      { 
+        if (eq<0 && encoded[end]=='=')
+        { eq=end;
+        }
+        end++;
+      }
+
+      // Ignore pairs with no name or no value
+      if (eq>pos && eq<end-1)
+      {
+        if (_pairCount*4==_pairs.length)
+        { 
+          int[] grown=new int[_pairs.length*2];
+          System.arraycopy(_pairs,0,grown,0,_pairs.length);
+          _pairs=grown;
+        }
+        int base=_pairCount*4;
+        _pairs[base]=pos;
+        _pairs[base+1]=eq;
+        _pairs[base+2]=eq+1;
+        _pairs[base+3]=end;
+        _pairCount++;
+      }
+      pos=end+1;
+    }
+  }
+  
+  /**
+   * Build the name index of undecoded form data
+   */
+  private void index()
+  {
+    if (_index!=null)
+    { return;
+    }
+    _index=new HashMap<String,Integer>();
+    _next=new int[_pairCount];
+    _values=new String[_pairCount];
+    int[] last=new int[_pairCount];
+    for (int i=0;i<_pairCount;i++)
+    {
+      _next[i]=-1;
+      String name=decode(_pairs[i*4],_pairs[i*4+1],UTF_8);
+      Integer first=_index.get(name);
+      if (first==null)
+      { 
+        _index.put(name,i);
+        last[i]=i;
+      }
+      else
+      { 
+        _next[last[first]]=i;
+        last[first]=i;
+      }
+    }
+  }
+
+  private String value(int pair)
+  {
+    if (_values[pair]==null)
+    { _values[pair]=decode(_pairs[pair*4+2],_pairs[pair*4+3],_encoding);
+    }
+    return _values[pair];
+  }
+
+  /**
+   * Decode a region of url-encoded form data
+   */
+  private String decode(int start,int end,Charset encoding)
+  {
+    byte[] encoded=_encoded;
+    int i=start;
+    while (i<end && encoded[i]!='%' && encoded[i]!='+')
+    { i++;
+    }
+    if (i==end)
+    { return new String(encoded,start,end-start,encoding);
+    }
+
+    byte[] decoded=new byte[end-start];
+    int len=i-start;
+    System.arraycopy(encoded,start,decoded,0,len);
+    for (;i<end;i++)
+    {
+      byte b=encoded[i];
+      if (b=='+')
+      { b=' ';
+      }
+      else if (b=='%' && i+2<end)
+      {
+        int hi=Character.digit(encoded[i+1],16);
+        int lo=Character.digit(encoded[i+2],16);
+        if (hi>=0 && lo>=0)
+        { 
+          b=(byte) ((hi<<4)+lo);
+          i+=2;
+        }
+      }
+      decoded[len++]=b;
+    }
+    return new String(decoded,0,len,encoding);
+  }
+
+  /**
+   * Decode all form data into the variable map, so it can be modified
+   */
+  private void materialize()
   {
-    String post=StreamUtil.readAsciiString(in, len);
-    return new VariableManager
-      (decodeURLEncoding(post,encoding!=null?encoding:UTF_8));
+    if (_encoded==null)
+    { return;
+    }
+    index();
+    m_vars=new HashMap<String,String[]>();
+    for (String name: _index.keySet())
+    { m_vars.put(name,getList(name));
+    }
+    _encoded=null;
+    _pairs=null;
+    _values=null;
+    _next=null;
+    _index=null;
   }
   
   /**
@@ -150,7 +344,9 @@ public class VariableManager
 	 *   Variable manager interfaces to.
 	 */
 	public HashMap<String,?> getMap()
-	{ return m_vars;
+	{ 
+	  materialize();
+	  return m_vars;
 	}
 
 	/**
@@ -158,6 +354,25 @@ public class VariableManager
 	 */	
 	public String[] getList(String name)
 	{
+	  if (_encoded!=null)
+	  {
+	    index();
+	    Integer first=_index.get(name);
+	    if (first==null)
+	    { return new String[0];
+	    }
+	    int count=0;
+	    for (int i=first;i>=0;i=_next[i])
+	    { count++;
+	    }
+	    String[] values=new String[count];
+	    count=0;
+	    for (int i=first;i>=0;i=_next[i])
+	    { values[count++]=value(i);
+	    }
+	    return values;
+	  }
+	  
 		String[] var= m_vars.get(name);
 		if (var==null)
 		{ var=new String[0];
@@ -170,6 +385,13 @@ public class VariableManager
 	 */	
 	public String getValue(String name)
 	{
+	  if (_encoded!=null)
+	  {
+	    index();
+	    Integer first=_index.get(name);
+	    return first!=null?value(first):null;
+	  }
+	  
 		String[] var=m_vars.get(name);
 		String ret;
 		if (var==null || var.length==0)
@@ -201,7 +423,13 @@ public class VariableManager
    * Iterate through the names of the variables
    */
   public Iterator<String> getNames()
-  { return m_vars.keySet().iterator();
+  { 
+    if (_encoded!=null)
+    { 
+      index();
+      return _index.keySet().iterator();
+    }
+    return m_vars.keySet().iterator();
   }
 
   /**
@@ -209,6 +437,7 @@ public class VariableManager
    */
   public void setValue(String name,String value)
   {
+    materialize();
     String[] valArray={value};
     m_vars.put(name,valArray);
   }
@@ -217,18 +446,26 @@ public class VariableManager
    * Change a value
    */
   public void setList(String name, String[] values)
-  { m_vars.put(name,values);
+  { 
+    materialize();
+    m_vars.put(name,values);
   }
 
   /**
    * Remove a name/value pair from the collection
    */
   public void remove(String name)
-  { m_vars.remove(name);
+  { 
+    materialize();
+    m_vars.remove(name);
   }
 
   public boolean isEmpty()
-  { return m_vars.isEmpty();
+  { 
+    if (_encoded!=null)
+    { return _pairCount==0;
+    }
+    return m_vars.isEmpty();
   }
 
   /**
@@ -236,6 +473,7 @@ public class VariableManager
    */
   public String urlEncode()
   { 
+    materialize();
     if (m_vars.size()==0)
     { return "";
     }
@@ -259,6 +497,7 @@ public class VariableManager
   @Override
   public String toString()
   { 
+    materialize();
     if (m_vars.size()==0)
     { return "[]";
     }
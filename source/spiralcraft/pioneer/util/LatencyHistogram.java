@@ -0,0 +1,77 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Records non-negative values (eg. latencies) into power-of-2 buckets,
+ *   for cheap concurrent recording and approximate percentiles.
+ * </p>
+ *
+ * <p>A percentile is reported as the upper bound of the bucket that
+ *   contains it, so results are accurate to within a factor of 2.
+ * </p>
+ */
+public class LatencyHistogram
+{
+  private static final int BUCKETS=64;
+
+  private final AtomicLongArray _counts=new AtomicLongArray(BUCKETS);
+
+  public void record(long value)
+  {
+    int bucket=value<=0?0:BUCKETS-Long.numberOfLeadingZeros(value);
+    _counts.incrementAndGet(Math.min(bucket,BUCKETS-1));
+  }
+
+  /**
+   * Obtain the counts recorded since the last drain, and reset them.
+   */
+  public long[] drain()
+  {
+    long[] counts=new long[BUCKETS];
+    for (int i=0;i<BUCKETS;i++)
+    { counts[i]=_counts.getAndSet(i,0);
+    }
+    return counts;
+  }
+
+  /**
+   * The approximate value below which the specified fraction of the values
+   *   in the drained counts fall, or 0 if no values were recorded.
+   */
+  public static long percentile(long[] counts,double fraction)
+  {
+    long total=0;
+    for (long count:counts)
+    { total+=count;
+    }
+    if (total==0)
+    { return 0;
+    }
+
+    long threshold=(long) Math.ceil(total*fraction);
+    long seen=0;
+    for (int i=0;i<counts.length;i++)
+    {
+      seen+=counts[i];
+      if (seen>=threshold)
+      { return i==0?0:(i>=63?Long.MAX_VALUE:(1L<<i)-1);
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+}
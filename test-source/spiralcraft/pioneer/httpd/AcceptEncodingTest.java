@@ -0,0 +1,83 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import spiralcraft.pioneer.test.UnitTest;
+
+public class AcceptEncodingTest
+  extends UnitTest
+{
+
+  public void testPreference()
+  {
+    assertEquals("gzip",AcceptEncoding.acceptedCoding("gzip, deflate, br"));
+    assertEquals("gzip",AcceptEncoding.acceptedCoding("deflate, gzip"));
+    assertEquals("deflate",AcceptEncoding.acceptedCoding("deflate"));
+    assertEquals("gzip",AcceptEncoding.acceptedCoding("x-gzip"));
+    assertEquals("gzip",AcceptEncoding.acceptedCoding("GZIP"));
+    assertNull(AcceptEncoding.acceptedCoding("br, identity"));
+    assertNull(AcceptEncoding.acceptedCoding(""));
+    assertNull(AcceptEncoding.acceptedCoding(null));
+  }
+
+  public void testZeroQuality()
+  {
+    assertEquals("deflate",AcceptEncoding.acceptedCoding("gzip;q=0, deflate"));
+    assertNull(AcceptEncoding.acceptedCoding("gzip;q=0"));
+    assertNull(AcceptEncoding.acceptedCoding("gzip;q=0.0, deflate;q=0.000"));
+    assertEquals("gzip",AcceptEncoding.acceptedCoding("gzip;q=0.001"));
+  }
+
+  /**
+   * A coding refused by name is not accepted through "*"
+   */
+  public void testWildcard()
+  {
+    assertEquals("gzip",AcceptEncoding.acceptedCoding("*"));
+    assertEquals("deflate",AcceptEncoding.acceptedCoding("gzip;q=0, *"));
+    assertEquals("deflate",AcceptEncoding.acceptedCoding("*, gzip;q=0"));
+    assertNull(AcceptEncoding.acceptedCoding("gzip;q=0, deflate;q=0, *"));
+    assertNull(AcceptEncoding.acceptedCoding("*;q=0"));
+    assertEquals("gzip",AcceptEncoding.acceptedCoding("*;q=0, gzip"));
+  }
+
+  public void testQualityParameterForms()
+  {
+    assertNull(AcceptEncoding.acceptedCoding("gzip ; q = 0"));
+    assertNull(AcceptEncoding.acceptedCoding("gzip;Q=0"));
+    assertNull(AcceptEncoding.acceptedCoding("gzip;level=1;q=0"));
+    assertEquals("gzip",AcceptEncoding.acceptedCoding("gzip;xq=0"));
+    assertEquals("gzip",AcceptEncoding.acceptedCoding("gzip;q=bad"));
+    assertEquals("gzip",AcceptEncoding.acceptedCoding("gzip;q="));
+    assertEquals("gzip",AcceptEncoding.acceptedCoding("gzip;"));
+  }
+
+  public void testMalformedLists()
+  {
+    assertEquals("gzip",AcceptEncoding.acceptedCoding(",,gzip,,"));
+    assertEquals("deflate",AcceptEncoding.acceptedCoding(" ; q=1, deflate"));
+    assertNull(AcceptEncoding.acceptedCoding("gzipx, xdeflate"));
+  }
+
+  public void testIsAcceptedCoding()
+  {
+    assertTrue("br",AcceptEncoding.isAcceptedCoding("gzip, br","br"));
+    assertFalse("br q=0",AcceptEncoding.isAcceptedCoding("br;q=0, *","br"));
+    assertTrue("br by *",AcceptEncoding.isAcceptedCoding("gzip, *","br"));
+    assertFalse("not listed",AcceptEncoding.isAcceptedCoding("gzip","br"));
+    assertTrue("x-gzip",AcceptEncoding.isAcceptedCoding("x-gzip","gzip"));
+    assertFalse("null",AcceptEncoding.isAcceptedCoding(null,"gzip"));
+  }
+}
@@ -0,0 +1,276 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import spiralcraft.pioneer.test.UnitTest;
+
+public class ChunkedServletInputStreamTest
+  extends UnitTest
+{
+  private static final String HEAD="POST / HTTP/1.1\r\nHost: h\r\n\r\n";
+
+  private RequestHead head;
+  private ServerInputStream in;
+
+  public void testBody()
+    throws IOException
+  {
+    ChunkedServletInputStream body
+      =start("5\r\nhello\r\n6\r\n world\r\n0\r\n\r\nNEXT\r\n");
+    assertEquals("hello world",readAll(body));
+    assertTrue("finished",body.isFinished());
+    assertEquals(-1,body.read());
+    assertEquals("NEXT",in.readAsciiLine());
+  }
+
+  public void testSplitReads()
+    throws IOException
+  {
+    String data="5\r\nhello\r\n6\r\n world\r\n0\r\nX-Sum: 1\r\n\r\nNEXT\r\n";
+    for (int size=1;size<=4;size++)
+    {
+      ChunkedServletInputStream body
+        =start(4,RequestHeadTest.chunks(data,size));
+      assertEquals("hello world",readAll(body));
+      assertEquals("1",head.getHeader("X-Sum"));
+      assertEquals("NEXT",in.readAsciiLine());
+    }
+  }
+
+  public void testSingleByteReads()
+    throws IOException
+  {
+    ChunkedServletInputStream body=start("3\r\nabc\r\n1\r\nd\r\n0\r\n\r\n");
+    StringBuilder buf=new StringBuilder();
+    for (int val=body.read();val>=0;val=body.read())
+    { buf.append((char) val);
+    }
+    assertEquals("abcd",buf.toString());
+  }
+
+  public void testLfOnlyLineEnds()
+    throws IOException
+  {
+    ChunkedServletInputStream body
+      =start("5\nhello\n0\nX-Sum: 2\n\nNEXT\n");
+    assertEquals("hello",readAll(body));
+    assertEquals("2",head.getHeader("X-Sum"));
+    assertEquals("NEXT",in.readAsciiLine());
+  }
+
+  public void testCrOnlyLineEndRejected()
+  {
+    ChunkedServletInputStream body=start("5\rhello\r0\r\r");
+    assertThrows(IOException.class,() -> readAll(body));
+  }
+
+  public void testExtensionsAndHexCase()
+    throws IOException
+  {
+    ChunkedServletInputStream body
+      =start("a;name=value\r\n0123456789\r\nB ; x\r\nabcdefghijk\r\n0;last\r\n\r\n");
+    assertEquals("0123456789abcdefghijk",readAll(body));
+  }
+
+  public void testInvalidSize()
+  {
+    ChunkedServletInputStream body=start("zz\r\nhello\r\n0\r\n\r\n");
+    assertThrows(IOException.class,() -> body.read());
+  }
+
+  public void testEmptySize()
+  {
+    ChunkedServletInputStream body=start("\r\nhello\r\n0\r\n\r\n");
+    assertThrows(IOException.class,() -> body.read());
+  }
+
+  public void testOversizedSize()
+  {
+    ChunkedServletInputStream body=start("1000000000000000\r\n");
+    assertThrows(IOException.class,() -> body.read());
+  }
+
+  public void testSizeLineTooLong()
+  {
+    ChunkedServletInputStream body
+      =start("5;"+RequestHeadTest.repeat('x',5000)+"\r\nhello\r\n0\r\n\r\n");
+    assertThrows(IOException.class,() -> body.read());
+  }
+
+  public void testMissingCrlfAfterData()
+    throws IOException
+  {
+    ChunkedServletInputStream body=start("5\r\nhelloX\r\n0\r\n\r\n");
+    byte[] bytes=new byte[5];
+    assertEquals(5,body.read(bytes,0,5));
+    assertThrows(IOException.class,() -> body.read());
+  }
+
+  /**
+   * After a framing error the position of the rest of the body is
+   *   unknown, so every later read and drain fails
+   */
+  public void testErrorIsSticky()
+  {
+    // "0" follows the bad line, and would otherwise be taken as the end
+    ChunkedServletInputStream body=start("zz\r\n0\r\n\r\n");
+    IOException first=assertThrows(IOException.class,() -> body.read());
+    IOException second=assertThrows(IOException.class,() -> body.read());
+    assertTrue("same error",first==second);
+    assertThrows(IOException.class,() -> body.drain());
+    assertFalse("finished",body.isFinished());
+  }
+
+  public void testTruncatedChunk()
+  {
+    ChunkedServletInputStream body=start("5\r\nhel");
+    assertThrows(IOException.class,() -> readAll(body));
+    assertThrows(IOException.class,() -> body.read());
+  }
+
+  public void testTruncatedSizeLine()
+  {
+    ChunkedServletInputStream body=start("5");
+    assertThrows(IOException.class,() -> body.read());
+  }
+
+  public void testClosedAfterLastChunk()
+    throws IOException
+  {
+    ChunkedServletInputStream body=start("3\r\nabc\r\n0\r\n");
+    assertEquals("abc",readAll(body));
+    assertTrue("finished",body.isFinished());
+  }
+
+  public void testDrain()
+    throws IOException
+  {
+    ChunkedServletInputStream body
+      =start("5\r\nhello\r\n6\r\n world\r\n0\r\n\r\nNEXT\r\n");
+    assertEquals('h',body.read());
+    body.drain();
+    assertTrue("finished",body.isFinished());
+    assertEquals("NEXT",in.readAsciiLine());
+  }
+
+  public void testTrailers()
+    throws IOException
+  {
+    ChunkedServletInputStream body
+      =start("0\r\nX-Checksum:  abc \r\nX-Other:def\r\n\r\n");
+    assertEquals("",readAll(body));
+    assertEquals("abc",head.getHeader("X-Checksum"));
+    assertEquals("def",head.getHeader("X-Other"));
+    assertEquals("h",head.getHeader("Host"));
+  }
+
+  public void testForbiddenTrailersDropped()
+    throws IOException
+  {
+    ChunkedServletInputStream body
+      =start
+        ("0\r\n"
+        +"Content-Length: 10\r\n"
+        +"transfer-encoding: chunked\r\n"
+        +"Host: evil\r\n"
+        +"X-Forwarded-For: 10.0.0.1\r\n"
+        +"X-Real-IP: 10.0.0.2\r\n"
+        +"Trailer: X-Sum\r\n"
+        +"Authorization: Basic x\r\n"
+        +"X-Sum: 3\r\n"
+        +"\r\n"
+        );
+    readAll(body);
+    assertNull(head.getHeader("Content-Length"));
+    assertNull(head.getHeader("Transfer-Encoding"));
+    assertEquals("h",head.getHeader("Host"));
+    assertNull(head.getHeader("X-Forwarded-For"));
+    assertNull(head.getHeader("X-Real-IP"));
+    assertNull(head.getHeader("Trailer"));
+    assertNull(head.getHeader("Authorization"));
+    assertEquals("3",head.getHeader("X-Sum"));
+    assertEquals(2,head.getHeaderCount());
+  }
+
+  public void testMalformedTrailer()
+  {
+    ChunkedServletInputStream body=start("0\r\nno colon\r\n\r\n");
+    assertThrows(IOException.class,() -> readAll(body));
+  }
+
+  public void testTrailerCountLimit()
+  {
+    ChunkedServletInputStream body
+      =start(0,2,8192,"0\r\nA: 1\r\nB: 2\r\n\r\n");
+    RequestHeadException x
+      =assertThrows(RequestHeadException.class,() -> readAll(body));
+    assertEquals(431,x.getStatus());
+    assertEquals(RequestHeadException.COUNT,x.getViolation());
+  }
+
+  public void testTrailerSizeLimit()
+  {
+    ChunkedServletInputStream body
+      =start
+        (HEAD.length()+100
+        ,0
+        ,8192
+        ,"0\r\nA: "+RequestHeadTest.repeat('a',200)+"\r\n\r\n"
+        );
+    RequestHeadException x
+      =assertThrows(RequestHeadException.class,() -> readAll(body));
+    assertEquals(431,x.getStatus());
+    assertEquals(RequestHeadException.SIZE,x.getViolation());
+  }
+
+  private ChunkedServletInputStream start(String ... chunks)
+  { return start(0,0,8192,chunks);
+  }
+
+  private ChunkedServletInputStream start(int bufferSize,String ... chunks)
+  { return start(0,0,bufferSize,chunks);
+  }
+
+  private ChunkedServletInputStream start
+    (int maxSize,int maxHeaderCount,int bufferSize,String ... chunks)
+  {
+    try
+    { head=RequestHeadTest.parse(maxSize,maxHeaderCount,HEAD);
+    }
+    catch (IOException x)
+    { throw new AssertionError(x);
+    }
+    in=RequestHeadTest.stream(bufferSize,chunks);
+    ChunkedServletInputStream body=new ChunkedServletInputStream();
+    body.start(in,head,"X-Real-IP");
+    return body;
+  }
+
+  private static String readAll(ChunkedServletInputStream body)
+    throws IOException
+  {
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+    byte[] bytes=new byte[3];
+    for (int count=body.read(bytes,0,3);count>=0;count=body.read(bytes,0,3))
+    { out.write(bytes,0,count);
+    }
+    return new String(out.toByteArray(),StandardCharsets.ISO_8859_1);
+  }
+}
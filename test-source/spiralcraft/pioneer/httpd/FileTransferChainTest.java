@@ -0,0 +1,113 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import spiralcraft.pioneer.test.UnitTest;
+
+public class FileTransferChainTest
+  extends UnitTest
+{
+
+  public void testClosedRange()
+  {
+    assertRange(0,499,"bytes=0-499",1000);
+    assertRange(500,999,"bytes=500-999",1000);
+    assertRange(0,0,"bytes=0-0",1000);
+    assertRange(10,20," bytes=10 - 20 ",1000);
+    assertRange(10,20,"Bytes=10-20",1000);
+  }
+
+  public void testOpenRange()
+  {
+    assertRange(500,999,"bytes=500-",1000);
+    assertRange(999,999,"bytes=999-",1000);
+  }
+
+  /**
+   * A last position past the end of the file is reduced to the end
+   */
+  public void testLastClamped()
+  {
+    assertRange(500,999,"bytes=500-5000",1000);
+    assertRange(0,0,"bytes=0-99",1);
+  }
+
+  public void testSuffixRange()
+  {
+    assertRange(900,999,"bytes=-100",1000);
+    assertRange(999,999,"bytes=-1",1000);
+    assertRange(0,999,"bytes=-1000",1000);
+  }
+
+  /**
+   * A suffix longer than the file selects the whole file
+   */
+  public void testSuffixLargerThanFile()
+  {
+    assertRange(0,999,"bytes=-5000",1000);
+    assertRange(0,0,"bytes=-5",1);
+  }
+
+  public void testUnsatisfiable()
+  {
+    assertUnsatisfiable("bytes=1000-",1000);
+    assertUnsatisfiable("bytes=1000-2000",1000);
+    assertUnsatisfiable("bytes=5000-5001",1000);
+    assertUnsatisfiable("bytes=-0",1000);
+    assertUnsatisfiable("bytes=0-",0);
+    assertUnsatisfiable("bytes=-10",0);
+  }
+
+  public void testMalformed()
+  {
+    assertInvalid("bytes=500-499");
+    assertInvalid("bytes=0-1,5-6");
+    assertInvalid("bytes=-");
+    assertInvalid("bytes=");
+    assertInvalid("bytes=5");
+    assertInvalid("bytes=a-b");
+    assertInvalid("bytes=1-2x");
+    assertInvalid("bytes=--5");
+    assertInvalid("bytes=+5-10");
+    assertInvalid("bytes=5-+10");
+    assertInvalid("bytes=-+5");
+    assertInvalid("bytes=1 2-3");
+    assertInvalid("bytes=99999999999999999999-");
+    assertInvalid("items=0-10");
+    assertInvalid("0-10");
+    assertInvalid("");
+  }
+
+  private static void assertRange(long first,long last,String range,long length)
+  {
+    long[] result=FileTransferChain.parseRange(range,length);
+    assertTrue(range,result!=null && result.length==2);
+    assertEquals(first,result[0]);
+    assertEquals(last,result[1]);
+  }
+
+  private static void assertUnsatisfiable(String range,long length)
+  {
+    assertTrue
+      (range
+      ,FileTransferChain.parseRange(range,length)
+        ==FileTransferChain.UNSATISFIABLE
+      );
+  }
+
+  private static void assertInvalid(String range)
+  { assertNull(FileTransferChain.parseRange(range,1000));
+  }
+}
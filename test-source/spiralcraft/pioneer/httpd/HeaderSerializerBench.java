@@ -0,0 +1,207 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import spiralcraft.pioneer.test.Benchmark;
+
+/**
+ * <p>Measures writing a typical response head into the output buffer.
+ * </p>
+ *
+ * <p>"pre-encoded" is the path taken by HttpServerResponse.sendHeaders():
+ *   the status line, Date line and well-known header names are copied
+ *   from HeaderSerializer, and values are written with
+ *   ServerOutputStream.writeHeadAscii().
+ * </p>
+ *
+ * <p>"per-string" reproduces the earlier path for comparison: each name,
+ *   separator and value is converted from a String to a new byte[]
+ *   through a char[], and the Date header is set in the header table from
+ *   a formatted date string that is cached for one second.
+ * </p>
+ */
+public class HeaderSerializerBench
+{
+  private static final byte[] COLON=":".getBytes();
+  private static final byte[] SPACE=" ".getBytes();
+  private static final byte[] EOL="\r\n".getBytes();
+
+  private static final String LAST_MODIFIED
+    =HeaderSerializer.httpDate(1700000000000L);
+
+  public static void main(String[] args)
+    throws Exception
+  {
+    Map<Integer,String> reasons=new HashMap<>();
+    reasons.put(200,"OK");
+    reasons.put(404,"Not Found");
+    HeaderSerializer.setReasons(reasons);
+
+    ResponseHeaders headers=new ResponseHeaders();
+    ServerOutputStream out=new ServerOutputStream(null,8192);
+    Benchmark benchmark=new Benchmark();
+    benchmark.run
+      ("response head pre-encoded"
+      ,() ->
+        {
+          setHeaders(headers);
+          out.resetBuffer();
+          return writePreEncoded(headers,out);
+        }
+      );
+
+    LegacyBuffer legacy=new LegacyBuffer();
+    DateCache dates=new DateCache();
+    benchmark.run
+      ("response head per-string"
+      ,() ->
+        {
+          setHeaders(headers);
+          headers.set("Date",dates.approxTimeFormatted());
+          legacy.length=0;
+          return writePerString(headers,legacy);
+        }
+      );
+  }
+
+  private static void setHeaders(ResponseHeaders headers)
+  {
+    headers.clear();
+    headers.set("Content-Type","text/html; charset=UTF-8");
+    headers.set("Content-Length","5120");
+    headers.set("Last-Modified",LAST_MODIFIED);
+    headers.set("ETag","\"18bcfe5a1c0-1400\"");
+    headers.set("Cache-Control","max-age=3600");
+    headers.set("Server","Spiralcraft Pioneer");
+    headers.set("X-Request-Id","a1b2c3d4e5f6");
+  }
+
+  /**
+   * As HttpServerResponse.sendHeaders() writes the head
+   */
+  private static long writePreEncoded(ResponseHeaders headers,ServerOutputStream out)
+  {
+    out.writeHead(HeaderSerializer.statusLine("HTTP/1.1",200,"OK"));
+    out.writeHead(HeaderSerializer.dateHeader());
+    int count=headers.getCount();
+    for (int i=0;i<count;i++)
+    {
+      if (headers.isRemoved(i))
+      { continue;
+      }
+      int slot=headers.getSlot(i);
+      if (slot>=0)
+      { out.writeHead(HeaderSerializer.name(slot));
+      }
+      else
+      {
+        out.writeHeadAscii(headers.getName(i));
+        out.writeHead(COLON);
+        out.writeHead(SPACE);
+      }
+      out.writeHeadAscii(headers.getValue(i));
+      out.writeHead(EOL);
+    }
+    out.writeHead(EOL);
+    return count;
+  }
+
+  private static long writePerString(ResponseHeaders headers,LegacyBuffer out)
+  {
+    out.write("HTTP/1.1");
+    out.write(SPACE);
+    out.write(Integer.toString(200));
+    out.write(SPACE);
+    out.write("OK");
+    out.write(EOL);
+    int count=headers.getCount();
+    for (int i=0;i<count;i++)
+    {
+      if (headers.isRemoved(i))
+      { continue;
+      }
+      out.write(headers.getName(i));
+      out.write(COLON);
+      out.write(SPACE);
+      out.write(headers.getValue(i));
+      out.write(EOL);
+    }
+    out.write(EOL);
+    return out.length;
+  }
+
+  /**
+   * A growable buffer written as ServerOutputStream.write(String) used to
+   */
+  private static class LegacyBuffer
+  {
+    byte[] bytes=new byte[1024];
+    int length;
+
+    void write(String data)
+    {
+      final char[] chars=data.toCharArray();
+      final byte[] encoded=new byte[chars.length];
+      for (int i=chars.length-1;i>=0;i--)
+      { encoded[i]=(byte) chars[i];
+      }
+      write(encoded);
+    }
+
+    void write(byte[] data)
+    {
+      if (length+data.length>bytes.length)
+      {
+        byte[] grown=new byte[Math.max(length+data.length,bytes.length*2)];
+        System.arraycopy(bytes,0,grown,0,length);
+        bytes=grown;
+      }
+      System.arraycopy(data,0,bytes,length,data.length);
+      length+=data.length;
+    }
+  }
+
+  /**
+   * A date string re-formatted at most once a second, as ClockFormat did
+   */
+  private static class DateCache
+  {
+    private final DateFormat format
+      =new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'");
+    { format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+    private long second=-1;
+    private String formatted;
+
+    String approxTimeFormatted()
+    {
+      long now=System.currentTimeMillis()/1000;
+      if (now!=second)
+      {
+        second=now;
+        formatted=format.format(new Date(now*1000));
+      }
+      return formatted;
+    }
+  }
+}
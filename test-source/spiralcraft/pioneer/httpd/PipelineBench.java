@@ -0,0 +1,210 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>Loopback measurement of pipelined request throughput with and
+ *   without coalescing the responses.
+ * </p>
+ *
+ * <p>A client sends batches of pipelined GET requests on one keep-alive
+ *   connection and reads the responses. The server reads each request
+ *   head with RequestHead and answers with a small fixed response. With
+ *   coalescing, a response is held while the next request is already
+ *   buffered (the check HttpServer makes with isInputBuffered()) and the
+ *   held responses go out in one write. Without it, each response is
+ *   written and flushed on its own.
+ * </p>
+ *
+ * <pre>
+ * PipelineBench [depth] [seconds]
+ * </pre>
+ */
+public class PipelineBench
+{
+  private static final byte[] REQUEST
+    =("GET /item HTTP/1.1\r\n"
+     +"Host: localhost\r\n"
+     +"User-Agent: PipelineBench\r\n"
+     +"Accept: */*\r\n"
+     +"\r\n"
+     ).getBytes(StandardCharsets.ISO_8859_1);
+
+  private static final byte[] RESPONSE
+    =("HTTP/1.1 200 OK\r\n"
+     +"Content-Type: text/plain\r\n"
+     +"Content-Length: 2\r\n"
+     +"\r\n"
+     +"ok"
+     ).getBytes(StandardCharsets.ISO_8859_1);
+
+  public static void main(String[] args)
+    throws Exception
+  {
+    int seconds=args.length>1?Integer.parseInt(args[1]):5;
+    int[] depths
+      =args.length>0
+      ?new int[] {Integer.parseInt(args[0])}
+      :new int[] {1,4,16}
+      ;
+    for (int depth: depths)
+    {
+      run(depth,false,seconds);
+      run(depth,true,seconds);
+    }
+    System.exit(0);
+  }
+
+  private static void run(int depth,boolean coalesce,int seconds)
+    throws Exception
+  {
+    ServerSocket serverSocket=new ServerSocket();
+    serverSocket.bind
+      (new InetSocketAddress(InetAddress.getLoopbackAddress(),0));
+
+    Server server=new Server(serverSocket,coalesce);
+    Thread serverThread=new Thread(server,"server");
+    serverThread.setDaemon(true);
+    serverThread.start();
+
+    byte[] batch=new byte[REQUEST.length*depth];
+    for (int i=0;i<depth;i++)
+    { System.arraycopy(REQUEST,0,batch,i*REQUEST.length,REQUEST.length);
+    }
+    byte[] responses=new byte[RESPONSE.length*depth];
+
+    try (Socket client=new Socket(InetAddress.getLoopbackAddress(),serverSocket.getLocalPort()))
+    {
+      client.setTcpNoDelay(true);
+      OutputStream out=client.getOutputStream();
+      InputStream in=client.getInputStream();
+
+      // Warm up for a second, then measure
+      boolean measuring=false;
+      long requests=0;
+      long start=System.nanoTime();
+      long warmupEnd=start+1000000000L;
+      long end=warmupEnd+seconds*1000000000L;
+      long now;
+      while ((now=System.nanoTime())<end)
+      {
+        if (!measuring && now>=warmupEnd)
+        { 
+          measuring=true;
+          start=now;
+          server.writes=0;
+        }
+        out.write(batch);
+        out.flush();
+        int read=0;
+        while (read<responses.length)
+        {
+          int count=in.read(responses,read,responses.length-read);
+          if (count<0)
+          { throw new IOException("Server closed connection");
+          }
+          read+=count;
+        }
+        if (measuring)
+        { requests+=depth;
+        }
+      }
+      long elapsed=System.nanoTime()-start;
+      System.out.println
+        (String.format
+          ("depth %2d %-10s %9.0f req/s  %5.2f writes/batch"
+          ,depth
+          ,coalesce?"coalesced":"per-response"
+          ,requests*1e9/elapsed
+          ,server.writes*(double) depth/requests
+          )
+        );
+    }
+    finally
+    { serverSocket.close();
+    }
+  }
+
+  static class Server
+    implements Runnable
+  {
+    private final ServerSocket serverSocket;
+    private final boolean coalesce;
+    private final byte[] pending=new byte[64*1024];
+    volatile long writes;
+
+    Server(ServerSocket serverSocket,boolean coalesce)
+    {
+      this.serverSocket=serverSocket;
+      this.coalesce=coalesce;
+    }
+
+    @Override
+    public void run()
+    {
+      try (Socket socket=serverSocket.accept())
+      {
+        socket.setTcpNoDelay(true);
+        OutputStream out=socket.getOutputStream();
+        ServerInputStream in=new ServerInputStream(new DebugSettings());
+        RequestHead head=new RequestHead();
+        int pendingLength=0;
+        while (true)
+        {
+          in.start(socket);
+          head.clear();
+          if (!head.readRequestLine(in))
+          { break;
+          }
+          head.readHeaders(in);
+
+          if (coalesce)
+          {
+            System.arraycopy(RESPONSE,0,pending,pendingLength,RESPONSE.length);
+            pendingLength+=RESPONSE.length;
+            if (in.getBuffered()==0
+                || pendingLength+RESPONSE.length>pending.length
+                )
+            {
+              out.write(pending,0,pendingLength);
+              out.flush();
+              writes++;
+              pendingLength=0;
+            }
+          }
+          else
+          {
+            out.write(RESPONSE);
+            out.flush();
+            writes++;
+          }
+        }
+      }
+      catch (IOException x)
+      { }
+    }
+  }
+}
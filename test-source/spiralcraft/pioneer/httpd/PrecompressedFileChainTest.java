@@ -0,0 +1,103 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.Files;
+
+import spiralcraft.pioneer.test.UnitTest;
+
+public class PrecompressedFileChainTest
+  extends UnitTest
+{
+
+  public void testSiblings()
+    throws IOException
+  {
+    File file=file();
+    File gz=sibling(file,".gz",file.lastModified());
+    PrecompressedFileChain.SiblingCache cache
+      =new PrecompressedFileChain.SiblingCache();
+    File[] siblings=cache.siblings(file.getPath());
+    assertNull(siblings[0]);
+    assertEquals(gz,siblings[1]);
+  }
+
+  public void testNoSiblings()
+    throws IOException
+  {
+    PrecompressedFileChain.SiblingCache cache
+      =new PrecompressedFileChain.SiblingCache();
+    assertNull(cache.siblings(file().getPath()));
+    assertNull(cache.siblings(new File("/nonexistent/app.js").getPath()));
+  }
+
+  /**
+   * A sibling older than the file is ignored
+   */
+  public void testStaleSibling()
+    throws IOException
+  {
+    File file=file();
+    sibling(file,".br",file.lastModified()-10000);
+    PrecompressedFileChain.SiblingCache cache
+      =new PrecompressedFileChain.SiblingCache();
+    assertNull(cache.siblings(file.getPath()));
+  }
+
+  /**
+   * The lookup is remembered for the check interval, and then until the
+   *   file changes
+   */
+  public void testRemembered()
+    throws IOException
+  {
+    File file=file();
+    PrecompressedFileChain.SiblingCache cache
+      =new PrecompressedFileChain.SiblingCache();
+    cache.setCheckInterval(60000);
+    assertNull(cache.siblings(file.getPath()));
+
+    File gz=sibling(file,".gz",file.lastModified());
+    assertNull(cache.siblings(file.getPath()));
+
+    cache.setCheckInterval(0);
+    assertNull(cache.siblings(file.getPath()));
+
+    file.setLastModified(file.lastModified()-2000);
+    assertEquals(gz,cache.siblings(file.getPath())[1]);
+  }
+
+  private static File file()
+    throws IOException
+  {
+    File file=File.createTempFile("PrecompressedFileChainTest",".js");
+    file.deleteOnExit();
+    Files.write(file.toPath(),"var x=1;".getBytes());
+    return file;
+  }
+
+  private static File sibling(File file,String suffix,long lastModified)
+    throws IOException
+  {
+    File sibling=new File(file.getPath()+suffix);
+    sibling.deleteOnExit();
+    Files.write(sibling.toPath(),new byte[] {1,2,3});
+    sibling.setLastModified(lastModified);
+    return sibling;
+  }
+}
@@ -0,0 +1,137 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.io.ByteArrayInputStream;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import spiralcraft.pioneer.test.Benchmark;
+
+/**
+ * <p>Compares parsing a typical browser request head with RequestHead
+ *   against the line-at-a-time approach it replaced, which read each
+ *   line into a String, split it with substring() and trim(), and
+ *   indexed it in a case-insensitive map.
+ * </p>
+ *
+ * <p>Each operation parses the head and looks up the Host,
+ *   Content-Length, Connection and Cookie headers, as a request
+ *   typically does.
+ * </p>
+ */
+public class RequestHeadBench
+{
+  private static final byte[] REQUEST
+    =("GET /app/page.html?section=news&id=42 HTTP/1.1\r\n"
+     +"Host: www.example.com\r\n"
+     +"User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+     +"Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+     +"Accept-Language: en-US,en;q=0.5\r\n"
+     +"Accept-Encoding: gzip, deflate, br\r\n"
+     +"Referer: https://www.example.com/app/index.html\r\n"
+     +"Connection: keep-alive\r\n"
+     +"Cookie: JSESSIONID=0123456789ABCDEF; theme=dark; tz=UTC\r\n"
+     +"Upgrade-Insecure-Requests: 1\r\n"
+     +"Cache-Control: max-age=0\r\n"
+     +"\r\n"
+     ).getBytes(StandardCharsets.ISO_8859_1);
+
+  public static void main(String[] args)
+    throws Exception
+  {
+    Benchmark benchmark=new Benchmark();
+    ServerInputStream in=new ServerInputStream(new DebugSettings());
+
+    RequestHead head=new RequestHead();
+    benchmark.run
+      ("RequestHead"
+      ,() ->
+        {
+          in.start(new ByteArrayInputStream(REQUEST));
+          head.clear();
+          head.readRequestLine(in);
+          head.readHeaders(in);
+          return head.getURI().length()
+            +head.getHeader(HeaderTable.HOST).length()
+            +(head.getHeader(HeaderTable.CONTENT_LENGTH)==null?0:1)
+            +head.getHeader(HeaderTable.CONNECTION).length()
+            +head.getHeader(HeaderTable.COOKIE).length();
+        }
+      );
+
+    benchmark.run
+      ("line Strings + map"
+      ,() ->
+        {
+          in.start(new ByteArrayInputStream(REQUEST));
+          LineParser parser=new LineParser();
+          parser.parse(in);
+          return parser.uri.length()
+            +parser.get("Host").length()
+            +(parser.get("Content-Length")==null?0:1)
+            +parser.get("Connection").length()
+            +parser.get("Cookie").length();
+        }
+      );
+    System.exit(0);
+  }
+
+  /**
+   * The String based parsing that RequestHead replaced
+   */
+  static class LineParser
+  {
+    String method;
+    String uri;
+    String protocol;
+    final List<String[]> headers=new ArrayList<>();
+    final HashMap<String,List<String[]>> headerMap=new HashMap<>();
+
+    void parse(ServerInputStream in)
+      throws Exception
+    {
+      StringTokenizer tk=new StringTokenizer(in.readAsciiLine()," ");
+      method=tk.nextToken();
+      uri=tk.nextToken();
+      protocol=tk.hasMoreTokens()?tk.nextToken():"HTTP/0.9";
+
+      while (true)
+      {
+        String line=in.readAsciiLine();
+        if (line==null || line.length()==0)
+        { break;
+        }
+        int colon=line.indexOf(":");
+        String[] header
+          ={line.substring(0,colon),line.substring(colon+1).trim()};
+        headers.add(header);
+        headerMap.computeIfAbsent
+          (header[0].toLowerCase(),k -> new ArrayList<>()).add(header);
+      }
+    }
+
+    String get(String name)
+    {
+      List<String[]> list=headerMap.get(name.toLowerCase());
+      return list!=null?list.get(0)[1]:null;
+    }
+  }
+}
@@ -0,0 +1,442 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.io.IOException;
+
+import spiralcraft.pioneer.test.ChunkedInput;
+import spiralcraft.pioneer.test.UnitTest;
+
+public class RequestHeadTest
+  extends UnitTest
+{
+
+  public void testRequestLineAndHeaders()
+    throws IOException
+  {
+    RequestHead head=parse
+      ("GET /index.html?a=b HTTP/1.1\r\n"
+      +"Host: example.com\r\n"
+      +"X-Custom:  padded value \r\n"
+      +"\r\n"
+      );
+    assertEquals("GET /index.html?a=b HTTP/1.1",head.getRequestLine());
+    assertEquals("GET",head.getMethod());
+    assertEquals("/index.html?a=b",head.getURI());
+    assertEquals("HTTP/1.1",head.getProtocol());
+    assertEquals(2,head.getHeaderCount());
+    assertEquals("example.com",head.getHeader(HeaderTable.HOST));
+    assertEquals("example.com",head.getHeader("host"));
+    assertEquals("padded value",head.getHeader("x-custom"));
+    assertEquals("X-Custom",head.getHeaderName(1));
+  }
+
+  public void testCommonValuesAreShared()
+    throws IOException
+  {
+    RequestHead head=parse("POST / HTTP/1.0\r\n\r\n");
+    assertTrue("method constant",head.getMethod()=="POST");
+    assertTrue("protocol constant",head.getProtocol()=="HTTP/1.0");
+  }
+
+  public void testNoProtocol()
+    throws IOException
+  {
+    RequestHead head=parse("GET /\r\n\r\n");
+    assertEquals("/",head.getURI());
+    assertNull(head.getProtocol());
+  }
+
+  public void testBareLineFeeds()
+    throws IOException
+  {
+    RequestHead head=parse("GET / HTTP/1.1\nHost: a\nAccept: */*\n\n");
+    assertEquals("HTTP/1.1",head.getProtocol());
+    assertEquals("a",head.getHeader(HeaderTable.HOST));
+    assertEquals("*/*",head.getHeader(HeaderTable.ACCEPT));
+  }
+
+  public void testMixedLineEnds()
+    throws IOException
+  {
+    RequestHead head=parse("GET / HTTP/1.1\r\nHost: a\nAccept: b\r\n\n");
+    assertEquals("a",head.getHeader(HeaderTable.HOST));
+    assertEquals("b",head.getHeader(HeaderTable.ACCEPT));
+  }
+
+  public void testCarriageReturnOnlyRejected()
+  {
+    assertThrows
+      (IOException.class
+      ,() -> parse("GET / HTTP/1.1\rHost: a\r\r")
+      );
+  }
+
+  public void testSplitReads()
+    throws IOException
+  {
+    String request
+      ="GET /split HTTP/1.1\r\n"
+      +"Host: example.com\r\n"
+      +"Cookie: a=1; b=2\r\n"
+      +"\r\n";
+
+    // One byte per read, through a buffer smaller than a line
+    RequestHead head=new RequestHead();
+    ServerInputStream in=stream(4,chunks(request,1));
+    assertTrue("request read",head.readRequestLine(in));
+    head.readHeaders(in);
+    assertEquals("/split",head.getURI());
+    assertEquals("example.com",head.getHeader(HeaderTable.HOST));
+    assertEquals("a=1; b=2",head.getHeader(HeaderTable.COOKIE));
+
+    // CR and LF in separate reads
+    head=new RequestHead();
+    in=stream
+      (8192
+      ,"GET / HTTP/1.1\r","\nHost: a\r","\n\r","\n"
+      );
+    assertTrue("request read",head.readRequestLine(in));
+    head.readHeaders(in);
+    assertEquals("a",head.getHeader(HeaderTable.HOST));
+  }
+
+  public void testLeadingEmptyLinesIgnored()
+    throws IOException
+  {
+    RequestHead head=parse("\r\n\r\nGET / HTTP/1.1\r\nHost: a\r\n\r\n");
+    assertEquals("GET",head.getMethod());
+    assertEquals("GET / HTTP/1.1",head.getRequestLine());
+    assertEquals("a",head.getHeader(HeaderTable.HOST));
+  }
+
+  public void testEndOfStreamBeforeRequest()
+    throws IOException
+  {
+    RequestHead head=new RequestHead();
+    assertFalse("no request",head.readRequestLine(stream(8192)));
+  }
+
+  public void testTruncatedHead()
+  {
+    assertThrows
+      (IOException.class
+      ,() -> parse("GET / HTTP/1.1\r\nHost: a")
+      );
+    assertThrows
+      (IOException.class
+      ,() -> parse("GET / HTTP/1.1")
+      );
+  }
+
+  /**
+   * A client that half-closes after the last header line, without the
+   *   blank line, is served (as by the earlier line-based parser)
+   */
+  public void testEndOfStreamAfterHeaderLine()
+    throws IOException
+  {
+    RequestHead head=parse("GET / HTTP/1.0\r\nHost: a\r\n");
+    assertEquals("a",head.getHeader(HeaderTable.HOST));
+  }
+
+  public void testMalformedRequestLine()
+  {
+    assertThrows(IOException.class,() -> parse("GET\r\n\r\n"));
+    assertThrows(IOException.class,() -> parse("   \r\n\r\n"));
+    assertThrows(IOException.class,() -> parse("GET /\u0001 HTTP/1.1\r\n\r\n"));
+    assertThrows(IOException.class,() -> parse("GET /\u00e9 HTTP/1.1\r\n\r\n"));
+  }
+
+  public void testMalformedHeaders()
+  {
+    assertThrows
+      (IOException.class
+      ,() -> parse("GET / HTTP/1.1\r\nNoColon\r\n\r\n")
+      );
+    assertThrows
+      (IOException.class
+      ,() -> parse("GET / HTTP/1.1\r\n: no name\r\n\r\n")
+      );
+  }
+
+  public void testEmptyHeaderValue()
+    throws IOException
+  {
+    RequestHead head=parse("GET / HTTP/1.1\r\nX-Empty:\r\nX-Spaces:   \r\n\r\n");
+    assertEquals("",head.getHeader("X-Empty"));
+    assertEquals("",head.getHeader("X-Spaces"));
+  }
+
+  public void testRepeatedHeaders()
+    throws IOException
+  {
+    RequestHead head=parse
+      ("GET / HTTP/1.1\r\n"
+      +"Accept: a\r\n"
+      +"X-Multi: 1\r\n"
+      +"accept: b\r\n"
+      +"x-multi: 2\r\n"
+      +"ACCEPT: c\r\n"
+      +"\r\n"
+      );
+    StringBuilder accepts=new StringBuilder();
+    for (int i=head.firstHeader(HeaderTable.ACCEPT);i>=0;i=head.nextHeader(i))
+    { accepts.append(head.getHeaderValue(i));
+    }
+    assertEquals("abc",accepts.toString());
+
+    int first=head.firstHeader("X-MULTI");
+    assertEquals("1",head.getHeaderValue(first));
+    assertEquals("2",head.getHeaderValue(head.nextHeader(first)));
+    assertEquals(-1,head.nextHeader(head.nextHeader(first)));
+  }
+
+  public void testManyHeaders()
+    throws IOException
+  {
+    StringBuilder request=new StringBuilder("GET / HTTP/1.1\r\n");
+    for (int i=0;i<200;i++)
+    { request.append("X-Header-").append(i).append(": ").append(i).append("\r\n");
+    }
+    request.append("\r\n");
+    RequestHead head=parse(request.toString());
+    assertEquals(200,head.getHeaderCount());
+    for (int i=0;i<200;i++)
+    { assertEquals(Integer.toString(i),head.getHeader("x-header-"+i));
+    }
+    assertNull(head.getHeader("X-Header-200"));
+  }
+
+  public void testLongHeaderLine()
+    throws IOException
+  {
+    StringBuilder value=new StringBuilder();
+    for (int i=0;i<20000;i++)
+    { value.append((char) ('a'+i%26));
+    }
+    RequestHead head
+      =parse("GET / HTTP/1.1\r\nX-Long: "+value+"\r\nHost: a\r\n\r\n");
+    assertEquals(value.toString(),head.getHeader("X-Long"));
+    assertEquals("a",head.getHeader(HeaderTable.HOST));
+  }
+
+  /**
+   * Clearing the head for the next request on a connection must forget
+   *   the headers, and the cached Strings, of the previous request.
+   */
+  public void testClearForgetsPreviousRequest()
+    throws IOException
+  {
+    RequestHead head=new RequestHead();
+    ServerInputStream in=stream
+      (8192
+      ,"GET /one HTTP/1.1\r\nHost: one\r\nX-First: 1\r\nCookie: s=1\r\n\r\n"
+      +"GET /two HTTP/1.1\r\nHost: two\r\n\r\n"
+      );
+
+    assertTrue("first request",head.readRequestLine(in));
+    head.readHeaders(in);
+    assertEquals("/one",head.getURI());
+    assertEquals("one",head.getHeaderValue(0));
+    assertEquals("1",head.getHeader("X-First"));
+    assertEquals("1",head.getCookieValue("s"));
+
+    head.clear();
+    assertTrue("second request",head.readRequestLine(in));
+    head.readHeaders(in);
+    assertEquals("/two",head.getURI());
+    assertEquals(1,head.getHeaderCount());
+    assertEquals("two",head.getHeaderValue(0));
+    assertEquals("Host",head.getHeaderName(0));
+    assertNull(head.getHeader("X-First"));
+    assertEquals(-1,head.firstHeader(HeaderTable.COOKIE));
+    assertNull(head.getCookieValue("s"));
+  }
+
+  public void testAddedHeader()
+    throws IOException
+  {
+    RequestHead head=parse("GET http://example.com/ HTTP/1.1\r\n\r\n");
+    head.addHeader("Host","example.com");
+    assertEquals("example.com",head.getHeader(HeaderTable.HOST));
+    assertEquals("Host",head.getHeaderName(0));
+    assertTrue("absolute URI",head.uriStartsWith("HTTP://"));
+  }
+
+  public void testSizeLimit()
+  {
+    RequestHeadException x=assertThrows
+      (RequestHeadException.class
+      ,() -> parse(64,0,"GET /"+repeat('a',100)+" HTTP/1.1\r\n\r\n")
+      );
+    assertEquals(414,x.getStatus());
+
+    x=assertThrows
+      (RequestHeadException.class
+      ,() -> parse(64,0,"GET / HTTP/1.1\r\nX-Big: "+repeat('a',100)+"\r\n\r\n")
+      );
+    assertEquals(431,x.getStatus());
+    assertEquals(RequestHeadException.SIZE,x.getViolation());
+  }
+
+  public void testSizeLimitExactFit()
+    throws IOException
+  {
+    String request="GET / HTTP/1.1\r\nHost: a\r\n\r\n";
+    RequestHead head=parse(request.length(),0,request);
+    assertEquals("a",head.getHeader(HeaderTable.HOST));
+  }
+
+  public void testCountLimit()
+    throws IOException
+  {
+    RequestHeadException x=assertThrows
+      (RequestHeadException.class
+      ,() -> parse(0,2,"GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\n\r\n")
+      );
+    assertEquals(431,x.getStatus());
+    assertEquals(RequestHeadException.COUNT,x.getViolation());
+
+    RequestHead head=parse(0,2,"GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\n\r\n");
+    assertEquals(2,head.getHeaderCount());
+  }
+
+  public void testCookieValue()
+    throws IOException
+  {
+    RequestHead head=cookies("a=1; SESSION=abc; b=2");
+    assertEquals("abc",head.getCookieValue("SESSION"));
+    assertEquals("1",head.getCookieValue("a"));
+    assertEquals("2",head.getCookieValue("b"));
+    assertNull(head.getCookieValue("c"));
+  }
+
+  public void testCookieNameIgnoresCase()
+    throws IOException
+  { assertEquals("x",cookies("session=x").getCookieValue("SESSION"));
+  }
+
+  public void testCookieNameMustMatchWhole()
+    throws IOException
+  {
+    RequestHead head=cookies("xsession=1; sess=2; session2=3");
+    assertNull(head.getCookieValue("session"));
+  }
+
+  public void testLastCookieWins()
+    throws IOException
+  {
+    assertEquals("2",cookies("s=1; s=2").getCookieValue("s"));
+    assertEquals("3",cookies("s=1; t=x","a=b; s=3").getCookieValue("s"));
+    assertEquals("1",cookies("s=1","t=2").getCookieValue("s"));
+  }
+
+  public void testQuotedCookieValue()
+    throws IOException
+  {
+    assertEquals("a b",cookies("s=\"a b\"").getCookieValue("s"));
+    assertEquals("",cookies("s=\"\"").getCookieValue("s"));
+    assertEquals("\"",cookies("s=\"").getCookieValue("s"));
+    assertEquals("\"a",cookies("s=\"a").getCookieValue("s"));
+  }
+
+  public void testCookieWhitespace()
+    throws IOException
+  {
+    RequestHead head=cookies("  a = 1 ;\tb=2;c=3  ;");
+    assertEquals("1",head.getCookieValue("a"));
+    assertEquals("2",head.getCookieValue("b"));
+    assertEquals("3",head.getCookieValue("c"));
+  }
+
+  public void testMalformedCookies()
+    throws IOException
+  {
+    RequestHead head=cookies("flag; =x; s=; t=a=b;;; u=1");
+    assertNull(head.getCookieValue("flag"));
+    assertNull(head.getCookieValue(""));
+    assertEquals("",head.getCookieValue("s"));
+    assertEquals("a=b",head.getCookieValue("t"));
+    assertEquals("1",head.getCookieValue("u"));
+  }
+
+  public void testNoCookieHeader()
+    throws IOException
+  {
+    assertNull(parse("GET / HTTP/1.1\r\n\r\n").getCookieValue("s"));
+    assertNull(cookies("").getCookieValue("s"));
+  }
+
+  /**
+   * A head with a Cookie header for each of the specified values
+   */
+  static RequestHead cookies(String ... headers)
+    throws IOException
+  {
+    StringBuilder request=new StringBuilder("GET / HTTP/1.1\r\n");
+    for (String header: headers)
+    { request.append("Cookie: ").append(header).append("\r\n");
+    }
+    return parse(request.append("\r\n").toString());
+  }
+
+  static RequestHead parse(String request)
+    throws IOException
+  { return parse(0,0,request);
+  }
+
+  static RequestHead parse(int maxSize,int maxHeaderCount,String request)
+    throws IOException
+  {
+    RequestHead head=new RequestHead();
+    head.setLimits(maxSize,maxHeaderCount);
+    ServerInputStream in=stream(8192,request);
+    if (!head.readRequestLine(in))
+    { throw new IOException("No request");
+    }
+    head.readHeaders(in);
+    return head;
+  }
+
+  /**
+   * A ServerInputStream with the specified buffer size which reads each
+   *   of the specified chunks in a separate read
+   */
+  static ServerInputStream stream(int bufferSize,String ... chunks)
+  {
+    ServerInputStream in=new ServerInputStream(new DebugSettings(),bufferSize);
+    in.start(new ChunkedInput(chunks));
+    return in;
+  }
+
+  static String[] chunks(String data,int size)
+  {
+    String[] chunks=new String[(data.length()+size-1)/size];
+    for (int i=0;i<chunks.length;i++)
+    { chunks[i]=data.substring(i*size,Math.min(data.length(),(i+1)*size));
+    }
+    return chunks;
+  }
+
+  static String repeat(char chr,int count)
+  {
+    StringBuilder buf=new StringBuilder(count);
+    for (int i=0;i<count;i++)
+    { buf.append(chr);
+    }
+    return buf.toString();
+  }
+}
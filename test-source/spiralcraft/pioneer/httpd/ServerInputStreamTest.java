@@ -0,0 +1,160 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.Socket;
+
+import java.nio.charset.StandardCharsets;
+
+import spiralcraft.pioneer.test.ChunkedInput;
+import spiralcraft.pioneer.test.UnitTest;
+
+public class ServerInputStreamTest
+  extends UnitTest
+{
+
+  /**
+   * Pipelined data buffered from a channel socket, which returns a new
+   *   InputStream from each getInputStream(), is kept for the next request
+   */
+  public void testBufferTiedToSocket()
+    throws IOException
+  {
+    Socket socket=new StreamPerCallSocket
+      (new ChunkedInput("first\r\nsecond\r\n"));
+    ServerInputStream in=new ServerInputStream(new DebugSettings());
+
+    in.start(socket);
+    assertEquals("first",in.readAsciiLine());
+    assertEquals(8,in.getBuffered());
+
+    in.start(socket);
+    assertEquals("second",in.readAsciiLine());
+  }
+
+  public void testReleaseDiscardsBuffer()
+    throws IOException
+  {
+    Socket socket=new StreamPerCallSocket
+      (new ChunkedInput("first\r\nsecond\r\n","third\r\n"));
+    ServerInputStream in=new ServerInputStream(new DebugSettings());
+
+    in.start(socket);
+    assertEquals("first",in.readAsciiLine());
+    in.release();
+    assertEquals(0,in.getBuffered());
+
+    in.start(socket);
+    assertEquals("third",in.readAsciiLine());
+  }
+
+  public void testNewSocketDiscardsBuffer()
+    throws IOException
+  {
+    ServerInputStream in=new ServerInputStream(new DebugSettings());
+    in.start(new StreamPerCallSocket(new ChunkedInput("a\r\nb\r\n")));
+    assertEquals("a",in.readAsciiLine());
+    in.start(new StreamPerCallSocket(new ChunkedInput("c\r\n")));
+    assertEquals("c",in.readAsciiLine());
+  }
+
+  public void testReadLineAcrossBufferEdges()
+    throws IOException
+  {
+    ServerInputStream in=new ServerInputStream(new DebugSettings(),4);
+    in.start(new ChunkedInput("abcdefghij\nkl\n"));
+
+    byte[] line=new byte[32];
+    int count=in.readLine(line,0,line.length);
+    assertEquals("abcdefghij\n",new String(line,0,count,StandardCharsets.ISO_8859_1));
+    count=in.readLine(line,0,line.length);
+    assertEquals("kl\n",new String(line,0,count,StandardCharsets.ISO_8859_1));
+    assertEquals(-1,in.readLine(line,0,line.length));
+  }
+
+  public void testReadLineStopsAtLength()
+    throws IOException
+  {
+    ServerInputStream in=new ServerInputStream(new DebugSettings());
+    in.start(new ChunkedInput("abcdef\n"));
+    byte[] line=new byte[4];
+    assertEquals(4,in.readLine(line,0,4));
+    assertEquals(3,in.readLine(line,0,4));
+    assertEquals('\n',line[2]);
+  }
+
+  public void testReadAsciiLineEnds()
+    throws IOException
+  {
+    ServerInputStream in=new ServerInputStream(new DebugSettings(),4);
+    in.start(new ChunkedInput("crlf\r\n","lf\n","\n","\r\n","split\r","\n"));
+    assertEquals("crlf",in.readAsciiLine());
+    assertEquals("lf",in.readAsciiLine());
+    assertEquals("",in.readAsciiLine());
+    assertEquals("",in.readAsciiLine());
+    assertEquals("split",in.readAsciiLine());
+    assertNull(in.readAsciiLine());
+  }
+
+  public void testBulkReadBypassesBuffer()
+    throws IOException
+  {
+    ServerInputStream in=new ServerInputStream(new DebugSettings(),4);
+    in.start(new ChunkedInput("ab","0123456789"));
+    assertEquals('a',in.read());
+
+    byte[] data=new byte[16];
+    assertEquals(1,in.read(data,0,16));
+    assertEquals('b',data[0]);
+    assertEquals(10,in.read(data,0,16));
+    assertEquals("0123456789",new String(data,0,10,StandardCharsets.ISO_8859_1));
+    assertEquals(12,in.getCount());
+    assertEquals(-1,in.read(data,0,16));
+  }
+
+  public void testDiscard()
+    throws IOException
+  {
+    ServerInputStream in=new ServerInputStream(new DebugSettings(),4);
+    in.start(new ChunkedInput("0123","4567","89"));
+    in.discard(9);
+    assertEquals('9',in.read());
+    assertEquals(-1,in.read());
+    assertEquals(10,in.getCount());
+  }
+
+  /**
+   * Like a channel based Socket, returns a new InputStream over the
+   *   connection from each call to getInputStream()
+   */
+  static class StreamPerCallSocket
+    extends Socket
+  {
+    private final InputStream connection;
+
+    StreamPerCallSocket(InputStream connection)
+    { this.connection=connection;
+    }
+
+    @Override
+    public InputStream getInputStream()
+    { return new FilterInputStream(connection) { };
+    }
+  }
+}
@@ -0,0 +1,144 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.httpd;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.Files;
+
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import spiralcraft.pioneer.test.UnitTest;
+
+public class StaticFileCacheTest
+  extends UnitTest
+{
+
+  public void testHitAndReload()
+    throws IOException
+  {
+    StaticFileCache cache=new StaticFileCache();
+    cache.setCheckInterval(0);
+    File file=file("hello");
+    StaticFileCache.Entry entry=cache.get(file,"text/plain");
+    assertArrayEquals("hello".getBytes(),entry.content);
+    assertTrue("hit",cache.get(file,"text/plain")==entry);
+
+    Files.write(file.toPath(),"changed".getBytes());
+    file.setLastModified(entry.lastModified+2000);
+    StaticFileCache.Entry reloaded=cache.get(file,"text/plain");
+    assertTrue("reloaded",reloaded!=entry);
+    assertArrayEquals("changed".getBytes(),reloaded.content);
+  }
+
+  public void testTooLarge()
+    throws IOException
+  {
+    StaticFileCache cache=new StaticFileCache();
+    cache.setMaxFileSize(4);
+    assertNull(cache.get(file("hello"),"text/plain"));
+  }
+
+  /**
+   * The compressed copy is made once and has its own ETag
+   */
+  public void testGzip()
+    throws IOException
+  {
+    StaticFileCache cache=new StaticFileCache();
+    byte[] text=repeat("static content ",200);
+    StaticFileCache.Entry entry=cache.get(file(text),"text/plain");
+    StaticFileCache.Compressed gzip
+      =cache.gzip(entry,Deflater.DEFAULT_COMPRESSION);
+    assertTrue("smaller",gzip.content.length<text.length);
+    assertArrayEquals(text,gunzip(gzip.content));
+    assertEquals
+      (Integer.toString(gzip.content.length),gzip.contentLengthHeader);
+    assertFalse("etag",gzip.etag.equals(entry.etag));
+    assertTrue
+      ("cached"
+      ,cache.gzip(entry,Deflater.DEFAULT_COMPRESSION)==gzip
+      );
+  }
+
+  public void testIncompressible()
+    throws IOException
+  {
+    StaticFileCache cache=new StaticFileCache();
+    byte[] random=new byte[4096];
+    new Random(1).nextBytes(random);
+    StaticFileCache.Entry entry=cache.get(file(random),"image/png");
+    assertNull(cache.gzip(entry,Deflater.DEFAULT_COMPRESSION));
+    assertNull(cache.gzip(entry,Deflater.DEFAULT_COMPRESSION));
+  }
+
+  /**
+   * Compressed copies count against the maximum size
+   */
+  public void testCompressedSizeEvicts()
+    throws IOException
+  {
+    byte[] text=repeat("static content ",200);
+    StaticFileCache cache=new StaticFileCache();
+    cache.setMaxSize(text.length*2+10);
+    cache.setCheckInterval(60000);
+    File first=file(text);
+    File second=file(text);
+    StaticFileCache.Entry firstEntry=cache.get(first,"text/plain");
+    StaticFileCache.Entry secondEntry=cache.get(second,"text/plain");
+    assertTrue("both held",cache.get(first,"text/plain")==firstEntry);
+
+    cache.gzip(secondEntry,Deflater.DEFAULT_COMPRESSION);
+    assertTrue("second held",cache.get(second,"text/plain")==secondEntry);
+    assertTrue("first evicted",cache.get(first,"text/plain")!=firstEntry);
+  }
+
+  private static File file(String content)
+    throws IOException
+  { return file(content.getBytes());
+  }
+
+  private static File file(byte[] content)
+    throws IOException
+  {
+    File file=File.createTempFile("StaticFileCacheTest",".txt");
+    file.deleteOnExit();
+    Files.write(file.toPath(),content);
+    return file;
+  }
+
+  private static byte[] repeat(String text,int count)
+  {
+    StringBuilder buf=new StringBuilder(text.length()*count);
+    for (int i=0;i<count;i++)
+    { buf.append(text).append(i);
+    }
+    return buf.toString().getBytes();
+  }
+
+  private static byte[] gunzip(byte[] content)
+    throws IOException
+  {
+    try (GZIPInputStream in
+          =new GZIPInputStream(new ByteArrayInputStream(content))
+        )
+    { return in.readAllBytes();
+    }
+  }
+}
@@ -0,0 +1,225 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Loopback benchmark of the hand-off from the accepting thread to the
+ *   thread that handles a connection.
+ * </p>
+ *
+ * <p>A number of client threads repeatedly connect, read one byte and
+ *   close. The accepting thread passes each socket to the
+ *   ConnectionHandler under test, and the handler writes the byte. The
+ *   accept-to-dispatch latency (from accept() returning to the handler
+ *   being called) and the connection rate are reported.
+ * </p>
+ *
+ * <pre>
+ * ConnectionHandlerBench [queue|adaptive|virtual] [clients] [seconds]
+ * </pre>
+ */
+public class ConnectionHandlerBench
+{
+  private static final int MAX_SAMPLES=4*1024*1024;
+
+  private final Map<Socket,Long> acceptTimes=new ConcurrentHashMap<>();
+  private final long[] samples=new long[MAX_SAMPLES];
+  private final AtomicInteger sampleCount=new AtomicInteger();
+  private final LongAdder connections=new LongAdder();
+  private volatile boolean running=true;
+
+  public static void main(String[] args)
+    throws Exception
+  {
+    String mode=args.length>0?args[0]:"queue";
+    int clients=args.length>1?Integer.parseInt(args[1]):64;
+    int seconds=args.length>2?Integer.parseInt(args[2]):10;
+    new ConnectionHandlerBench().run(mode,clients,seconds);
+  }
+
+  private ConnectionHandler createHandler(String mode)
+  {
+    ConnectionHandlerFactory factory=() -> this::handle;
+    if (mode.equals("virtual"))
+    {
+      // Looked up by name so the benchmark also runs against trees that
+      //   predate VirtualThreadConnectionHandler
+      try
+      {
+        Class<?> type
+          =Class.forName("spiralcraft.pioneer.net.VirtualThreadConnectionHandler");
+        Object handler=type.getDeclaredConstructor().newInstance();
+        type.getMethod("setConnectionHandlerFactory",ConnectionHandlerFactory.class)
+          .invoke(handler,factory);
+        type.getMethod("init").invoke(handler);
+        return (ConnectionHandler) handler;
+      }
+      catch (ReflectiveOperationException x)
+      { throw new IllegalArgumentException("virtual threads not supported",x);
+      }
+    }
+
+    QueueConnectionHandler handler=new QueueConnectionHandler();
+    handler.setConnectionHandlerFactory(factory);
+    handler.setInitialThreadCount(4);
+    handler.setHighWaterThreadCount(200);
+    if (mode.equals("adaptive"))
+    {
+      try
+      {
+        QueueConnectionHandler.class
+          .getMethod("setAdaptiveSizing",boolean.class)
+          .invoke(handler,true);
+      }
+      catch (ReflectiveOperationException x)
+      { throw new IllegalArgumentException("adaptive sizing not supported",x);
+      }
+    }
+    handler.init();
+    return handler;
+  }
+
+  private void handle(Socket socket,ServerSocketFactory factory)
+  {
+    Long accepted=acceptTimes.remove(socket);
+    if (accepted!=null)
+    {
+      int index=sampleCount.getAndIncrement();
+      if (index<MAX_SAMPLES)
+      { samples[index]=System.nanoTime()-accepted;
+      }
+    }
+    try
+    {
+      OutputStream out=socket.getOutputStream();
+      out.write('x');
+      out.flush();
+    }
+    catch (IOException x)
+    { }
+    finally
+    {
+      try
+      { socket.close();
+      }
+      catch (IOException x)
+      { }
+    }
+  }
+
+  private void run(String mode,int clients,int seconds)
+    throws Exception
+  {
+    ConnectionHandler handler=createHandler(mode);
+    ServerSocket serverSocket=new ServerSocket();
+    serverSocket.bind
+      (new InetSocketAddress(InetAddress.getLoopbackAddress(),0),1024);
+    int port=serverSocket.getLocalPort();
+
+    Thread acceptor=new Thread
+      (() ->
+        {
+          while (running)
+          {
+            try
+            {
+              Socket socket=serverSocket.accept();
+              acceptTimes.put(socket,System.nanoTime());
+              handler.handleConnection(socket,null);
+            }
+            catch (IOException x)
+            { }
+          }
+        }
+      ,"acceptor"
+      );
+    acceptor.start();
+
+    Thread[] threads=new Thread[clients];
+    for (int i=0;i<clients;i++)
+    {
+      threads[i]=new Thread(() -> connectLoop(port),"client"+i);
+      threads[i].setDaemon(true);
+      threads[i].start();
+    }
+
+    // Warm up, then measure
+    Thread.sleep(Math.min(2000,seconds*200L));
+    sampleCount.set(0);
+    connections.reset();
+    long start=System.nanoTime();
+    Thread.sleep(seconds*1000L);
+    long elapsed=System.nanoTime()-start;
+    long count=connections.sum();
+    int sampled=Math.min(sampleCount.get(),MAX_SAMPLES);
+    running=false;
+    serverSocket.close();
+
+    long[] sorted=Arrays.copyOf(samples,sampled);
+    Arrays.sort(sorted);
+    System.out.println
+      (String.format
+        ("%-9s %3d clients %9.0f conn/s  dispatch p50 %7.1fus p90 %7.1fus p99 %8.1fus"
+        ,mode
+        ,clients
+        ,count*1e9/elapsed
+        ,percentile(sorted,.5)/1000.0
+        ,percentile(sorted,.9)/1000.0
+        ,percentile(sorted,.99)/1000.0
+        )
+      );
+    System.exit(0);
+  }
+
+  private static long percentile(long[] sorted,double fraction)
+  {
+    if (sorted.length==0)
+    { return 0;
+    }
+    return sorted[(int) Math.min(sorted.length-1,sorted.length*fraction)];
+  }
+
+  private void connectLoop(int port)
+  {
+    InetAddress address=InetAddress.getLoopbackAddress();
+    while (running)
+    {
+      try (Socket socket=new Socket(address,port))
+      {
+        InputStream in=socket.getInputStream();
+        if (in.read()>=0)
+        { connections.increment();
+        }
+      }
+      catch (IOException x)
+      { }
+    }
+  }
+}
@@ -0,0 +1,194 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.net;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import spiralcraft.pioneer.test.UnitTest;
+
+/**
+ * <p>Parks server side loopback connections accepted from a
+ *   ServerSocketChannel.
+ * </p>
+ */
+public class ConnectionParkerTest
+  extends UnitTest
+{
+  private final BlockingQueue<Socket> handled=new LinkedBlockingQueue<>();
+  private final StandardServerSocketFactory factory
+    =new StandardServerSocketFactory();
+  private final List<SocketChannel> clients=new ArrayList<>();
+  private ServerSocketChannel server;
+
+  /**
+   * A parked connection is handed back to the ConnectionHandler when data
+   *   arrives, and is identified by claimResumed()
+   */
+  public void testResume()
+    throws Exception
+  {
+    ConnectionParker parker=parker(1000);
+    try
+    {
+      Socket socket=accept();
+      assertTrue("parked",parker.park(socket,factory,60000));
+      assertNull(handled.poll(100,TimeUnit.MILLISECONDS));
+
+      clients.get(0).write(ByteBuffer.wrap("GET".getBytes()));
+      Socket resumed=handled.poll(5,TimeUnit.SECONDS);
+      assertTrue("resumed",resumed==socket);
+      assertTrue("blocking",socket.getChannel().isBlocking());
+      assertTrue("claimed",parker.claimResumed(socket));
+      assertFalse("claimed once",parker.claimResumed(socket));
+      assertFalse("open",socket.isClosed());
+    }
+    finally
+    { finish(parker);
+    }
+  }
+
+  /**
+   * A parked connection with no further data is closed when its timeout
+   *   expires
+   */
+  public void testExpire()
+    throws Exception
+  {
+    ConnectionParker parker=parker(20);
+    try
+    {
+      Socket socket=accept();
+      assertTrue("parked",parker.park(socket,factory,50));
+      assertTrue("closed",waitForClose(socket));
+      assertTrue("not resumed",handled.isEmpty());
+    }
+    finally
+    { finish(parker);
+    }
+  }
+
+  /**
+   * A connection parked while the parker is stopping is either returned
+   *   to the caller or closed by the parker
+   */
+  public void testParkDuringStop()
+    throws Exception
+  {
+    ConnectionParker parker=parker(1000);
+    List<Socket> sockets=new ArrayList<>();
+    for (int i=0;i<50;i++)
+    { sockets.add(accept());
+    }
+
+    boolean[] parked=new boolean[sockets.size()];
+    Thread parking
+      =new Thread
+        (() ->
+          {
+            for (int i=0;i<parked.length;i++)
+            { parked[i]=parker.park(sockets.get(i),factory,60000);
+            }
+          }
+        );
+    try
+    {
+      parking.start();
+      Thread.sleep(1);
+      parker.stop();
+      parking.join(5000);
+
+      for (int i=0;i<parked.length;i++)
+      {
+        Socket socket=sockets.get(i);
+        if (parked[i])
+        { assertTrue("parked socket "+i+" closed",waitForClose(socket));
+        }
+        else
+        { assertFalse("returned socket "+i+" open",socket.isClosed());
+        }
+      }
+      assertFalse("parked after stop",parker.park(accept(),factory,60000));
+    }
+    finally
+    {
+      for (Socket socket: sockets)
+      { socket.close();
+      }
+      finish(parker);
+    }
+  }
+
+  private ConnectionParker parker(long expireCheckIntervalMs)
+    throws IOException
+  {
+    server=ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),0));
+
+    ConnectionParker parker=new ConnectionParker();
+    parker.setConnectionHandler((socket,socketFactory) -> handled.add(socket));
+    parker.setExpireCheckIntervalMs(expireCheckIntervalMs);
+    parker.start();
+    return parker;
+  }
+
+  /**
+   * Connect a client and return the server side of the connection
+   */
+  private Socket accept()
+    throws IOException
+  {
+    clients.add(SocketChannel.open(server.getLocalAddress()));
+    return server.accept().socket();
+  }
+
+  private static boolean waitForClose(Socket socket)
+    throws InterruptedException
+  {
+    long end=System.currentTimeMillis()+5000;
+    while (!socket.isClosed())
+    {
+      if (System.currentTimeMillis()>end)
+      { return false;
+      }
+      Thread.sleep(5);
+    }
+    return true;
+  }
+
+  private void finish(ConnectionParker parker)
+    throws IOException
+  {
+    parker.stop();
+    for (SocketChannel client: clients)
+    { client.close();
+    }
+    server.close();
+  }
+}
@@ -0,0 +1,123 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.net;
+
+import java.net.Socket;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import spiralcraft.pioneer.test.UnitTest;
+
+public class QueueConnectionHandlerTest
+  extends UnitTest
+{
+  private final Semaphore handled=new Semaphore(0);
+  private final CountDownLatch release=new CountDownLatch(1);
+
+  private final ConnectionHandlerFactory factory
+    =() -> 
+      (socket,socketFactory) ->
+        {
+          handled.release();
+          try
+          { release.await();
+          }
+          catch (InterruptedException x)
+          { }
+        };
+
+  /**
+   * A connection queued behind a busy worker gets a new worker once the
+   *   queue delay passes growQueueDelay, without another connection
+   *   arriving.
+   */
+  public void testAdaptiveGrowsWithoutArrivals()
+    throws Exception
+  {
+    QueueConnectionHandler handler=new QueueConnectionHandler();
+    handler.setConnectionHandlerFactory(factory);
+    handler.setInitialThreadCount(1);
+    handler.setLowWaterThreadCount(0);
+    handler.setHighWaterThreadCount(4);
+    handler.setAdaptiveSizing(true);
+    handler.setGrowQueueDelayMs(20);
+    handler.setSizingIntervalMs(60000);
+    handler.init();
+    try
+    {
+      handler.handleConnection(new Socket(),null);
+      assertTrue("first handled",handled.tryAcquire(5,TimeUnit.SECONDS));
+
+      handler.handleConnection(new Socket(),null);
+      assertEquals(1,handler.getQueueSize());
+      assertTrue
+        ("second handled by an added worker"
+        ,handled.tryAcquire(5,TimeUnit.SECONDS)
+        );
+      assertEquals(0,handler.getQueueSize());
+    }
+    finally
+    {
+      release.countDown();
+      handler.stop();
+    }
+  }
+
+  /**
+   * Workers added above the initial thread count exit once idle, when
+   *   adaptive sizing is off.
+   */
+  public void testFixedSizeRetiresIdleWorkers()
+    throws Exception
+  {
+    QueueConnectionHandler handler=new QueueConnectionHandler();
+    handler.setConnectionHandlerFactory(factory);
+    handler.setInitialThreadCount(1);
+    handler.setLowWaterThreadCount(0);
+    handler.setHighWaterThreadCount(4);
+    handler.setIdleRetireSeconds(1);
+    handler.setSizingIntervalMs(10);
+    handler.init();
+    try
+    {
+      for (int i=0;i<4;i++)
+      { handler.handleConnection(new Socket(),null);
+      }
+      assertTrue("all handled",handled.tryAcquire(4,5,TimeUnit.SECONDS));
+      assertEquals(4,handler.getNumOutstandingThreads());
+      release.countDown();
+
+      long deadline=System.nanoTime()+TimeUnit.SECONDS.toNanos(10);
+      while (handler.getNumAvailableThreads()!=1 && System.nanoTime()<deadline)
+      { Thread.sleep(50);
+      }
+      assertEquals(1,handler.getNumAvailableThreads());
+
+      // The remaining worker is at the initial thread count and stays
+      Thread.sleep(1500);
+      assertTrue
+        ("initial worker kept"
+        ,handler.getNumAvailableThreads()+handler.getNumOutstandingThreads()>=1
+        );
+    }
+    finally
+    {
+      release.countDown();
+      handler.stop();
+    }
+  }
+}
@@ -0,0 +1,80 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.pool;
+
+import spiralcraft.pioneer.test.Benchmark;
+
+/**
+ * <p>Measures a check-out immediately followed by a check-in, with
+ *   1, 8 and 64 threads, both with a resource for every thread and with
+ *   64 threads sharing 8 resources (so most check-outs wait).
+ * </p>
+ *
+ * <p>Raw types are used so the same benchmark compiles against the
+ *   earlier, non-generic Pool.
+ * </p>
+ */
+@SuppressWarnings({"rawtypes","unchecked"})
+public class PoolBench
+{
+  public static void main(String[] args)
+    throws Exception
+  {
+    Benchmark benchmark=new Benchmark();
+    for (int threads: new int[] {1,8,64})
+    { run(benchmark,threads,threads);
+    }
+    run(benchmark,64,8);
+    System.exit(0);
+  }
+
+  private static void run(Benchmark benchmark,int threads,int size)
+    throws Exception
+  {
+    Pool pool=new Pool();
+    pool.setResourceFactory
+      (new ResourceFactory()
+        {
+          @Override
+          public Object createResource()
+          { return new Object();
+          }
+
+          @Override
+          public void discardResource(Object resource)
+          { }
+        }
+      );
+    pool.setInitialSize(size);
+    pool.setMaxSize(size);
+    pool.init();
+    try
+    {
+      benchmark.run
+        ("checkout+checkin size "+size
+        ,threads
+        ,() ->
+          {
+            Object resource=pool.checkout();
+            pool.checkin(resource);
+            return resource.hashCode();
+          }
+        );
+    }
+    finally
+    { pool.stop();
+    }
+  }
+}
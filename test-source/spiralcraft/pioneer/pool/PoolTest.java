@@ -0,0 +1,204 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.pool;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import spiralcraft.pioneer.test.UnitTest;
+
+public class PoolTest
+  extends UnitTest
+{
+
+  public void testCheckoutAndCheckin()
+  {
+    Pool<Object> pool=pool(2);
+    try
+    {
+      Object a=pool.checkout();
+      Object b=pool.checkout();
+      assertTrue("distinct resources",a!=b);
+      assertEquals(0,pool.getNumAvailable());
+      pool.checkin(a);
+      pool.checkin(b);
+      assertEquals(2,pool.getNumAvailable());
+    }
+    finally
+    { pool.stop();
+    }
+  }
+
+  public void testZeroTimeoutDoesNotWait()
+  {
+    Pool<Object> pool=pool(1);
+    try
+    {
+      Object held=pool.checkout();
+      long start=System.nanoTime();
+      assertNull(pool.checkout(0,TimeUnit.MILLISECONDS));
+      assertNull(pool.checkout(-5,TimeUnit.SECONDS));
+      assertTrue
+        ("returned without waiting"
+        ,System.nanoTime()-start<TimeUnit.MILLISECONDS.toNanos(500)
+        );
+      pool.checkin(held);
+      assertTrue("available again",pool.checkout(0,TimeUnit.MILLISECONDS)!=null);
+    }
+    finally
+    { pool.stop();
+    }
+  }
+
+  public void testTimeoutElapses()
+  {
+    Pool<Object> pool=pool(1);
+    try
+    {
+      Object held=pool.checkout();
+      long start=System.nanoTime();
+      assertNull(pool.checkout(50,TimeUnit.MILLISECONDS));
+      assertTrue
+        ("waited for the timeout"
+        ,System.nanoTime()-start>=TimeUnit.MILLISECONDS.toNanos(50)
+        );
+      pool.checkin(held);
+    }
+    finally
+    { pool.stop();
+    }
+  }
+
+  public void testCheckoutWaitsForCheckin()
+    throws Exception
+  {
+    Pool<Object> pool=pool(1);
+    try
+    {
+      Object held=pool.checkout();
+      AtomicReference<Object> received=new AtomicReference<>();
+      Thread waiter=new Thread(() -> received.set(pool.checkout()));
+      waiter.start();
+      Thread.sleep(50);
+      assertTrue("still waiting",waiter.isAlive());
+      pool.checkin(held);
+      waiter.join(5000);
+      assertFalse("woken by checkin",waiter.isAlive());
+      assertTrue("handed the returned resource",received.get()==held);
+    }
+    finally
+    { pool.stop();
+    }
+  }
+
+  public void testWaitersServedInOrder()
+    throws Exception
+  {
+    Pool<Object> pool=pool(1);
+    try
+    {
+      Object held=pool.checkout();
+      List<Integer> order=new CopyOnWriteArrayList<>();
+      Thread[] waiters=new Thread[3];
+      for (int i=0;i<waiters.length;i++)
+      {
+        int index=i;
+        waiters[i]=new Thread
+          (() ->
+            {
+              Object resource=pool.checkout();
+              order.add(index);
+              pool.checkin(resource);
+            }
+          );
+        waiters[i].start();
+        // Let each thread queue before the next one starts
+        Thread.sleep(50);
+      }
+      pool.checkin(held);
+      for (Thread waiter: waiters)
+      { waiter.join(5000);
+      }
+      assertEquals(List.of(0,1,2),order);
+    }
+    finally
+    { pool.stop();
+    }
+  }
+
+  /**
+   * Many threads sharing a few resources must never strand a waiter
+   *   while a resource is available.
+   */
+  public void testNoLostWakeups()
+    throws Exception
+  {
+    Pool<Object> pool=pool(4);
+    try
+    {
+      for (int round=0;round<20;round++)
+      {
+        long deadline=System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(50);
+        Thread[] threads=new Thread[64];
+        for (int t=0;t<threads.length;t++)
+        {
+          threads[t]=new Thread
+            (() ->
+              {
+                while (System.nanoTime()<deadline)
+                { pool.checkin(pool.checkout());
+                }
+              }
+            );
+          threads[t].setDaemon(true);
+          threads[t].start();
+        }
+        for (Thread thread: threads)
+        {
+          thread.join(10000);
+          assertFalse("thread stranded in round "+round,thread.isAlive());
+        }
+      }
+      assertEquals(4,pool.getNumAvailable());
+    }
+    finally
+    { pool.stop();
+    }
+  }
+
+  private static Pool<Object> pool(int size)
+  {
+    Pool<Object> pool=new Pool<>();
+    pool.setResourceFactory
+      (new ResourceFactory<Object>()
+        {
+          @Override
+          public Object createResource()
+          { return new Object();
+          }
+
+          @Override
+          public void discardResource(Object resource)
+          { }
+        }
+      );
+    pool.setInitialSize(size);
+    pool.setMaxSize(size);
+    pool.init();
+    return pool;
+  }
+}
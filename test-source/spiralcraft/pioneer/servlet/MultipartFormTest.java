@@ -0,0 +1,132 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.servlet;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import java.util.Arrays;
+
+import spiralcraft.pioneer.test.ChunkedInput;
+import spiralcraft.pioneer.test.UnitTest;
+
+public class MultipartFormTest
+  extends UnitTest
+{
+
+  public void testSmallPartsInMemory()
+    throws IOException
+  {
+    MultipartForm form=read(1024,-1,-1,"a","b");
+    assertEquals(2,form.getParts().size());
+    assertTrue("in memory",form.getParts().get(0).isInMemory());
+    assertEquals("a",form.getParameters().getList("f")[0]);
+    assertEquals("b",form.getParameters().getList("f")[1]);
+  }
+
+  public void testLargePartSpills()
+    throws IOException
+  {
+    String large=MultipartParserTest.content('a',5000);
+    MultipartForm form=read(1024,-1,-1,large);
+    try
+    {
+      MultipartPart part=form.getParts().get(0);
+      assertFalse("in memory",part.isInMemory());
+      assertEquals(5000,part.getSize());
+      assertEquals(large,contents(part));
+      assertNull(form.getParameters().getValue("f"));
+    }
+    finally
+    { form.delete();
+    }
+  }
+
+  /**
+   * Once the memory budget is used up, later parts go to disk however
+   *   small they are
+   */
+  public void testMemoryBudgetSpills()
+    throws IOException
+  {
+    String part=MultipartParserTest.content('p',100);
+    MultipartForm form=read(1024,250,-1,part,part,part,part);
+    try
+    {
+      assertTrue("first in memory",form.getParts().get(0).isInMemory());
+      assertTrue("second in memory",form.getParts().get(1).isInMemory());
+      for (int i=2;i<4;i++)
+      {
+        MultipartPart spilled=form.getParts().get(i);
+        assertFalse("spilled "+i,spilled.isInMemory());
+        assertTrue("file exists",spilled.getFile().exists());
+        assertEquals(part,contents(spilled));
+      }
+    }
+    finally
+    { form.delete();
+    }
+    for (MultipartPart spilled: form.getParts())
+    { assertTrue("deleted",spilled.getFile()==null || !spilled.getFile().exists());
+    }
+  }
+
+  public void testMaxParts()
+    throws IOException
+  {
+    assertEquals(3,read(1024,-1,3,"a","b","c").getParts().size());
+    IOException x
+      =assertThrows(IOException.class,() -> read(1024,-1,3,"a","b","c","d"));
+    assertTrue(x.getMessage(),x.getMessage().contains("parts"));
+  }
+
+  public void testManyEmptyPartsRejected()
+  {
+    String[] parts=new String[2000];
+    Arrays.fill(parts,"");
+    assertThrows(IOException.class,() -> read(1024,-1,1000,parts));
+  }
+
+  private static MultipartForm read
+    (int memoryThreshold,long maxMemorySize,int maxParts,String ... parts)
+    throws IOException
+  {
+    String body=MultipartParserTest.body(parts);
+    return new MultipartForm
+      (new ChunkedInput(MultipartParserTest.chunks(body,333))
+      ,MultipartParserTest.BOUNDARY
+      ,StandardCharsets.UTF_8
+      ,memoryThreshold
+      ,maxMemorySize
+      ,maxParts
+      ,null
+      ,-1
+      );
+  }
+
+  private static String contents(MultipartPart part)
+    throws IOException
+  {
+    File file=part.getFile();
+    byte[] bytes
+      =file!=null
+      ?Files.readAllBytes(file.toPath())
+      :part.getInputStream().readAllBytes();
+    return new String(bytes,StandardCharsets.ISO_8859_1);
+  }
+}
@@ -0,0 +1,208 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import spiralcraft.pioneer.test.ChunkedInput;
+import spiralcraft.pioneer.test.UnitTest;
+
+public class MultipartParserTest
+  extends UnitTest
+{
+  static final String BOUNDARY="xyzBOUNDARYxyz";
+
+  public void testParts()
+    throws IOException
+  {
+    List<String> parts
+      =parse(1024,-1,body("one","two"));
+    assertEquals(List.of("one","two"),parts);
+  }
+
+  public void testHeaders()
+    throws IOException
+  {
+    MultipartParser parser
+      =new MultipartParser
+        (new ChunkedInput
+          ("--"+BOUNDARY+"\r\n"
+          +"Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n"
+          +"Content-Type: text/plain\r\n"
+          +"\r\n"
+          +"data\r\n"
+          +"--"+BOUNDARY+"--\r\n"
+          )
+        ,BOUNDARY
+        ,1024
+        ,-1
+        );
+    assertTrue("part",parser.nextPart());
+    assertEquals("file",parser.getPartName());
+    assertEquals("a.txt",parser.getFileName());
+    assertEquals("text/plain",parser.getContentType());
+    assertEquals("text/plain",parser.getHeader("content-type"));
+    assertFalse("last",parser.nextPart());
+  }
+
+  public void testEmptyPart()
+    throws IOException
+  { assertEquals(List.of("","x",""),parse(1024,-1,body("","x","")));
+  }
+
+  public void testPreambleAndEpilogue()
+    throws IOException
+  {
+    String data
+      ="preamble text\r\n"+body("a","b")+"epilogue\r\n--"+BOUNDARY+"\r\n";
+    assertEquals(List.of("a","b"),parse(1024,-1,data));
+  }
+
+  /**
+   * Parts whose size moves the delimiter across the edge of the read
+   *   window, read in pieces of several sizes
+   */
+  public void testDelimiterAcrossWindowEdges()
+    throws IOException
+  {
+    for (int size=990;size<=1060;size++)
+    {
+      String first=content('a',size);
+      String second=content('b',2100-size);
+      String data=body(first,second);
+      for (int piece: new int[] {1,7,100,1024,data.length()})
+      {
+        assertEquals
+          (List.of(first,second)
+          ,parse(1024,-1,chunks(data,piece))
+          );
+      }
+    }
+  }
+
+  /**
+   * Content containing prefixes of the delimiter is not taken as a
+   *   boundary, including where the prefix ends at the window edge
+   */
+  public void testPartialDelimiterInContent()
+    throws IOException
+  {
+    String delimiter="\r\n--"+BOUNDARY;
+    for (int length=1;length<delimiter.length();length++)
+    {
+      String prefix=delimiter.substring(0,length);
+      for (int size=1000;size<=1030;size+=3)
+      {
+        String content=content('c',size-length)+prefix+"tail";
+        assertEquals
+          (List.of(content,"next")
+          ,parse(1024,-1,chunks(body(content,"next"),13))
+          );
+      }
+    }
+    String nearMiss="\r\n--"+BOUNDARY.substring(0,BOUNDARY.length()-1)+"Q";
+    assertEquals(List.of(nearMiss),parse(1024,-1,body(nearMiss)));
+  }
+
+  public void testLargePart()
+    throws IOException
+  {
+    String large=content('z',100000);
+    assertEquals(List.of(large,"s"),parse(1024,-1,chunks(body(large,"s"),4000)));
+  }
+
+  public void testMissingClosingBoundary()
+  {
+    assertThrows
+      (IOException.class
+      ,() -> parse(1024,-1,"--"+BOUNDARY+"\r\n\r\ndata without end")
+      );
+  }
+
+  public void testMalformedPartHeader()
+  {
+    assertThrows
+      (IOException.class
+      ,() -> parse(1024,-1,"--"+BOUNDARY+"\r\nno colon\r\n\r\nx\r\n--"+BOUNDARY+"--")
+      );
+  }
+
+  public void testMaxSize()
+    throws IOException
+  {
+    String data=body(content('m',5000));
+    assertThrows(IOException.class,() -> parse(1024,4000,data));
+    assertEquals(1,parse(1024,data.length(),data).size());
+  }
+
+  /**
+   * A multipart body with the specified parts, each named "f"
+   */
+  static String body(String ... parts)
+  {
+    StringBuilder buf=new StringBuilder();
+    for (String part: parts)
+    {
+      buf.append("--").append(BOUNDARY).append("\r\n")
+        .append("Content-Disposition: form-data; name=\"f\"\r\n\r\n")
+        .append(part).append("\r\n");
+    }
+    buf.append("--").append(BOUNDARY).append("--\r\n");
+    return buf.toString();
+  }
+
+  static String content(char chr,int count)
+  {
+    StringBuilder buf=new StringBuilder(count);
+    for (int i=0;i<count;i++)
+    { buf.append((char) (chr+i%3));
+    }
+    return buf.toString();
+  }
+
+  static String[] chunks(String data,int size)
+  {
+    String[] chunks=new String[(data.length()+size-1)/size];
+    for (int i=0;i<chunks.length;i++)
+    { chunks[i]=data.substring(i*size,Math.min(data.length(),(i+1)*size));
+    }
+    return chunks;
+  }
+
+  private static List<String> parse(int bufferSize,long maxSize,String ... chunks)
+    throws IOException
+  {
+    MultipartParser parser
+      =new MultipartParser(new ChunkedInput(chunks),BOUNDARY,bufferSize,maxSize);
+    List<String> parts=new ArrayList<>();
+    byte[] bytes=new byte[37];
+    while (parser.nextPart())
+    {
+      ByteArrayOutputStream out=new ByteArrayOutputStream();
+      int count;
+      while ((count=parser.read(bytes,0,bytes.length))>=0)
+      { out.write(bytes,0,count);
+      }
+      parts.add(new String(out.toByteArray(),StandardCharsets.ISO_8859_1));
+    }
+    return parts;
+  }
+}
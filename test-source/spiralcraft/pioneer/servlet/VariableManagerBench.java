@@ -0,0 +1,71 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.servlet;
+
+import java.io.ByteArrayInputStream;
+
+import java.nio.charset.StandardCharsets;
+
+import spiralcraft.pioneer.test.Benchmark;
+
+/**
+ * <p>Measures reading a url-encoded form body with
+ *   VariableManager.fromStream() and looking up one value, for bodies of
+ *   1KB, 64KB and 1MB, sent with a Content-Length and with no length
+ *   (chunked).
+ * </p>
+ */
+public class VariableManagerBench
+{
+
+  public static void main(String[] args)
+    throws Exception
+  {
+    Benchmark benchmark=new Benchmark();
+    for (int size: new int[] {1024,64*1024,1024*1024})
+    {
+      byte[] body=body(size);
+      String label=size/1024+"KB";
+      benchmark.run
+        ("fromStream "+label+" length"
+        ,() -> VariableManager.fromStream
+            (body.length,new ByteArrayInputStream(body),StandardCharsets.UTF_8)
+            .getValue("k1").length()
+        );
+      benchmark.run
+        ("fromStream "+label+" chunked"
+        ,() -> VariableManager.fromStream
+            (-1,new ByteArrayInputStream(body),StandardCharsets.UTF_8)
+            .getValue("k1").length()
+        );
+    }
+  }
+
+  /**
+   * Pairs k0=v0&amp;k1=v1... with some escapes, of about the specified size
+   */
+  private static byte[] body(int size)
+  {
+    StringBuilder buf=new StringBuilder(size+32);
+    for (int i=0;buf.length()<size;i++)
+    {
+      if (i>0)
+      { buf.append('&');
+      }
+      buf.append('k').append(i).append("=v").append(i).append("+a%2Cb");
+    }
+    return buf.toString().getBytes(StandardCharsets.ISO_8859_1);
+  }
+}
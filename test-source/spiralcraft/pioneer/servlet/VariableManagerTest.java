@@ -0,0 +1,246 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.servlet;
+
+import java.io.IOException;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import java.util.HashMap;
+
+import spiralcraft.pioneer.test.ChunkedInput;
+import spiralcraft.pioneer.test.UnitTest;
+
+public class VariableManagerTest
+  extends UnitTest
+{
+
+  public void testPlainValues()
+    throws IOException
+  {
+    VariableManager vars=form("a=1&b=two&c=three");
+    assertEquals("1",vars.getValue("a"));
+    assertEquals("two",vars.getValue("b"));
+    assertEquals("three",vars.getValue("c"));
+    assertNull(vars.getValue("d"));
+  }
+
+  public void testPercentAndPlus()
+    throws IOException
+  {
+    VariableManager vars
+      =form("a=hello+world&b=100%25&c=%41%62%2b&d=x%20y");
+    assertEquals("hello world",vars.getValue("a"));
+    assertEquals("100%",vars.getValue("b"));
+    assertEquals("Ab+",vars.getValue("c"));
+    assertEquals("x y",vars.getValue("d"));
+  }
+
+  public void testEncodedNames()
+    throws IOException
+  {
+    VariableManager vars=form("first+name=x&a%5B0%5D=y");
+    assertEquals("x",vars.getValue("first name"));
+    assertEquals("y",vars.getValue("a[0]"));
+  }
+
+  /**
+   * An incomplete or invalid escape is kept as it is
+   */
+  public void testMalformedEscapes()
+    throws IOException
+  {
+    VariableManager vars=form("a=%&b=%4&c=%zz&d=50%&e=%4g1");
+    assertEquals("%",vars.getValue("a"));
+    assertEquals("%4",vars.getValue("b"));
+    assertEquals("%zz",vars.getValue("c"));
+    assertEquals("50%",vars.getValue("d"));
+    assertEquals("%4g1",vars.getValue("e"));
+  }
+
+  public void testCharsets()
+    throws IOException
+  {
+    assertEquals
+      ("caf\u00e9"
+      ,form("v=caf%C3%A9",StandardCharsets.UTF_8).getValue("v")
+      );
+    assertEquals
+      ("caf\u00e9"
+      ,form("v=caf%E9",StandardCharsets.ISO_8859_1).getValue("v")
+      );
+  }
+
+  public void testRepeatedNames()
+    throws IOException
+  {
+    VariableManager vars=form("a=1&b=x&a=2&a=3");
+    String[] list=vars.getList("a");
+    assertEquals(3,list.length);
+    assertEquals("1",list[0]);
+    assertEquals("2",list[1]);
+    assertEquals("3",list[2]);
+    assertEquals("1",vars.getValue("a"));
+  }
+
+  /**
+   * Pairs with no name or no value are ignored, and the value runs to
+   *   the next '&'
+   */
+  public void testEmptyAndOddPairs()
+    throws IOException
+  {
+    VariableManager vars=form("&&=x&a=&b&c=d=e&&f=g&");
+    assertNull(vars.getValue(""));
+    assertNull(vars.getValue("a"));
+    assertNull(vars.getValue("b"));
+    assertEquals("d=e",vars.getValue("c"));
+    assertEquals("g",vars.getValue("f"));
+  }
+
+  public void testDecodeURLEncoding()
+  {
+    HashMap<String,String[]> map
+      =VariableManager.decodeURLEncoding("a=%31&b=2+2",null);
+    assertEquals("1",map.get("a")[0]);
+    assertEquals("2 2",map.get("b")[0]);
+  }
+
+  public void testSetValueAfterDecoding()
+    throws IOException
+  {
+    VariableManager vars=form("a=%31");
+    vars.setValue("b","2");
+    assertEquals("1",vars.getValue("a"));
+    assertEquals("2",vars.getValue("b"));
+  }
+
+  /**
+   * Data split across reads, including within an escape
+   */
+  public void testSplitReads()
+    throws IOException
+  {
+    String data="name=J%C3%B6rg+M&x=%41";
+    for (int size=1;size<=data.length();size++)
+    {
+      VariableManager vars
+        =VariableManager.fromStream
+          (data.length()
+          ,new ChunkedInput(chunks(data,size))
+          ,StandardCharsets.UTF_8
+          ,1024
+          );
+      assertEquals("J\u00f6rg M",vars.getValue("name"));
+      assertEquals("A",vars.getValue("x"));
+    }
+  }
+
+  /**
+   * Only the declared length is read
+   */
+  public void testDeclaredLength()
+    throws IOException
+  {
+    VariableManager vars
+      =VariableManager.fromStream
+        (3,new ChunkedInput("a=1&b=2"),StandardCharsets.UTF_8,1024);
+    assertEquals("1",vars.getValue("a"));
+    assertNull(vars.getValue("b"));
+  }
+
+  /**
+   * A declared length larger than the data that arrives doesn't size the
+   *   buffer
+   */
+  public void testShortBody()
+    throws IOException
+  {
+    VariableManager vars
+      =VariableManager.fromStream
+        (Integer.MAX_VALUE-16
+        ,new ChunkedInput("a=1")
+        ,StandardCharsets.UTF_8
+        ,-1
+        );
+    assertEquals("1",vars.getValue("a"));
+  }
+
+  public void testUnknownLengthGrows()
+    throws IOException
+  {
+    String data=big(100000);
+    VariableManager vars
+      =VariableManager.fromStream
+        (-1,new ChunkedInput(chunks(data,4000)),StandardCharsets.UTF_8,-1);
+    assertEquals("v5000",vars.getValue("k5000"));
+  }
+
+  public void testMaxSize()
+    throws IOException
+  {
+    String data=big(1000);
+    int length=data.length();
+    assertThrows
+      (IOException.class
+      ,() -> VariableManager.fromStream
+        (length,new ChunkedInput(data),StandardCharsets.UTF_8,length-1)
+      );
+    assertThrows
+      (IOException.class
+      ,() -> VariableManager.fromStream
+        (-1,new ChunkedInput(data),StandardCharsets.UTF_8,length-1)
+      );
+    assertEquals
+      ("v100"
+      ,VariableManager.fromStream
+        (-1,new ChunkedInput(data),StandardCharsets.UTF_8,length)
+        .getValue("k100")
+      );
+  }
+
+  /**
+   * Pairs k0=v0&k1=v1... up to at least the specified size
+   */
+  static String big(int size)
+  {
+    StringBuilder buf=new StringBuilder(size+16);
+    for (int i=0;buf.length()<size;i++)
+    {
+      if (i>0)
+      { buf.append('&');
+      }
+      buf.append('k').append(i).append("=v").append(i);
+    }
+    return buf.toString();
+  }
+
+  private static VariableManager form(String data)
+    throws IOException
+  { return form(data,StandardCharsets.UTF_8);
+  }
+
+  private static VariableManager form(String data,Charset charset)
+    throws IOException
+  {
+    return VariableManager.fromStream
+      (data.length(),new ChunkedInput(data),charset,-1);
+  }
+
+  private static String[] chunks(String data,int size)
+  { return MultipartParserTest.chunks(data,size);
+  }
+}
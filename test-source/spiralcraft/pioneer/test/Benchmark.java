@@ -0,0 +1,206 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.util.Arrays;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A small benchmark harness for measurements that don't need a JMH
+ *   build. An operation is run for a warm-up period and then for a
+ *   number of timed rounds, on one or more threads, and the median
+ *   round is reported as throughput, time per operation and, for a
+ *   single thread, bytes allocated per operation.
+ * </p>
+ *
+ * <p>The results are indicative: there is no fork per measurement and
+ *   no dead-code protection beyond the value returned by the operation,
+ *   which is accumulated into a sink.
+ * </p>
+ */
+public final class Benchmark
+{
+  private static volatile long sink;
+
+  private long warmupMillis=Long.getLong("bench.warmupMs",1000);
+  private long roundMillis=Long.getLong("bench.roundMs",500);
+  private int rounds=Integer.getInteger("bench.rounds",5);
+
+  /**
+   * An operation under measurement. The return value is consumed so
+   *   the work can't be optimized away.
+   */
+  public interface Op
+  {
+    long run()
+      throws Exception;
+  }
+
+  public Benchmark warmupMillis(long warmupMillis)
+  {
+    this.warmupMillis=warmupMillis;
+    return this;
+  }
+
+  public Benchmark roundMillis(long roundMillis)
+  {
+    this.roundMillis=roundMillis;
+    return this;
+  }
+
+  public Benchmark rounds(int rounds)
+  {
+    this.rounds=rounds;
+    return this;
+  }
+
+  /**
+   * Measure an operation on a single thread
+   */
+  public Result run(String name,Op op)
+    throws Exception
+  { return run(name,1,op);
+  }
+
+  /**
+   * Measure an operation on the specified number of threads at once
+   */
+  public Result run(String name,int threads,Op op)
+    throws Exception
+  {
+    measure(op,threads,warmupMillis);
+    double[] opsPerSecond=new double[rounds];
+    double[] bytesPerOp=new double[rounds];
+    for (int i=0;i<rounds;i++)
+    {
+      long allocatedBefore=allocatedBytes();
+      long start=System.nanoTime();
+      long ops=measure(op,threads,roundMillis);
+      long elapsed=System.nanoTime()-start;
+      long allocated=allocatedBytes()-allocatedBefore;
+      opsPerSecond[i]=ops*1e9/elapsed;
+      bytesPerOp[i]=threads==1 && allocatedBefore>=0?(double) allocated/ops:-1;
+    }
+    Arrays.sort(opsPerSecond);
+    Arrays.sort(bytesPerOp);
+    Result result
+      =new Result(name,threads,opsPerSecond[rounds/2],bytesPerOp[rounds/2]);
+    System.out.println(result);
+    return result;
+  }
+
+  private long measure(Op op,int threads,long millis)
+    throws Exception
+  {
+    if (threads==1)
+    {
+      long deadline=System.nanoTime()+millis*1000000;
+      long ops=0;
+      long value=0;
+      do
+      {
+        for (int i=0;i<16;i++)
+        { value+=op.run();
+        }
+        ops+=16;
+      }
+      while (System.nanoTime()<deadline);
+      sink+=value;
+      return ops;
+    }
+
+    LongAdder total=new LongAdder();
+    CyclicBarrier barrier=new CyclicBarrier(threads);
+    Thread[] workers=new Thread[threads];
+    Exception[] failure=new Exception[1];
+    for (int t=0;t<threads;t++)
+    {
+      workers[t]=new Thread
+        (() ->
+          {
+            try
+            {
+              barrier.await();
+              long deadline=System.nanoTime()+millis*1000000;
+              long ops=0;
+              long value=0;
+              while (System.nanoTime()<deadline)
+              {
+                value+=op.run();
+                ops++;
+              }
+              sink+=value;
+              total.add(ops);
+            }
+            catch (Exception x)
+            { failure[0]=x;
+            }
+          }
+        );
+      workers[t].start();
+    }
+    for (Thread worker: workers)
+    { worker.join();
+    }
+    if (failure[0]!=null)
+    { throw failure[0];
+    }
+    return total.sum();
+  }
+
+  private static long allocatedBytes()
+  {
+    ThreadMXBean bean=ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean)
+    {
+      return ((com.sun.management.ThreadMXBean) bean)
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  public static class Result
+  {
+    public final String name;
+    public final int threads;
+    public final double opsPerSecond;
+    public final double bytesPerOp;
+
+    Result(String name,int threads,double opsPerSecond,double bytesPerOp)
+    {
+      this.name=name;
+      this.threads=threads;
+      this.opsPerSecond=opsPerSecond;
+      this.bytesPerOp=bytesPerOp;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format
+        ("%-40s %3d thr %14.0f ops/s %10.1f ns/op%s"
+        ,name
+        ,threads
+        ,opsPerSecond
+        ,1e9*threads/opsPerSecond
+        ,bytesPerOp>=0?String.format(" %10.1f B/op",bytesPerOp):""
+        );
+    }
+  }
+}
@@ -0,0 +1,75 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.test;
+
+import java.io.InputStream;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An InputStream that returns each of a series of chunks of data from a
+ *   separate read() call, to exercise parsing across read boundaries.
+ */
+public class ChunkedInput
+  extends InputStream
+{
+  private final byte[][] chunks;
+  private int chunk;
+  private int pos;
+
+  public ChunkedInput(String ... chunks)
+  {
+    this.chunks=new byte[chunks.length][];
+    for (int i=0;i<chunks.length;i++)
+    { this.chunks[i]=chunks[i].getBytes(StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  public ChunkedInput(byte[] ... chunks)
+  { this.chunks=chunks;
+  }
+
+  @Override
+  public int read()
+  {
+    byte[] b=new byte[1];
+    return read(b,0,1)<0?-1:b[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b,int off,int len)
+  {
+    while (chunk<chunks.length && pos==chunks[chunk].length)
+    {
+      chunk++;
+      pos=0;
+    }
+    if (chunk==chunks.length)
+    { return -1;
+    }
+    if (len==0)
+    { return 0;
+    }
+    int count=Math.min(len,chunks[chunk].length-pos);
+    System.arraycopy(chunks[chunk],pos,b,off,count);
+    pos+=count;
+    return count;
+  }
+
+  @Override
+  public int available()
+  { return chunk<chunks.length?chunks[chunk].length-pos:0;
+  }
+}
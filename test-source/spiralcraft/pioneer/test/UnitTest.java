@@ -0,0 +1,193 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.test;
+
+import java.io.File;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>A minimal unit test base class. Each public no-argument method whose
+ *   name starts with "test" is run on a new instance, and a test fails
+ *   if it throws.
+ * </p>
+ *
+ * <p>main() runs the named test classes, or every class named *Test
+ *   found under a classes directory, and exits with a non-zero status if
+ *   any test fails.
+ * </p>
+ */
+public abstract class UnitTest
+{
+
+  public static void main(String[] args)
+    throws Exception
+  {
+    List<String> classNames=new ArrayList<>();
+    for (String arg: args)
+    {
+      File dir=new File(arg);
+      if (dir.isDirectory())
+      { findTests(dir,"",classNames);
+      }
+      else
+      { classNames.add(arg);
+      }
+    }
+    Collections.sort(classNames);
+
+    int failures=0;
+    int count=0;
+    for (String className: classNames)
+    {
+      Class<?> testClass=Class.forName(className);
+      if (!UnitTest.class.isAssignableFrom(testClass)
+          || Modifier.isAbstract(testClass.getModifiers())
+          )
+      { continue;
+      }
+      Method[] methods=testClass.getMethods();
+      Arrays.sort(methods,(a,b) -> a.getName().compareTo(b.getName()));
+      for (Method method: methods)
+      {
+        if (!method.getName().startsWith("test")
+            || method.getParameterCount()!=0
+            || Modifier.isStatic(method.getModifiers())
+            )
+        { continue;
+        }
+        count++;
+        String name=testClass.getSimpleName()+"."+method.getName();
+        try
+        {
+          method.invoke(testClass.getDeclaredConstructor().newInstance());
+          System.out.println("PASS "+name);
+        }
+        catch (InvocationTargetException x)
+        {
+          failures++;
+          System.out.println("FAIL "+name+": "+x.getCause());
+          x.getCause().printStackTrace(System.out);
+        }
+      }
+    }
+    System.out.println
+      (count+" tests, "+failures+" failures");
+    if (failures>0)
+    { System.exit(1);
+    }
+  }
+
+  private static void findTests(File dir,String packageName,List<String> names)
+  {
+    File[] files=dir.listFiles();
+    if (files==null)
+    { return;
+    }
+    for (File file: files)
+    {
+      String name=file.getName();
+      if (file.isDirectory())
+      {
+        findTests
+          (file
+          ,packageName.isEmpty()?name:packageName+"."+name
+          ,names
+          );
+      }
+      else if (name.endsWith("Test.class"))
+      {
+        names.add
+          (packageName+"."+name.substring(0,name.length()-".class".length()));
+      }
+    }
+  }
+
+  protected static void assertTrue(String message,boolean condition)
+  {
+    if (!condition)
+    { throw new AssertionError(message);
+    }
+  }
+
+  protected static void assertFalse(String message,boolean condition)
+  { assertTrue(message,!condition);
+  }
+
+  protected static void assertEquals(Object expected,Object actual)
+  {
+    if (expected==null?actual!=null:!expected.equals(actual))
+    { throw new AssertionError("Expected <"+expected+"> but was <"+actual+">");
+    }
+  }
+
+  protected static void assertEquals(long expected,long actual)
+  {
+    if (expected!=actual)
+    { throw new AssertionError("Expected <"+expected+"> but was <"+actual+">");
+    }
+  }
+
+  protected static void assertArrayEquals(byte[] expected,byte[] actual)
+  {
+    if (!Arrays.equals(expected,actual))
+    {
+      throw new AssertionError
+        ("Expected "+Arrays.toString(expected)
+        +" but was "+Arrays.toString(actual)
+        );
+    }
+  }
+
+  protected static void assertNull(Object actual)
+  { assertEquals(null,actual);
+  }
+
+  protected static void fail(String message)
+  { throw new AssertionError(message);
+  }
+
+  /**
+   * Assert that an action throws an exception of the specified type
+   */
+  protected static <X extends Throwable> X assertThrows
+    (Class<X> type,ThrowingRunnable action)
+  {
+    try
+    { action.run();
+    }
+    catch (Throwable x)
+    {
+      if (type.isInstance(x))
+      { return type.cast(x);
+      }
+      throw new AssertionError("Expected "+type.getName()+" but got "+x,x);
+    }
+    throw new AssertionError("Expected "+type.getName());
+  }
+
+  public interface ThrowingRunnable
+  {
+    void run()
+      throws Exception;
+  }
+}
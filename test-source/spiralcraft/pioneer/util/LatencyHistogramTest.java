@@ -0,0 +1,109 @@
+//
+// Copyright (c) 1998,2008 Michael Toth
+// Spiralcraft Inc., All Rights Reserved
+//
+// This package is part of the Spiralcraft project and is licensed under
+// a multiple-license framework.
+//
+// You may not use this file except in compliance with the terms found in the
+// SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+// at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+// Unless otherwise agreed to in writing, this software is distributed on an
+// "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.pioneer.util;
+
+import spiralcraft.pioneer.test.UnitTest;
+
+public class LatencyHistogramTest
+  extends UnitTest
+{
+
+  public void testEmptyPercentileIsZero()
+  {
+    LatencyHistogram histogram=new LatencyHistogram();
+    assertEquals(0,LatencyHistogram.percentile(histogram.drain(),.99));
+  }
+
+  public void testBucketUpperBounds()
+  {
+    assertEquals(0,single(0));
+    assertEquals(0,single(-5));
+    assertEquals(1,single(1));
+    assertEquals(3,single(2));
+    assertEquals(3,single(3));
+    assertEquals(7,single(4));
+    assertEquals(1023,single(1000));
+    assertEquals(1023,single(1023));
+    assertEquals(2047,single(1024));
+  }
+
+  public void testLargestValuesSaturate()
+  {
+    assertEquals(Long.MAX_VALUE,single(Long.MAX_VALUE));
+    assertEquals(Long.MAX_VALUE,single(1L<<62));
+  }
+
+  public void testPercentiles()
+  {
+    LatencyHistogram histogram=new LatencyHistogram();
+    for (int i=0;i<90;i++)
+    { histogram.record(10);
+    }
+    for (int i=0;i<9;i++)
+    { histogram.record(1000);
+    }
+    histogram.record(100000);
+    long[] counts=histogram.drain();
+
+    assertEquals(15,LatencyHistogram.percentile(counts,.5));
+    assertEquals(15,LatencyHistogram.percentile(counts,.9));
+    assertEquals(1023,LatencyHistogram.percentile(counts,.91));
+    assertEquals(1023,LatencyHistogram.percentile(counts,.99));
+    assertEquals(131071,LatencyHistogram.percentile(counts,1));
+  }
+
+  public void testDrainResets()
+  {
+    LatencyHistogram histogram=new LatencyHistogram();
+    histogram.record(100);
+    assertEquals(127,LatencyHistogram.percentile(histogram.drain(),.5));
+    assertEquals(0,LatencyHistogram.percentile(histogram.drain(),.5));
+  }
+
+  public void testConcurrentRecording()
+    throws Exception
+  {
+    LatencyHistogram histogram=new LatencyHistogram();
+    Thread[] threads=new Thread[4];
+    for (int t=0;t<threads.length;t++)
+    {
+      threads[t]=new Thread
+        (() ->
+          {
+            for (int i=0;i<10000;i++)
+            { histogram.record(i);
+            }
+          }
+        );
+      threads[t].start();
+    }
+    for (Thread thread: threads)
+    { thread.join();
+    }
+
+    long total=0;
+    for (long count: histogram.drain())
+    { total+=count;
+    }
+    assertEquals(40000,total);
+  }
+
+  private static long single(long value)
+  {
+    LatencyHistogram histogram=new LatencyHistogram();
+    histogram.record(value);
+    return LatencyHistogram.percentile(histogram.drain(),.5);
+  }
+}